@@ -0,0 +1,226 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks;
+
+import com.edmunds.etm.apache.configbuilder.ApacheConfigurationBuilder;
+import com.edmunds.etm.apache.configbuilder.ApacheRewriteMapBuilder;
+import com.edmunds.etm.haproxy.configbuilder.HaProxyConfigurationBuilder;
+import com.edmunds.etm.haproxy.configbuilder.HaProxyExactMapBuilder;
+import com.edmunds.etm.haproxy.configbuilder.HaProxyPrefixMapBuilder;
+import com.edmunds.etm.nginx.configbuilder.NginxConfigurationBuilder;
+import com.edmunds.etm.routing.configbuilder.RoutingTableBuilder;
+import com.edmunds.etm.rules.api.AbstractConfigurationBuilder;
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.LiteralRuleTable;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlRuleSet;
+import com.edmunds.etm.rules.api.WebServerConfigurationBuilder;
+import com.edmunds.etm.rules.impl.AgentConfigurationManager;
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.edmunds.etm.rules.util.ConfigurationBuffer;
+import com.edmunds.etm.runtime.api.Application;
+import com.google.common.collect.Lists;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the generation of the web server configurations from compiled rules, the digest of the result and the
+ * rendering of the active rule set by the UI. <p/> The outputMode parameter selects the configuration style: "regex"
+ * writes one regular expression per rule, "coalesced" merges consecutive rules for the same vip and "literal" moves
+ * literal rules to map files. The size of each output is printed during setup, the GC profiler ({@link
+ * BenchmarkMain}) reports the bytes allocated per build.
+ *
+ * @author David Trott
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ConfigurationBenchmark {
+
+    @Param({"100", "1000", "10000", "50000"})
+    private int ruleCount;
+
+    @Param({"10", "300", "2000"})
+    private int applicationCount;
+
+    @Param({"regex", "coalesced", "literal"})
+    private String outputMode;
+
+    private UrlTokenDictionary tokenDictionary;
+    private Set<UrlRule> orderedRules;
+    private List<Application> applications;
+    private CompiledRuleSet compiledRules;
+
+    private ApacheConfigurationBuilder apacheBuilder;
+    private ApacheRewriteMapBuilder apacheMapBuilder;
+    private HaProxyConfigurationBuilder haProxyBuilder;
+    private HaProxyExactMapBuilder haProxyExactMapBuilder;
+    private HaProxyPrefixMapBuilder haProxyPrefixMapBuilder;
+    private NginxConfigurationBuilder nginxBuilder;
+    private RoutingTableBuilder routingTableBuilder;
+    private AgentConfigurationManager agentConfigurationManager;
+
+    private byte[] apacheConfiguration;
+    private ConfigurationBuffer digestBuffer;
+
+    @Setup
+    public void setUp() {
+        final List<RuleDefinition> definitions =
+                new SyntheticRuleGenerator(SyntheticRuleGenerator.DEFAULT_SEED).generate(ruleCount, applicationCount);
+
+        tokenDictionary = RuleCorpus.newTokenDictionary();
+        final UrlRuleSet ruleSet = new UrlRuleSet(Collections.<UrlRule>emptyList())
+                .mergeRules(RuleCorpus.toUrlRules(definitions, tokenDictionary));
+        if (ruleSet == null) {
+            throw new IllegalStateException("The benchmark rules do not merge");
+        }
+        orderedRules = ruleSet.orderRules();
+        applications = RuleCorpus.buildApplications(definitions);
+        compiledRules = CompiledRuleSet.compile(tokenDictionary, orderedRules);
+
+        apacheBuilder = new ApacheConfigurationBuilder();
+        apacheMapBuilder = new ApacheRewriteMapBuilder(apacheBuilder);
+        haProxyBuilder = new HaProxyConfigurationBuilder();
+        haProxyExactMapBuilder = new HaProxyExactMapBuilder(haProxyBuilder);
+        haProxyPrefixMapBuilder = new HaProxyPrefixMapBuilder(haProxyBuilder);
+        nginxBuilder = new NginxConfigurationBuilder();
+        routingTableBuilder = new RoutingTableBuilder();
+
+        if ("coalesced".equals(outputMode)) {
+            apacheBuilder.setCoalesceRules(true);
+            haProxyBuilder.setCoalesceRules(true);
+        } else if ("literal".equals(outputMode)) {
+            apacheBuilder.setRewriteMap(true);
+            haProxyBuilder.setMapFiles(true);
+        } else if (!"regex".equals(outputMode)) {
+            throw new IllegalArgumentException("Unknown output mode: " + outputMode);
+        }
+
+        final List<WebServerConfigurationBuilder> builders = Lists.<WebServerConfigurationBuilder>newArrayList(
+                apacheBuilder, apacheMapBuilder, haProxyBuilder, haProxyExactMapBuilder, haProxyPrefixMapBuilder,
+                nginxBuilder, routingTableBuilder);
+        agentConfigurationManager = new AgentConfigurationManager();
+        agentConfigurationManager.mapWebServerConfigurationBuilders(builders);
+
+        // Activate a rule set in every builder, this is what the UI renders.
+        final StringBuilder sizes = new StringBuilder();
+        for (WebServerConfigurationBuilder builder : builders) {
+            final byte[] data = builder.build(applications, compiledRules);
+            sizes.append(String.format(" %s=%d", builder.getZooKeeperNodeName(), data.length));
+        }
+        System.out.println(String.format("Output size in bytes (%d rules, %d applications, %s):%s",
+                orderedRules.size(), applications.size(), outputMode, sizes));
+
+        apacheConfiguration = apacheBuilder.getActiveRuleSetData().toByteArray();
+        digestBuffer = new ConfigurationBuffer(apacheConfiguration.length);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        agentConfigurationManager.destroy();
+    }
+
+    /**
+     * Compiles the rules, this is done once per rebuild and shared by the builders.
+     */
+    @Benchmark
+    public CompiledRuleSet compileRules() {
+        return CompiledRuleSet.compile(tokenDictionary, orderedRules);
+    }
+
+    /**
+     * Compiles the rules and splits them into the literal rule table, the first map builder pays for the table once
+     * per rebuild in the literal mode. Subtract {@link #compileRules()} for the cost of the table, the 50000 rule
+     * literal run is the data point for the prefix index of the earlier rules.
+     */
+    @Benchmark
+    public LiteralRuleTable buildLiteralRuleTable() {
+        return CompiledRuleSet.compile(tokenDictionary, orderedRules).getLiteralRuleTable();
+    }
+
+    @Benchmark
+    public int buildApache() {
+        return build(apacheBuilder) + build(apacheMapBuilder);
+    }
+
+    /**
+     * Builds the HA Proxy configuration, most of the time is spent processing the Freemarker template.
+     */
+    @Benchmark
+    public int buildHaProxy() {
+        return build(haProxyBuilder) + build(haProxyExactMapBuilder) + build(haProxyPrefixMapBuilder);
+    }
+
+    @Benchmark
+    public int buildNginx() {
+        return build(nginxBuilder);
+    }
+
+    @Benchmark
+    public int buildRoutingTable() {
+        return build(routingTableBuilder);
+    }
+
+    /**
+     * Digests a finished configuration in one pass, which is how the digest was computed before the builders wrote
+     * into a {@link ConfigurationBuffer}.
+     */
+    @Benchmark
+    public String md5Hex() {
+        return DigestUtils.md5Hex(apacheConfiguration);
+    }
+
+    /**
+     * Digests the same configuration incrementally as it is written into a buffer.
+     */
+    @Benchmark
+    public String bufferDigest() {
+        digestBuffer.reset();
+        digestBuffer.write(apacheConfiguration, 0, apacheConfiguration.length);
+        return digestBuffer.getDigest();
+    }
+
+    /**
+     * Renders the active Apache configuration for the UI, this runs on every view of the rule set page.
+     */
+    @Benchmark
+    public List<String> getActiveRuleSetLines() {
+        return agentConfigurationManager.getActiveRuleSetLines(apacheBuilder.getZooKeeperNodeName());
+    }
+
+    private int build(AbstractConfigurationBuilder builder) {
+        return builder.build(applications, compiledRules).length;
+    }
+}
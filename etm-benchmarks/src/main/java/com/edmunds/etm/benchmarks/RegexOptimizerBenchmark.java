@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks;
+
+import com.edmunds.etm.rules.util.RegexOptimizer;
+import com.google.common.collect.Lists;
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks matching a rule that contains the [make] token, comparing the flat alternation with the expression
+ * generated by {@link RegexOptimizer}. <p/> Each invocation matches three URLs per make: a hit, the same path with a
+ * misspelled make and a different path, so a third of the URLs match.
+ *
+ * @author David Trott
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class RegexOptimizerBenchmark {
+
+    private Pattern flatPattern;
+    private Pattern optimizedPattern;
+    private String[] urls;
+
+    @Setup
+    public void setUp() {
+        final List<String> makes = Arrays.asList(RuleCorpus.MAKES);
+        final String flat = "(" + StringUtils.join(makes, "|") + ")";
+        final String optimized = RegexOptimizer.alternation(makes);
+
+        flatPattern = Pattern.compile("^/" + flat + "/[^/]*/index\\.html$");
+        optimizedPattern = Pattern.compile("^/" + optimized + "/[^/]*/index\\.html$");
+
+        final List<String> urlList = Lists.newArrayList();
+        for (String make : makes) {
+            urlList.add("/" + make + "/model/index.html");
+            urlList.add("/" + make + "x/model/index.html");
+            urlList.add("/car-reviews/" + make + "/index.html");
+        }
+        urls = urlList.toArray(new String[urlList.size()]);
+
+        System.out.println(String.format("flat: %d chars, optimized: %d chars", flat.length(), optimized.length()));
+    }
+
+    @Benchmark
+    public int matchFlat() {
+        return match(flatPattern);
+    }
+
+    @Benchmark
+    public int matchOptimized() {
+        return match(optimizedPattern);
+    }
+
+    private int match(Pattern pattern) {
+        int matches = 0;
+        for (String url : urls) {
+            if (pattern.matcher(url).matches()) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
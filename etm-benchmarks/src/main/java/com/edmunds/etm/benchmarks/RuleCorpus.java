@@ -0,0 +1,194 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks;
+
+import com.edmunds.etm.common.api.FixedUrlToken;
+import com.edmunds.etm.common.api.RegexUrlToken;
+import com.edmunds.etm.common.api.UrlToken;
+import com.edmunds.etm.loadbalancer.api.PoolMember;
+import com.edmunds.etm.loadbalancer.api.VirtualServer;
+import com.edmunds.etm.management.api.HostAddress;
+import com.edmunds.etm.management.api.HttpMonitor;
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlTokenResolver;
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.edmunds.etm.runtime.api.Application;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The rule sets that the benchmarks run against: the production sample in {@code url-rules.txt} (named "corpus") or a
+ * synthetic rule set of a given size (named by its rule count).
+ *
+ * @author David Trott
+ */
+public final class RuleCorpus {
+
+    /**
+     * The name of the production sample.
+     */
+    public static final String CORPUS = "corpus";
+
+    private static final String URL_RULES_RESOURCE = "/url-rules.txt";
+
+    private static final int POOL_MEMBER_COUNT = 3;
+
+    /**
+     * The makes accepted by the [make] token.
+     */
+    static final String[] MAKES = {
+            "acura", "am-general", "amgeneral", "aston-martin", "astonmartin", "audi", "bentley", "bmw", "bugatti",
+            "buick", "cadillac", "chevrolet", "chrysler", "daewoo", "dodge", "dummy", "eagle", "ferrari", "fiat",
+            "fisker", "ford", "geo", "gmc", "honda", "hummer", "hyundai", "infiniti", "isuzu", "jaguar", "jeep",
+            "kia", "lamborghini", "land-rover", "landrover", "lexus", "lincoln", "lotus", "mahindra", "maserati",
+            "maybach", "mazda", "mclaren", "mercedes-benz", "mercedesbenz", "mercury", "mini", "mitsubishi",
+            "nissan", "oldsmobile", "panoz", "plymouth", "pontiac", "porsche", "ram", "rolls-royce", "rollsroyce",
+            "saab", "saturn", "scion", "smart", "spyker", "srt", "subaru", "suzuki", "tesla", "toyota",
+            "volkswagen", "volvo"};
+
+    private RuleCorpus() {
+    }
+
+    /**
+     * Creates the tokens used by both the production sample and the synthetic rules.
+     *
+     * @return the tokens.
+     */
+    public static List<UrlToken> newTokens() {
+        final List<UrlToken> tokens = Lists.newArrayList();
+        tokens.add(new FixedUrlToken("make", MAKES));
+        tokens.add(new RegexUrlToken("model", "[^/]*"));
+        tokens.add(new RegexUrlToken("year", "(19|20)\\d{2}"));
+        tokens.add(new RegexUrlToken("state", "(ca|ny|other)"));
+        tokens.add(new RegexUrlToken("zipcode", "\\d{5}"));
+        return tokens;
+    }
+
+    /**
+     * Creates a dictionary of the tokens returned by {@link #newTokens()}.
+     *
+     * @return a new dictionary.
+     */
+    public static UrlTokenDictionary newTokenDictionary() {
+        final UrlTokenDictionary dictionary = new UrlTokenDictionary();
+        dictionary.addAll(newTokens());
+        return dictionary;
+    }
+
+    /**
+     * Loads a rule set.
+     *
+     * @param name {@link #CORPUS} or the number of synthetic rules.
+     * @return the definitions of the rules.
+     * @throws IOException if the production sample cannot be read.
+     */
+    public static List<RuleDefinition> load(String name) throws IOException {
+        if (CORPUS.equals(name)) {
+            return loadUrlRules();
+        }
+
+        final int ruleCount = Integer.parseInt(name);
+        return new SyntheticRuleGenerator(SyntheticRuleGenerator.DEFAULT_SEED)
+                .generate(ruleCount, SyntheticRuleGenerator.getDefaultApplicationCount(ruleCount));
+    }
+
+    /**
+     * Loads the production sample, each line is "rule TAB groupId:artifactId:version TAB vipAddress".
+     *
+     * @return the definitions of the rules.
+     * @throws IOException if the sample cannot be read.
+     */
+    public static List<RuleDefinition> loadUrlRules() throws IOException {
+        final InputStream stream = RuleCorpus.class.getResourceAsStream(URL_RULES_RESOURCE);
+        Validate.notNull(stream, "Missing resource: " + URL_RULES_RESOURCE);
+
+        try {
+            final List<RuleDefinition> definitions = Lists.newArrayList();
+            for (String line : IOUtils.readLines(stream, "UTF8")) {
+                final String[] split = line.split("\t");
+                final String[] module = split[1].split(":");
+                definitions.add(new RuleDefinition(split[0], new MavenModule(module[0], module[1], module[2]), split[2]));
+            }
+            return definitions;
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Parses rule definitions.
+     *
+     * @param definitions   the definitions.
+     * @param tokenResolver the resolver of the tokens.
+     * @return the rules, in the same order.
+     */
+    public static List<UrlRule> toUrlRules(List<RuleDefinition> definitions, UrlTokenResolver tokenResolver) {
+        final List<UrlRule> rules = Lists.newArrayListWithCapacity(definitions.size());
+        for (RuleDefinition definition : definitions) {
+            rules.add(definition.toUrlRule(tokenResolver));
+        }
+        return rules;
+    }
+
+    /**
+     * Creates an application for each maven module of the rules, each with a virtual server at the rule's vip address
+     * and a pool of three members.
+     *
+     * @param definitions the definitions of the rules.
+     * @return the applications, one per module.
+     */
+    public static List<Application> buildApplications(List<RuleDefinition> definitions) {
+        final Map<MavenModule, String> vipAddresses = Maps.newLinkedHashMap();
+        for (RuleDefinition definition : definitions) {
+            if (!vipAddresses.containsKey(definition.getMavenModule())) {
+                vipAddresses.put(definition.getMavenModule(), definition.getVipAddress());
+            }
+        }
+
+        final HttpMonitor httpMonitor = new HttpMonitor("/support-internal/index.jsp", "Admin Home");
+        final List<Application> applications = Lists.newArrayListWithCapacity(vipAddresses.size());
+
+        int index = 0;
+        for (Map.Entry<MavenModule, String> entry : vipAddresses.entrySet()) {
+            final String[] vip = entry.getValue().split(":");
+            final HostAddress vipHost = new HostAddress(vip[0], Integer.parseInt(vip[1]));
+
+            final Set<PoolMember> poolMembers = Sets.newHashSet();
+            for (int i = 0; i < POOL_MEMBER_COUNT; i++) {
+                final String host = String.format("10.%d.%d.%d", 20 + i, index / 250, index % 250);
+                poolMembers.add(new PoolMember(new HostAddress(host, 9000)));
+            }
+            index++;
+
+            final MavenModule mavenModule = entry.getKey();
+            final VirtualServer virtualServer = new VirtualServer(mavenModule.getArtifactId(), vipHost, poolMembers);
+            applications.add(new Application(mavenModule, new ArrayList<String>(), httpMonitor, virtualServer));
+        }
+
+        return applications;
+    }
+}
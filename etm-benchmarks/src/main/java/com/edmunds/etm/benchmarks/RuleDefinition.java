@@ -0,0 +1,64 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks;
+
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlRuleSegmentPool;
+import com.edmunds.etm.rules.api.UrlTokenResolver;
+
+/**
+ * The unparsed definition of a URL rule, so that the cost of parsing it can be measured.
+ *
+ * @author David Trott
+ */
+public final class RuleDefinition {
+
+    private final String rule;
+    private final MavenModule mavenModule;
+    private final String vipAddress;
+
+    public RuleDefinition(String rule, MavenModule mavenModule, String vipAddress) {
+        this.rule = rule;
+        this.mavenModule = mavenModule;
+        this.vipAddress = vipAddress;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public MavenModule getMavenModule() {
+        return mavenModule;
+    }
+
+    public String getVipAddress() {
+        return vipAddress;
+    }
+
+    public UrlRule toUrlRule(UrlTokenResolver tokenResolver) {
+        return new UrlRule(tokenResolver, mavenModule, vipAddress, rule);
+    }
+
+    public UrlRule toUrlRule(UrlRuleSegmentPool segmentPool) {
+        return new UrlRule(segmentPool, mavenModule, vipAddress, rule);
+    }
+
+    @Override
+    public String toString() {
+        return rule + '\t' + mavenModule + '\t' + vipAddress;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks;
+
+import com.edmunds.etm.management.api.MavenModule;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.Validate;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates large, reproducible rule sets that look like the production sample. <p/> Rules are a path of literal
+ * directories (popular directories are shared by many rules), optionally followed by a chain of tokens such as {@code
+ * [make]/[model]/[year]}, and end with a file name, a wildcard, {@code *}, {@code **} or a trailing slash. A few
+ * applications own most of the rules. <p/> The rule set merges without conflicts: the chain of tokens is chosen by the
+ * directory path so two rules never put different tokens at the same position. Every directory name matches {@code
+ * [model]}, which accepts any name, but a literal name is more specific than a token so those rules are ordered rather
+ * than conflicting; no name matches any of the other tokens.
+ *
+ * @author David Trott
+ */
+public class SyntheticRuleGenerator {
+
+    /**
+     * The seed used by the benchmarks, so that every run measures the same rules.
+     */
+    public static final long DEFAULT_SEED = 20111016L;
+
+    /**
+     * The syllables of directory and file names, none of them matches a make, a state or digits.
+     */
+    private static final String[] SYLLABLES = {
+            "auto", "buy", "car", "deal", "drive", "guide", "lease", "loan", "news", "photo", "price", "rate", "rest",
+            "review", "sell", "spec", "tool", "trade", "used", "video", "api", "inventory", "finance", "compare",
+            "research", "tips", "cost", "owner", "insure", "forum"};
+
+    /**
+     * The chains of tokens, the production sample mostly uses [make]/[model]/[year].
+     */
+    private static final String[][] TOKEN_CHAINS = {
+            {"[make]", "[model]", "[year]"}, {"[make]", "[model]", "[year]"}, {"[make]", "[model]"}, {"[make]"},
+            {"[year]", "[make]", "[model]"}, {"[state]"}, {"[zipcode]"}};
+
+    private static final String[] EXTENSIONS = {".html", ".html", ".html", ".jsp", ".json"};
+
+    private final Random random;
+
+    public SyntheticRuleGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Returns the number of applications for a rule set of the specified size, the production sample has about five
+     * rules per application.
+     *
+     * @param ruleCount the number of rules.
+     * @return the number of applications.
+     */
+    public static int getDefaultApplicationCount(int ruleCount) {
+        return Math.max(10, ruleCount / 5);
+    }
+
+    /**
+     * Generates a rule set.
+     *
+     * @param ruleCount        the number of rules.
+     * @param applicationCount the number of applications that own the rules.
+     * @return the definitions of the rules, each rule is unique.
+     */
+    public List<RuleDefinition> generate(int ruleCount, int applicationCount) {
+        Validate.isTrue(ruleCount >= 0, "ruleCount is negative");
+        Validate.isTrue(applicationCount > 0, "applicationCount must be positive");
+
+        final List<String> words = buildWords((int) Math.sqrt(ruleCount) * 4);
+        final List<RuleDefinition> definitions = Lists.newArrayListWithCapacity(ruleCount);
+        final Set<String> rules = Sets.newHashSet();
+
+        while (definitions.size() < ruleCount) {
+            final String rule = generateRule(words);
+            if (rules.add(rule)) {
+                // Skewed so that a few applications own most of the rules.
+                final int application = (int) (applicationCount * Math.pow(random.nextDouble(), 2));
+                definitions.add(new RuleDefinition(rule,
+                        new MavenModule("com.edmunds.sites", "app" + application + "-web", "1.0." + application),
+                        "10.11." + (application / 250) + '.' + (application % 250) + ":7000"));
+            }
+        }
+
+        return definitions;
+    }
+
+    private String generateRule(List<String> words) {
+        final StringBuilder sb = new StringBuilder();
+
+        final int directoryCount = random.nextInt(4);
+        for (int i = 0; i < directoryCount; i++) {
+            // Shallow directories come from a smaller, more popular set of names.
+            sb.append('/').append(pick(words, (i + 1) * words.size() / 3));
+        }
+
+        if (random.nextInt(10) < 3) {
+            final String[] chain = TOKEN_CHAINS[(sb.toString().hashCode() & Integer.MAX_VALUE) % TOKEN_CHAINS.length];
+            for (String token : chain) {
+                sb.append('/').append(token);
+            }
+            if (random.nextBoolean()) {
+                sb.append('/').append(pick(words, words.size()));
+            }
+        }
+
+        sb.append('/');
+        final int fileType = random.nextInt(100);
+        final String name = pick(words, words.size());
+        final String extension = EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+        if (fileType < 35) {
+            sb.append(name).append(extension);
+        } else if (fileType < 50) {
+            sb.append(name).append('*').append(extension);
+        } else if (fileType < 55) {
+            sb.append(name).append('*');
+        } else if (fileType < 60) {
+            sb.append('*');
+        } else if (fileType < 95) {
+            sb.append("**");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Picks one of the first words, with a strong bias to the most popular.
+     */
+    private String pick(List<String> words, int limit) {
+        final int bound = Math.max(1, Math.min(limit, words.size()));
+        return words.get((int) (bound * Math.pow(random.nextDouble(), 3)));
+    }
+
+    private static List<String> buildWords(int count) {
+        final List<String> words = Lists.newArrayList();
+        for (String syllable : SYLLABLES) {
+            words.add(syllable);
+        }
+        for (int i = 0; words.size() < count; i++) {
+            final String first = SYLLABLES[i % SYLLABLES.length];
+            final String second = SYLLABLES[(i / SYLLABLES.length) % SYLLABLES.length];
+            final int round = i / (SYLLABLES.length * SYLLABLES.length);
+            words.add(first + '-' + second + (round > 0 ? "-" + round : ""));
+        }
+        return words;
+    }
+}
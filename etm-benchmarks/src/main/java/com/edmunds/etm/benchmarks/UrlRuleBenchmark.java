@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks;
+
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlRuleSegment;
+import com.edmunds.etm.rules.api.UrlRuleSegmentPool;
+import com.edmunds.etm.rules.api.UrlRuleSet;
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the rule engine: parsing rules, comparing segments, merging, ordering and converting rules to regular
+ * expressions. <p/> Run with the GC profiler ({@link BenchmarkMain} adds it) to report the allocation rate of each
+ * operation as well as its time.
+ *
+ * @author David Trott
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class UrlRuleBenchmark {
+
+    /**
+     * The number of segment pairs compared per invocation of the segment benchmarks.
+     */
+    private static final int SEGMENT_PAIR_COUNT = 1024;
+
+    @Param({RuleCorpus.CORPUS, "1000", "10000", "50000"})
+    private String ruleSet;
+
+    private UrlTokenDictionary tokenDictionary;
+    private List<RuleDefinition> definitions;
+    private List<UrlRule> rules;
+    private UrlRuleSet mergedRules;
+
+    private List<UrlRule> applicationRules;
+    private UrlRuleSet otherRules;
+
+    private UrlRuleSegment[] leftSegments;
+    private UrlRuleSegment[] rightSegments;
+    private UrlRuleSegment[] leftPooledSegments;
+    private UrlRuleSegment[] rightPooledSegments;
+
+    @Setup
+    public void setUp() throws IOException {
+        tokenDictionary = RuleCorpus.newTokenDictionary();
+        definitions = RuleCorpus.load(ruleSet);
+        rules = RuleCorpus.toUrlRules(definitions, tokenDictionary);
+        mergedRules = merge(new UrlRuleSet(Collections.<UrlRule>emptyList()), rules);
+
+        // Redeploying the application that owns the most rules is the most expensive incremental merge.
+        final Map<MavenModule, List<UrlRule>> rulesByModule = Maps.newHashMap();
+        for (UrlRule rule : rules) {
+            List<UrlRule> moduleRules = rulesByModule.get(rule.getMavenModule());
+            if (moduleRules == null) {
+                moduleRules = Lists.newArrayList();
+                rulesByModule.put(rule.getMavenModule(), moduleRules);
+            }
+            moduleRules.add(rule);
+        }
+        applicationRules = Collections.emptyList();
+        for (List<UrlRule> moduleRules : rulesByModule.values()) {
+            if (moduleRules.size() > applicationRules.size()) {
+                applicationRules = moduleRules;
+            }
+        }
+        final List<UrlRule> remainingRules = Lists.newArrayList(rules);
+        remainingRules.removeAll(applicationRules);
+        otherRules = merge(new UrlRuleSet(Collections.<UrlRule>emptyList()), remainingRules);
+
+        setUpSegmentPairs();
+    }
+
+    /**
+     * Picks random pairs of segments at the same position of two rules, which are the comparisons made by a merge.
+     */
+    private void setUpSegmentPairs() {
+        final UrlRuleSegmentPool segmentPool = new UrlRuleSegmentPool(tokenDictionary);
+        final List<UrlRule> pooledRules = Lists.newArrayListWithCapacity(definitions.size());
+        for (RuleDefinition definition : definitions) {
+            pooledRules.add(definition.toUrlRule(segmentPool));
+        }
+
+        leftSegments = new UrlRuleSegment[SEGMENT_PAIR_COUNT];
+        rightSegments = new UrlRuleSegment[SEGMENT_PAIR_COUNT];
+        leftPooledSegments = new UrlRuleSegment[SEGMENT_PAIR_COUNT];
+        rightPooledSegments = new UrlRuleSegment[SEGMENT_PAIR_COUNT];
+
+        final Random random = new Random(SyntheticRuleGenerator.DEFAULT_SEED);
+        for (int i = 0; i < SEGMENT_PAIR_COUNT; i++) {
+            final int left = random.nextInt(rules.size());
+            final int right = random.nextInt(rules.size());
+            final int index = random.nextInt(Math.min(
+                    rules.get(left).getSegments().size(), rules.get(right).getSegments().size()));
+
+            leftSegments[i] = rules.get(left).getSegments().get(index);
+            rightSegments[i] = rules.get(right).getSegments().get(index);
+            leftPooledSegments[i] = pooledRules.get(left).getSegments().get(index);
+            rightPooledSegments[i] = pooledRules.get(right).getSegments().get(index);
+        }
+    }
+
+    private static UrlRuleSet merge(UrlRuleSet ruleSet, List<UrlRule> newRules) {
+        final UrlRuleSet result = ruleSet.mergeRules(newRules);
+        if (result == null) {
+            throw new IllegalStateException("The benchmark rules do not merge");
+        }
+        return result;
+    }
+
+    @Benchmark
+    public void constructRules(Blackhole blackhole) {
+        for (RuleDefinition definition : definitions) {
+            blackhole.consume(definition.toUrlRule(tokenDictionary));
+        }
+    }
+
+    @Benchmark
+    public void constructPooledRules(Blackhole blackhole) {
+        final UrlRuleSegmentPool segmentPool = new UrlRuleSegmentPool(tokenDictionary);
+        for (RuleDefinition definition : definitions) {
+            blackhole.consume(definition.toUrlRule(segmentPool));
+        }
+    }
+
+    @Benchmark
+    public void compareSegments(Blackhole blackhole) {
+        for (int i = 0; i < SEGMENT_PAIR_COUNT; i++) {
+            blackhole.consume(leftSegments[i].compareTo(rightSegments[i]));
+        }
+    }
+
+    @Benchmark
+    public void comparePooledSegments(Blackhole blackhole) {
+        for (int i = 0; i < SEGMENT_PAIR_COUNT; i++) {
+            blackhole.consume(leftPooledSegments[i].compareTo(rightPooledSegments[i]));
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public UrlRuleSet mergeAllRules() {
+        return new UrlRuleSet(Collections.<UrlRule>emptyList()).mergeRules(rules);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public UrlRuleSet mergeApplicationRules() {
+        return otherRules.mergeRules(applicationRules);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Set<UrlRule> orderRules() {
+        // Ordering caches the alphabetical sort, start from a copy so that every invocation pays for it.
+        return new UrlRuleSet(mergedRules).orderRules();
+    }
+
+    @Benchmark
+    public Object getBlockedRules() {
+        return mergedRules.getBlockedRules();
+    }
+
+    @Benchmark
+    public int toRegEx() {
+        final StringBuilder sb = new StringBuilder();
+        for (UrlRule rule : rules) {
+            rule.toRegEx(tokenDictionary, sb);
+        }
+        return sb.length();
+    }
+}
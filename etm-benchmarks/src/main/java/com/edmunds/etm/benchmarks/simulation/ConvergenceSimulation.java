@@ -0,0 +1,576 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks.simulation;
+
+import com.edmunds.etm.benchmarks.RuleDefinition;
+import com.edmunds.etm.benchmarks.SyntheticRuleGenerator;
+import com.edmunds.etm.common.api.AgentPaths;
+import com.edmunds.etm.common.api.ClientPaths;
+import com.edmunds.etm.common.api.ControllerPaths;
+import com.edmunds.etm.common.impl.ObjectSerializer;
+import com.edmunds.etm.loadbalancer.impl.LoadBalancerManager;
+import com.edmunds.etm.management.api.HostAddress;
+import com.edmunds.etm.management.api.HttpMonitor;
+import com.edmunds.etm.management.api.ManagementPoolMember;
+import com.edmunds.etm.management.api.ManagementVip;
+import com.edmunds.etm.management.api.ManagementVips;
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.impl.AgentConfigurationManager;
+import com.edmunds.etm.system.impl.AgentMonitor;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.ZooKeeper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.PropertyOverrideConfigurer;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Measures how long the controller takes to converge when clients come and go.
+ * <p/>
+ * The real controller beans run against an embedded ZooKeeper server and a {@link SimulatedLoadBalancer}. Clients of
+ * the synthetic applications register and then join and leave at random (a Poisson process at the configured rates),
+ * while the simulated agents acknowledge every Apache configuration the controller publishes. For each client change
+ * two latencies are recorded:
+ * <ul>
+ * <li>load balancer: from the change of the client node to the first load balancer save that reflects it.</li>
+ * <li>converged: from the change of the client node until the active vips of the controller reflect it and every
+ * agent reports the active rule set.</li>
+ * </ul>
+ * A change that is reverted before the controller applies it is counted as superseded and not measured.
+ *
+ * @author David Trott
+ */
+@Component
+public class ConvergenceSimulation {
+
+    private static final Logger logger = Logger.getLogger(ConvergenceSimulation.class);
+
+    private static final String CONTEXT_XML = "etm-simulation-context.xml";
+    private static final String APACHE_NODE_NAME = "apache";
+    private static final int CLIENT_PORT = 8080;
+    private static final long POLL_PERIOD = 10;
+    private static final long STARTUP_TIMEOUT = 300000;
+
+    private final EmbeddedZooKeeperServer server;
+    private final ObjectSerializer objectSerializer;
+    private final ControllerPaths controllerPaths;
+    private final ClientPaths clientPaths;
+    private final AgentPaths agentPaths;
+    private final SimulatedLoadBalancer loadBalancer;
+    private final LoadBalancerManager loadBalancerManager;
+    private final AgentMonitor agentMonitor;
+    private final AgentConfigurationManager agentConfigurationManager;
+
+    private int clientCount = 2000;
+    private int applicationCount = 300;
+    private int ruleCount = 5000;
+    private int agentCount = 4;
+    private int sessionCount = 20;
+    private double joinRate = 2;
+    private double leaveRate = 2;
+    private long duration = 60000;
+    private long drainTimeout = 60000;
+    private long agentApplyDelay = 100;
+
+    private final List<ZooKeeper> sessions = Lists.newArrayList();
+    private final List<SimulatedAgent> agents = Lists.newArrayList();
+    private final Map<HostAddress, ClientEvent> pendingEvents = Maps.newHashMap();
+    private final Latencies joinLoadBalancer = new Latencies("join -> load balancer");
+    private final Latencies joinConverged = new Latencies("join -> converged");
+    private final Latencies leaveLoadBalancer = new Latencies("leave -> load balancer");
+    private final Latencies leaveConverged = new Latencies("leave -> converged");
+    private int snapshotIndex;
+    private int supersededCount;
+
+    public static void main(String[] args) throws Exception {
+        final OptionParser parser = new OptionParser();
+        final OptionSpec<Integer> clientsOption = parser.accepts("clients", "number of clients")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(2000);
+        final OptionSpec<Integer> applicationsOption = parser.accepts("applications", "number of applications")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(300);
+        final OptionSpec<Integer> rulesOption = parser.accepts("rules", "number of URL rules")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(5000);
+        final OptionSpec<Integer> agentsOption = parser.accepts("agents", "number of web proxy agents")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(4);
+        final OptionSpec<Integer> sessionsOption = parser.accepts("sessions", "ZooKeeper sessions shared by clients")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(20);
+        final OptionSpec<Double> joinRateOption = parser.accepts("join-rate", "client joins per second")
+                .withRequiredArg().ofType(Double.class).defaultsTo(2.0);
+        final OptionSpec<Double> leaveRateOption = parser.accepts("leave-rate", "client leaves per second")
+                .withRequiredArg().ofType(Double.class).defaultsTo(2.0);
+        final OptionSpec<Long> durationOption = parser.accepts("duration", "churn duration in seconds")
+                .withRequiredArg().ofType(Long.class).defaultsTo(60L);
+        final OptionSpec<Long> drainOption = parser.accepts("drain", "seconds to wait for the last changes")
+                .withRequiredArg().ofType(Long.class).defaultsTo(60L);
+        final OptionSpec<Long> applyDelayOption = parser.accepts("agent-delay", "agent apply time in milliseconds")
+                .withRequiredArg().ofType(Long.class).defaultsTo(100L);
+        final OptionSpec<Long> idlePeriodOption = parser.accepts("client-idle-period",
+                "controller client idle period in milliseconds").withRequiredArg().ofType(Long.class).defaultsTo(3000L);
+        parser.accepts("help", "prints this message");
+
+        final OptionSet options;
+        try {
+            options = parser.parse(args);
+        } catch (OptionException e) {
+            System.out.println(e.getMessage());
+            parser.printHelpOn(System.out);
+            return;
+        }
+        if (options.has("help")) {
+            parser.printHelpOn(System.out);
+            return;
+        }
+
+        // The idle period is read when the client monitor is initialized, override it before the context starts.
+        final Properties overrides = new Properties();
+        overrides.setProperty("clientMonitor.clientIdlePeriod", String.valueOf(options.valueOf(idlePeriodOption)));
+        final PropertyOverrideConfigurer configurer = new PropertyOverrideConfigurer();
+        configurer.setProperties(overrides);
+
+        final ClassPathXmlApplicationContext ctx = new ClassPathXmlApplicationContext(new String[]{CONTEXT_XML}, false);
+        ctx.addBeanFactoryPostProcessor(configurer);
+        ctx.refresh();
+
+        try {
+            final ConvergenceSimulation simulation =
+                    (ConvergenceSimulation) ctx.getBean("convergenceSimulation", ConvergenceSimulation.class);
+            simulation.setClientCount(options.valueOf(clientsOption));
+            simulation.setApplicationCount(options.valueOf(applicationsOption));
+            simulation.setRuleCount(options.valueOf(rulesOption));
+            simulation.setAgentCount(options.valueOf(agentsOption));
+            simulation.setSessionCount(options.valueOf(sessionsOption));
+            simulation.setJoinRate(options.valueOf(joinRateOption));
+            simulation.setLeaveRate(options.valueOf(leaveRateOption));
+            simulation.setDuration(options.valueOf(durationOption) * 1000);
+            simulation.setDrainTimeout(options.valueOf(drainOption) * 1000);
+            simulation.setAgentApplyDelay(options.valueOf(applyDelayOption));
+            simulation.run();
+        } finally {
+            ctx.close();
+        }
+    }
+
+    @Autowired
+    public ConvergenceSimulation(EmbeddedZooKeeperServer server,
+                                 ObjectSerializer objectSerializer,
+                                 ControllerPaths controllerPaths,
+                                 ClientPaths clientPaths,
+                                 AgentPaths agentPaths,
+                                 SimulatedLoadBalancer loadBalancer,
+                                 LoadBalancerManager loadBalancerManager,
+                                 AgentMonitor agentMonitor,
+                                 AgentConfigurationManager agentConfigurationManager) {
+        this.server = server;
+        this.objectSerializer = objectSerializer;
+        this.controllerPaths = controllerPaths;
+        this.clientPaths = clientPaths;
+        this.agentPaths = agentPaths;
+        this.loadBalancer = loadBalancer;
+        this.loadBalancerManager = loadBalancerManager;
+        this.agentMonitor = agentMonitor;
+        this.agentConfigurationManager = agentConfigurationManager;
+    }
+
+    public void setClientCount(int clientCount) {
+        this.clientCount = clientCount;
+    }
+
+    public void setApplicationCount(int applicationCount) {
+        this.applicationCount = applicationCount;
+    }
+
+    public void setRuleCount(int ruleCount) {
+        this.ruleCount = ruleCount;
+    }
+
+    public void setAgentCount(int agentCount) {
+        this.agentCount = agentCount;
+    }
+
+    public void setSessionCount(int sessionCount) {
+        this.sessionCount = sessionCount;
+    }
+
+    /**
+     * Sets the rate at which clients that have left register again.
+     *
+     * @param joinRate joins per second
+     */
+    public void setJoinRate(double joinRate) {
+        this.joinRate = joinRate;
+    }
+
+    /**
+     * Sets the rate at which registered clients leave.
+     *
+     * @param leaveRate leaves per second
+     */
+    public void setLeaveRate(double leaveRate) {
+        this.leaveRate = leaveRate;
+    }
+
+    /**
+     * Sets the time during which clients join and leave.
+     *
+     * @param duration the duration in milliseconds
+     */
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * Sets the maximum time to wait for the changes made at the end of the churn to converge.
+     *
+     * @param drainTimeout the timeout in milliseconds
+     */
+    public void setDrainTimeout(long drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * Sets the time an agent takes between reading a configuration and reporting it as active.
+     *
+     * @param agentApplyDelay the delay in milliseconds
+     */
+    public void setAgentApplyDelay(long agentApplyDelay) {
+        this.agentApplyDelay = agentApplyDelay;
+    }
+
+    /**
+     * Runs the simulation and prints the latencies.
+     *
+     * @throws Exception if the simulation cannot be set up.
+     */
+    public void run() throws Exception {
+        Validate.isTrue(clientCount > 0, "The client count must be positive");
+        Validate.isTrue(sessionCount > 0, "The session count must be positive");
+        Validate.isTrue(joinRate + leaveRate > 0, "The join and leave rates are both zero");
+
+        final ScheduledExecutorService agentExecutor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final List<SimulatedClient> clients = createClients();
+            startAgents(agentExecutor);
+
+            final long startTime = System.currentTimeMillis();
+            for (SimulatedClient client : clients) {
+                client.register();
+            }
+            waitForStartup(clients);
+            System.out.println(String.format("%d clients registered and converged in %d ms",
+                    clients.size(), System.currentTimeMillis() - startTime));
+
+            runChurn(clients);
+            drain();
+            printReport();
+        } finally {
+            agentExecutor.shutdownNow();
+            for (SimulatedAgent agent : agents) {
+                agent.stop();
+            }
+            for (ZooKeeper session : sessions) {
+                session.close();
+            }
+        }
+    }
+
+    private List<SimulatedClient> createClients() throws IOException, InterruptedException {
+        final List<RuleDefinition> definitions =
+                new SyntheticRuleGenerator(SyntheticRuleGenerator.DEFAULT_SEED).generate(ruleCount, applicationCount);
+
+        final Map<MavenModule, List<String>> rulesByModule = Maps.newLinkedHashMap();
+        for (RuleDefinition definition : definitions) {
+            List<String> rules = rulesByModule.get(definition.getMavenModule());
+            if (rules == null) {
+                rules = Lists.newArrayList();
+                rulesByModule.put(definition.getMavenModule(), rules);
+            }
+            rules.add(definition.getRule());
+        }
+        final List<MavenModule> modules = Lists.newArrayList(rulesByModule.keySet());
+
+        for (int i = 0; i < sessionCount; i++) {
+            sessions.add(server.connect());
+        }
+
+        final HttpMonitor httpMonitor = new HttpMonitor("/support-internal/index.jsp", "Admin Home");
+        final List<SimulatedClient> clients = Lists.newArrayListWithCapacity(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            final MavenModule module = modules.get(i % modules.size());
+            final String host = String.format("10.%d.%d.%d", 100 + i / 62500, i / 250 % 250, i % 250 + 1);
+            clients.add(new SimulatedClient(sessions.get(i % sessionCount), objectSerializer,
+                    clientPaths.getConnected() + "/" + String.format("client-%05d", i),
+                    new HostAddress(host, CLIENT_PORT), module, rulesByModule.get(module), httpMonitor));
+        }
+
+        System.out.println(String.format("Simulating %d clients of %d applications with %d rules and %d agents",
+                clientCount, modules.size(), definitions.size(), agentCount));
+        return clients;
+    }
+
+    private void startAgents(ScheduledExecutorService executor) throws Exception {
+        final String configurationPath = controllerPaths.getWebConf() + "/" + APACHE_NODE_NAME;
+        for (int i = 0; i < agentCount; i++) {
+            final SimulatedAgent agent = new SimulatedAgent(server.connect(), objectSerializer,
+                    agentPaths.getConnected(), configurationPath, "10.200.0." + (i + 1), executor, agentApplyDelay);
+            agents.add(agent);
+            agent.start();
+        }
+    }
+
+    /**
+     * Waits for the load balancer and the agents to reflect the clients registered at startup.
+     */
+    private void waitForStartup(List<SimulatedClient> clients) throws InterruptedException {
+        final Set<HostAddress> expected = Sets.newHashSet();
+        for (SimulatedClient client : clients) {
+            expected.add(client.getHostAddress());
+        }
+
+        final long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        while (!getActiveMembers().containsAll(expected) || !isRuleSetDeployed()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("The controller did not converge after the clients registered");
+            }
+            Thread.sleep(POLL_PERIOD);
+        }
+
+        // Only the saves made after startup are matched against client changes.
+        snapshotIndex += loadBalancer.getSnapshots(snapshotIndex).size();
+    }
+
+    private void runChurn(List<SimulatedClient> clients) throws Exception {
+        final Random random = new Random(SyntheticRuleGenerator.DEFAULT_SEED);
+        final List<SimulatedClient> online = Lists.newArrayList(clients);
+        final List<SimulatedClient> offline = Lists.newArrayList();
+        final double totalRate = joinRate + leaveRate;
+
+        System.out.println(String.format("Churning for %d s: %.2f joins/s, %.2f leaves/s",
+                duration / 1000, joinRate, leaveRate));
+
+        final long endTime = System.currentTimeMillis() + duration;
+        long nextEventTime = System.currentTimeMillis() + nextInterval(random, totalRate);
+        long now;
+        while ((now = System.currentTimeMillis()) < endTime) {
+            if (now >= nextEventTime) {
+                if (random.nextDouble() * totalRate < joinRate) {
+                    if (!offline.isEmpty()) {
+                        final SimulatedClient client = removeRandom(offline, random);
+                        client.register();
+                        online.add(client);
+                        addEvent(new ClientEvent(client.getHostAddress(), true, System.currentTimeMillis()));
+                    }
+                } else if (!online.isEmpty()) {
+                    final SimulatedClient client = removeRandom(online, random);
+                    client.leave();
+                    offline.add(client);
+                    addEvent(new ClientEvent(client.getHostAddress(), false, System.currentTimeMillis()));
+                }
+                nextEventTime += nextInterval(random, totalRate);
+            }
+
+            trackEvents();
+            Thread.sleep(Math.max(0, Math.min(POLL_PERIOD, nextEventTime - System.currentTimeMillis())));
+        }
+    }
+
+    private void drain() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + drainTimeout;
+        while (!pendingEvents.isEmpty() && System.currentTimeMillis() < deadline) {
+            trackEvents();
+            Thread.sleep(POLL_PERIOD);
+        }
+    }
+
+    private void addEvent(ClientEvent event) {
+        if (pendingEvents.put(event.getHostAddress(), event) != null) {
+            supersededCount++;
+        }
+    }
+
+    /**
+     * Matches the pending client changes against the new load balancer saves and the current controller state.
+     */
+    private void trackEvents() {
+        for (SimulatedLoadBalancer.Snapshot snapshot : loadBalancer.getSnapshots(snapshotIndex)) {
+            snapshotIndex++;
+            for (ClientEvent event : pendingEvents.values()) {
+                if (event.getLoadBalancerTime() == 0 && snapshot.getTime() >= event.getTime() &&
+                        event.isReflectedBy(snapshot.getMembers())) {
+                    event.setLoadBalancerTime(snapshot.getTime());
+                    (event.isJoin() ? joinLoadBalancer : leaveLoadBalancer)
+                            .add(snapshot.getTime() - event.getTime());
+                }
+            }
+        }
+
+        Set<HostAddress> activeMembers = null;
+        final long now = System.currentTimeMillis();
+        for (Iterator<ClientEvent> it = pendingEvents.values().iterator(); it.hasNext(); ) {
+            final ClientEvent event = it.next();
+            if (event.getLoadBalancerTime() == 0) {
+                continue;
+            }
+            if (activeMembers == null) {
+                if (!isRuleSetDeployed()) {
+                    return;
+                }
+                activeMembers = getActiveMembers();
+            }
+            if (event.isReflectedBy(activeMembers)) {
+                (event.isJoin() ? joinConverged : leaveConverged).add(now - event.getTime());
+                it.remove();
+            }
+        }
+    }
+
+    private Set<HostAddress> getActiveMembers() {
+        final Set<HostAddress> members = Sets.newHashSet();
+        final ManagementVips activeVips = loadBalancerManager.getActiveVips();
+        if (activeVips != null) {
+            for (ManagementVip vip : activeVips.getVips()) {
+                for (ManagementPoolMember member : vip.getPoolMembers().values()) {
+                    members.add(member.getHostAddress());
+                }
+            }
+        }
+        return members;
+    }
+
+    private boolean isRuleSetDeployed() {
+        return agentMonitor.getConnectedAgents().size() == agents.size() &&
+                agentMonitor.isRuleSetDeployed(agentConfigurationManager.getActiveRuleSetDigests());
+    }
+
+    private void printReport() {
+        System.out.println(String.format("%-24s %7s %7s %7s %7s %7s %7s",
+                "latency (ms)", "count", "min", "median", "p95", "p99", "max"));
+        for (Latencies latencies : Lists.newArrayList(joinLoadBalancer, joinConverged, leaveLoadBalancer,
+                leaveConverged)) {
+            System.out.println(latencies.toString());
+        }
+        System.out.println(String.format("Superseded changes: %d, unconverged changes: %d",
+                supersededCount, pendingEvents.size()));
+
+        if (!pendingEvents.isEmpty()) {
+            logger.warn(String.format("%d client changes did not converge within %d ms",
+                    pendingEvents.size(), drainTimeout));
+        }
+    }
+
+    private static long nextInterval(Random random, double rate) {
+        return (long) (-Math.log(1.0 - random.nextDouble()) * 1000 / rate);
+    }
+
+    private static SimulatedClient removeRandom(List<SimulatedClient> clients, Random random) {
+        final int index = random.nextInt(clients.size());
+        final SimulatedClient client = clients.get(index);
+        clients.set(index, clients.get(clients.size() - 1));
+        clients.remove(clients.size() - 1);
+        return client;
+    }
+
+    /**
+     * A client node that was created (a join) or deleted (a leave).
+     */
+    private static final class ClientEvent {
+        private final HostAddress hostAddress;
+        private final boolean join;
+        private final long time;
+        private long loadBalancerTime;
+
+        ClientEvent(HostAddress hostAddress, boolean join, long time) {
+            this.hostAddress = hostAddress;
+            this.join = join;
+            this.time = time;
+        }
+
+        HostAddress getHostAddress() {
+            return hostAddress;
+        }
+
+        boolean isJoin() {
+            return join;
+        }
+
+        long getTime() {
+            return time;
+        }
+
+        long getLoadBalancerTime() {
+            return loadBalancerTime;
+        }
+
+        void setLoadBalancerTime(long loadBalancerTime) {
+            this.loadBalancerTime = loadBalancerTime;
+        }
+
+        boolean isReflectedBy(Set<HostAddress> members) {
+            return members.contains(hostAddress) == join;
+        }
+    }
+
+    /**
+     * The latencies of one kind of change.
+     */
+    private static final class Latencies {
+        private final String name;
+        private final List<Long> values = Lists.newArrayList();
+
+        Latencies(String name) {
+            this.name = name;
+        }
+
+        void add(long latency) {
+            values.add(latency);
+        }
+
+        @Override
+        public String toString() {
+            if (values.isEmpty()) {
+                return String.format("%-24s %7d", name, 0);
+            }
+            final List<Long> sorted = Lists.newArrayList(values);
+            Collections.sort(sorted);
+            return String.format("%-24s %7d %7d %7d %7d %7d %7d", name, sorted.size(), sorted.get(0),
+                    percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99),
+                    sorted.get(sorted.size() - 1));
+        }
+
+        private static long percentile(List<Long> sorted, int percent) {
+            final int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+            return sorted.get(Math.max(0, rank - 1));
+        }
+    }
+}
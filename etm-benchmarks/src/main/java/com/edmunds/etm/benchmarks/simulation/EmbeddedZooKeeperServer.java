@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks.simulation;
+
+import com.edmunds.zookeeper.connection.ZooKeeperConfig;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.NIOServerCnxn;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ZooKeeper server that runs inside the simulation. <p/> The server starts before the other beans are created and
+ * points the {@link ZooKeeperConfig} of the controller at itself, so the controller connects to it exactly as it
+ * would connect to a production ensemble.
+ *
+ * @author David Trott
+ */
+public class EmbeddedZooKeeperServer implements BeanPostProcessor, InitializingBean, DisposableBean {
+
+    private static final Logger logger = Logger.getLogger(EmbeddedZooKeeperServer.class);
+
+    private static final String HOST_NAME = "localhost";
+    private static final int TICK_TIME = 2000;
+    private static final int SESSION_TIMEOUT = 30000;
+    private static final long CONNECT_TIMEOUT = 10000;
+
+    private File dataDirectory;
+    private ZooKeeperServer server;
+    private NIOServerCnxn.Factory connectionFactory;
+    private int port;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        dataDirectory = File.createTempFile("etm-simulation-", "");
+        if (!dataDirectory.delete() || !dataDirectory.mkdir()) {
+            throw new IOException("Unable to create the ZooKeeper data directory: " + dataDirectory);
+        }
+
+        port = findFreePort();
+        server = new ZooKeeperServer(dataDirectory, dataDirectory, TICK_TIME);
+
+        // Every simulated client and agent has its own session, so the connections per host are not limited.
+        connectionFactory = new NIOServerCnxn.Factory(new InetSocketAddress(HOST_NAME, port), 0);
+        connectionFactory.startup(server);
+
+        logger.info(String.format("Embedded ZooKeeper server started on %s", getConnectString()));
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (connectionFactory != null) {
+            connectionFactory.shutdown();
+        }
+        if (dataDirectory != null) {
+            FileUtils.deleteQuietly(dataDirectory);
+        }
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        if (bean instanceof ZooKeeperConfig) {
+            final ZooKeeperConfig config = (ZooKeeperConfig) bean;
+            config.setHostName(HOST_NAME);
+            config.setPort(port);
+        }
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        return bean;
+    }
+
+    public String getConnectString() {
+        return HOST_NAME + ':' + port;
+    }
+
+    /**
+     * Opens a new session with the server.
+     *
+     * @return a connected client.
+     * @throws IOException          if the session cannot be established.
+     * @throws InterruptedException if interrupted while waiting for the connection.
+     */
+    public ZooKeeper connect() throws IOException, InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final ZooKeeper zooKeeper = new ZooKeeper(getConnectString(), SESSION_TIMEOUT, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getState() == Event.KeeperState.SyncConnected) {
+                    connected.countDown();
+                }
+            }
+        });
+
+        if (!connected.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            zooKeeper.close();
+            throw new IOException("Timed out connecting to " + getConnectString());
+        }
+        return zooKeeper;
+    }
+
+    /**
+     * Creates a persistent node and any missing parents.
+     *
+     * @param zooKeeper a connected client.
+     * @param path      the path of the node.
+     * @param data      the data of the node, the parents are created empty.
+     * @throws KeeperException      if a node cannot be created.
+     * @throws InterruptedException if interrupted.
+     */
+    public static void createPersistent(ZooKeeper zooKeeper, String path, byte[] data)
+            throws KeeperException, InterruptedException {
+
+        final int parentEnd = path.lastIndexOf('/');
+        if (parentEnd > 0 && zooKeeper.exists(path.substring(0, parentEnd), false) == null) {
+            createPersistent(zooKeeper, path.substring(0, parentEnd), new byte[0]);
+        }
+
+        try {
+            zooKeeper.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            zooKeeper.setData(path, data, -1);
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
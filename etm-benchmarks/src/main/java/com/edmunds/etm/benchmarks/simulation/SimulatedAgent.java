@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks.simulation;
+
+import com.edmunds.etm.common.impl.ObjectSerializer;
+import com.edmunds.etm.common.thrift.AgentInstanceDto;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A web proxy agent. <p/> The agent watches the Apache configuration published by the controller and, after a delay
+ * that stands for the reload of the web server, reports the digest of the configuration as its active rule set.
+ *
+ * @author David Trott
+ */
+public class SimulatedAgent implements Watcher {
+
+    private static final Logger logger = Logger.getLogger(SimulatedAgent.class);
+
+    private final ZooKeeper zooKeeper;
+    private final ObjectSerializer objectSerializer;
+    private final String nodePath;
+    private final String configurationPath;
+    private final ScheduledExecutorService executor;
+    private final long applyDelay;
+    private final AgentInstanceDto dto;
+
+    /**
+     * Creates an agent.
+     *
+     * @param zooKeeper         the session of the agent.
+     * @param objectSerializer  serializes the agent node.
+     * @param connectedPath     the connected agents path.
+     * @param configurationPath the path of the configuration to apply.
+     * @param ipAddress         the IP address of the agent.
+     * @param executor          runs the reads and acknowledgements of the agent.
+     * @param applyDelay        the time taken to apply a configuration in milliseconds.
+     */
+    public SimulatedAgent(ZooKeeper zooKeeper,
+                          ObjectSerializer objectSerializer,
+                          String connectedPath,
+                          String configurationPath,
+                          String ipAddress,
+                          ScheduledExecutorService executor,
+                          long applyDelay) {
+        this.zooKeeper = zooKeeper;
+        this.objectSerializer = objectSerializer;
+        this.configurationPath = configurationPath;
+        this.executor = executor;
+        this.applyDelay = applyDelay;
+
+        final String id = UUID.randomUUID().toString();
+        this.nodePath = connectedPath + "/" + id;
+        this.dto = new AgentInstanceDto();
+        dto.setId(id);
+        dto.setIpAddress(ipAddress);
+        dto.setVersion("simulation");
+    }
+
+    public void start() throws IOException, KeeperException, InterruptedException {
+        zooKeeper.create(nodePath, toBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        scheduleRead();
+    }
+
+    public void stop() throws InterruptedException {
+        zooKeeper.close();
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.NodeCreated || event.getType() == Event.EventType.NodeDataChanged) {
+            scheduleRead();
+        }
+    }
+
+    private void scheduleRead() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                readConfiguration();
+            }
+        });
+    }
+
+    private void readConfiguration() {
+        final byte[] data;
+        try {
+            data = zooKeeper.getData(configurationPath, this, null);
+        } catch (KeeperException.NoNodeException e) {
+            // Not published yet, watch for the first configuration.
+            watchForConfiguration();
+            return;
+        } catch (KeeperException e) {
+            logger.error(String.format("Unable to read %s", configurationPath), e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        final String digest = DigestUtils.md5Hex(data);
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                acknowledge(digest);
+            }
+        }, applyDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void watchForConfiguration() {
+        try {
+            if (zooKeeper.exists(configurationPath, this) != null) {
+                scheduleRead();
+            }
+        } catch (KeeperException e) {
+            logger.error(String.format("Unable to watch %s", configurationPath), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acknowledge(String digest) {
+        try {
+            dto.setActiveRuleSetDigest(digest);
+            zooKeeper.setData(nodePath, toBytes(), -1);
+        } catch (IOException e) {
+            logger.error(String.format("Unable to serialize agent %s", nodePath), e);
+        } catch (KeeperException e) {
+            logger.error(String.format("Unable to update agent %s", nodePath), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private byte[] toBytes() throws IOException {
+        return objectSerializer.writeValue(dto);
+    }
+}
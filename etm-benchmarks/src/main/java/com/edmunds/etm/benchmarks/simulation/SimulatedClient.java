@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks.simulation;
+
+import com.edmunds.etm.common.impl.ObjectSerializer;
+import com.edmunds.etm.common.thrift.ClientConfigDto;
+import com.edmunds.etm.management.api.HostAddress;
+import com.edmunds.etm.management.api.HttpMonitor;
+import com.edmunds.etm.management.api.MavenModule;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An application server that registers with the controller the way the ETM client library does: an ephemeral node
+ * holding the configuration of the client under the connected clients path.
+ * <p/>
+ * Clients share ZooKeeper sessions, a leaving client deletes its node rather than closing the session.
+ *
+ * @author David Trott
+ */
+public class SimulatedClient {
+
+    private final ZooKeeper zooKeeper;
+    private final String nodePath;
+    private final HostAddress hostAddress;
+    private final byte[] data;
+
+    public SimulatedClient(ZooKeeper zooKeeper,
+                           ObjectSerializer objectSerializer,
+                           String nodePath,
+                           HostAddress hostAddress,
+                           MavenModule mavenModule,
+                           List<String> urlRules,
+                           HttpMonitor httpMonitor) throws IOException {
+        this.zooKeeper = zooKeeper;
+        this.nodePath = nodePath;
+        this.hostAddress = hostAddress;
+
+        final ClientConfigDto dto = new ClientConfigDto();
+        dto.setHostAddress(HostAddress.writeDto(hostAddress));
+        dto.setMavenModule(MavenModule.writeDto(mavenModule));
+        dto.setContextPath("/");
+        dto.setUrlRules(urlRules);
+        dto.setHttpMonitor(HttpMonitor.writeDto(httpMonitor));
+        this.data = objectSerializer.writeValue(dto);
+    }
+
+    public HostAddress getHostAddress() {
+        return hostAddress;
+    }
+
+    public void register() throws KeeperException, InterruptedException {
+        zooKeeper.create(nodePath, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+    }
+
+    public void leave() throws KeeperException, InterruptedException {
+        zooKeeper.delete(nodePath, -1);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks.simulation;
+
+import com.edmunds.etm.identity.IdentityLoadBalancer;
+import com.edmunds.etm.loadbalancer.api.PoolMember;
+import com.edmunds.etm.loadbalancer.api.VirtualServer;
+import com.edmunds.etm.management.api.HostAddress;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An {@link IdentityLoadBalancer} that records the pool members it holds each time the controller saves the
+ * configuration, which is the end of every load balancer update.
+ *
+ * @author David Trott
+ */
+public class SimulatedLoadBalancer extends IdentityLoadBalancer {
+
+    private final List<Snapshot> snapshots = Lists.newArrayList();
+
+    @Override
+    public synchronized boolean saveConfiguration() {
+        final Set<HostAddress> members = Sets.newHashSet();
+        for (VirtualServer virtualServer : getAllVirtualServers()) {
+            for (PoolMember poolMember : virtualServer.getPoolMembers()) {
+                members.add(poolMember.getHostAddress());
+            }
+        }
+        snapshots.add(new Snapshot(System.currentTimeMillis(), members));
+
+        return super.saveConfiguration();
+    }
+
+    /**
+     * Returns the snapshots taken since the specified one.
+     *
+     * @param fromIndex the number of snapshots already seen.
+     * @return the new snapshots, oldest first.
+     */
+    public synchronized List<Snapshot> getSnapshots(int fromIndex) {
+        return Lists.newArrayList(snapshots.subList(fromIndex, snapshots.size()));
+    }
+
+    /**
+     * The pool members of every virtual server at the time the configuration was saved.
+     */
+    public static final class Snapshot {
+        private final long time;
+        private final Set<HostAddress> members;
+
+        Snapshot(long time, Set<HostAddress> members) {
+            this.time = time;
+            this.members = Collections.unmodifiableSet(members);
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public Set<HostAddress> getMembers() {
+            return members;
+        }
+    }
+}
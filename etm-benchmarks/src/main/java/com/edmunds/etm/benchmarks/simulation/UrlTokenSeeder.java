@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks.simulation;
+
+import com.edmunds.etm.benchmarks.RuleCorpus;
+import com.edmunds.etm.common.api.ControllerPaths;
+import com.edmunds.etm.common.api.UrlToken;
+import com.edmunds.etm.common.impl.ObjectSerializer;
+import org.apache.zookeeper.ZooKeeper;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Writes the URL tokens used by the simulated rules before the controller starts. <p/> The controller loads its
+ * default tokens from the web application when it finds no tokens, which is not possible outside a servlet
+ * container.
+ *
+ * @author David Trott
+ */
+@Component
+public class UrlTokenSeeder implements InitializingBean {
+
+    private final EmbeddedZooKeeperServer server;
+    private final ControllerPaths controllerPaths;
+    private final ObjectSerializer objectSerializer;
+
+    @Autowired
+    public UrlTokenSeeder(EmbeddedZooKeeperServer server,
+                          ControllerPaths controllerPaths,
+                          ObjectSerializer objectSerializer) {
+        this.server = server;
+        this.controllerPaths = controllerPaths;
+        this.objectSerializer = objectSerializer;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        final ZooKeeper zooKeeper = server.connect();
+        try {
+            for (UrlToken token : RuleCorpus.newTokens()) {
+                final String path = controllerPaths.getUrlTokens() + "/" + token.getName();
+                EmbeddedZooKeeperServer.createPersistent(
+                        zooKeeper, path, objectSerializer.writeValue(UrlToken.writeDto(token)));
+            }
+        } finally {
+            zooKeeper.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.benchmarks;
+
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlRuleSet;
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.google.common.collect.Sets;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link SyntheticRuleGenerator} and {@link RuleCorpus}.
+ *
+ * @author David Trott
+ */
+@Test
+public class SyntheticRuleGeneratorTest {
+
+    @Test
+    public void deterministicTest() {
+        final List<RuleDefinition> first = new SyntheticRuleGenerator(1L).generate(500, 50);
+        final List<RuleDefinition> second = new SyntheticRuleGenerator(1L).generate(500, 50);
+
+        assertEquals(first.size(), 500);
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.get(i).toString(), second.get(i).toString());
+        }
+    }
+
+    @Test
+    public void uniqueRulesTest() {
+        final List<RuleDefinition> definitions = new SyntheticRuleGenerator(2L).generate(2000, 100);
+
+        final Set<String> rules = Sets.newHashSet();
+        final Set<MavenModule> modules = Sets.newHashSet();
+        for (RuleDefinition definition : definitions) {
+            assertTrue(rules.add(definition.getRule()), definition.getRule());
+            modules.add(definition.getMavenModule());
+        }
+        assertTrue(modules.size() <= 100);
+        assertTrue(modules.size() > 10);
+    }
+
+    @Test
+    public void mergeTest() throws IOException {
+        final UrlTokenDictionary dictionary = RuleCorpus.newTokenDictionary();
+
+        assertMerges(RuleCorpus.toUrlRules(RuleCorpus.load("5000"), dictionary));
+        assertMerges(RuleCorpus.toUrlRules(new SyntheticRuleGenerator(3L).generate(5000, 1000), dictionary));
+    }
+
+    @Test
+    public void corpusTest() throws IOException {
+        final List<RuleDefinition> definitions = RuleCorpus.load(RuleCorpus.CORPUS);
+
+        assertTrue(definitions.size() > 100);
+        assertMerges(RuleCorpus.toUrlRules(definitions, RuleCorpus.newTokenDictionary()));
+    }
+
+    private static void assertMerges(List<UrlRule> rules) {
+        final UrlRuleSet ruleSet = new UrlRuleSet(Collections.<UrlRule>emptyList()).mergeRules(rules);
+
+        assertNotNull(ruleSet);
+        assertTrue(ruleSet.getBlockedRules().isEmpty());
+        assertEquals(ruleSet.orderRules().size(), rules.size());
+    }
+}
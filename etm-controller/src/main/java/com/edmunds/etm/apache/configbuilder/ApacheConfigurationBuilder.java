@@ -15,48 +15,152 @@
  */
 package com.edmunds.etm.apache.configbuilder;
 
-import com.edmunds.etm.rules.api.UrlRule;
-import com.edmunds.etm.rules.api.UrlTokenResolver;
-import com.edmunds.etm.rules.api.WebServerConfigurationBuilder;
+import com.edmunds.etm.rules.api.AbstractConfigurationBuilder;
+import com.edmunds.etm.rules.api.CoalescedRule;
+import com.edmunds.etm.rules.api.CoalescedRuleSet;
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.LiteralRuleTable;
+import com.edmunds.etm.rules.api.SkipGroup;
+import com.edmunds.etm.rules.util.ConfigurationBuffer;
 import com.edmunds.etm.runtime.api.Application;
-import org.apache.commons.codec.digest.DigestUtils;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
-import java.nio.charset.Charset;
 import java.util.Collection;
+import java.util.List;
 
 /**
- * {@link com.edmunds.etm.rules.api.WebServerConfigurationBuilder} interface implementation.
+ * {@link com.edmunds.etm.rules.api.WebServerConfigurationBuilder} interface implementation. <p/> With rewriteMap enabled
+ * the exact paths and literal prefixes are looked up in a RewriteMap (published by {@link ApacheRewriteMapBuilder})
+ * and only the rules that need a regular expression are written as RewriteRules. The RewriteMap directive is only
+ * valid in the server and virtual host context. The digest of the map is written in a comment, so a change to the map
+ * alone also changes the configuration and its digest (agents reload and report the new digest). <p/> With skipChains enabled the rules are grouped by their first
+ * segment and each group is preceded by a RewriteCond on the request URI and an [S=n] rule, so a request skips the
+ * groups it cannot match.
  *
  * @author David Trott
  */
 @Component
-public class ApacheConfigurationBuilder implements WebServerConfigurationBuilder {
+public class ApacheConfigurationBuilder extends AbstractConfigurationBuilder {
+
+    private static final Logger logger = Logger.getLogger(ApacheConfigurationBuilder.class);
 
     /**
      * RewriteEngine keyword.
      */
     private static final String REWRITE_ENGINE_KEYWORD = "RewriteEngine on";
 
-    private UrlTokenResolver urlTokenResolver;
+    /**
+     * The name of the RewriteMap in the configuration.
+     */
+    static final String REWRITE_MAP_NAME = "etm-rules";
+
+    /**
+     * Appended to a literal prefix to form its key in the map, an exact path can never end with it.
+     */
+    static final String PREFIX_KEY_SUFFIX = "**";
+
+    /**
+     * The name of the rewriteMap setting, it is read once per rebuild (see {@link CompiledRuleSet#getSetting}).
+     */
+    private static final String REWRITE_MAP_SETTING = "apache.rewriteMap";
+
+    private static final String REWRITE_MAP_FILE_DEFAULT = "conf/etm-rules.map";
+
+    private static final int MIN_SKIP_GROUP_SIZE_DEFAULT = 3;
+
+    private static final int MAP_BUFFER_CAPACITY = 16 * 1024;
 
-    private byte[] activeRuleSetData;
-    private String activeRuleSetDigest;
+    /**
+     * The map is written again to digest it, only used while a configuration is written (under the build lock).
+     */
+    private final ConfigurationBuffer mapBuffer = new ConfigurationBuffer(MAP_BUFFER_CAPACITY);
 
-    public ApacheConfigurationBuilder() {
-        this.activeRuleSetData = new byte[0];
-        this.activeRuleSetDigest = "";
+    private volatile boolean rewriteMap;
+    private volatile String rewriteMapType = "txt";
+    private volatile String rewriteMapFile = REWRITE_MAP_FILE_DEFAULT;
+    private volatile boolean skipChains;
+    private volatile int minSkipGroupSize = MIN_SKIP_GROUP_SIZE_DEFAULT;
+
+    public boolean isRewriteMap() {
+        return rewriteMap;
     }
 
     /**
-     * Sets the url token resolver.
+     * Enables the RewriteMap output, the change applies from the next build.
      *
-     * @param urlTokenResolver the url token resolver
+     * @param rewriteMap true to look up literal rules in a RewriteMap
      */
-    @Autowired
-    public void setUrlTokenResolver(UrlTokenResolver urlTokenResolver) {
-        this.urlTokenResolver = urlTokenResolver;
+    public void setRewriteMap(boolean rewriteMap) {
+        this.rewriteMap = rewriteMap;
+    }
+
+    /**
+     * Returns the rewriteMap setting of a rebuild, {@link ApacheRewriteMapBuilder} sees the same value.
+     *
+     * @param rules the compiled rules of the rebuild
+     * @return true if literal rules are looked up in the RewriteMap
+     */
+    boolean isRewriteMap(CompiledRuleSet rules) {
+        return rules.getSetting(REWRITE_MAP_SETTING, rewriteMap);
+    }
+
+    public String getRewriteMapType() {
+        return rewriteMapType;
+    }
+
+    /**
+     * Sets the type of the RewriteMap. <p/> The map is always published as text, with "dbm" the agent is expected to
+     * convert it with httxt2dbm (a txt map is searched linearly on a cache miss, a dbm map is hashed).
+     *
+     * @param rewriteMapType "txt" or "dbm"
+     */
+    public void setRewriteMapType(String rewriteMapType) {
+        Validate.isTrue("txt".equals(rewriteMapType) || "dbm".equals(rewriteMapType),
+                "Unsupported RewriteMap type: " + rewriteMapType);
+        this.rewriteMapType = rewriteMapType;
+    }
+
+    public String getRewriteMapFile() {
+        return rewriteMapFile;
+    }
+
+    /**
+     * Sets the file the agent writes the RewriteMap to.
+     *
+     * @param rewriteMapFile the path of the map file (relative paths are resolved against the ServerRoot)
+     */
+    public void setRewriteMapFile(String rewriteMapFile) {
+        Validate.notEmpty(rewriteMapFile, "rewriteMapFile is empty");
+        this.rewriteMapFile = rewriteMapFile;
+    }
+
+    public boolean isSkipChains() {
+        return skipChains;
+    }
+
+    /**
+     * Enables the grouping of rules into skip chains, the change applies from the next build.
+     *
+     * @param skipChains true to guard groups of rules with [S=n] skips
+     */
+    public void setSkipChains(boolean skipChains) {
+        this.skipChains = skipChains;
+    }
+
+    public int getMinSkipGroupSize() {
+        return minSkipGroupSize;
+    }
+
+    /**
+     * Sets the smallest group of rules that is guarded, a guard costs two evaluations.
+     *
+     * @param minSkipGroupSize the minimum number of rules in a guarded group
+     */
+    public void setMinSkipGroupSize(int minSkipGroupSize) {
+        Validate.isTrue(minSkipGroupSize > 0, "Minimum skip group size must be positive");
+        this.minSkipGroupSize = minSkipGroupSize;
     }
 
     @Override
@@ -68,36 +172,73 @@ public class ApacheConfigurationBuilder implements WebServerConfigurationBuilder
      * {@inheritDoc}
      */
     @Override
-    public byte[] build(Collection<Application> applications, Collection<UrlRule> rules) {
-        final StringBuilder builder = new StringBuilder();
+    protected void writeConfiguration(
+            Collection<Application> applications, CompiledRuleSet rules, ConfigurationBuffer out) {
 
-        builder.append(REWRITE_ENGINE_KEYWORD);
-        builder.append("\n");
+        out.append(REWRITE_ENGINE_KEYWORD);
+        out.append("\n");
 
-        for (UrlRule rule : rules) {
-            builder.append("RewriteRule ");
-            rule.toRegEx(urlTokenResolver, builder);
-            builder.append(" http://").append(rule.getVipAddress()).append("$0 [P]\n");
+        CompiledRuleSet regExRules = rules;
+        if (isRewriteMap(rules)) {
+            final LiteralRuleTable table = rules.getLiteralRuleTable();
+            writeRewriteMapLookups(table, out);
+            regExRules = table.getRegExRules();
+
+            logger.info(String.format("Moved %d of %d apache rules to the RewriteMap",
+                    table.getLiteralRuleCount(), rules.size()));
         }
 
-        final byte[] ruleSet = builder.toString().getBytes(Charset.forName("UTF8"));
-        updateActiveRuleSet(ruleSet);
-        // Deploy configuration to the web tier
-        return ruleSet;
-    }
+        if (!skipChains) {
+            writeRewriteRules(coalesce(regExRules).getRules(), out);
+            return;
+        }
 
-    @Override
-    public synchronized byte[] getActiveRuleSetData() {
-        return activeRuleSetData == null ? null : activeRuleSetData.clone();
+        final CoalescedRuleSet coalescedRules = coalesce(regExRules.groupByFirstSegment());
+        final List<SkipGroup> groups = SkipGroup.group(coalescedRules, minSkipGroupSize);
+
+        int guardedGroups = 0;
+        for (SkipGroup group : groups) {
+            if (group.isGuarded()) {
+                out.append("RewriteCond %{REQUEST_URI} !").append(group.getGuardRegEx()).append("\n");
+                out.append("RewriteRule ^ - [S=").append(group.getRules().size()).append("]\n");
+                guardedGroups++;
+            }
+            writeRewriteRules(group.getRules(), out);
+        }
+
+        logger.info(String.format("Grouped %d apache rules into %d skip chains",
+                coalescedRules.size(), guardedGroups));
     }
 
-    @Override
-    public synchronized String getActiveRuleSetDigest() {
-        return activeRuleSetDigest;
+    private void writeRewriteRules(List<CoalescedRule> rules, ConfigurationBuffer out) {
+        for (CoalescedRule rule : rules) {
+            out.append("RewriteRule ").append(rule.getRegEx());
+            out.append(" http://").append(rule.getVipAddress()).append("$0 [P]\n");
+        }
     }
 
-    private synchronized void updateActiveRuleSet(byte[] data) {
-        activeRuleSetData = data;
-        activeRuleSetDigest = data != null ? DigestUtils.md5Hex(data) : "";
+    private void writeRewriteMapLookups(LiteralRuleTable table, ConfigurationBuffer out) {
+        mapBuffer.reset();
+        ApacheRewriteMapBuilder.writeMap(table, mapBuffer);
+        out.append("# ").append(REWRITE_MAP_NAME).append(" ").append(mapBuffer.getDigest()).append("\n");
+
+        out.append("RewriteMap ").append(REWRITE_MAP_NAME).append(" ");
+        out.append(rewriteMapType).append(":").append(rewriteMapFile).append("\n");
+
+        if (!table.getExactPaths().isEmpty()) {
+            out.append("RewriteCond ${").append(REWRITE_MAP_NAME).append(":$1} (.+)\n");
+            out.append("RewriteRule ^(/.*)$ http://%1$0 [P]\n");
+        }
+
+        // The deepest prefix is looked up first, so the longest matching prefix wins.
+        for (int depth : table.getPrefixDepths()) {
+            out.append("RewriteCond ${").append(REWRITE_MAP_NAME).append(":$1").append(PREFIX_KEY_SUFFIX);
+            out.append("} (.+)\n");
+            out.append("RewriteRule ^(/");
+            for (int i = 0; i < depth; i++) {
+                out.append("[^/]+/");
+            }
+            out.append(").*$ http://%1$0 [P]\n");
+        }
     }
 }
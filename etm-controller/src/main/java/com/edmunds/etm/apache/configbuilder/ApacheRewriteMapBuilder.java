@@ -0,0 +1,88 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.apache.configbuilder;
+
+import com.edmunds.etm.rules.api.AbstractConfigurationBuilder;
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.CompiledUrlRule;
+import com.edmunds.etm.rules.api.LiteralRuleTable;
+import com.edmunds.etm.rules.util.ConfigurationBuffer;
+import com.edmunds.etm.runtime.api.Application;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Builds the text RewriteMap that is shipped alongside the Apache configuration when {@link
+ * ApacheConfigurationBuilder#isRewriteMap()} is enabled. <p/> Each line maps an exact path, or a literal prefix
+ * followed by **, to the vip address. The map is empty while the RewriteMap output is disabled, both builders read the
+ * setting once per rebuild.
+ *
+ * @author David Trott
+ */
+@Component
+public class ApacheRewriteMapBuilder extends AbstractConfigurationBuilder {
+
+    private final ApacheConfigurationBuilder apacheConfigurationBuilder;
+
+    @Autowired
+    public ApacheRewriteMapBuilder(ApacheConfigurationBuilder apacheConfigurationBuilder) {
+        this.apacheConfigurationBuilder = apacheConfigurationBuilder;
+    }
+
+    @Override
+    public String getZooKeeperNodeName() {
+        return "apache-map";
+    }
+
+    /**
+     * The map is deployed before the Apache configuration that references it.
+     */
+    @Override
+    public int getOrder() {
+        return MAP_ORDER;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void writeConfiguration(
+            Collection<Application> applications, CompiledRuleSet rules, ConfigurationBuffer out) {
+
+        if (apacheConfigurationBuilder.isRewriteMap(rules)) {
+            writeMap(rules.getLiteralRuleTable(), out);
+        }
+    }
+
+    /**
+     * Writes the map for the literal rules, {@link ApacheConfigurationBuilder} digests the same output.
+     *
+     * @param table the literal rules.
+     * @param out   the buffer to write to.
+     */
+    static void writeMap(LiteralRuleTable table, ConfigurationBuffer out) {
+        for (Map.Entry<String, CompiledUrlRule> entry : table.getExactPaths().entrySet()) {
+            out.append(entry.getKey()).append(" ").append(entry.getValue().getVipAddress()).append("\n");
+        }
+        for (Map.Entry<String, CompiledUrlRule> entry : table.getPrefixes().entrySet()) {
+            out.append(entry.getKey()).append(ApacheConfigurationBuilder.PREFIX_KEY_SUFFIX);
+            out.append(" ").append(entry.getValue().getVipAddress()).append("\n");
+        }
+    }
+}
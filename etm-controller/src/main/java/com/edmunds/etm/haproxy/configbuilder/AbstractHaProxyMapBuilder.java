@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.haproxy.configbuilder;
+
+import com.edmunds.etm.rules.api.AbstractConfigurationBuilder;
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.CompiledUrlRule;
+import com.edmunds.etm.rules.api.LiteralRuleTable;
+import com.edmunds.etm.rules.util.ConfigurationBuffer;
+import com.edmunds.etm.runtime.api.Application;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Base class for the map files that are shipped alongside the HA Proxy configuration when {@link
+ * HaProxyConfigurationBuilder#isMapFiles()} is enabled. <p/> Each line maps a key to the backend (artifact id), the
+ * maps are empty while the map file output is disabled. The setting is read once per rebuild and the maps are deployed
+ * before the HA Proxy configuration.
+ *
+ * @author David Trott
+ */
+abstract class AbstractHaProxyMapBuilder extends AbstractConfigurationBuilder {
+
+    private final HaProxyConfigurationBuilder haProxyConfigurationBuilder;
+
+    protected AbstractHaProxyMapBuilder(HaProxyConfigurationBuilder haProxyConfigurationBuilder) {
+        this.haProxyConfigurationBuilder = haProxyConfigurationBuilder;
+    }
+
+    /**
+     * Returns the entries of the map in the order they must be written.
+     *
+     * @param table the literal rules.
+     * @return the entries keyed by path.
+     */
+    protected abstract Collection<Map.Entry<String, CompiledUrlRule>> getEntries(LiteralRuleTable table);
+
+    @Override
+    public int getOrder() {
+        return MAP_ORDER;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void writeConfiguration(
+            Collection<Application> applications, CompiledRuleSet rules, ConfigurationBuffer out) {
+
+        if (!haProxyConfigurationBuilder.isMapFiles(rules)) {
+            return;
+        }
+
+        writeMap(getEntries(rules.getLiteralRuleTable()), out);
+    }
+
+    /**
+     * Writes the entries of a map, {@link HaProxyConfigurationBuilder} digests the same output.
+     *
+     * @param entries the entries keyed by path.
+     * @param out     the buffer to write to.
+     */
+    static void writeMap(Collection<Map.Entry<String, CompiledUrlRule>> entries, ConfigurationBuffer out) {
+        for (Map.Entry<String, CompiledUrlRule> entry : entries) {
+            out.append(entry.getKey()).append(" ").append(entry.getValue().getArtifactId()).append("\n");
+        }
+    }
+}
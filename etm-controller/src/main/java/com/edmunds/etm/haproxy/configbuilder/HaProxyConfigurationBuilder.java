@@ -2,54 +2,107 @@ package com.edmunds.etm.haproxy.configbuilder;
 
 import com.edmunds.etm.loadbalancer.api.VirtualServer;
 import com.edmunds.etm.management.api.MavenModule;
-import com.edmunds.etm.rules.api.UrlRule;
-import com.edmunds.etm.rules.api.UrlTokenResolver;
-import com.edmunds.etm.rules.api.WebServerConfigurationBuilder;
+import com.edmunds.etm.rules.api.AbstractConfigurationBuilder;
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.CompiledUrlRule;
+import com.edmunds.etm.rules.api.LiteralRuleTable;
+import com.edmunds.etm.rules.util.ConfigurationBuffer;
 import com.edmunds.etm.runtime.api.Application;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import freemarker.template.Configuration;
 import freemarker.template.TemplateException;
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.IOUtils;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.apache.commons.lang.Validate;
 import org.springframework.stereotype.Component;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.Collection;
-import java.util.List;
 import java.util.Map;
 
 /**
- * Generates the configuration for HA Proxy.
+ * Generates the configuration for HA Proxy. <p/> With mapFiles enabled the exact paths and literal prefixes are looked
+ * up in map files (published by {@link HaProxyExactMapBuilder} and {@link HaProxyPrefixMapBuilder}) and only the rules
+ * that need a regular expression are written as path_reg ACLs. HA Proxy only reads the maps when it is reloaded, so
+ * the digest of each map is written in a comment: a change to a map alone also changes the configuration and its
+ * digest.
  */
 @Component
-public class HaProxyConfigurationBuilder implements WebServerConfigurationBuilder {
+public class HaProxyConfigurationBuilder extends AbstractConfigurationBuilder {
+
+    /**
+     * The name of the mapFiles setting, it is read once per rebuild (see {@link CompiledRuleSet#getSetting}).
+     */
+    private static final String MAP_FILES_SETTING = "haproxy.mapFiles";
+
+    private static final String EXACT_MAP_FILE_DEFAULT = "/etc/haproxy/etm-exact.map";
+    private static final String PREFIX_MAP_FILE_DEFAULT = "/etc/haproxy/etm-prefix.map";
+
+    private static final int MAP_BUFFER_CAPACITY = 16 * 1024;
 
     private final Configuration freemarkerConfiguration;
 
-    private UrlTokenResolver urlTokenResolver;
+    /**
+     * The maps are written again to digest them, only used while a configuration is written (under the build lock).
+     */
+    private final ConfigurationBuffer mapBuffer = new ConfigurationBuffer(MAP_BUFFER_CAPACITY);
 
-    private byte[] activeRuleSetData;
-    private String activeRuleSetDigest;
+    private volatile boolean mapFiles;
+    private volatile String exactMapFile = EXACT_MAP_FILE_DEFAULT;
+    private volatile String prefixMapFile = PREFIX_MAP_FILE_DEFAULT;
 
     public HaProxyConfigurationBuilder() {
         this.freemarkerConfiguration = new Configuration();
         this.freemarkerConfiguration.setClassForTemplateLoading(getClass(), "");
-        this.activeRuleSetData = new byte[0];
-        this.activeRuleSetDigest = "";
+    }
+
+    public boolean isMapFiles() {
+        return mapFiles;
     }
 
     /**
-     * Sets the url token resolver.
+     * Enables the map file output, the change applies from the next build.
      *
-     * @param urlTokenResolver the url token resolver
+     * @param mapFiles true to look up literal rules in map files
      */
-    @Autowired
-    public void setUrlTokenResolver(UrlTokenResolver urlTokenResolver) {
-        this.urlTokenResolver = urlTokenResolver;
+    public void setMapFiles(boolean mapFiles) {
+        this.mapFiles = mapFiles;
+    }
+
+    /**
+     * Returns the mapFiles setting of a rebuild, the map builders see the same value.
+     *
+     * @param rules the compiled rules of the rebuild
+     * @return true if literal rules are looked up in map files
+     */
+    boolean isMapFiles(CompiledRuleSet rules) {
+        return rules.getSetting(MAP_FILES_SETTING, mapFiles);
+    }
+
+    public String getExactMapFile() {
+        return exactMapFile;
+    }
+
+    /**
+     * Sets the file the agent writes the exact path map to.
+     *
+     * @param exactMapFile the absolute path of the map file
+     */
+    public void setExactMapFile(String exactMapFile) {
+        Validate.notEmpty(exactMapFile, "exactMapFile is empty");
+        this.exactMapFile = exactMapFile;
+    }
+
+    public String getPrefixMapFile() {
+        return prefixMapFile;
+    }
+
+    /**
+     * Sets the file the agent writes the prefix map to.
+     *
+     * @param prefixMapFile the absolute path of the map file
+     */
+    public void setPrefixMapFile(String prefixMapFile) {
+        Validate.notEmpty(prefixMapFile, "prefixMapFile is empty");
+        this.prefixMapFile = prefixMapFile;
     }
 
     @Override
@@ -61,72 +114,54 @@ public class HaProxyConfigurationBuilder implements WebServerConfigurationBuilde
      * {@inheritDoc}
      */
     @Override
-    public byte[] build(Collection<Application> applications, Collection<UrlRule> urlRules) {
-        final List<RuleWrapper> ruleWrappers = Lists.newArrayList();
-        for (UrlRule urlRule : urlRules) {
-            ruleWrappers.add(new RuleWrapper(urlRule));
-        }
-        final String defaultBackend = getDefaultBackend(urlRules);
+    protected void writeConfiguration(
+            Collection<Application> applications, CompiledRuleSet urlRules, ConfigurationBuffer out)
+            throws IOException {
 
         final Map<String, Object> model = Maps.newHashMap();
 
-        model.put("applications", applications);
-        model.put("rules", ruleWrappers);
-        model.put("defaultBackend", defaultBackend);
-
-        final byte[] ruleSet = processTemplate(model);
-        updateActiveRuleSet(ruleSet);
-        return ruleSet;
-    }
+        CompiledRuleSet regExRules = urlRules;
+        if (isMapFiles(urlRules)) {
+            final LiteralRuleTable table = urlRules.getLiteralRuleTable();
+            if (!table.getExactPaths().isEmpty()) {
+                model.put("exactMapFile", exactMapFile);
+                model.put("exactMapDigest", digestMap(HaProxyExactMapBuilder.getExactEntries(table)));
+            }
+            if (!table.getPrefixes().isEmpty()) {
+                model.put("prefixMapFile", prefixMapFile);
+                model.put("prefixMapDigest", digestMap(HaProxyPrefixMapBuilder.getPrefixEntries(table)));
+            }
+            regExRules = table.getRegExRules();
+        }
 
-    private byte[] processTemplate(Map<String, Object> root) {
-        ByteArrayOutputStream baos = null;
-        OutputStreamWriter out = null;
+        // The coalesced rules expose the properties (artifactId, regEx) that the template uses.
+        model.put("applications", applications);
+        model.put("rules", coalesce(regExRules).getRules());
+        model.put("defaultBackend", getDefaultBackend(urlRules));
 
         try {
-            baos = new ByteArrayOutputStream();
-            out = new OutputStreamWriter(baos, "UTF8");
-            freemarkerConfiguration.getTemplate("haproxy.ftl").process(root, out);
-            out.close();
+            freemarkerConfiguration.getTemplate("haproxy.ftl").process(model, out.asWriter());
         } catch (TemplateException e) {
-            e.printStackTrace();
-            return null;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        } finally {
-            IOUtils.closeQuietly(out);
-            IOUtils.closeQuietly(baos);
+            throw new IOException("Unable to process the HA Proxy template", e);
         }
+    }
 
-        return baos.toByteArray();
+    private String digestMap(Collection<Map.Entry<String, CompiledUrlRule>> entries) {
+        mapBuffer.reset();
+        AbstractHaProxyMapBuilder.writeMap(entries, mapBuffer);
+        return mapBuffer.getDigest();
     }
 
-    private String getDefaultBackend(final Collection<UrlRule> rules) {
-        for (final UrlRule rule : rules) {
+    private String getDefaultBackend(final CompiledRuleSet rules) {
+        for (final CompiledUrlRule rule : rules) {
             if ("/**".equals(rule.getRule())) {
-                return rule.getMavenModule().getArtifactId();
+                return rule.getArtifactId();
             }
         }
 
         return null;
     }
 
-    @Override
-    public synchronized byte[] getActiveRuleSetData() {
-        return activeRuleSetData == null ? null : activeRuleSetData.clone();
-    }
-
-    @Override
-    public synchronized String getActiveRuleSetDigest() {
-        return activeRuleSetDigest;
-    }
-
-    private synchronized void updateActiveRuleSet(byte[] data) {
-        activeRuleSetData = data;
-        activeRuleSetDigest = data != null ? DigestUtils.md5Hex(data) : "";
-    }
-
     /**
      * Wrapper used to expose VIP's to the freemarker template.
      */
@@ -151,29 +186,4 @@ public class HaProxyConfigurationBuilder implements WebServerConfigurationBuilde
             return virtualServer;
         }
     }
-
-    /**
-     * Wrapper used to expose rules to the freemarker template.
-     */
-    public class RuleWrapper {
-        private final UrlRule urlRule;
-        private final String regEx;
-
-        RuleWrapper(UrlRule urlRule) {
-            this.urlRule = urlRule;
-            this.regEx = urlRule.toRegEx(urlTokenResolver);
-        }
-
-        public UrlRule getUrlRule() {
-            return urlRule;
-        }
-
-        public String getRegEx() {
-            return regEx;
-        }
-
-        public String getArtifactId() {
-            return urlRule.getMavenModule().getArtifactId();
-        }
-    }
 }
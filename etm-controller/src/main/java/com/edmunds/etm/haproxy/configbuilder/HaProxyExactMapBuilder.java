@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.haproxy.configbuilder;
+
+import com.edmunds.etm.rules.api.CompiledUrlRule;
+import com.edmunds.etm.rules.api.LiteralRuleTable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Builds the map of exact paths, looked up with map_str.
+ *
+ * @author David Trott
+ */
+@Component
+public class HaProxyExactMapBuilder extends AbstractHaProxyMapBuilder {
+
+    @Autowired
+    public HaProxyExactMapBuilder(HaProxyConfigurationBuilder haProxyConfigurationBuilder) {
+        super(haProxyConfigurationBuilder);
+    }
+
+    @Override
+    public String getZooKeeperNodeName() {
+        return "haproxy-exact-map";
+    }
+
+    @Override
+    protected Collection<Map.Entry<String, CompiledUrlRule>> getEntries(LiteralRuleTable table) {
+        return getExactEntries(table);
+    }
+
+    static Collection<Map.Entry<String, CompiledUrlRule>> getExactEntries(LiteralRuleTable table) {
+        return table.getExactPaths().entrySet();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.haproxy.configbuilder;
+
+import com.edmunds.etm.rules.api.CompiledUrlRule;
+import com.edmunds.etm.rules.api.LiteralRuleTable;
+import com.google.common.collect.Lists;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the map of literal prefixes, looked up with map_beg. <p/> The deepest prefixes are written first, so the
+ * first matching entry is also the longest.
+ *
+ * @author David Trott
+ */
+@Component
+public class HaProxyPrefixMapBuilder extends AbstractHaProxyMapBuilder {
+
+    private static final Comparator<Map.Entry<String, CompiledUrlRule>> DEEPEST_FIRST =
+            new Comparator<Map.Entry<String, CompiledUrlRule>>() {
+                @Override
+                public int compare(Map.Entry<String, CompiledUrlRule> e1, Map.Entry<String, CompiledUrlRule> e2) {
+                    final int d1 = LiteralRuleTable.getDepth(e1.getKey());
+                    final int d2 = LiteralRuleTable.getDepth(e2.getKey());
+                    return d1 > d2 ? -1 : (d1 == d2 ? 0 : 1);
+                }
+            };
+
+    @Autowired
+    public HaProxyPrefixMapBuilder(HaProxyConfigurationBuilder haProxyConfigurationBuilder) {
+        super(haProxyConfigurationBuilder);
+    }
+
+    @Override
+    public String getZooKeeperNodeName() {
+        return "haproxy-prefix-map";
+    }
+
+    @Override
+    protected Collection<Map.Entry<String, CompiledUrlRule>> getEntries(LiteralRuleTable table) {
+        return getPrefixEntries(table);
+    }
+
+    static Collection<Map.Entry<String, CompiledUrlRule>> getPrefixEntries(LiteralRuleTable table) {
+        final List<Map.Entry<String, CompiledUrlRule>> entries = Lists.newArrayList(table.getPrefixes().entrySet());
+        Collections.sort(entries, DEEPEST_FIRST);
+        return entries;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.nginx.configbuilder;
+
+import com.edmunds.etm.rules.api.AbstractConfigurationBuilder;
+import com.edmunds.etm.rules.api.CoalescedRule;
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.CompiledUrlRule;
+import com.edmunds.etm.rules.api.LiteralRuleTable;
+import com.edmunds.etm.rules.util.ConfigurationBuffer;
+import com.edmunds.etm.runtime.api.Application;
+import com.google.common.collect.Sets;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates nginx locations for the rules, the output is included in a server block. <p/> nginx looks up exact
+ * locations first, then the longest prefix and only then evaluates the regular expressions in order. The rules are
+ * split with a {@link LiteralRuleTable}, which gives the same precedence: exact paths become "location =", literal
+ * prefixes become "location ^~" (so no regular expression is evaluated after a prefix match) and the remaining rules
+ * become "location ~" in their original order. <p/> nginx answers a request for the path of a proxied prefix location
+ * without its trailing slash with a 301 redirect to the prefix. The path gets an exact location that routes it like
+ * the rules do. If no rule matches the path, the prefix is written as a regular expression instead, ahead of the other
+ * regular expressions (no earlier regular expression can match below a prefix of the table).
+ *
+ * @author David Trott
+ */
+@Component
+public class NginxConfigurationBuilder extends AbstractConfigurationBuilder {
+
+    /**
+     * Characters that end an unquoted token.
+     */
+    private static final String SPECIAL_CHARS = "{};\"'#";
+
+    /**
+     * Characters that nginx unescapes after a backslash.
+     */
+    private static final String ESCAPED_CHARS = "\"'\\tnr";
+
+    @Override
+    public String getZooKeeperNodeName() {
+        return "nginx";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void writeConfiguration(
+            Collection<Application> applications, CompiledRuleSet rules, ConfigurationBuffer out) {
+
+        final LiteralRuleTable table = rules.getLiteralRuleTable();
+        final Map<String, CompiledUrlRule> exactPaths = table.getExactPaths();
+        final Set<String> regExPrefixes = getRegExPrefixes(table);
+
+        for (Map.Entry<String, CompiledUrlRule> entry : exactPaths.entrySet()) {
+            writeLocation("= ", entry.getKey(), entry.getValue().getVipAddress(), out);
+        }
+        for (Map.Entry<String, CompiledUrlRule> entry : table.getDirectoryRules().entrySet()) {
+            final String path = entry.getKey().substring(0, entry.getKey().length() - 1);
+            if (!exactPaths.containsKey(path)) {
+                writeLocation("= ", path, entry.getValue().getVipAddress(), out);
+            }
+        }
+        for (Map.Entry<String, CompiledUrlRule> entry : table.getPrefixes().entrySet()) {
+            if (!regExPrefixes.contains(entry.getKey())) {
+                writeLocation("^~ ", entry.getKey(), entry.getValue().getVipAddress(), out);
+            }
+        }
+        for (Map.Entry<String, CompiledUrlRule> entry : table.getPrefixes().entrySet()) {
+            if (regExPrefixes.contains(entry.getKey())) {
+                writeLocation("~ ", entry.getValue().getRegEx(), entry.getValue().getVipAddress(), out);
+            }
+        }
+        for (CoalescedRule rule : coalesce(table.getRegExRules())) {
+            writeLocation("~ ", rule.getRegEx(), rule.getVipAddress(), out);
+        }
+    }
+
+    /**
+     * Returns the prefixes whose path without the trailing slash no rule matches. No other prefix of the table
+     * contains such a prefix, it would match the path.
+     */
+    private static Set<String> getRegExPrefixes(LiteralRuleTable table) {
+        final Set<String> regExPrefixes = Sets.newHashSet();
+        for (String prefix : table.getPrefixes().keySet()) {
+            if (prefix.length() > 1 && !table.getDirectoryRules().containsKey(prefix)) {
+                regExPrefixes.add(prefix);
+            }
+        }
+        return regExPrefixes;
+    }
+
+    private void writeLocation(String modifier, String location, String vipAddress, ConfigurationBuffer out) {
+        out.append("location ").append(modifier).append(quote(location));
+        out.append(" { proxy_pass http://").append(vipAddress).append("; }\n");
+    }
+
+    /**
+     * Quotes a location if it contains characters that are special to the nginx configuration parser (regular
+     * expressions with a {n} quantifier always need quotes). <p/> nginx unescapes \", \', \\, \t, \n and \r in every
+     * token and keeps any other backslash, so only those backslashes are escaped.
+     *
+     * @param value the location.
+     * @return the value as it must be written.
+     */
+    static String quote(String value) {
+        final StringBuilder sb = new StringBuilder(value.length() + 8);
+        boolean needsQuotes = false;
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\'' || (c == '\\' && i + 1 < value.length() &&
+                    ESCAPED_CHARS.indexOf(value.charAt(i + 1)) >= 0)) {
+                sb.append('\\');
+            }
+            sb.append(c);
+            needsQuotes = needsQuotes || Character.isWhitespace(c) || SPECIAL_CHARS.indexOf(c) >= 0;
+        }
+
+        return needsQuotes ? '"' + sb.toString() + '"' : sb.toString();
+    }
+}
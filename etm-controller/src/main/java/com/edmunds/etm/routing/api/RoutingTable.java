@@ -0,0 +1,344 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.routing.api;
+
+import org.apache.commons.lang.Validate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.regex.Pattern;
+
+import static com.edmunds.etm.routing.api.RoutingTableFormat.EDGE_COMPLETE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.EDGE_DOUBLE_STAR;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.EDGE_ENTRY_SIZE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.EDGE_STAR;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.EDGE_TOKEN;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.EDGE_WILDCARD;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.HEADER_SIZE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.MAGIC;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.NODE_ENTRY_SIZE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.NO_RULE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.RULE_ENTRY_SIZE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.TOKEN_ENTRY_SIZE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.VERSION;
+
+/**
+ * Reference reader for the binary routing table written by the controller. <p/> The table is matched in place, only
+ * the token regular expressions are compiled (on first use). A path is split into the segments between slashes and
+ * matched against the segment trie, the result is the first rule in evaluation order that matches the whole path, the
+ * same rule that the generated web server configurations select. Tokens are assumed to match within a single segment.
+ * <p/> Instances are thread safe.
+ *
+ * @author David Trott
+ */
+public class RoutingTable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int stringIndexOffset;
+    private final int tokenCount;
+    private final int tokenTableOffset;
+    private final int ruleCount;
+    private final int ruleTableOffset;
+    private final int nodeTableOffset;
+    private final Pattern[] tokenPatterns;
+
+    /**
+     * Wraps a routing table.
+     *
+     * @param buffer the table, the buffer is not modified (its position is ignored).
+     * @throws IllegalArgumentException if the buffer does not contain a routing table of a supported version.
+     */
+    public RoutingTable(ByteBuffer buffer) {
+        Validate.notNull(buffer, "buffer is null");
+        Validate.isTrue(buffer.limit() >= HEADER_SIZE && buffer.getInt(0) == MAGIC, "Not a routing table");
+        Validate.isTrue(buffer.getInt(4) == VERSION, "Unsupported routing table version: " + buffer.getInt(4));
+
+        this.buffer = buffer.duplicate();
+        this.stringIndexOffset = buffer.getInt(12);
+        this.tokenCount = buffer.getInt(16);
+        this.tokenTableOffset = buffer.getInt(20);
+        this.ruleCount = buffer.getInt(24);
+        this.ruleTableOffset = buffer.getInt(28);
+        this.nodeTableOffset = buffer.getInt(36);
+        this.tokenPatterns = new Pattern[tokenCount];
+    }
+
+    /**
+     * Wraps a routing table held in a byte array.
+     *
+     * @param data the table.
+     */
+    public RoutingTable(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Memory maps a routing table file.
+     *
+     * @param file the file.
+     * @return the routing table.
+     * @throws IOException if the file cannot be mapped.
+     */
+    public static RoutingTable map(File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            return new RoutingTable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    /**
+     * Returns the text of a rule.
+     *
+     * @param rule the index of the rule.
+     * @return the rule "/[make]/index.html".
+     */
+    public String getRule(int rule) {
+        return getString(buffer.getInt(ruleEntry(rule)));
+    }
+
+    /**
+     * Returns the vip address of a rule.
+     *
+     * @param rule the index of the rule.
+     * @return the vip address.
+     */
+    public String getVipAddress(int rule) {
+        return getString(buffer.getInt(ruleEntry(rule) + 4));
+    }
+
+    /**
+     * Returns the artifact id of the application that owns a rule.
+     *
+     * @param rule the index of the rule.
+     * @return the artifact id.
+     */
+    public String getArtifactId(int rule) {
+        return getString(buffer.getInt(ruleEntry(rule) + 8));
+    }
+
+    /**
+     * Returns the vip address that serves a path.
+     *
+     * @param path the request path (without the query string).
+     * @return the vip address or null if no rule matches.
+     */
+    public String route(String path) {
+        final int rule = findRule(path);
+        return rule != NO_RULE ? getVipAddress(rule) : null;
+    }
+
+    /**
+     * Finds the first rule in evaluation order that matches a path.
+     *
+     * @param path the request path (without the query string).
+     * @return the index of the rule or {@link RoutingTableFormat#NO_RULE}.
+     */
+    public int findRule(String path) {
+        Validate.notNull(path, "path is null");
+        if (!path.startsWith("/")) {
+            return NO_RULE;
+        }
+
+        final String[] segments = path.substring(1).split("/", -1);
+        final byte[][] segmentBytes = new byte[segments.length][];
+        for (int i = 0; i < segments.length; i++) {
+            segmentBytes[i] = segments[i].getBytes(UTF8);
+        }
+
+        final int best = match(0, segments, segmentBytes, 0, Integer.MAX_VALUE);
+        return best != Integer.MAX_VALUE ? best : NO_RULE;
+    }
+
+    /**
+     * Returns the lowest rule below the node that matches the segments from index, or best if there is no better rule.
+     */
+    private int match(int node, String[] segments, byte[][] segmentBytes, int index, int best) {
+        final int entry = nodeTableOffset + NODE_ENTRY_SIZE * node;
+        if (buffer.getInt(entry) >= best) {
+            return best;
+        }
+
+        final int terminalRule = buffer.getInt(entry + 4);
+        if (index == segments.length) {
+            if (terminalRule != NO_RULE && terminalRule < best) {
+                best = terminalRule;
+            }
+            // Every edge consumes at least one segment.
+            return best;
+        }
+
+        final int completeCount = buffer.getInt(entry + 8);
+        final int edgeCount = buffer.getInt(entry + 12);
+        final int edgesOffset = buffer.getInt(entry + 16);
+
+        final int completeEdge = findCompleteEdge(edgesOffset, completeCount, segmentBytes[index]);
+        if (completeEdge >= 0) {
+            best = match(buffer.getInt(completeEdge + 12), segments, segmentBytes, index + 1, best);
+        }
+
+        for (int i = completeCount; i < edgeCount; i++) {
+            final int edge = edgesOffset + EDGE_ENTRY_SIZE * i;
+            final int child = buffer.getInt(edge + 12);
+            final int type = buffer.getInt(edge);
+
+            if (type == EDGE_DOUBLE_STAR) {
+                for (int next = index + 1; next <= segments.length; next++) {
+                    best = match(child, segments, segmentBytes, next, best);
+                }
+            } else if (matchesEdge(type, buffer.getInt(edge + 4), buffer.getInt(edge + 8), segments[index],
+                    segmentBytes[index])) {
+                best = match(child, segments, segmentBytes, index + 1, best);
+            }
+        }
+        return best;
+    }
+
+    private boolean matchesEdge(int type, int arg1, int arg2, String segment, byte[] segmentBytes) {
+        switch (type) {
+            case EDGE_STAR:
+                return true;
+            case EDGE_WILDCARD:
+                final int prefix = getStringOffset(arg1);
+                final int postfix = getStringOffset(arg2);
+                final int postfixLength = buffer.getInt(postfix);
+                return segmentBytes.length >= buffer.getInt(prefix) + postfixLength &&
+                        regionMatches(prefix, segmentBytes, 0) &&
+                        regionMatches(postfix, segmentBytes, segmentBytes.length - postfixLength);
+            case EDGE_TOKEN:
+                return matchesToken(arg1, segment, segmentBytes);
+            case EDGE_COMPLETE:
+                return compare(getStringOffset(arg1), segmentBytes) == 0;
+            default:
+                throw new IllegalStateException("Unknown edge type: " + type);
+        }
+    }
+
+    private boolean matchesToken(int token, String segment, byte[] segmentBytes) {
+        final int entry = tokenTableOffset + TOKEN_ENTRY_SIZE * token;
+        final int valueCount = buffer.getInt(entry + 8);
+        final int valuesOffset = buffer.getInt(entry + 12);
+
+        if (valuesOffset != 0) {
+            int low = 0;
+            int high = valueCount - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int cmp = compare(getStringOffset(buffer.getInt(valuesOffset + 4 * mid)), segmentBytes);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Pattern pattern = tokenPatterns[token];
+        if (pattern == null) {
+            pattern = Pattern.compile(getString(buffer.getInt(entry + 4)));
+            tokenPatterns[token] = pattern;
+        }
+        return pattern.matcher(segment).matches();
+    }
+
+    /**
+     * Binary searches the COMPLETE edges of a node.
+     *
+     * @return the offset of the edge or -1.
+     */
+    private int findCompleteEdge(int edgesOffset, int completeCount, byte[] segmentBytes) {
+        int low = 0;
+        int high = completeCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int edge = edgesOffset + EDGE_ENTRY_SIZE * mid;
+            final int cmp = compare(getStringOffset(buffer.getInt(edge + 4)), segmentBytes);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return edge;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the stored string at offset with the bytes, unsigned byte by byte.
+     */
+    private int compare(int offset, byte[] bytes) {
+        final int length = buffer.getInt(offset);
+        final int common = Math.min(length, bytes.length);
+        for (int i = 0; i < common; i++) {
+            final int diff = (buffer.get(offset + 4 + i) & 0xff) - (bytes[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - bytes.length;
+    }
+
+    /**
+     * Returns true if the stored string at offset occurs in the bytes at position.
+     */
+    private boolean regionMatches(int offset, byte[] bytes, int position) {
+        final int length = buffer.getInt(offset);
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + 4 + i) != bytes[position + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int ruleEntry(int rule) {
+        Validate.isTrue(rule >= 0 && rule < ruleCount, "Invalid rule index: " + rule);
+        return ruleTableOffset + RULE_ENTRY_SIZE * rule;
+    }
+
+    private int getStringOffset(int id) {
+        return buffer.getInt(stringIndexOffset + 4 * id);
+    }
+
+    private byte[] getBytes(int id) {
+        final int offset = getStringOffset(id);
+        final byte[] bytes = new byte[buffer.getInt(offset)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + 4 + i);
+        }
+        return bytes;
+    }
+
+    private String getString(int id) {
+        return new String(getBytes(id), UTF8);
+    }
+}
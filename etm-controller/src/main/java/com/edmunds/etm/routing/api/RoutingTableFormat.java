@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.routing.api;
+
+/**
+ * Layout of the binary routing table. <p/> All numbers are big-endian ints and every offset is from the start of the
+ * table, so the table can be read in place from a memory mapped file. <p/>
+ * <pre>
+ * header   magic, version, stringCount, stringIndexOffset, tokenCount, tokenTableOffset,
+ *          ruleCount, ruleTableOffset, nodeCount, nodeTableOffset
+ * strings  stringCount offsets, each pointing at a length followed by the UTF-8 bytes
+ * tokens   nameString, regExString, valueCount, valuesOffset (sorted string ids, only for literal values)
+ * rules    ruleString, vipString, artifactString (in evaluation order)
+ * nodes    minRule, terminalRule, completeEdgeCount, edgeCount, edgesOffset (node 0 is the trie root)
+ * edges    type, arg1, arg2, childNode (COMPLETE edges first, sorted by their bytes)
+ * </pre>
+ * A path matches the rule with the lowest index among the rules whose segments match it, minRule is the lowest rule
+ * index below a node so the search can stop early.
+ *
+ * @author David Trott
+ */
+public final class RoutingTableFormat {
+
+    private RoutingTableFormat() {
+    }
+
+    /**
+     * "ETMR".
+     */
+    public static final int MAGIC = 0x45544D52;
+
+    /**
+     * Incremented whenever the layout changes.
+     */
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 40;
+    public static final int TOKEN_ENTRY_SIZE = 16;
+    public static final int RULE_ENTRY_SIZE = 12;
+    public static final int NODE_ENTRY_SIZE = 20;
+    public static final int EDGE_ENTRY_SIZE = 16;
+
+    /**
+     * Value of terminalRule if no rule ends at the node, also returned when no rule matches.
+     */
+    public static final int NO_RULE = -1;
+
+    /**
+     * Matches a segment equal to the string arg1 (the empty string for the index page).
+     */
+    public static final int EDGE_COMPLETE = 0;
+
+    /**
+     * Matches a segment that matches the token arg1.
+     */
+    public static final int EDGE_TOKEN = 1;
+
+    /**
+     * Matches any segment.
+     */
+    public static final int EDGE_STAR = 2;
+
+    /**
+     * Matches a segment that starts with the string arg1 and ends with the string arg2.
+     */
+    public static final int EDGE_WILDCARD = 3;
+
+    /**
+     * Matches one or more segments.
+     */
+    public static final int EDGE_DOUBLE_STAR = 4;
+}
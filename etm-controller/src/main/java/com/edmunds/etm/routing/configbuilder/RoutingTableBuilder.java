@@ -0,0 +1,390 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.routing.configbuilder;
+
+import com.edmunds.etm.rules.api.AbstractConfigurationBuilder;
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.CompiledUrlRule;
+import com.edmunds.etm.rules.api.ResolvedUrlToken;
+import com.edmunds.etm.rules.api.SegmentType;
+import com.edmunds.etm.rules.api.UrlRuleSegment;
+import com.edmunds.etm.rules.util.ConfigurationBuffer;
+import com.edmunds.etm.runtime.api.Application;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.edmunds.etm.routing.api.RoutingTableFormat.EDGE_COMPLETE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.EDGE_DOUBLE_STAR;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.EDGE_ENTRY_SIZE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.EDGE_STAR;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.EDGE_TOKEN;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.EDGE_WILDCARD;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.HEADER_SIZE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.MAGIC;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.NODE_ENTRY_SIZE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.NO_RULE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.RULE_ENTRY_SIZE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.TOKEN_ENTRY_SIZE;
+import static com.edmunds.etm.routing.api.RoutingTableFormat.VERSION;
+
+/**
+ * Serializes the ordered rules into a binary routing table (see {@link com.edmunds.etm.routing.api.RoutingTableFormat}).
+ * <p/> The rules are stored as a trie of their segments, so an agent can match a path by walking the table in place
+ * instead of parsing and compiling a regular expression per rule. {@link com.edmunds.etm.routing.api.RoutingTable} is
+ * the reference reader. <p/> Tokens are serialized as they were resolved when the rules were compiled (see {@link
+ * CompiledRuleSet#getToken(String)}), so the table always agrees with the rules it was built from.
+ *
+ * @author David Trott
+ */
+@Component
+public class RoutingTableBuilder extends AbstractConfigurationBuilder {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] PADDING = new byte[3];
+
+    @Override
+    public String getZooKeeperNodeName() {
+        return "routing-table";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void writeConfiguration(
+            Collection<Application> applications, CompiledRuleSet rules, ConfigurationBuffer out) {
+
+        new TableWriter(rules).write(out);
+    }
+
+    /**
+     * Compares strings by their UTF-8 encoding, the order used for binary searches by the reader.
+     */
+    private static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] bytes1, byte[] bytes2) {
+            final int length = Math.min(bytes1.length, bytes2.length);
+            for (int i = 0; i < length; i++) {
+                final int diff = (bytes1[i] & 0xff) - (bytes2[i] & 0xff);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return bytes1.length - bytes2.length;
+        }
+    };
+
+    /**
+     * A node of the segment trie, the edge leading to the node is stored with the node.
+     */
+    private static final class TrieNode {
+        private final UrlRuleSegment segment;
+        private final Map<String, TrieNode> children = Maps.newLinkedHashMap();
+        private int terminalRule = NO_RULE;
+        private int minRule = Integer.MAX_VALUE;
+        private int id;
+
+        private TrieNode(UrlRuleSegment segment) {
+            this.segment = segment;
+        }
+
+        private TrieNode getChild(UrlRuleSegment childSegment) {
+            final String key = childSegment.getSegmentType().name() + ':' + childSegment.getSegment();
+            TrieNode child = children.get(key);
+            if (child == null) {
+                child = new TrieNode(childSegment);
+                children.put(key, child);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * Holds the state of one serialization.
+     */
+    private static final class TableWriter {
+        private final CompiledRuleSet rules;
+        private final Map<String, Integer> stringIds = Maps.newHashMap();
+        private final List<byte[]> strings = Lists.newArrayList();
+        private final List<ResolvedUrlToken> tokens = Lists.newArrayList();
+        private final Map<String, Integer> tokenIds = Maps.newHashMap();
+        private final List<int[]> tokenValues = Lists.newArrayList();
+        private final List<TrieNode> nodes = Lists.newArrayList();
+        private final Map<TrieNode, List<TrieNode>> edges = Maps.newHashMap();
+
+        private TableWriter(CompiledRuleSet rules) {
+            this.rules = rules;
+        }
+
+        private void write(ConfigurationBuffer out) {
+            final List<CompiledUrlRule> ruleList = rules.getRules();
+            final TrieNode root = new TrieNode(null);
+
+            for (int i = 0; i < ruleList.size(); i++) {
+                final CompiledUrlRule rule = ruleList.get(i);
+                intern(rule.getRule());
+                intern(rule.getVipAddress());
+                intern(rule.getArtifactId());
+
+                TrieNode node = root;
+                node.minRule = Math.min(node.minRule, i);
+                for (UrlRuleSegment segment : rule.getUrlRule().getSegments()) {
+                    node = node.getChild(segment);
+                    node.minRule = Math.min(node.minRule, i);
+                }
+                if (node.terminalRule == NO_RULE) {
+                    node.terminalRule = i;
+                }
+            }
+
+            // Number the nodes breadth first so the edges of every node are contiguous.
+            nodes.add(root);
+            for (int i = 0; i < nodes.size(); i++) {
+                final TrieNode node = nodes.get(i);
+                node.id = i;
+                final List<TrieNode> children = sortChildren(node);
+                edges.put(node, children);
+                nodes.addAll(children);
+            }
+
+            layout(ruleList, out);
+        }
+
+        /**
+         * COMPLETE edges come first in byte order so they can be binary searched, the rest follow in rule order.
+         */
+        private List<TrieNode> sortChildren(TrieNode node) {
+            final List<TrieNode> complete = Lists.newArrayList();
+            final List<TrieNode> other = Lists.newArrayList();
+            for (TrieNode child : node.children.values()) {
+                final SegmentType type = child.segment.getSegmentType();
+                if (type == SegmentType.COMPLETE || type == SegmentType.EMPTY) {
+                    intern(child.segment.getSegment());
+                    complete.add(child);
+                } else {
+                    internEdge(child.segment);
+                    other.add(child);
+                }
+            }
+
+            Collections.sort(complete, new Comparator<TrieNode>() {
+                @Override
+                public int compare(TrieNode node1, TrieNode node2) {
+                    return BYTE_ORDER.compare(
+                            strings.get(stringIds.get(node1.segment.getSegment())),
+                            strings.get(stringIds.get(node2.segment.getSegment())));
+                }
+            });
+            Collections.sort(other, new Comparator<TrieNode>() {
+                @Override
+                public int compare(TrieNode node1, TrieNode node2) {
+                    return node1.minRule - node2.minRule;
+                }
+            });
+
+            complete.addAll(other);
+            return complete;
+        }
+
+        private void internEdge(UrlRuleSegment segment) {
+            final String text = segment.getSegment();
+            switch (segment.getSegmentType()) {
+                case WILDCARD:
+                    final int starIndex = text.indexOf('*');
+                    intern(text.substring(0, starIndex));
+                    intern(text.substring(starIndex + 1));
+                    break;
+                case TOKEN:
+                    if (!tokenIds.containsKey(text)) {
+                        final ResolvedUrlToken token = rules.getToken(text);
+                        if (token == null) {
+                            throw new IllegalStateException("Unmapped Token: " + text);
+                        }
+                        tokenIds.put(text, tokens.size());
+                        tokens.add(token);
+                        intern(text);
+                        intern(token.getRegEx());
+                        tokenValues.add(internValues(token.getLiteralValues()));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private int[] internValues(Set<String> values) {
+            if (values == null) {
+                return null;
+            }
+            final List<byte[]> sorted = Lists.newArrayList();
+            for (String value : values) {
+                sorted.add(strings.get(intern(value)));
+            }
+            Collections.sort(sorted, BYTE_ORDER);
+
+            final int[] ids = new int[sorted.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = stringIds.get(new String(sorted.get(i), UTF8));
+            }
+            return ids;
+        }
+
+        private int intern(String value) {
+            Integer id = stringIds.get(value);
+            if (id == null) {
+                id = strings.size();
+                stringIds.put(value, id);
+                strings.add(value.getBytes(UTF8));
+            }
+            return id;
+        }
+
+        /**
+         * Writes the sections in order, straight into the configuration buffer.
+         */
+        private void layout(List<CompiledUrlRule> ruleList, ConfigurationBuffer out) {
+            int stringDataSize = 0;
+            for (byte[] bytes : strings) {
+                stringDataSize += 4 + bytes.length;
+            }
+            int valueCount = 0;
+            for (int[] values : tokenValues) {
+                valueCount += values != null ? values.length : 0;
+            }
+
+            final int stringIndexOffset = HEADER_SIZE;
+            final int stringDataOffset = stringIndexOffset + 4 * strings.size();
+            final int tokenTableOffset = align(stringDataOffset + stringDataSize);
+            final int valuesOffset = tokenTableOffset + TOKEN_ENTRY_SIZE * tokenValues.size();
+            final int ruleTableOffset = valuesOffset + 4 * valueCount;
+            final int nodeTableOffset = ruleTableOffset + RULE_ENTRY_SIZE * ruleList.size();
+            final int edgeTableOffset = nodeTableOffset + NODE_ENTRY_SIZE * nodes.size();
+            final int size = edgeTableOffset + EDGE_ENTRY_SIZE * (nodes.size() - 1);
+            final int start = out.size();
+
+            out.writeInt(MAGIC).writeInt(VERSION);
+            out.writeInt(strings.size()).writeInt(stringIndexOffset);
+            out.writeInt(tokenValues.size()).writeInt(tokenTableOffset);
+            out.writeInt(ruleList.size()).writeInt(ruleTableOffset);
+            out.writeInt(nodes.size()).writeInt(nodeTableOffset);
+
+            int position = stringDataOffset;
+            for (byte[] bytes : strings) {
+                out.writeInt(position);
+                position += 4 + bytes.length;
+            }
+            for (byte[] bytes : strings) {
+                out.writeInt(bytes.length).write(bytes, 0, bytes.length);
+            }
+            out.write(PADDING, 0, tokenTableOffset - position);
+
+            int valuePosition = valuesOffset;
+            for (int i = 0; i < tokens.size(); i++) {
+                final ResolvedUrlToken token = tokens.get(i);
+                final int[] values = tokenValues.get(i);
+                out.writeInt(stringIds.get(token.getName()));
+                out.writeInt(stringIds.get(token.getRegEx()));
+                out.writeInt(values != null ? values.length : 0);
+                out.writeInt(values != null ? valuePosition : 0);
+                valuePosition += values != null ? 4 * values.length : 0;
+            }
+            for (int[] values : tokenValues) {
+                if (values != null) {
+                    for (int value : values) {
+                        out.writeInt(value);
+                    }
+                }
+            }
+
+            for (CompiledUrlRule rule : ruleList) {
+                out.writeInt(stringIds.get(rule.getRule()));
+                out.writeInt(stringIds.get(rule.getVipAddress()));
+                out.writeInt(stringIds.get(rule.getArtifactId()));
+            }
+
+            int edgeIndex = 0;
+            for (TrieNode node : nodes) {
+                final List<TrieNode> children = edges.get(node);
+                out.writeInt(node.minRule).writeInt(node.terminalRule);
+                out.writeInt(countComplete(children)).writeInt(children.size());
+                out.writeInt(edgeTableOffset + EDGE_ENTRY_SIZE * edgeIndex);
+                edgeIndex += children.size();
+            }
+            for (TrieNode node : nodes) {
+                for (TrieNode child : edges.get(node)) {
+                    writeEdge(out, child);
+                }
+            }
+
+            if (out.size() - start != size) {
+                throw new IllegalStateException("Routing table size mismatch: " + (out.size() - start) + " != " + size);
+            }
+        }
+
+        private int countComplete(List<TrieNode> children) {
+            int count = 0;
+            for (TrieNode child : children) {
+                final SegmentType type = child.segment.getSegmentType();
+                if (type == SegmentType.COMPLETE || type == SegmentType.EMPTY) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private void writeEdge(ConfigurationBuffer out, TrieNode child) {
+            final String text = child.segment.getSegment();
+            switch (child.segment.getSegmentType()) {
+                case COMPLETE:
+                case EMPTY:
+                    out.writeInt(EDGE_COMPLETE).writeInt(stringIds.get(text)).writeInt(0);
+                    break;
+                case TOKEN:
+                    out.writeInt(EDGE_TOKEN).writeInt(tokenIds.get(text)).writeInt(0);
+                    break;
+                case STAR:
+                    out.writeInt(EDGE_STAR).writeInt(0).writeInt(0);
+                    break;
+                case WILDCARD:
+                    final int starIndex = text.indexOf('*');
+                    out.writeInt(EDGE_WILDCARD);
+                    out.writeInt(stringIds.get(text.substring(0, starIndex)));
+                    out.writeInt(stringIds.get(text.substring(starIndex + 1)));
+                    break;
+                case DOUBLE_STAR:
+                    out.writeInt(EDGE_DOUBLE_STAR).writeInt(0).writeInt(0);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown segment type: " + child.segment.getSegmentType());
+            }
+            out.writeInt(child.id);
+        }
+
+        private int align(int offset) {
+            return (offset + 3) & ~3;
+        }
+    }
+}
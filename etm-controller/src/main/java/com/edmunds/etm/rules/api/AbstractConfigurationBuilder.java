@@ -0,0 +1,185 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.edmunds.etm.rules.util.ConfigurationBuffer;
+import com.edmunds.etm.runtime.api.Application;
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Base class for builders that stream their configuration into a {@link ConfigurationBuffer}. <p/> The buffer is
+ * reused from one build to the next and the digest is computed while the configuration is written. The active
+ * configuration is kept as a {@link RuleSetData} so it can be handed to every caller without copying. <p/> Builders
+ * that evaluate rules one regular expression at a time can merge consecutive rules for the same vip (see {@link
+ * CoalescedRuleSet}), this is enabled per builder with the coalesceRules property.
+ *
+ * @author David Trott
+ */
+public abstract class AbstractConfigurationBuilder implements WebServerConfigurationBuilder {
+
+    private static final Logger logger = Logger.getLogger(AbstractConfigurationBuilder.class);
+
+    /**
+     * The deploy order of builders whose output is referenced by another configuration (map files).
+     */
+    protected static final int MAP_ORDER = 0;
+
+    /**
+     * The deploy order of every other builder, configurations are deployed after the map files they reference.
+     */
+    protected static final int CONFIGURATION_ORDER = 1;
+
+    private static final int INITIAL_BUFFER_CAPACITY = 64 * 1024;
+
+    /**
+     * Apache limits configuration lines to 8K, this leaves plenty of room for the rest of the line.
+     */
+    private static final int MAX_COALESCED_REGEX_LENGTH_DEFAULT = 4000;
+
+    private final ConfigurationBuffer buffer;
+    private volatile RuleSetData activeRuleSet;
+    private volatile boolean coalesceRules;
+    private volatile int maxCoalescedRegExLength;
+    private volatile CoalescedRuleSet coalescedRules;
+
+    protected AbstractConfigurationBuilder() {
+        this.buffer = new ConfigurationBuffer(INITIAL_BUFFER_CAPACITY);
+        this.activeRuleSet = RuleSetData.EMPTY;
+        this.coalesceRules = false;
+        this.maxCoalescedRegExLength = MAX_COALESCED_REGEX_LENGTH_DEFAULT;
+        this.coalescedRules = CoalescedRuleSet.uncoalesced(CompiledRuleSet.empty());
+    }
+
+    public boolean isCoalesceRules() {
+        return coalesceRules;
+    }
+
+    /**
+     * Enables merging of consecutive rules for the same vip, the change applies from the next build.
+     *
+     * @param coalesceRules true to coalesce rules
+     */
+    public void setCoalesceRules(boolean coalesceRules) {
+        this.coalesceRules = coalesceRules;
+    }
+
+    public int getMaxCoalescedRegExLength() {
+        return maxCoalescedRegExLength;
+    }
+
+    /**
+     * Sets the longest regular expression that may be generated by merging rules.
+     *
+     * @param maxCoalescedRegExLength the maximum length in characters
+     */
+    public void setMaxCoalescedRegExLength(int maxCoalescedRegExLength) {
+        Validate.isTrue(maxCoalescedRegExLength > 0, "Maximum coalesced regex length must be positive");
+        this.maxCoalescedRegExLength = maxCoalescedRegExLength;
+    }
+
+    /**
+     * Returns the rules generated by the most recent build that called {@link #coalesce(CompiledRuleSet)}, this
+     * reports the effect of coalescing.
+     *
+     * @return the coalesced rules.
+     */
+    public CoalescedRuleSet getCoalescedRules() {
+        return coalescedRules;
+    }
+
+    /**
+     * Returns the position of this builder in the deploy order of a rebuild, either {@link #CONFIGURATION_ORDER} or
+     * {@link #MAP_ORDER}.
+     *
+     * @return the deploy order.
+     */
+    @Override
+    public int getOrder() {
+        return CONFIGURATION_ORDER;
+    }
+
+    /**
+     * Writes the configuration for the rules.
+     *
+     * @param applications collection of applications.
+     * @param rules        the compiled rules in order.
+     * @param out          the buffer to write to.
+     * @throws IOException if the configuration cannot be generated.
+     */
+    protected abstract void writeConfiguration(
+            Collection<Application> applications, CompiledRuleSet rules, ConfigurationBuffer out) throws IOException;
+
+    /**
+     * Coalesces the rules if this is enabled, otherwise every rule is returned on its own.
+     *
+     * @param rules the compiled rules in order.
+     * @return the rules to generate.
+     */
+    protected CoalescedRuleSet coalesce(CompiledRuleSet rules) {
+        final CoalescedRuleSet result;
+        if (coalesceRules) {
+            result = CoalescedRuleSet.coalesce(rules, maxCoalescedRegExLength);
+            logger.info(String.format(
+                    "Coalesced %d %s rules into %d, average evaluations per matching request %.1f -> %.1f",
+                    result.getRuleCount(), getZooKeeperNodeName(), result.size(),
+                    result.getUncoalescedAverageEvaluations(), result.getAverageEvaluations()));
+        } else {
+            result = CoalescedRuleSet.uncoalesced(rules);
+        }
+
+        coalescedRules = result;
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] build(Collection<Application> applications, CompiledRuleSet rules) {
+        final byte[] data;
+        final String digest;
+
+        synchronized (buffer) {
+            buffer.reset();
+            try {
+                writeConfiguration(applications, rules, buffer);
+            } catch (IOException e) {
+                logger.error(String.format("Unable to generate %s configuration", getZooKeeperNodeName()), e);
+                activeRuleSet = RuleSetData.EMPTY;
+                return null;
+            }
+            digest = buffer.getDigest();
+            data = buffer.toByteArray();
+        }
+
+        activeRuleSet = new RuleSetData(data, digest);
+        return data;
+    }
+
+    @Override
+    public RuleSetData getActiveRuleSetData() {
+        return activeRuleSet;
+    }
+
+    @Override
+    public String getActiveRuleSetDigest() {
+        return activeRuleSet.getDigest();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A run of consecutive compiled rules that send requests to the same vip, matched by a single regular expression.
+ *
+ * @author David Trott
+ */
+public class CoalescedRule {
+
+    private final List<CompiledUrlRule> rules;
+    private final String regEx;
+
+    CoalescedRule(List<CompiledUrlRule> rules, String regEx) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.regEx = regEx;
+    }
+
+    /**
+     * Returns the rules that were coalesced, in their original order.
+     *
+     * @return the rules.
+     */
+    public List<CompiledUrlRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Returns the regular expression that matches any of the rules.
+     *
+     * @return the anchored regular expression.
+     */
+    public String getRegEx() {
+        return regEx;
+    }
+
+    public String getArtifactId() {
+        return rules.get(0).getArtifactId();
+    }
+
+    /**
+     * Returns the vip address.
+     *
+     * @return the address of the vip servicing the rules.
+     */
+    public String getVipAddress() {
+        return rules.get(0).getVipAddress();
+    }
+
+    /**
+     * Returns the expression of the first segment shared by all the rules.
+     *
+     * @return the expression or null if the rules do not share one.
+     * @see CompiledUrlRule#getFirstSegmentRegEx()
+     */
+    public String getFirstSegmentRegEx() {
+        final String firstSegmentRegEx = rules.get(0).getFirstSegmentRegEx();
+        for (CompiledUrlRule rule : rules) {
+            if (firstSegmentRegEx == null || !firstSegmentRegEx.equals(rule.getFirstSegmentRegEx())) {
+                return null;
+            }
+        }
+        return firstSegmentRegEx;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return rules.toString();
+    }
+}
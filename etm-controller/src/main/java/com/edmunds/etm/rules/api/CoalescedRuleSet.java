@@ -0,0 +1,180 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.lang.Validate;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The compiled rules of a rebuild with consecutive rules for the same vip merged into a single alternation. <p/> The
+ * web servers evaluate the rules in order and stop at the first match. When two adjacent rules send requests to the
+ * same vip it makes no difference which of them matches, so they can be evaluated as one anchored alternation
+ * ^(?:a|b)$ without changing where any request is sent. Rules for different vips are never reordered.
+ *
+ * @author David Trott
+ */
+public class CoalescedRuleSet implements Iterable<CoalescedRule> {
+
+    /**
+     * The length of ^(?: and )$.
+     */
+    private static final int MERGED_ANCHOR_LENGTH = 6;
+
+    private final List<CoalescedRule> rules;
+    private final int ruleCount;
+
+    private CoalescedRuleSet(List<CoalescedRule> rules, int ruleCount) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.ruleCount = ruleCount;
+    }
+
+    /**
+     * Coalesces runs of rules that target the same vip.
+     *
+     * @param compiledRules  the compiled rules in order.
+     * @param maxRegExLength the longest regular expression that may be generated by merging rules, a merged rule
+     *                       is closed when adding the next rule would exceed it (web servers limit the line length).
+     * @return the coalesced rules.
+     */
+    public static CoalescedRuleSet coalesce(CompiledRuleSet compiledRules, int maxRegExLength) {
+        Validate.notNull(compiledRules, "compiledRules is null");
+
+        final List<CoalescedRule> coalesced = Lists.newArrayList();
+        List<CompiledUrlRule> run = Lists.newArrayList();
+        int runLength = 0;
+
+        for (CompiledUrlRule rule : compiledRules) {
+            // The expression without its ^ and $ anchors, plus the | that separates it from the previous one.
+            final int length = rule.getRegEx().length() - 1;
+
+            // The merged expression is ^(?:a|b)$, the first branch has no separator.
+            final boolean fits = runLength + length - 1 + MERGED_ANCHOR_LENGTH <= maxRegExLength;
+            if (!run.isEmpty() && (!isSameTarget(run.get(0), rule) || !fits)) {
+                coalesced.add(toCoalescedRule(run));
+                run = Lists.newArrayList();
+                runLength = 0;
+            }
+            run.add(rule);
+            runLength += length;
+        }
+        if (!run.isEmpty()) {
+            coalesced.add(toCoalescedRule(run));
+        }
+
+        return new CoalescedRuleSet(coalesced, compiledRules.size());
+    }
+
+    /**
+     * Wraps every rule on its own, no rules are merged.
+     *
+     * @param compiledRules the compiled rules in order.
+     * @return the rules one to one.
+     */
+    public static CoalescedRuleSet uncoalesced(CompiledRuleSet compiledRules) {
+        return coalesce(compiledRules, 0);
+    }
+
+    private static boolean isSameTarget(CompiledUrlRule rule, CompiledUrlRule other) {
+        return rule.getVipAddress().equals(other.getVipAddress()) &&
+                rule.getArtifactId().equals(other.getArtifactId());
+    }
+
+    private static CoalescedRule toCoalescedRule(List<CompiledUrlRule> run) {
+        if (run.size() == 1) {
+            return new CoalescedRule(run, run.get(0).getRegEx());
+        }
+
+        final StringBuilder regEx = new StringBuilder("^(?:");
+        for (int i = 0; i < run.size(); i++) {
+            final String ruleRegEx = run.get(i).getRegEx();
+            if (i > 0) {
+                regEx.append('|');
+            }
+            regEx.append(ruleRegEx, 1, ruleRegEx.length() - 1);
+        }
+        regEx.append(")$");
+
+        return new CoalescedRule(run, regEx.toString());
+    }
+
+    /**
+     * Returns the rules in order.
+     *
+     * @return unmodifiable list of rules.
+     */
+    public List<CoalescedRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Returns the number of rules after coalescing (the number of regular expressions a request that matches nothing
+     * is tested against).
+     *
+     * @return the number of coalesced rules.
+     */
+    public int size() {
+        return rules.size();
+    }
+
+    /**
+     * Returns the number of rules before coalescing.
+     *
+     * @return the number of compiled rules.
+     */
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    /**
+     * Returns the average number of regular expressions a matching request is tested against before coalescing,
+     * assuming every rule is equally likely to match.
+     *
+     * @return the average number of evaluations.
+     */
+    public double getUncoalescedAverageEvaluations() {
+        return ruleCount == 0 ? 0 : (ruleCount + 1) / 2.0;
+    }
+
+    /**
+     * Returns the average number of regular expressions a matching request is tested against after coalescing,
+     * assuming every rule is equally likely to match.
+     *
+     * @return the average number of evaluations.
+     */
+    public double getAverageEvaluations() {
+        if (ruleCount == 0) {
+            return 0;
+        }
+
+        long total = 0;
+        for (int i = 0; i < rules.size(); i++) {
+            total += (long) (i + 1) * rules.get(i).getRules().size();
+        }
+        return (double) total / ruleCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<CoalescedRule> iterator() {
+        return rules.iterator();
+    }
+}
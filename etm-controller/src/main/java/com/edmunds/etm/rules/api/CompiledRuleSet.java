@@ -0,0 +1,254 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang.Validate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.edmunds.etm.rules.api.SegmentType.COMPLETE;
+import static com.edmunds.etm.rules.api.SegmentType.DOUBLE_STAR;
+import static com.edmunds.etm.rules.api.SegmentType.EMPTY;
+import static com.edmunds.etm.rules.api.SegmentType.TOKEN;
+
+/**
+ * The ordered rules of a rebuild, compiled once and shared by every {@link WebServerConfigurationBuilder}. <p/> Rules
+ * share a small number of distinct segments, so the regular expression of each distinct segment is only computed once
+ * per compilation. The {@link LiteralRuleTable} of the rules is also computed at most once, as is each builder setting
+ * that more than one builder depends on (see {@link #getSetting(String, boolean)}). <p/> The tokens used by the rules
+ * are resolved once during the compilation (see {@link #getToken(String)}), builders never read the live token
+ * dictionary.
+ *
+ * @author David Trott
+ */
+public class CompiledRuleSet implements Iterable<CompiledUrlRule> {
+
+    private final List<CompiledUrlRule> rules;
+    private final Map<String, ResolvedUrlToken> tokens;
+    private final Map<String, Boolean> settings;
+    private LiteralRuleTable literalRuleTable;
+
+    private CompiledRuleSet(List<CompiledUrlRule> rules, Map<String, ResolvedUrlToken> tokens) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.tokens = Collections.unmodifiableMap(tokens);
+        this.settings = Maps.newHashMap();
+    }
+
+    /**
+     * Compiles the rules, preserving their order.
+     *
+     * @param tokenResolver the resolver of tokens into expressions.
+     * @param urlRules      the rules in the order they must be evaluated.
+     * @return the compiled rules.
+     */
+    public static CompiledRuleSet compile(UrlTokenResolver tokenResolver, Collection<UrlRule> urlRules) {
+        Validate.notNull(tokenResolver, "tokenResolver is null");
+        Validate.notNull(urlRules, "urlRules is null");
+
+        final Map<UrlRuleSegment, String> segmentRegEx = Maps.newHashMap();
+        final Map<String, ResolvedUrlToken> tokens = Maps.newHashMap();
+        final List<CompiledUrlRule> compiled = Lists.newArrayListWithCapacity(urlRules.size());
+        final StringBuilder regEx = new StringBuilder();
+        final StringBuilder literalPrefix = new StringBuilder();
+
+        for (UrlRule urlRule : urlRules) {
+            compiled.add(compileRule(tokenResolver, urlRule, segmentRegEx, tokens, regEx, literalPrefix));
+        }
+
+        return new CompiledRuleSet(compiled, tokens);
+    }
+
+    /**
+     * Returns an empty rule set.
+     *
+     * @return the empty rule set.
+     */
+    public static CompiledRuleSet empty() {
+        return new CompiledRuleSet(Lists.<CompiledUrlRule>newArrayList(), Maps.<String, ResolvedUrlToken>newHashMap());
+    }
+
+    /**
+     * Returns a rule set of some of these rules that shares the resolved tokens.
+     *
+     * @param subset the rules, taken from this rule set.
+     * @return the rule set.
+     */
+    CompiledRuleSet derive(List<CompiledUrlRule> subset) {
+        return new CompiledRuleSet(subset, tokens);
+    }
+
+    private static CompiledUrlRule compileRule(
+            UrlTokenResolver tokenResolver, UrlRule urlRule, Map<UrlRuleSegment, String> segmentRegEx,
+            Map<String, ResolvedUrlToken> tokens, StringBuilder regEx, StringBuilder literalPrefix) {
+
+        final List<UrlRuleSegment> segments = urlRule.getSegments();
+        final int lastIdx = segments.size() - 1;
+
+        regEx.setLength(0);
+        literalPrefix.setLength(0);
+        regEx.append('^');
+        literalPrefix.append('/');
+
+        boolean literal = true;
+        String firstSegmentRegEx = null;
+        for (int i = 0; i <= lastIdx; i++) {
+            final UrlRuleSegment segment = segments.get(i);
+
+            String segmentExpression = segmentRegEx.get(segment);
+            if (segmentExpression == null) {
+                segmentExpression = segment.toRegEx(tokenResolver);
+                segmentRegEx.put(segment, segmentExpression);
+                if (segment.getSegmentType() == TOKEN && segmentExpression != null) {
+                    final String token = segment.getSegment();
+                    tokens.put(token, new ResolvedUrlToken(
+                            token, segmentExpression, tokenResolver.getLiteralValues(token)));
+                }
+            }
+            regEx.append('/').append(segmentExpression);
+
+            final SegmentType segmentType = segment.getSegmentType();
+            if (i == 0 && i < lastIdx && (segmentType == COMPLETE || segmentType == TOKEN)) {
+                firstSegmentRegEx = segmentExpression;
+            }
+
+            if (literal && i < lastIdx && segment.getSegmentType() == COMPLETE) {
+                literalPrefix.append(segment.getSegment()).append('/');
+            } else {
+                literal = literal && i == lastIdx;
+            }
+        }
+        regEx.append('$');
+
+        final SegmentType lastType = segments.get(lastIdx).getSegmentType();
+        final RuleMatchType matchType;
+        if (!literal) {
+            matchType = RuleMatchType.REGEX;
+        } else if (lastType == COMPLETE || lastType == EMPTY) {
+            matchType = RuleMatchType.EXACT;
+        } else if (lastType == DOUBLE_STAR) {
+            matchType = RuleMatchType.PREFIX;
+        } else {
+            matchType = RuleMatchType.REGEX;
+        }
+
+        return new CompiledUrlRule(
+                urlRule, regEx.toString(), matchType, literalPrefix.toString(), firstSegmentRegEx);
+    }
+
+    /**
+     * Returns the compiled rules in order.
+     *
+     * @return unmodifiable list of rules.
+     */
+    public List<CompiledUrlRule> getRules() {
+        return rules;
+    }
+
+    public int size() {
+        return rules.size();
+    }
+
+    /**
+     * Returns a token used by the rules, as it was resolved when the rules were compiled.
+     *
+     * @param token the token symbol ([make]).
+     * @return the resolved token or null if no rule uses the token or it was undefined.
+     */
+    public ResolvedUrlToken getToken(String token) {
+        return tokens.get(token);
+    }
+
+    /**
+     * Returns the rules with every run of rules that start with a literal directory grouped by that directory. <p/>
+     * Rules with different literal first segments can never match the same path, so their relative order does not
+     * matter. The order of rules with the same first segment, and the position of every other rule, is preserved.
+     *
+     * @return the grouped rules.
+     */
+    public CompiledRuleSet groupByFirstSegment() {
+        final List<CompiledUrlRule> grouped = Lists.newArrayListWithCapacity(rules.size());
+        final Map<String, List<CompiledUrlRule>> run = Maps.newLinkedHashMap();
+
+        for (CompiledUrlRule rule : rules) {
+            if (rule.isFirstSegmentLiteral()) {
+                List<CompiledUrlRule> group = run.get(rule.getFirstSegmentRegEx());
+                if (group == null) {
+                    group = Lists.newArrayList();
+                    run.put(rule.getFirstSegmentRegEx(), group);
+                }
+                group.add(rule);
+            } else {
+                addGroups(run, grouped);
+                grouped.add(rule);
+            }
+        }
+        addGroups(run, grouped);
+
+        return derive(grouped);
+    }
+
+    private static void addGroups(Map<String, List<CompiledUrlRule>> run, List<CompiledUrlRule> grouped) {
+        for (List<CompiledUrlRule> group : run.values()) {
+            grouped.addAll(group);
+        }
+        run.clear();
+    }
+
+    /**
+     * Returns the rules split into literal lookups and regular expressions. <p/> The table is built on first use and
+     * then shared by every builder of the rebuild.
+     *
+     * @return the literal rule table.
+     */
+    public synchronized LiteralRuleTable getLiteralRuleTable() {
+        if (literalRuleTable == null) {
+            literalRuleTable = LiteralRuleTable.build(this);
+        }
+        return literalRuleTable;
+    }
+
+    /**
+     * Returns the value of a builder setting for this rebuild. <p/> The first request reads the setting and later
+     * requests return the same value, so builders that publish related outputs (a configuration and the map files it
+     * references) agree on the setting even if it is changed while they run.
+     *
+     * @param name    the name of the setting.
+     * @param current the current value of the setting.
+     * @return the value of the setting for this rebuild.
+     */
+    public synchronized boolean getSetting(String name, boolean current) {
+        Boolean value = settings.get(name);
+        if (value == null) {
+            value = current;
+            settings.put(name, value);
+        }
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<CompiledUrlRule> iterator() {
+        return rules.iterator();
+    }
+}
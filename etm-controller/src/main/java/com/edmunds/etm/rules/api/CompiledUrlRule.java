@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.edmunds.etm.management.api.MavenModule;
+import org.apache.commons.lang.Validate;
+
+/**
+ * A url rule in the form consumed by the {@link WebServerConfigurationBuilder}s. <p/> The regular expression and the
+ * classification of the rule are computed once per rebuild by {@link CompiledRuleSet}, so the builders never resolve
+ * tokens or escape literals themselves.
+ *
+ * @author David Trott
+ */
+public class CompiledUrlRule {
+
+    private final UrlRule urlRule;
+    private final String regEx;
+    private final RuleMatchType matchType;
+    private final String literalPrefix;
+    private final String firstSegmentRegEx;
+
+    /**
+     * Constructs a compiled rule.
+     *
+     * @param urlRule           the rule that was compiled.
+     * @param regEx             the regular expression that matches the rule.
+     * @param matchType         the classification of the rule.
+     * @param literalPrefix     the literal path the rule starts with (always ends with a /).
+     * @param firstSegmentRegEx the expression of the first segment, null if it is not a directory.
+     */
+    CompiledUrlRule(UrlRule urlRule, String regEx, RuleMatchType matchType, String literalPrefix,
+                    String firstSegmentRegEx) {
+        Validate.notNull(urlRule, "urlRule is null");
+        Validate.notNull(regEx, "regEx is null");
+        Validate.notNull(matchType, "matchType is null");
+        Validate.notNull(literalPrefix, "literalPrefix is null");
+
+        this.urlRule = urlRule;
+        this.regEx = regEx;
+        this.matchType = matchType;
+        this.literalPrefix = literalPrefix;
+        this.firstSegmentRegEx = firstSegmentRegEx;
+    }
+
+    public UrlRule getUrlRule() {
+        return urlRule;
+    }
+
+    /**
+     * Returns the rule text.
+     *
+     * @return the rule "/[make]/index.html".
+     */
+    public String getRule() {
+        return urlRule.getRule();
+    }
+
+    /**
+     * Returns the regular expression anchored at both ends.
+     *
+     * @return the regular expression.
+     */
+    public String getRegEx() {
+        return regEx;
+    }
+
+    public MavenModule getMavenModule() {
+        return urlRule.getMavenModule();
+    }
+
+    public String getArtifactId() {
+        return urlRule.getMavenModule().getArtifactId();
+    }
+
+    /**
+     * Returns the vip address.
+     *
+     * @return the address of the vip servicing this rule.
+     */
+    public String getVipAddress() {
+        return urlRule.getVipAddress();
+    }
+
+    public RuleMatchType getMatchType() {
+        return matchType;
+    }
+
+    /**
+     * Returns the longest run of complete segments at the start of the rule. <p/> For an EXACT rule this is the
+     * directory of the path, for a PREFIX rule it is the whole prefix ("/app/" for "/app/**").
+     *
+     * @return the literal prefix, at least "/".
+     */
+    public String getLiteralPrefix() {
+        return literalPrefix;
+    }
+
+    /**
+     * Returns the expression of the first segment if it is a literal or a token followed by more segments. <p/> Every
+     * path matched by the rule then starts with a match of ^/expression/.
+     *
+     * @return the expression of the first segment or null.
+     */
+    public String getFirstSegmentRegEx() {
+        return firstSegmentRegEx;
+    }
+
+    /**
+     * Returns true if the first segment is a literal directory, rules with different literal first segments can
+     * never match the same path.
+     *
+     * @return true if the first segment is a literal directory.
+     */
+    public boolean isFirstSegmentLiteral() {
+        return firstSegmentRegEx != null && urlRule.getSegments().get(0).getSegmentType() == SegmentType.COMPLETE;
+    }
+
+    /**
+     * Returns the literal path matched by an EXACT rule.
+     *
+     * @return the path.
+     * @throws IllegalStateException if the rule is not EXACT.
+     */
+    public String getExactPath() {
+        if (matchType != RuleMatchType.EXACT) {
+            throw new IllegalStateException("Not an exact rule: " + getRule());
+        }
+        return getRule();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return getRule();
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits the compiled rules into rules that can be answered by a hash lookup and rules that still need a regular
+ * expression. <p/> A web server that uses the table must look up the exact path first, then the literal prefixes from
+ * the deepest to the shallowest, and only then evaluate the remaining rules in order. <p/> An EXACT rule is moved to
+ * the table unless an earlier rule already matches its path. A PREFIX rule is moved to the table unless an earlier
+ * prefix contains it or an earlier regular expression could match a path that starts with it. Rules that cannot be
+ * moved keep their position, so the routing of every request is unchanged.
+ *
+ * @author David Trott
+ */
+public class LiteralRuleTable {
+
+    private final Map<String, CompiledUrlRule> exactPaths;
+    private final Map<String, CompiledUrlRule> prefixes;
+    private final Map<String, CompiledUrlRule> directoryRules;
+    private final List<Integer> prefixDepths;
+    private final CompiledRuleSet regExRules;
+
+    private LiteralRuleTable(Map<String, CompiledUrlRule> exactPaths, Map<String, CompiledUrlRule> prefixes,
+                             Map<String, CompiledUrlRule> directoryRules, List<Integer> prefixDepths,
+                             CompiledRuleSet regExRules) {
+        this.exactPaths = Collections.unmodifiableMap(exactPaths);
+        this.prefixes = Collections.unmodifiableMap(prefixes);
+        this.directoryRules = Collections.unmodifiableMap(directoryRules);
+        this.prefixDepths = Collections.unmodifiableList(prefixDepths);
+        this.regExRules = regExRules;
+    }
+
+    /**
+     * Builds the table for the compiled rules.
+     *
+     * @param compiledRules the compiled rules in order.
+     * @return the table.
+     */
+    static LiteralRuleTable build(CompiledRuleSet compiledRules) {
+        final List<CompiledUrlRule> rules = compiledRules.getRules();
+        final Pattern[] patterns = new Pattern[rules.size()];
+        final PrefixNode earlierRules = new PrefixNode();
+        final List<Integer> candidates = Lists.newArrayList();
+
+        final Map<String, CompiledUrlRule> exactPaths = Maps.newLinkedHashMap();
+        final Map<String, CompiledUrlRule> prefixes = Maps.newLinkedHashMap();
+        final SortedSet<Integer> depths = Sets.newTreeSet(Collections.reverseOrder());
+        final List<CompiledUrlRule> regExRules = Lists.newArrayList();
+
+        for (int i = 0; i < rules.size(); i++) {
+            final CompiledUrlRule rule = rules.get(i);
+
+            if (rule.getMatchType() == RuleMatchType.EXACT &&
+                    !isPathMatched(rules, patterns, earlierRules, candidates, i)) {
+                exactPaths.put(rule.getExactPath(), rule);
+            } else if (rule.getMatchType() == RuleMatchType.PREFIX &&
+                    !isPrefixOverlapped(rules, patterns, earlierRules, candidates, i)) {
+                prefixes.put(rule.getLiteralPrefix(), rule);
+                depths.add(getDepth(rule.getLiteralPrefix()));
+            } else {
+                regExRules.add(rule);
+            }
+            earlierRules.add(rule, i);
+        }
+
+        // All the rules are in the trie now, so this is the first match in the full rule order.
+        final Map<String, CompiledUrlRule> directoryRules = Maps.newHashMap();
+        for (String prefix : prefixes.keySet()) {
+            if (prefix.length() > 1) {
+                final String path = prefix.substring(0, prefix.length() - 1);
+                final int index = findFirstMatch(rules, patterns, earlierRules, candidates, path);
+                if (index >= 0) {
+                    directoryRules.put(prefix, rules.get(index));
+                }
+            }
+        }
+
+        return new LiteralRuleTable(exactPaths, prefixes, directoryRules, Lists.newArrayList(depths),
+                compiledRules.derive(regExRules));
+    }
+
+    /**
+     * Returns true if a rule before the EXACT rule at index matches its path. <p/> Only the earlier rules whose literal
+     * prefix the path starts with can match it.
+     */
+    private static boolean isPathMatched(List<CompiledUrlRule> rules, Pattern[] patterns, PrefixNode earlierRules,
+                                         List<Integer> candidates, int index) {
+        final String path = rules.get(index).getExactPath();
+
+        candidates.clear();
+        earlierRules.find(path, candidates);
+        for (int i : candidates) {
+            if (isMatch(rules, patterns, i, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the first rule in the trie that matches the path. <p/> The candidates are collected one
+     * trie level at a time, so they are not in rule order.
+     */
+    private static int findFirstMatch(List<CompiledUrlRule> rules, Pattern[] patterns, PrefixNode earlierRules,
+                                      List<Integer> candidates, String path) {
+        candidates.clear();
+        earlierRules.find(path, candidates);
+        int first = -1;
+        for (int i : candidates) {
+            if ((first < 0 || i < first) && isMatch(rules, patterns, i, path)) {
+                first = i;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Returns true if the rule at index matches a path that starts with its literal prefix.
+     */
+    private static boolean isMatch(List<CompiledUrlRule> rules, Pattern[] patterns, int index, String path) {
+        final CompiledUrlRule rule = rules.get(index);
+        switch (rule.getMatchType()) {
+            case EXACT:
+                return rule.getExactPath().equals(path);
+            case PREFIX:
+                return true;
+            default:
+                return getPattern(rules, patterns, index).matcher(path).matches();
+        }
+    }
+
+    /**
+     * Returns true if a rule before the PREFIX rule at index could match a path that starts with its prefix. <p/>
+     * Earlier EXACT rules are ignored, their paths are looked up before the prefixes. Earlier PREFIX rules only matter
+     * if they contain this prefix, a longer prefix is looked up first. An earlier regular expression matters if its
+     * literal prefix starts with this prefix, or if it contains this prefix and can match below it.
+     */
+    private static boolean isPrefixOverlapped(List<CompiledUrlRule> rules, Pattern[] patterns,
+                                              PrefixNode earlierRules, List<Integer> candidates, int index) {
+        final String prefix = rules.get(index).getLiteralPrefix();
+
+        candidates.clear();
+        final PrefixNode node = earlierRules.find(prefix, candidates);
+        if (node != null && node.regExBelow) {
+            return true;
+        }
+        for (int i : candidates) {
+            final CompiledUrlRule rule = rules.get(i);
+            switch (rule.getMatchType()) {
+                case EXACT:
+                    break;
+                case PREFIX:
+                    return true;
+                default:
+                    // The expression can match a path below the prefix if it matches the prefix itself or the
+                    // matcher ran out of input before it failed.
+                    final Matcher matcher = getPattern(rules, patterns, i).matcher(prefix);
+                    if (matcher.matches() || matcher.hitEnd()) {
+                        return true;
+                    }
+            }
+        }
+        return false;
+    }
+
+    private static Pattern getPattern(List<CompiledUrlRule> rules, Pattern[] patterns, int index) {
+        if (patterns[index] == null) {
+            patterns[index] = Pattern.compile(rules.get(index).getRegEx());
+        }
+        return patterns[index];
+    }
+
+    /**
+     * A node of the trie over the literal prefixes of the earlier rules, one edge per complete segment. The root is
+     * the prefix "/".
+     */
+    private static final class PrefixNode {
+        private final Map<String, PrefixNode> children = Maps.newHashMap();
+        private final List<Integer> ruleIndexes = Lists.newArrayList();
+        private boolean regExBelow;
+
+        private void add(CompiledUrlRule rule, int index) {
+            final String literalPrefix = rule.getLiteralPrefix();
+            final boolean regEx =
+                    rule.getMatchType() != RuleMatchType.EXACT && rule.getMatchType() != RuleMatchType.PREFIX;
+
+            PrefixNode node = this;
+            node.regExBelow |= regEx;
+            int start = 1;
+            int end;
+            while ((end = literalPrefix.indexOf('/', start)) >= 0) {
+                final String segment = literalPrefix.substring(start, end);
+                PrefixNode child = node.children.get(segment);
+                if (child == null) {
+                    child = new PrefixNode();
+                    node.children.put(segment, child);
+                }
+                node = child;
+                node.regExBelow |= regEx;
+                start = end + 1;
+            }
+            node.ruleIndexes.add(index);
+        }
+
+        /**
+         * Adds the rules whose literal prefix the path starts with to candidates.
+         *
+         * @return the node of the directory path itself, null if no earlier literal prefix starts with it.
+         */
+        private PrefixNode find(String path, List<Integer> candidates) {
+            PrefixNode node = this;
+            candidates.addAll(node.ruleIndexes);
+            int start = 1;
+            int end;
+            while ((end = path.indexOf('/', start)) >= 0) {
+                node = node.children.get(path.substring(start, end));
+                if (node == null) {
+                    return null;
+                }
+                candidates.addAll(node.ruleIndexes);
+                start = end + 1;
+            }
+            return path.endsWith("/") ? node : null;
+        }
+    }
+
+    /**
+     * Returns the number of segments in a literal prefix, "/" is 0 and "/app/" is 1.
+     *
+     * @param prefix the literal prefix.
+     * @return the depth.
+     */
+    public static int getDepth(String prefix) {
+        int depth = -1;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (prefix.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the exact paths in rule order.
+     *
+     * @return map of path to rule.
+     */
+    public Map<String, CompiledUrlRule> getExactPaths() {
+        return exactPaths;
+    }
+
+    /**
+     * Returns the literal prefixes in rule order.
+     *
+     * @return map of prefix ("/app/" for "/app/**") to rule.
+     */
+    public Map<String, CompiledUrlRule> getPrefixes() {
+        return prefixes;
+    }
+
+    /**
+     * Returns the first rule (in the full rule order) that matches the path of a prefix without its trailing slash,
+     * "/app" for "/app/". Web servers that redirect this path to the prefix need a separate location for it.
+     *
+     * @return map of prefix to rule, a prefix is absent if no rule matches its path.
+     */
+    public Map<String, CompiledUrlRule> getDirectoryRules() {
+        return directoryRules;
+    }
+
+    /**
+     * Returns the depths of the prefixes (see {@link #getDepth(String)}), deepest first.
+     *
+     * @return the distinct depths.
+     */
+    public List<Integer> getPrefixDepths() {
+        return prefixDepths;
+    }
+
+    /**
+     * Returns the rules that still need a regular expression, in order.
+     *
+     * @return the remaining rules.
+     */
+    public CompiledRuleSet getRegExRules() {
+        return regExRules;
+    }
+
+    /**
+     * Returns the number of rules moved to the table.
+     *
+     * @return the number of exact paths and prefixes.
+     */
+    public int getLiteralRuleCount() {
+        return exactPaths.size() + prefixes.size();
+    }
+}
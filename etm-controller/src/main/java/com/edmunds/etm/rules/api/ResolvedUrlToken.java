@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.lang.Validate;
+
+import java.util.Set;
+
+/**
+ * A url token as it was resolved when a {@link CompiledRuleSet} was compiled. <p/> Builders that need the definition
+ * of a token read it from the compiled rules, so a token that changes during a rebuild cannot make the output disagree
+ * with the regular expressions of the rules.
+ *
+ * @author David Trott
+ */
+public class ResolvedUrlToken {
+
+    private final String name;
+    private final String regEx;
+    private final Set<String> literalValues;
+
+    /**
+     * Constructs a resolved token.
+     *
+     * @param name          the token symbol ([make]).
+     * @param regEx         the regular expression of the token.
+     * @param literalValues the values of a fixed literal token, null if the token must be matched as a regex.
+     */
+    ResolvedUrlToken(String name, String regEx, Set<String> literalValues) {
+        Validate.notNull(name, "name is null");
+        Validate.notNull(regEx, "regEx is null");
+
+        this.name = name;
+        this.regEx = regEx;
+        this.literalValues = literalValues != null ? ImmutableSet.copyOf(literalValues) : null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the regular expression used in the compiled rules.
+     *
+     * @return the regular expression.
+     */
+    public String getRegEx() {
+        return regEx;
+    }
+
+    /**
+     * Returns the values of a fixed token whose values are all literals.
+     *
+     * @return unmodifiable set of values or null if the token must be matched as a regex.
+     */
+    public Set<String> getLiteralValues() {
+        return literalValues;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+/**
+ * Classifies a compiled url rule by the kind of match needed to evaluate it.
+ */
+public enum RuleMatchType {
+    /**
+     * Every segment is complete (or the empty file name), the rule matches exactly one path.
+     */
+    EXACT,
+
+    /**
+     * The rule is complete segments followed by a trailing **, it matches every path that starts with the prefix.
+     */
+    PREFIX,
+
+    /**
+     * The rule contains stars or tokens before the end, only the regular expression can evaluate it.
+     */
+    REGEX;
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import org.apache.commons.lang.Validate;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of a generated web server configuration and its digest. <p/> The bytes are copied on construction
+ * and never exposed directly, so a single instance can be shared by every caller.
+ *
+ * @author David Trott
+ */
+public final class RuleSetData {
+
+    /**
+     * The configuration before the first build.
+     */
+    public static final RuleSetData EMPTY = new RuleSetData(new byte[0], "");
+
+    private final byte[] data;
+    private final String digest;
+
+    /**
+     * Creates the view over a private copy of the configuration data.
+     *
+     * @param data   the configuration data.
+     * @param digest the hex encoded MD5 digest of the data.
+     */
+    public RuleSetData(byte[] data, String digest) {
+        Validate.notNull(data, "data is null");
+        Validate.notNull(digest, "digest is null");
+        this.data = data.clone();
+        this.digest = digest;
+    }
+
+    /**
+     * Returns the size of the configuration.
+     *
+     * @return the number of bytes.
+     */
+    public int size() {
+        return data.length;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Returns a stream that reads the configuration.
+     *
+     * @return a new input stream.
+     */
+    public InputStream newInputStream() {
+        return new ByteArrayInputStream(data);
+    }
+
+    /**
+     * Returns a read-only buffer over the configuration.
+     *
+     * @return a new read-only buffer.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a copy of the configuration.
+     *
+     * @return a new array.
+     */
+    public byte[] toByteArray() {
+        return data.clone();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.google.common.collect.Maps;
+import org.apache.commons.lang.Validate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The number of requests matched by each rule, as counted from the access logs of the web tier. <p/> Hits are keyed
+ * by the rule text, so the counts survive rebuilds that move a rule to another vip. The statistics are immutable.
+ *
+ * @author David Trott
+ */
+public class RuleTrafficStatistics {
+
+    private static final RuleTrafficStatistics EMPTY =
+            new RuleTrafficStatistics(Collections.<String, Long>emptyMap(), 0, 0);
+
+    private final Map<String, Long> hitsByRule;
+    private final long requestCount;
+    private final long unmatchedCount;
+
+    /**
+     * Constructs the statistics.
+     *
+     * @param hitsByRule     the number of requests matched by each rule (rule text -> hits).
+     * @param requestCount   the total number of requests.
+     * @param unmatchedCount the number of requests that did not match any rule.
+     */
+    public RuleTrafficStatistics(Map<String, Long> hitsByRule, long requestCount, long unmatchedCount) {
+        Validate.notNull(hitsByRule, "hitsByRule is null");
+        Validate.isTrue(requestCount >= 0, "requestCount is negative");
+        Validate.isTrue(unmatchedCount >= 0 && unmatchedCount <= requestCount, "unmatchedCount is out of range");
+
+        this.hitsByRule = Collections.unmodifiableMap(Maps.newHashMap(hitsByRule));
+        this.requestCount = requestCount;
+        this.unmatchedCount = unmatchedCount;
+    }
+
+    /**
+     * Returns statistics without any requests.
+     *
+     * @return the empty statistics.
+     */
+    public static RuleTrafficStatistics empty() {
+        return EMPTY;
+    }
+
+    public boolean isEmpty() {
+        return hitsByRule.isEmpty();
+    }
+
+    /**
+     * Returns the number of requests matched by the rule.
+     *
+     * @param rule the rule.
+     * @return the number of hits, zero if the rule was not seen.
+     */
+    public long getHits(UrlRule rule) {
+        final Long hits = hitsByRule.get(rule.getRule());
+        return hits != null ? hits : 0;
+    }
+
+    public Map<String, Long> getHitsByRule() {
+        return hitsByRule;
+    }
+
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    public long getUnmatchedCount() {
+        return unmatchedCount;
+    }
+
+    /**
+     * Returns the average number of rules a web server evaluates per request, if it evaluates the rules in the
+     * specified order and stops at the first match. <p/> Requests that match no rule evaluate every rule.
+     *
+     * @param orderedRules the rules in evaluation order.
+     * @return the expected number of evaluations per request, zero if there were no requests.
+     */
+    public double getExpectedEvaluations(Collection<UrlRule> orderedRules) {
+        if (requestCount == 0) {
+            return 0;
+        }
+
+        long evaluations = unmatchedCount * orderedRules.size();
+        long matched = 0;
+        int position = 1;
+        for (UrlRule rule : orderedRules) {
+            final long hits = getHits(rule);
+            evaluations += hits * position++;
+            matched += hits;
+        }
+
+        // Hits of rules that are no longer active are counted as unmatched.
+        evaluations += (requestCount - unmatchedCount - matched) * orderedRules.size();
+
+        return (double) evaluations / requestCount;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.lang.Validate;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A run of consecutive rules that share their first segment, so a request that does not start with that segment can
+ * skip all of them after a single test. <p/> Rules that do not share a first segment with their neighbours form
+ * unguarded groups.
+ *
+ * @author David Trott
+ */
+public class SkipGroup {
+
+    private final String guardRegEx;
+    private final List<CoalescedRule> rules;
+
+    private SkipGroup(String guardRegEx, List<CoalescedRule> rules) {
+        this.guardRegEx = guardRegEx;
+        this.rules = Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Splits the rules into groups, preserving their order.
+     *
+     * @param rules        the rules in order (usually {@link CompiledRuleSet#groupByFirstSegment() grouped}).
+     * @param minGroupSize the smallest run of rules worth a guard.
+     * @return the groups in order.
+     */
+    public static List<SkipGroup> group(CoalescedRuleSet rules, int minGroupSize) {
+        Validate.notNull(rules, "rules is null");
+        Validate.isTrue(minGroupSize > 0, "minGroupSize must be positive");
+
+        final List<SkipGroup> groups = Lists.newArrayList();
+        final List<CoalescedRule> unguarded = Lists.newArrayList();
+        final List<CoalescedRule> list = rules.getRules();
+
+        int start = 0;
+        while (start < list.size()) {
+            final String firstSegmentRegEx = list.get(start).getFirstSegmentRegEx();
+
+            int end = start + 1;
+            while (firstSegmentRegEx != null && end < list.size() &&
+                    firstSegmentRegEx.equals(list.get(end).getFirstSegmentRegEx())) {
+                end++;
+            }
+
+            final List<CoalescedRule> run = list.subList(start, end);
+            if (firstSegmentRegEx != null && run.size() >= minGroupSize) {
+                addUnguarded(groups, unguarded);
+                groups.add(new SkipGroup("^/" + firstSegmentRegEx + "/", Lists.newArrayList(run)));
+            } else {
+                unguarded.addAll(run);
+            }
+            start = end;
+        }
+        addUnguarded(groups, unguarded);
+
+        return groups;
+    }
+
+    private static void addUnguarded(List<SkipGroup> groups, List<CoalescedRule> unguarded) {
+        if (!unguarded.isEmpty()) {
+            groups.add(new SkipGroup(null, Lists.newArrayList(unguarded)));
+            unguarded.clear();
+        }
+    }
+
+    /**
+     * Returns the expression that every path matched by the group starts with.
+     *
+     * @return the guard expression, null if the group is not guarded.
+     */
+    public String getGuardRegEx() {
+        return guardRegEx;
+    }
+
+    public boolean isGuarded() {
+        return guardRegEx != null;
+    }
+
+    /**
+     * Returns the rules of the group in order.
+     *
+     * @return unmodifiable list of rules.
+     */
+    public List<CoalescedRule> getRules() {
+        return rules;
+    }
+}
@@ -52,7 +52,7 @@ public class UrlRule {
      */
     private final String rule;
 
-    private final List<UrlRuleSegment> segments = Lists.newArrayList();
+    private final List<UrlRuleSegment> segments;
 
     /**
      * Calculate the hash code in advance.
@@ -68,6 +68,23 @@ public class UrlRule {
      * @param rule          rule.
      */
     public UrlRule(UrlTokenResolver tokenResolver, MavenModule mavenModule, String vipAddress, String rule) {
+        this(tokenResolver, null, mavenModule, vipAddress, rule);
+    }
+
+    /**
+     * Constructor with rule parameter, the segments of the rule are interned by the pool.
+     *
+     * @param segmentPool the pool of segments.
+     * @param mavenModule the mavenModule
+     * @param vipAddress  the address of this vip.
+     * @param rule        rule.
+     */
+    public UrlRule(UrlRuleSegmentPool segmentPool, MavenModule mavenModule, String vipAddress, String rule) {
+        this(segmentPool.getTokenResolver(), segmentPool, mavenModule, vipAddress, rule);
+    }
+
+    private UrlRule(UrlTokenResolver tokenResolver, UrlRuleSegmentPool segmentPool, MavenModule mavenModule,
+                    String vipAddress, String rule) {
         Validate.notNull(tokenResolver, "tokenResolver is null");
         Validate.notNull(mavenModule, "mavenModule is null");
         Validate.notNull(vipAddress, "vipAddress is null");
@@ -85,13 +102,46 @@ public class UrlRule {
         final String[] split = rule.split("/", -1);
         final int lastIdx = split.length - 1;
 
+        this.segments = Lists.newArrayListWithCapacity(lastIdx);
+
         // Ignore the 'empty segment' before the first /
         for (int i = 1; i < split.length; i++) {
             // And apply special handling for the file name.
-            segments.add(new UrlRuleSegment(tokenResolver, split[i], i == lastIdx));
+            if (segmentPool != null) {
+                segments.add(segmentPool.intern(split[i], i == lastIdx));
+            } else {
+                segments.add(new UrlRuleSegment(tokenResolver, split[i], i == lastIdx));
+            }
         }
     }
 
+    /**
+     * Creates a copy of a rule for a different vip, the parsed segments are shared with the original.
+     *
+     * @param original   the rule to copy.
+     * @param vipAddress the address of the new vip.
+     */
+    private UrlRule(UrlRule original, String vipAddress) {
+        this.mavenModule = original.mavenModule;
+        this.vipAddress = vipAddress;
+        this.rule = original.rule;
+        this.calculatedHashCode = original.calculatedHashCode;
+        this.segments = original.segments;
+    }
+
+    /**
+     * Returns this rule as served by the specified vip.
+     * <p/>
+     * The rule is not parsed again, so this is much cheaper than constructing a new rule.
+     *
+     * @param address the address of the vip "1.2.3.4:7000".
+     * @return this rule if the address is unchanged, otherwise a copy with the new address.
+     */
+    public UrlRule withVipAddress(String address) {
+        Validate.notNull(address, "vipAddress is null");
+        return vipAddress.equals(address) ? this : new UrlRule(this, address);
+    }
+
     /**
      * Compares this rule to another rule to calculate the relative priority.
      *
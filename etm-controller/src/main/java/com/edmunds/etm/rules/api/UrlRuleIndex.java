@@ -0,0 +1,434 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.edmunds.etm.rules.util.PersistentHashMap;
+import com.edmunds.etm.rules.util.PersistentHashSet;
+import com.google.common.collect.Lists;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.edmunds.etm.rules.api.RuleComparison.DISTINCT;
+import static com.edmunds.etm.rules.api.SegmentType.DOUBLE_STAR;
+
+/**
+ * Index over a set of rules that finds the rules which may conflict with a new rule. <p/> The index is a trie keyed by
+ * the literal segments of each rule (COMPLETE and EMPTY), with side buckets at each level for STAR, TOKEN and WILDCARD
+ * segments. A rule stops descending at its first DOUBLE_STAR segment and is parked in the double star bucket of that
+ * level. <p/> Rules are also bucketed by the extension of their last segment, this is used when the new rule starts
+ * with a DOUBLE_STAR (and so the trie cannot narrow the search). <p/> The candidates returned are always a superset of
+ * the rules for which {@link UrlRule#compareTo(UrlRule)} is not DISTINCT. <p/> The trie nodes are immutable, adding
+ * or removing a rule copies the path to the rule so copies of the index share everything else.
+ *
+ * @author David Trott
+ */
+class UrlRuleIndex {
+
+    /**
+     * The root of the segment trie.
+     */
+    private Node root;
+
+    /**
+     * The map of (last segment extension -> rules).
+     */
+    private PersistentHashMap<String, PersistentHashSet<UrlRule>> rulesByExtension;
+
+    /**
+     * Rules whose last segment has no fixed extension (these can overlap any extension).
+     */
+    private PersistentHashSet<UrlRule> rulesWithoutExtension;
+
+    /**
+     * Creates an index containing the specified rules.
+     *
+     * @param rules the rules to index.
+     */
+    UrlRuleIndex(Collection<UrlRule> rules) {
+        this.root = Node.EMPTY_ROOT;
+        this.rulesByExtension = PersistentHashMap.empty();
+        this.rulesWithoutExtension = PersistentHashSet.empty();
+        addAll(rules);
+    }
+
+    /**
+     * Copy constructor. <p/> The copy shares the immutable trie with the other index.
+     *
+     * @param other the index to copy.
+     */
+    UrlRuleIndex(UrlRuleIndex other) {
+        this.root = other.root;
+        this.rulesByExtension = other.rulesByExtension;
+        this.rulesWithoutExtension = other.rulesWithoutExtension;
+    }
+
+    /**
+     * Adds a collection of rules to the index.
+     *
+     * @param rules the rules to add.
+     */
+    void addAll(Collection<UrlRule> rules) {
+        for (UrlRule rule : rules) {
+            add(rule);
+        }
+    }
+
+    /**
+     * Adds a rule to the index.
+     *
+     * @param rule the rule to add.
+     */
+    void add(UrlRule rule) {
+        root = root.add(rule, rule.getSegments(), 0);
+
+        final String extension = getExtension(rule.getLastSegment());
+        if (extension == null) {
+            rulesWithoutExtension = rulesWithoutExtension.plus(rule);
+        } else {
+            PersistentHashSet<UrlRule> extensionRules = rulesByExtension.get(extension);
+            if (extensionRules == null) {
+                extensionRules = PersistentHashSet.empty();
+            }
+            rulesByExtension = rulesByExtension.plus(extension, extensionRules.plus(rule));
+        }
+    }
+
+    /**
+     * Removes a rule from the index.
+     *
+     * @param rule the rule to remove.
+     */
+    void remove(UrlRule rule) {
+        final Node newRoot = root.remove(rule, rule.getSegments(), 0);
+        root = newRoot == null ? Node.EMPTY_ROOT : newRoot;
+
+        final String extension = getExtension(rule.getLastSegment());
+        if (extension == null) {
+            rulesWithoutExtension = rulesWithoutExtension.minus(rule);
+        } else {
+            final PersistentHashSet<UrlRule> extensionRules = rulesByExtension.get(extension);
+            if (extensionRules != null) {
+                final PersistentHashSet<UrlRule> remaining = extensionRules.minus(rule);
+                if (remaining.isEmpty()) {
+                    rulesByExtension = rulesByExtension.minus(extension);
+                } else {
+                    rulesByExtension = rulesByExtension.plus(extension, remaining);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the indexed rules that might not be DISTINCT from the specified rule.
+     *
+     * @param rule the new rule.
+     * @return the candidate rules that must be compared with the new rule.
+     */
+    Collection<UrlRule> getCandidates(UrlRule rule) {
+        final List<UrlRuleSegment> segments = rule.getSegments();
+        final String extension = getExtension(rule.getLastSegment());
+
+        // A leading ** matches the whole trie so the extension buckets are a better filter.
+        if (extension != null && segments.get(0).getSegmentType() == DOUBLE_STAR) {
+            final List<UrlRule> candidates = Lists.newArrayList(rulesWithoutExtension);
+            final Set<UrlRule> extensionRules = rulesByExtension.get(extension);
+            if (extensionRules != null) {
+                candidates.addAll(extensionRules);
+            }
+            return candidates;
+        }
+
+        final List<UrlRule> candidates = Lists.newArrayList();
+        root.collectCandidates(segments, 0, candidates);
+        return candidates;
+    }
+
+    /**
+     * Returns the extension that every url matched by the segment must end with. <p/> Two last segments with different
+     * extensions are always DISTINCT, which in turn makes the rules DISTINCT.
+     *
+     * @param segment the last segment of a rule.
+     * @return the extension (text after the last dot) or null if the segment can match any extension.
+     */
+    private static String getExtension(UrlRuleSegment segment) {
+        final String fixedSuffix;
+        switch (segment.getSegmentType()) {
+            case COMPLETE:
+                fixedSuffix = segment.getSegment();
+                break;
+            case WILDCARD:
+                final String text = segment.getSegment();
+                fixedSuffix = text.substring(text.indexOf('*') + 1);
+                break;
+            default:
+                return null;
+        }
+
+        final int dotIndex = fixedSuffix.lastIndexOf('.');
+        return dotIndex == -1 ? null : fixedSuffix.substring(dotIndex + 1);
+    }
+
+    /**
+     * An immutable node in the segment trie.
+     */
+    private static final class Node {
+
+        /**
+         * The root of an empty trie.
+         */
+        private static final Node EMPTY_ROOT = new Node(null);
+
+        /**
+         * The segment on the edge leading to this node (null for the root).
+         */
+        private final UrlRuleSegment segment;
+
+        /**
+         * Children keyed by COMPLETE and EMPTY segment text.
+         */
+        private final PersistentHashMap<String, Node> literalChildren;
+
+        /**
+         * Children keyed by TOKEN segment text.
+         */
+        private final PersistentHashMap<String, Node> tokenChildren;
+
+        /**
+         * Children keyed by WILDCARD segment text.
+         */
+        private final PersistentHashMap<String, Node> wildcardChildren;
+
+        /**
+         * The child for a STAR segment.
+         */
+        private final Node starChild;
+
+        /**
+         * Rules that have a DOUBLE_STAR at this depth.
+         */
+        private final PersistentHashSet<UrlRule> doubleStarRules;
+
+        /**
+         * Rules that end at this node.
+         */
+        private final PersistentHashSet<UrlRule> terminalRules;
+
+        private Node(UrlRuleSegment segment) {
+            this(segment, PersistentHashMap.<String, Node>empty(), PersistentHashMap.<String, Node>empty(),
+                    PersistentHashMap.<String, Node>empty(), null, PersistentHashSet.<UrlRule>empty(),
+                    PersistentHashSet.<UrlRule>empty());
+        }
+
+        private Node(
+                UrlRuleSegment segment, PersistentHashMap<String, Node> literalChildren,
+                PersistentHashMap<String, Node> tokenChildren, PersistentHashMap<String, Node> wildcardChildren,
+                Node starChild, PersistentHashSet<UrlRule> doubleStarRules, PersistentHashSet<UrlRule> terminalRules) {
+            this.segment = segment;
+            this.literalChildren = literalChildren;
+            this.tokenChildren = tokenChildren;
+            this.wildcardChildren = wildcardChildren;
+            this.starChild = starChild;
+            this.doubleStarRules = doubleStarRules;
+            this.terminalRules = terminalRules;
+        }
+
+        /**
+         * Returns a copy of this node with the rule added below it.
+         */
+        private Node add(UrlRule rule, List<UrlRuleSegment> segments, int depth) {
+            if (depth == segments.size()) {
+                return new Node(segment, literalChildren, tokenChildren, wildcardChildren, starChild,
+                        doubleStarRules, terminalRules.plus(rule));
+            }
+
+            final UrlRuleSegment childSegment = segments.get(depth);
+            switch (childSegment.getSegmentType()) {
+                case DOUBLE_STAR:
+                    // The rest of the rule is only checked by the reverse scan.
+                    return new Node(segment, literalChildren, tokenChildren, wildcardChildren, starChild,
+                            doubleStarRules.plus(rule), terminalRules);
+                case STAR:
+                    final Node star = starChild == null ? new Node(childSegment) : starChild;
+                    return withStarChild(star.add(rule, segments, depth + 1));
+                default:
+                    final PersistentHashMap<String, Node> children = getChildren(childSegment);
+                    Node child = children.get(childSegment.getSegment());
+                    if (child == null) {
+                        child = new Node(childSegment);
+                    }
+                    return withChildren(childSegment,
+                            children.plus(childSegment.getSegment(), child.add(rule, segments, depth + 1)));
+            }
+        }
+
+        /**
+         * Returns a copy of this node with the rule removed from below it.
+         *
+         * @return the new node or null if the new node would be empty.
+         */
+        private Node remove(UrlRule rule, List<UrlRuleSegment> segments, int depth) {
+            final Node result;
+            if (depth == segments.size()) {
+                result = new Node(segment, literalChildren, tokenChildren, wildcardChildren, starChild,
+                        doubleStarRules, terminalRules.minus(rule));
+            } else {
+                final UrlRuleSegment childSegment = segments.get(depth);
+
+                if (childSegment.getSegmentType() == DOUBLE_STAR) {
+                    result = new Node(segment, literalChildren, tokenChildren, wildcardChildren, starChild,
+                            doubleStarRules.minus(rule), terminalRules);
+                } else if (childSegment.getSegmentType() == SegmentType.STAR) {
+                    if (starChild == null) {
+                        return this;
+                    }
+                    result = withStarChild(starChild.remove(rule, segments, depth + 1));
+                } else {
+                    final PersistentHashMap<String, Node> children = getChildren(childSegment);
+                    final Node child = children.get(childSegment.getSegment());
+                    if (child == null) {
+                        return this;
+                    }
+                    final Node newChild = child.remove(rule, segments, depth + 1);
+                    result = withChildren(childSegment, newChild == null ?
+                            children.minus(childSegment.getSegment()) :
+                            children.plus(childSegment.getSegment(), newChild));
+                }
+            }
+
+            return result.isEmpty() ? null : result;
+        }
+
+        private Node withStarChild(Node newStarChild) {
+            return new Node(segment, literalChildren, tokenChildren, wildcardChildren, newStarChild,
+                    doubleStarRules, terminalRules);
+        }
+
+        private Node withChildren(UrlRuleSegment childSegment, PersistentHashMap<String, Node> children) {
+            switch (childSegment.getSegmentType()) {
+                case COMPLETE:
+                case EMPTY:
+                    return new Node(segment, children, tokenChildren, wildcardChildren, starChild,
+                            doubleStarRules, terminalRules);
+                case TOKEN:
+                    return new Node(segment, literalChildren, children, wildcardChildren, starChild,
+                            doubleStarRules, terminalRules);
+                case WILDCARD:
+                    return new Node(segment, literalChildren, tokenChildren, children, starChild,
+                            doubleStarRules, terminalRules);
+                default:
+                    throw new IllegalArgumentException("No children for segment: " + childSegment);
+            }
+        }
+
+        private PersistentHashMap<String, Node> getChildren(UrlRuleSegment childSegment) {
+            switch (childSegment.getSegmentType()) {
+                case COMPLETE:
+                case EMPTY:
+                    return literalChildren;
+                case TOKEN:
+                    return tokenChildren;
+                case WILDCARD:
+                    return wildcardChildren;
+                default:
+                    throw new IllegalArgumentException("No children for segment: " + childSegment);
+            }
+        }
+
+        private boolean isEmpty() {
+            return terminalRules.isEmpty() && doubleStarRules.isEmpty() && starChild == null &&
+                    literalChildren.isEmpty() && tokenChildren.isEmpty() && wildcardChildren.isEmpty();
+        }
+
+        /**
+         * Mirrors the forward scan of {@code UrlRule.isDistinct}, only following the branches where the segments are
+         * not DISTINCT.
+         */
+        private void collectCandidates(List<UrlRuleSegment> segments, int depth, Collection<UrlRule> result) {
+            // Rules of a different length are DISTINCT unless a ** is hit first.
+            if (depth == segments.size()) {
+                result.addAll(terminalRules);
+                return;
+            }
+
+            // An existing ** means a reverse scan is needed so these rules are always candidates.
+            result.addAll(doubleStarRules);
+
+            final UrlRuleSegment newSegment = segments.get(depth);
+            if (newSegment.getSegmentType() == DOUBLE_STAR) {
+                // Likewise for a new **, but only for rules that are longer than this depth.
+                collectDescendants(result);
+                return;
+            }
+
+            switch (newSegment.getSegmentType()) {
+                case COMPLETE:
+                case EMPTY:
+                    // Literals are only non-DISTINCT from the identical literal.
+                    final Node literalChild = literalChildren.get(newSegment.getSegment());
+                    if (literalChild != null) {
+                        literalChild.collectCandidates(segments, depth + 1, result);
+                    }
+                    break;
+                default:
+                    collectMatchingChildren(literalChildren, newSegment, segments, depth, result);
+                    break;
+            }
+
+            // A star is never DISTINCT from anything.
+            if (starChild != null) {
+                starChild.collectCandidates(segments, depth + 1, result);
+            }
+
+            collectMatchingChildren(tokenChildren, newSegment, segments, depth, result);
+            collectMatchingChildren(wildcardChildren, newSegment, segments, depth, result);
+        }
+
+        private static void collectMatchingChildren(
+                Map<String, Node> children, UrlRuleSegment newSegment, List<UrlRuleSegment> segments, int depth,
+                Collection<UrlRule> result) {
+
+            for (Node child : children.values()) {
+                if (newSegment.compareTo(child.segment) != DISTINCT) {
+                    child.collectCandidates(segments, depth + 1, result);
+                }
+            }
+        }
+
+        private void collectDescendants(Collection<UrlRule> result) {
+            for (Node child : literalChildren.values()) {
+                child.collectAll(result);
+            }
+            for (Node child : tokenChildren.values()) {
+                child.collectAll(result);
+            }
+            for (Node child : wildcardChildren.values()) {
+                child.collectAll(result);
+            }
+            if (starChild != null) {
+                starChild.collectAll(result);
+            }
+        }
+
+        private void collectAll(Collection<UrlRule> result) {
+            result.addAll(terminalRules);
+            result.addAll(doubleStarRules);
+            collectDescendants(result);
+        }
+    }
+}
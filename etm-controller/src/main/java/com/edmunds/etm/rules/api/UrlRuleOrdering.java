@@ -0,0 +1,335 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.edmunds.etm.rules.util.PersistentHashMap;
+import com.edmunds.etm.rules.util.PersistentHashSet;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Orders the rules of a {@link UrlRuleSet} for config generation. <p/> Each rule is given a dense integer id equal to
+ * its tie-break rank (alphabetical, or by traffic when hit counts are known), so the ready queue is a binary heap of
+ * ints and ties are broken by comparing ids rather than strings. The dependencies are copied once into int arrays
+ * (in-degree counters and a compressed adjacency list), after that the ordering itself does not allocate. <p/> The
+ * alphabetical order is maintained incrementally by the rule set, so only the rules added since the last ordering need
+ * to be sorted.
+ *
+ * @author David Trott
+ */
+final class UrlRuleOrdering {
+
+    private UrlRuleOrdering() {
+    }
+
+    /**
+     * Returns the rules in alphabetical order, reusing a previous alphabetical order where possible. <p/> Only the
+     * rules added since the previous order was computed are sorted, they are then merged with the previous order.
+     *
+     * @param rules    the current rules.
+     * @param previous the rules in alphabetical order as of some earlier version of the rule set.
+     * @param added    the rules that have been added since the previous order was computed.
+     * @param removed  the rules that have been removed since the previous order was computed.
+     * @return the current rules in alphabetical order.
+     */
+    static UrlRule[] sortAlphabetically(
+            PersistentHashSet<UrlRule> rules, UrlRule[] previous,
+            PersistentHashSet<UrlRule> added, PersistentHashSet<UrlRule> removed) {
+
+        if (added.isEmpty() && removed.isEmpty() && previous.length == rules.size()) {
+            return previous;
+        }
+
+        final UrlRule[] addedRules = added.toArray(new UrlRule[added.size()]);
+        Arrays.sort(addedRules, AlphabeticUrlRuleComparator.INSTANCE);
+
+        final UrlRule[] result = new UrlRule[rules.size()];
+        final boolean checkRemoved = !removed.isEmpty();
+        int count = 0;
+        int a = 0;
+        for (UrlRule rule : previous) {
+            if (checkRemoved && removed.contains(rule)) {
+                continue;
+            }
+            while (a < addedRules.length && count < result.length &&
+                    AlphabeticUrlRuleComparator.INSTANCE.compare(addedRules[a], rule) < 0) {
+                result[count++] = addedRules[a++];
+            }
+            if (count == result.length) {
+                break;
+            }
+            result[count++] = rule;
+        }
+        while (a < addedRules.length && count < result.length) {
+            result[count++] = addedRules[a++];
+        }
+
+        if (count != result.length || a != addedRules.length) {
+            // The changes were not tracked correctly, this should never happen but sorting everything is always safe.
+            final UrlRule[] sorted = rules.toArray(new UrlRule[rules.size()]);
+            Arrays.sort(sorted, AlphabeticUrlRuleComparator.INSTANCE);
+            return sorted;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the rules in tie-break order, the most frequently hit rules first and alphabetical order after that.
+     *
+     * @param sorted     the rules in alphabetical order.
+     * @param statistics the number of requests matched by each rule.
+     * @return the rules in tie-break order, the alphabetical array itself if there are no statistics.
+     */
+    static UrlRule[] sortByTraffic(UrlRule[] sorted, RuleTrafficStatistics statistics) {
+        if (statistics.isEmpty()) {
+            return sorted;
+        }
+
+        final UrlRule[] result = sorted.clone();
+        Arrays.sort(result, new TrafficUrlRuleComparator(statistics));
+        return result;
+    }
+
+    /**
+     * Orders the rules, rules that block other rules are output first and ties are broken by the order of the sorted
+     * array.
+     *
+     * @param rules            the rules to order.
+     * @param sorted           the same rules in tie-break order (normally alphabetical).
+     * @param rulesBlockedByMe the map of (blocking rule -> set of blocked rules).
+     * @return the ordered rules or null if the rules contain a cyclic dependency.
+     */
+    static Set<UrlRule> orderRules(
+            PersistentHashSet<UrlRule> rules, UrlRule[] sorted,
+            PersistentHashMap<UrlRule, PersistentHashSet<UrlRule>> rulesBlockedByMe) {
+
+        final int size = sorted.length;
+        final RuleIds ids = new RuleIds(sorted);
+
+        // The blocked rules of rule i are blockedIds[blockedStart[i]] to blockedIds[blockedStart[i + 1] - 1].
+        final int[] blockedStart = new int[size + 1];
+        final int[] blockingIds = new int[rulesBlockedByMe.size()];
+        int edgeCount = 0;
+        int k = 0;
+        for (Map.Entry<UrlRule, PersistentHashSet<UrlRule>> entry : rulesBlockedByMe.entrySet()) {
+            final int id = ids.get(entry.getKey());
+            blockingIds[k++] = id;
+            blockedStart[id + 1] = entry.getValue().size();
+            edgeCount += entry.getValue().size();
+        }
+        for (int i = 0; i < size; i++) {
+            blockedStart[i + 1] += blockedStart[i];
+        }
+
+        // The number of blocking rules that have not been outputted yet.
+        final int[] blockingCounts = new int[size];
+        final int[] blockedIds = new int[edgeCount];
+        k = 0;
+        for (PersistentHashSet<UrlRule> blockedRules : rulesBlockedByMe.values()) {
+            int next = blockedStart[blockingIds[k++]];
+            for (UrlRule blockedRule : blockedRules) {
+                final int blockedId = ids.get(blockedRule);
+                blockedIds[next++] = blockedId;
+                blockingCounts[blockedId]++;
+            }
+        }
+
+        final IntHeap ready = new IntHeap(size);
+        for (int id = 0; id < size; id++) {
+            if (blockingCounts[id] == 0) {
+                ready.push(id);
+            }
+        }
+
+        final UrlRule[] out = new UrlRule[size];
+        int outCount = 0;
+        while (!ready.isEmpty()) {
+            final int current = ready.pop();
+            out[outCount++] = sorted[current];
+
+            // For each rule that was blocked by the rule that was just outputted
+            for (int i = blockedStart[current]; i < blockedStart[current + 1]; i++) {
+                final int blockedId = blockedIds[i];
+
+                // Is the rule now unblocked?
+                if (--blockingCounts[blockedId] == 0) {
+                    // If so it can be outputted as soon as the tie-break order allows.
+                    ready.push(blockedId);
+                }
+            }
+        }
+
+        // Have all rules been outputted?
+        if (outCount != size) {
+            return null;
+        }
+
+        return new OrderedRules(out, rules);
+    }
+
+    /**
+     * Maps each rule to its id using open addressing, this avoids boxing the ids.
+     */
+    private static final class RuleIds {
+        private final UrlRule[] keys;
+        private final int[] values;
+        private final int mask;
+
+        private RuleIds(UrlRule[] rules) {
+            int capacity = 2;
+            while (capacity < rules.length * 2) {
+                capacity <<= 1;
+            }
+            this.keys = new UrlRule[capacity];
+            this.values = new int[capacity];
+            this.mask = capacity - 1;
+
+            for (int id = 0; id < rules.length; id++) {
+                int slot = spread(rules[id].hashCode()) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = rules[id];
+                values[slot] = id;
+            }
+        }
+
+        private int get(UrlRule rule) {
+            int slot = spread(rule.hashCode()) & mask;
+            while (true) {
+                final UrlRule key = keys[slot];
+                if (key == null) {
+                    throw new IllegalStateException("Rule is not in the rule set: " + rule);
+                }
+                if (key == rule || key.equals(rule)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private static int spread(int hashCode) {
+            final int h = hashCode * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * A binary min-heap of ints.
+     */
+    private static final class IntHeap {
+        private final int[] heap;
+        private int size;
+
+        private IntHeap(int capacity) {
+            this.heap = new int[capacity];
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private void push(int value) {
+            int i = size++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (heap[parent] <= value) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = value;
+        }
+
+        private int pop() {
+            final int result = heap[0];
+            final int last = heap[--size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (last <= heap[child]) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return result;
+        }
+    }
+
+    /**
+     * An immutable view of the ordered rules. <p/> Iteration follows the order, membership is answered by the rule set
+     * that was ordered.
+     */
+    private static final class OrderedRules extends AbstractSet<UrlRule> {
+        private final UrlRule[] ordered;
+        private final PersistentHashSet<UrlRule> rules;
+
+        private OrderedRules(UrlRule[] ordered, PersistentHashSet<UrlRule> rules) {
+            this.ordered = ordered;
+            this.rules = rules;
+        }
+
+        @Override
+        public int size() {
+            return ordered.length;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return rules.contains(o);
+        }
+
+        @Override
+        public Iterator<UrlRule> iterator() {
+            return new Iterator<UrlRule>() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < ordered.length;
+                }
+
+                @Override
+                public UrlRule next() {
+                    if (next >= ordered.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return ordered[next++];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
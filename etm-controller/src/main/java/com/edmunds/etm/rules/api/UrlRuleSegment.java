@@ -48,6 +48,16 @@ public class UrlRuleSegment {
      */
     private UrlTokenResolver tokenResolver;
 
+    /**
+     * The pool that interned this segment, or null if the segment was created directly.
+     */
+    private final UrlRuleSegmentPool pool;
+
+    /**
+     * The id of this segment within its pool.
+     */
+    private final int poolId;
+
     private final String segment;
     private final boolean lastSegment;
     private final SegmentType segmentType;
@@ -73,8 +83,24 @@ public class UrlRuleSegment {
      */
     public UrlRuleSegment(UrlTokenResolver tokenResolver, String segment, boolean lastSegment) throws
             IllegalArgumentException {
+        this(null, -1, tokenResolver, segment, lastSegment);
+    }
+
+    /**
+     * Constructs a new UrlRule segment that belongs to a pool.
+     *
+     * @param pool        the pool interning the segment.
+     * @param poolId      the id of the segment within the pool.
+     * @param segment     the body text of the segment.
+     * @param lastSegment is this the last segment (additional validations can be applied).
+     * @throws IllegalArgumentException if the segment is invalid (cannot be handled by ETM).
+     */
+    UrlRuleSegment(UrlRuleSegmentPool pool, int poolId, UrlTokenResolver tokenResolver, String segment,
+                   boolean lastSegment) throws IllegalArgumentException {
         Validate.notNull(tokenResolver, "tokenResolver is null");
 
+        this.pool = pool;
+        this.poolId = poolId;
         this.tokenResolver = tokenResolver;
         // Special case for last segment.
         if (segment == null) {
@@ -117,6 +143,16 @@ public class UrlRuleSegment {
         }
     }
 
+    /**
+     * Indicates whether the text of a segment has the form of a token symbol.
+     *
+     * @param segment the segment text.
+     * @return true if the segment is surrounded by square brackets.
+     */
+    public static boolean isTokenSymbol(String segment) {
+        return segment.length() > 2 && segment.charAt(0) == '[' && segment.charAt(segment.length() - 1) == ']';
+    }
+
     public String getSegment() {
         return segment;
     }
@@ -135,6 +171,18 @@ public class UrlRuleSegment {
      * @return the result of the comparison.
      */
     public RuleComparison compareTo(UrlRuleSegment other) {
+        // Segments interned by the same pool can reuse an earlier comparison.
+        if (pool != null && pool == other.pool) {
+            return pool.compare(this, other);
+        }
+        return compareSegments(other);
+    }
+
+    int getPoolId() {
+        return poolId;
+    }
+
+    RuleComparison compareSegments(UrlRuleSegment other) {
         if (segment.equals(other.segment)) {
             return IDENTICAL;
         }
@@ -228,10 +276,9 @@ public class UrlRuleSegment {
         // By now we must have a PATTERN and a COMPLETE.
         Validate.isTrue(nonToken.getSegmentType() == COMPLETE);
 
-        final String regexp = tokenResolver.resolveToken(tokenSeg.getSegment());
         final String completeSegment = nonToken.getSegment();
-        if (regexp != null) {
-            if (!completeSegment.matches(regexp)) {
+        if (tokenResolver.isTokenDefined(tokenSeg.getSegment())) {
+            if (!tokenResolver.matchesToken(tokenSeg.getSegment(), completeSegment)) {
                 return DISTINCT;
             }
         } else {
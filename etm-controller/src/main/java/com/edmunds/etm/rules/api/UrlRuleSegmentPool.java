@@ -0,0 +1,205 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import org.apache.commons.lang.Validate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Interns {@link UrlRuleSegment} objects and memoizes the comparisons between them. <p/> Rules share a small number of
+ * distinct segments ([make], **, *.html, ...) so most segment comparisons during a rebuild repeat an earlier one. Each
+ * interned segment is given an id and the result of comparing two segments is stored in a fixed size, direct mapped
+ * table keyed by the pair of ids. A collision simply overwrites the older entry so the memory used is bounded. <p/>
+ * Token segments depend on the token definitions, so the interned segments and the memoized comparisons are discarded
+ * whenever the version of the token resolver changes.
+ *
+ * @author David Trott
+ */
+public final class UrlRuleSegmentPool {
+
+    /**
+     * The number of entries in the comparison table (must be a power of two).
+     */
+    private static final int COMPARISON_TABLE_SIZE = 1 << 16;
+
+    /**
+     * The number of bits used to store each segment id in a table entry.
+     */
+    private static final int ID_BITS = 28;
+    private static final int MAX_ID = (1 << ID_BITS) - 1;
+
+    private static final RuleComparison[] COMPARISONS = RuleComparison.values();
+
+    private final UrlTokenResolver tokenResolver;
+    private final AtomicInteger nextId;
+    private final AtomicLong comparisonHits;
+    private final AtomicLong comparisonMisses;
+    private volatile Generation generation;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param tokenResolver the resolver of tokens into expressions.
+     */
+    public UrlRuleSegmentPool(UrlTokenResolver tokenResolver) {
+        Validate.notNull(tokenResolver, "tokenResolver is null");
+        this.tokenResolver = tokenResolver;
+        this.nextId = new AtomicInteger();
+        this.comparisonHits = new AtomicLong();
+        this.comparisonMisses = new AtomicLong();
+        this.generation = new Generation(tokenResolver.getVersion());
+    }
+
+    /**
+     * Returns the resolver used to create the segments.
+     *
+     * @return the token resolver.
+     */
+    public UrlTokenResolver getTokenResolver() {
+        return tokenResolver;
+    }
+
+    /**
+     * Returns the shared segment for the specified text.
+     *
+     * @param segment     the body text of the segment.
+     * @param lastSegment is this the last segment of the rule.
+     * @return the interned segment.
+     * @throws IllegalArgumentException if the segment is invalid (cannot be handled by ETM).
+     */
+    public UrlRuleSegment intern(String segment, boolean lastSegment) throws IllegalArgumentException {
+        Validate.notNull(segment, "segment is null");
+
+        final ConcurrentMap<String, UrlRuleSegment> segments = getGeneration().getSegments(lastSegment);
+        UrlRuleSegment result = segments.get(segment);
+        if (result == null) {
+            result = new UrlRuleSegment(this, nextId.getAndIncrement(), tokenResolver, segment, lastSegment);
+            final UrlRuleSegment existing = segments.putIfAbsent(segment, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of segments interned for the current token definitions.
+     *
+     * @return the number of interned segments.
+     */
+    public int getSegmentCount() {
+        final Generation current = getGeneration();
+        return current.segments.size() + current.lastSegments.size();
+    }
+
+    /**
+     * Returns the number of comparisons answered from the table.
+     *
+     * @return the number of hits.
+     */
+    public long getComparisonHits() {
+        return comparisonHits.get();
+    }
+
+    /**
+     * Returns the number of comparisons that had to be computed.
+     *
+     * @return the number of misses.
+     */
+    public long getComparisonMisses() {
+        return comparisonMisses.get();
+    }
+
+    /**
+     * Compares two segments from this pool, using the memoized result if there is one.
+     *
+     * @param segment the segment to compare.
+     * @param other   the segment to compare to.
+     * @return the result of the comparison.
+     */
+    RuleComparison compare(UrlRuleSegment segment, UrlRuleSegment other) {
+        if (segment == other) {
+            return RuleComparison.IDENTICAL;
+        }
+
+        final int id = segment.getPoolId();
+        final int otherId = other.getPoolId();
+        if (id > MAX_ID || otherId > MAX_ID) {
+            return segment.compareSegments(other);
+        }
+
+        final AtomicLongArray comparisons = getGeneration().comparisons;
+        final long key = (1L << 63) | ((long) id << (ID_BITS + 3)) | ((long) otherId << 3);
+        final int slot = slot(id, otherId);
+
+        final long entry = comparisons.get(slot);
+        if ((entry & ~7L) == key) {
+            comparisonHits.incrementAndGet();
+            return COMPARISONS[(int) (entry & 7L)];
+        }
+
+        comparisonMisses.incrementAndGet();
+        final RuleComparison result = segment.compareSegments(other);
+        comparisons.set(slot, key | result.ordinal());
+        return result;
+    }
+
+    private static int slot(int id, int otherId) {
+        final int h = (id * 0x9E3779B9) ^ (otherId * 0x85EBCA6B);
+        return (h ^ (h >>> 16)) & (COMPARISON_TABLE_SIZE - 1);
+    }
+
+    private Generation getGeneration() {
+        final Generation current = generation;
+        final long version = tokenResolver.getVersion();
+        if (current.version == version) {
+            return current;
+        }
+
+        synchronized (this) {
+            if (generation.version != version) {
+                generation = new Generation(version);
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * The interned segments and memoized comparisons for one version of the token definitions.
+     */
+    private static final class Generation {
+        private final long version;
+        private final ConcurrentMap<String, UrlRuleSegment> segments;
+        private final ConcurrentMap<String, UrlRuleSegment> lastSegments;
+        private final AtomicLongArray comparisons;
+
+        private Generation(long version) {
+            this.version = version;
+            this.segments = new ConcurrentHashMap<String, UrlRuleSegment>();
+            this.lastSegments = new ConcurrentHashMap<String, UrlRuleSegment>();
+            this.comparisons = new AtomicLongArray(COMPARISON_TABLE_SIZE);
+        }
+
+        private ConcurrentMap<String, UrlRuleSegment> getSegments(boolean lastSegment) {
+            return lastSegment ? lastSegments : segments;
+        }
+    }
+}
@@ -16,21 +16,28 @@
 package com.edmunds.etm.rules.api;
 
 import com.edmunds.etm.management.api.MavenModule;
-import com.google.common.collect.Maps;
+import com.edmunds.etm.rules.util.PersistentHashMap;
+import com.edmunds.etm.rules.util.PersistentHashSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import org.apache.commons.lang.Validate;
 import org.apache.log4j.Logger;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Represents an active rule set. <p/> Provides the methods for merging in new rules and ordering them for config
- * generation.
+ * generation. <p/> The state is held in persistent (structure sharing) collections, so copying a rule set is O(1) and
+ * a merge only allocates the entries it changes.
  *
  * @author David Trott
  */
@@ -44,23 +51,65 @@ public class UrlRuleSet {
     /**
      * The set of all rules.
      */
-    private final Set<UrlRule> rules;
+    private PersistentHashSet<UrlRule> rules;
 
     /**
-     * The alphabetically sorted list of "unblocked" rules. <p/> These are the highest priority rules that can be
-     * outputted immediately.
+     * The map of (blocking rule -> set of blocked rules).
      */
-    private final SortedSet<UrlRule> unblockedRules;
+    private PersistentHashMap<UrlRule, PersistentHashSet<UrlRule>> rulesBlockedByMe;
 
     /**
-     * The map of (blocking rule -> set of blocked rules).
+     * The reverse map of (blocked rule -> set of blocking rules). <p/> Rules that are not in this map are "unblocked",
+     * these are the highest priority rules that can be outputted immediately.
+     */
+    private PersistentHashMap<UrlRule, PersistentHashSet<UrlRule>> rulesBlockingMe;
+
+    /**
+     * Index used to find the existing rules that may conflict with a new rule.
+     */
+    private final UrlRuleIndex ruleIndex;
+
+    /**
+     * A topological order of the rules that is maintained as edges are added. <p/> Every blocking rule has a lower
+     * position than the rules it blocks, this allows cyclic dependencies to be detected during the merge.
+     */
+    private PersistentHashMap<UrlRule, Integer> topologicalOrder;
+
+    /**
+     * The map of (token symbol -> rules with a segment that references the token).
+     */
+    private PersistentHashMap<String, PersistentHashSet<UrlRule>> rulesByToken;
+
+    /**
+     * The next unused position in the topological order.
+     */
+    private int nextPosition;
+
+    /**
+     * The rules in alphabetical order as of the last call to {@link #orderRules()}. <p/> The array is never modified so
+     * it can be shared between copies, the changes since it was sorted are tracked by the two sets below.
      */
-    private final Map<UrlRule, Set<UrlRule>> rulesBlockedByMe;
+    private UrlRule[] alphabeticalRules;
 
     /**
-     * The reverse map of (blocked rule -> set of blocking rules).
+     * The rules added since the alphabetical order was computed.
      */
-    private final Map<UrlRule, Set<UrlRule>> rulesBlockingMe;
+    private PersistentHashSet<UrlRule> rulesAddedSinceSort;
+
+    /**
+     * The rules removed since the alphabetical order was computed.
+     */
+    private PersistentHashSet<UrlRule> rulesRemovedSinceSort;
+
+    /**
+     * Orders rules by their current position in the topological order.
+     */
+    private final Comparator<UrlRule> topologicalComparator = new Comparator<UrlRule>() {
+        @Override
+        public int compare(UrlRule rule1, UrlRule rule2) {
+            return topologicalOrder.get(rule1).compareTo(topologicalOrder.get(rule2));
+        }
+    };
 
     /**
      * Initializes rule set from a simple collection of rules.
@@ -68,129 +117,261 @@ public class UrlRuleSet {
      * @param rules the rules to use to initialized the rule set.
      */
     public UrlRuleSet(Collection<UrlRule> rules) {
-        this.rules = Sets.newHashSet(rules);
-        this.unblockedRules = Sets.newTreeSet(AlphabeticUrlRuleComparator.INSTANCE);
-        this.unblockedRules.addAll(rules);
-        this.rulesBlockedByMe = Maps.newHashMap();
-        this.rulesBlockingMe = Maps.newHashMap();
+        this.rules = PersistentHashSet.of(rules);
+        this.rulesBlockedByMe = PersistentHashMap.empty();
+        this.rulesBlockingMe = PersistentHashMap.empty();
+        this.ruleIndex = new UrlRuleIndex(this.rules);
+        this.topologicalOrder = PersistentHashMap.empty();
+        this.rulesByToken = PersistentHashMap.empty();
+        this.nextPosition = 0;
+        this.alphabeticalRules = new UrlRule[0];
+        this.rulesAddedSinceSort = this.rules;
+        this.rulesRemovedSinceSort = PersistentHashSet.empty();
+        for (UrlRule rule : this.rules) {
+            topologicalOrder = topologicalOrder.plus(rule, nextPosition++);
+            addTokenReferences(rule);
+        }
     }
 
     /**
-     * Copy constructor. <p/> Needed because the merge operation is destructive to this objects state.
+     * Copy constructor. <p/> Needed because the merge operation is destructive to this objects state. The copy shares
+     * the persistent collections with the other rule set so it is O(1).
      *
      * @param other the other rule set to be copied.
      */
     public UrlRuleSet(UrlRuleSet other) {
-        this.rules = Sets.newHashSet(other.rules);
-        this.unblockedRules = new TreeSet<UrlRule>(other.unblockedRules);
-        this.rulesBlockedByMe = deepCopyMapSet(other.rulesBlockedByMe);
-        this.rulesBlockingMe = deepCopyMapSet(other.rulesBlockingMe);
+        this.rules = other.rules;
+        this.rulesBlockedByMe = other.rulesBlockedByMe;
+        this.rulesBlockingMe = other.rulesBlockingMe;
+        this.ruleIndex = new UrlRuleIndex(other.ruleIndex);
+        this.topologicalOrder = other.topologicalOrder;
+        this.rulesByToken = other.rulesByToken;
+        this.nextPosition = other.nextPosition;
+        this.alphabeticalRules = other.alphabeticalRules;
+        this.rulesAddedSinceSort = other.rulesAddedSinceSort;
+        this.rulesRemovedSinceSort = other.rulesRemovedSinceSort;
     }
 
     /**
      * Creates a new object and merges the new rules into it.
      *
      * @param newRules the new rules to be merged.
-     * @return the new rule set object or null if the merge failed.
+     * @return the new rule set object or null if the merge failed (conflicting or cyclic rules).
      */
     public UrlRuleSet mergeRules(Collection<UrlRule> newRules) {
         final UrlRuleSet result = new UrlRuleSet(this);
 
-        return result.mergeRulesInternal(newRules) ? result : null;
+        return result.mergeRulesInternal(Lists.newArrayList(newRules), null) ? result : null;
     }
 
     /**
-     * Merges the new rules into the rule set managed by this object. <p/> CAUTION: This method is destructive to the
-     * internal state of this object even if the merge fails.
+     * Creates a new object and merges the new rules into it, comparing the new rules with the existing rules in
+     * parallel. <p/> Only the comparisons run in parallel, the resulting dependencies are applied in the same order as
+     * {@link #mergeRules(Collection)} so the result is identical.
      *
      * @param newRules the new rules to be merged.
-     * @return true if the merge succeeds.
+     * @param executor the executor used to run the comparisons.
+     * @return the new rule set object or null if the merge failed (conflicting or cyclic rules).
      */
-    private boolean mergeRulesInternal(Collection<UrlRule> newRules) {
-        for (UrlRule newRule : newRules) {
+    public UrlRuleSet mergeRules(Collection<UrlRule> newRules, ExecutorService executor) {
+        Validate.notNull(executor, "executor is null");
+        final List<UrlRule> rulesToMerge = Lists.newArrayList(newRules);
+        final RuleComparisons[] comparisons = compareRules(rulesToMerge, executor);
+        final UrlRuleSet result = new UrlRuleSet(this);
 
-            boolean unblockedNewRule = true;
-
-            for (UrlRule existingRule : rules) {
-                final RuleComparison comparison = newRule.compareTo(existingRule);
-                switch (comparison) {
-                    case DISTINCT:
-                        // No Action, the rules are DISTINCT move on to the next comparison.
-                        break;
-                    case HIGH_PRIORITY:
-                        // newRule blocks existingRule
-                        addToMapSet(newRule, existingRule, rulesBlockedByMe);
-                        addToMapSet(existingRule, newRule, rulesBlockingMe);
-
-                        // If an "unblocked" rules gets blocked by a new rule remove it from the "unblocked" list.
-                        unblockedRules.remove(existingRule);
-                        break;
-                    case LOW_PRIORITY:
-                        // existingRule blocks newRule
-                        addToMapSet(newRule, existingRule, rulesBlockingMe);
-                        addToMapSet(existingRule, newRule, rulesBlockedByMe);
-
-                        // The existing rule has blocked the new rule.
-                        unblockedNewRule = false;
-                        break;
-                    default:
-                        logger.info("Conflict (" + comparison + ") detected between rules," +
-                                " Existing: " + existingRule.getMavenModule() + "=[" + existingRule.getRule() + "]" +
-                                " New: " + newRule.getMavenModule() + "=[" + newRule.getRule() + "]");
+        return result.mergeRulesInternal(rulesToMerge, comparisons) ? result : null;
+    }
 
+    /**
+     * Merges the new rules into the rule set managed by this object. <p/> CAUTION: This method is destructive to the
+     * internal state of this object even if the merge fails (but never to the collections shared with other copies).
+     *
+     * @param newRules    the new rules to be merged.
+     * @param comparisons the comparisons of each new rule with the existing rules, or null to compare them here.
+     * @return true if the merge succeeds.
+     */
+    private boolean mergeRulesInternal(List<UrlRule> newRules, RuleComparisons[] comparisons) {
+        for (int i = 0; i < newRules.size(); i++) {
+            final UrlRule newRule = newRules.get(i);
+            topologicalOrder = topologicalOrder.plus(newRule, nextPosition++);
+
+            if (comparisons == null) {
+                // Only the rules that might overlap need to be compared, the rest are DISTINCT.
+                for (UrlRule existingRule : ruleIndex.getCandidates(newRule)) {
+                    if (!applyComparison(newRule, existingRule, newRule.compareTo(existingRule))) {
                         return false;
+                    }
+                }
+            } else {
+                final RuleComparisons ruleComparisons = comparisons[i];
+                for (int j = 0; j < ruleComparisons.existingRules.length; j++) {
+                    if (!applyComparison(newRule, ruleComparisons.existingRules[j], ruleComparisons.results[j])) {
+                        return false;
+                    }
                 }
-            }
-
-            if (unblockedNewRule) {
-                unblockedRules.add(newRule);
             }
         }
 
         // We don't need to compare a rule with other rules from the same application.
-        rules.addAll(newRules);
+        for (UrlRule newRule : newRules) {
+            rules = rules.plus(newRule);
+            rulesAddedSinceSort = rulesAddedSinceSort.plus(newRule);
+            addTokenReferences(newRule);
+        }
+        ruleIndex.addAll(newRules);
 
         return true;
     }
 
+    /**
+     * Records the dependency implied by the comparison of a new rule with an existing rule.
+     *
+     * @param newRule      the rule being merged.
+     * @param existingRule the rule already in the set.
+     * @param comparison   the result of comparing the new rule to the existing rule.
+     * @return false if the rules conflict or the dependency creates a cycle.
+     */
+    private boolean applyComparison(UrlRule newRule, UrlRule existingRule, RuleComparison comparison) {
+        switch (comparison) {
+            case DISTINCT:
+                // No Action, the rules are DISTINCT move on to the next comparison.
+                return true;
+            case HIGH_PRIORITY:
+                // newRule blocks existingRule
+                return addBlockingRule(newRule, existingRule);
+            case LOW_PRIORITY:
+                // existingRule blocks newRule
+                return addBlockingRule(existingRule, newRule);
+            default:
+                logger.info("Conflict (" + comparison + ") detected between rules," +
+                        " Existing: " + existingRule.getMavenModule() + "=[" + existingRule.getRule() + "]" +
+                        " New: " + newRule.getMavenModule() + "=[" + newRule.getRule() + "]");
+
+                return false;
+        }
+    }
+
+    /**
+     * Compares each new rule with the existing rules that it may overlap. <p/> The new rules are split into one
+     * contiguous range per processor and each range is compared by a separate task. The comparisons only read this
+     * rule set, so they are safe to run concurrently.
+     *
+     * @param newRules the new rules to be merged.
+     * @param executor the executor used to run the comparisons.
+     * @return the comparisons, indexed in the same order as the new rules.
+     */
+    private RuleComparisons[] compareRules(final List<UrlRule> newRules, ExecutorService executor) {
+        final RuleComparisons[] comparisons = new RuleComparisons[newRules.size()];
+        final int taskCount = Math.max(1, Math.min(newRules.size(), Runtime.getRuntime().availableProcessors()));
+        final List<Future<?>> futures = Lists.newArrayListWithCapacity(taskCount);
+
+        for (int task = 0; task < taskCount; task++) {
+            final int from = task * newRules.size() / taskCount;
+            final int to = (task + 1) * newRules.size() / taskCount;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < to; i++) {
+                        comparisons[i] = compareRule(newRules.get(i));
+                    }
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while comparing rules", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Rule comparison failed", e.getCause());
+        }
+
+        return comparisons;
+    }
+
+    private RuleComparisons compareRule(UrlRule newRule) {
+        final Collection<UrlRule> candidates = ruleIndex.getCandidates(newRule);
+        final UrlRule[] existingRules = candidates.toArray(new UrlRule[candidates.size()]);
+        final RuleComparison[] results = new RuleComparison[existingRules.length];
+        for (int j = 0; j < existingRules.length; j++) {
+            results[j] = newRule.compareTo(existingRules[j]);
+        }
+        return new RuleComparisons(existingRules, results);
+    }
+
     public void deleteRules(MavenModule mavenModule) {
-        final Iterator<UrlRule> it = rules.iterator();
-        while (it.hasNext()) {
-            final UrlRule rule = it.next();
+        // The persistent set is not affected by the removals so it can be iterated directly.
+        for (UrlRule rule : rules) {
 
             // Is this a rule for the same maven module
             if (rule.getMavenModule().equals(mavenModule)) {
                 // It is so remove it.
-                it.remove();
-                // If its an unblocked rule remove it.
-                unblockedRules.remove(rule);
+                rules = rules.minus(rule);
+                rulesAddedSinceSort = rulesAddedSinceSort.minus(rule);
+                rulesRemovedSinceSort = rulesRemovedSinceSort.plus(rule);
+                ruleIndex.remove(rule);
+                topologicalOrder = topologicalOrder.minus(rule);
+                removeTokenReferences(rule);
 
                 // Then find anyone this rule is blocking and anyone who is blocking it and unblock them.
-                bidirectionalMapRemove(rule, rulesBlockedByMe, rulesBlockingMe, true);
-                bidirectionalMapRemove(rule, rulesBlockingMe, rulesBlockedByMe, false);
+                final PersistentHashSet<UrlRule> blockedRules = rulesBlockedByMe.get(rule);
+                if (blockedRules != null) {
+                    rulesBlockedByMe = rulesBlockedByMe.minus(rule);
+                    for (UrlRule blockedRule : blockedRules) {
+                        rulesBlockingMe = removeFromMapSet(blockedRule, rule, rulesBlockingMe);
+                    }
+                }
+
+                final PersistentHashSet<UrlRule> blockingRules = rulesBlockingMe.get(rule);
+                if (blockingRules != null) {
+                    rulesBlockingMe = rulesBlockingMe.minus(rule);
+                    for (UrlRule blockingRule : blockingRules) {
+                        rulesBlockedByMe = removeFromMapSet(blockingRule, rule, rulesBlockedByMe);
+                    }
+                }
             }
         }
     }
 
+    /**
+     * Orders the rules for config generation, rules that block other rules are output first and ties are broken
+     * alphabetically. <p/> Cyclic dependencies are rejected by {@link #mergeRules(Collection)} so this only needs to be
+     * called once the rule set is complete.
+     *
+     * @return the ordered rules or null if the rule set contains a cyclic dependency.
+     */
     public Set<UrlRule> orderRules() {
-        final SortedSet<UrlRule> ready = new TreeSet<UrlRule>(unblockedRules);
-        final Map<UrlRule, Set<UrlRule>> localRulesBlockedByMe = deepCopyMapSet(rulesBlockedByMe);
-        final Map<UrlRule, Set<UrlRule>> localRulesBlockingMe = deepCopyMapSet(rulesBlockingMe);
-
-        final Set<UrlRule> out = Sets.newLinkedHashSet();
-        // The ready set is updated as part of the loop so we cannot use an iterator.
-        while (!ready.isEmpty()) {
-            final UrlRule current = ready.first();
-            ready.remove(current);
-            out.add(current);
-
-            if (localRulesBlockedByMe.containsKey(current)) {
-                unblockRules(current, ready, localRulesBlockedByMe, localRulesBlockingMe);
-            }
-        }
+        return orderRules(RuleTrafficStatistics.empty());
+    }
+
+    /**
+     * Orders the rules for config generation, rules that block other rules are output first and ties are broken by
+     * traffic. <p/> Among the rules that can be output, the rule with the most hits comes first, rules with the same
+     * number of hits are output alphabetically. This moves hot rules towards the top wherever the blocking constraints
+     * allow, which reduces the number of rules a web server evaluates per request.
+     *
+     * @param statistics the number of requests matched by each rule.
+     * @return the ordered rules or null if the rule set contains a cyclic dependency.
+     */
+    public Set<UrlRule> orderRules(RuleTrafficStatistics statistics) {
+        Validate.notNull(statistics, "statistics is null");
+
+        alphabeticalRules = UrlRuleOrdering.sortAlphabetically(
+                rules, alphabeticalRules, rulesAddedSinceSort, rulesRemovedSinceSort);
+        rulesAddedSinceSort = PersistentHashSet.empty();
+        rulesRemovedSinceSort = PersistentHashSet.empty();
+
+        final UrlRule[] tieBreakOrder = UrlRuleOrdering.sortByTraffic(alphabeticalRules, statistics);
+        final Set<UrlRule> out = UrlRuleOrdering.orderRules(rules, tieBreakOrder, rulesBlockedByMe);
 
-        // Have all rules been outputted?
-        if (rules.size() != out.size()) {
+        // Null if some rules could never be outputted.
+        if (out == null) {
             logger.error("Cyclic dependency detected in new rule set");
             return null;
         }
@@ -218,6 +399,18 @@ public class UrlRuleSet {
         return rules.containsAll(c);
     }
 
+    /**
+     * Returns the rules that have a segment referencing the specified token. <p/> Segments that look like a token
+     * symbol are tracked whether or not the token was defined when the rule was created.
+     *
+     * @param tokenSymbol the token symbol (e.g. [MYTOKEN]).
+     * @return the rules that reference the token.
+     */
+    public Set<UrlRule> getRulesReferencingToken(String tokenSymbol) {
+        final Set<UrlRule> result = rulesByToken.get(tokenSymbol);
+        return result == null ? Collections.<UrlRule>emptySet() : result;
+    }
+
     /**
      * Gets a map of blocked rules and the rule(s) that block them. <p/> For each map entry, the key is a blocked rule
      * and the value is the set of rules that blocks it.
@@ -225,73 +418,158 @@ public class UrlRuleSet {
      * @return map of blocked rules (blocked rule -> set of blocking rules)
      */
     public Set<BlockedUrlRule> getBlockedRules() {
-        Map<UrlRule, Set<UrlRule>> rulesMap = deepCopyMapSet(rulesBlockingMe);
-        Set<BlockedUrlRule> blockedRules = new HashSet<BlockedUrlRule>(rulesMap.size());
-        for (Map.Entry<UrlRule, Set<UrlRule>> entry : rulesMap.entrySet()) {
-            blockedRules.add(new BlockedUrlRule(entry.getKey(), entry.getValue()));
+        Set<BlockedUrlRule> blockedRules = new HashSet<BlockedUrlRule>(rulesBlockingMe.size());
+        for (Map.Entry<UrlRule, PersistentHashSet<UrlRule>> entry : rulesBlockingMe.entrySet()) {
+            blockedRules.add(new BlockedUrlRule(entry.getKey(), Sets.<UrlRule>newHashSet(entry.getValue())));
         }
         return blockedRules;
     }
 
-    private void unblockRules(
-            UrlRule current, SortedSet<UrlRule> ready, Map<UrlRule,
-            Set<UrlRule>> localRulesBlockedByMe, Map<UrlRule, Set<UrlRule>> localRulesBlockingMe) {
+    /**
+     * Records that one rule blocks another, maintaining the topological order of the rules. <p/> If the blocking rule
+     * is already ahead of the blocked rule nothing needs to be re-ordered. Otherwise only the rules positioned between
+     * the two are searched (Pearce-Kelly): the rules reachable from the blocked rule and the rules that reach the
+     * blocking rule swap positions. If the blocking rule is reachable from the blocked rule the edge would create a
+     * cycle.
+     *
+     * @param blockingRule the rule that must be output first.
+     * @param blockedRule  the rule that must be output later.
+     * @return false if the new edge creates a cyclic dependency.
+     */
+    private boolean addBlockingRule(UrlRule blockingRule, UrlRule blockedRule) {
+        final int lowerBound = topologicalOrder.get(blockedRule);
+        final int upperBound = topologicalOrder.get(blockingRule);
+
+        if (upperBound > lowerBound) {
+            final List<UrlRule> forward = findAffectedRules(blockedRule, rulesBlockedByMe, upperBound, true);
+            if (forward == null) {
+                logger.info("Cyclic dependency detected between rules," +
+                        " Blocking: " + blockingRule.getMavenModule() + "=[" + blockingRule.getRule() + "]" +
+                        " Blocked: " + blockedRule.getMavenModule() + "=[" + blockedRule.getRule() + "]");
+                return false;
+            }
+            final List<UrlRule> backward = findAffectedRules(blockingRule, rulesBlockingMe, lowerBound, false);
+            reorder(backward, forward);
+        }
+
+        rulesBlockedByMe = addToMapSet(blockingRule, blockedRule, rulesBlockedByMe);
+        rulesBlockingMe = addToMapSet(blockedRule, blockingRule, rulesBlockingMe);
+
+        return true;
+    }
 
-        final Set<UrlRule> blockedRules = localRulesBlockedByMe.remove(current);
+    /**
+     * Finds the rules reachable from the start rule that are positioned within the bound.
+     *
+     * @param start   the rule to start the search from.
+     * @param edges   the edges to follow.
+     * @param bound   the position of the other end of the new edge.
+     * @param forward true if searching towards higher positions.
+     * @return the reachable rules, or null if the rule at the bound was reached (a cycle).
+     */
+    private List<UrlRule> findAffectedRules(
+            UrlRule start, Map<UrlRule, PersistentHashSet<UrlRule>> edges, int bound, boolean forward) {
 
-        // For each rule that was blocked by the rule that was just outputted
-        for (UrlRule blockedRule : blockedRules) {
-            final Set<UrlRule> blockingRules = localRulesBlockingMe.get(blockedRule);
-            blockingRules.remove(current);
+        final List<UrlRule> visited = Lists.newArrayList(start);
+        final Set<UrlRule> seen = Sets.newHashSet(start);
 
-            // Is the rule now unblocked?
-            if (blockingRules.isEmpty()) {
-                // If so it can be outputted as soon as it is alphabetically possible.
-                ready.add(blockedRule);
+        // The visited list doubles as the work queue.
+        for (int i = 0; i < visited.size(); i++) {
+            final Set<UrlRule> others = edges.get(visited.get(i));
+            if (others == null) {
+                continue;
+            }
+            for (UrlRule other : others) {
+                final int position = topologicalOrder.get(other);
+                if (position == bound) {
+                    return null;
+                }
+                if ((forward ? position < bound : position > bound) && seen.add(other)) {
+                    visited.add(other);
+                }
             }
         }
+
+        return visited;
     }
 
-    private <K, V> void addToMapSet(K key, V value, Map<K, Set<V>> map) {
-        Set<V> values = map.get(key);
+    /**
+     * Moves the backward rules ahead of the forward rules, reusing the positions they already occupy.
+     */
+    private void reorder(List<UrlRule> backward, List<UrlRule> forward) {
+        Collections.sort(backward, topologicalComparator);
+        Collections.sort(forward, topologicalComparator);
 
-        if (values == null) {
-            values = Sets.newHashSet();
-            map.put(key, values);
+        final List<Integer> positions = Lists.newArrayListWithCapacity(backward.size() + forward.size());
+        for (UrlRule rule : backward) {
+            positions.add(topologicalOrder.get(rule));
         }
+        for (UrlRule rule : forward) {
+            positions.add(topologicalOrder.get(rule));
+        }
+        Collections.sort(positions);
 
-        values.add(value);
+        int i = 0;
+        for (UrlRule rule : backward) {
+            topologicalOrder = topologicalOrder.plus(rule, positions.get(i++));
+        }
+        for (UrlRule rule : forward) {
+            topologicalOrder = topologicalOrder.plus(rule, positions.get(i++));
+        }
     }
 
-    private void bidirectionalMapRemove(
-            UrlRule rule, Map<UrlRule, Set<UrlRule>> primary, Map<UrlRule, Set<UrlRule>> reverse,
-            boolean addUnblocked) {
+    private void addTokenReferences(UrlRule rule) {
+        for (UrlRuleSegment segment : rule.getSegments()) {
+            if (UrlRuleSegment.isTokenSymbol(segment.getSegment())) {
+                rulesByToken = addToMapSet(segment.getSegment(), rule, rulesByToken);
+            }
+        }
+    }
 
-        final Set<UrlRule> others = primary.remove(rule);
+    private void removeTokenReferences(UrlRule rule) {
+        for (UrlRuleSegment segment : rule.getSegments()) {
+            if (UrlRuleSegment.isTokenSymbol(segment.getSegment())) {
+                rulesByToken = removeFromMapSet(segment.getSegment(), rule, rulesByToken);
+            }
+        }
+    }
 
-        if (others != null) {
-            for (UrlRule other : others) {
-                final Set<UrlRule> otherSet = reverse.get(other);
-                otherSet.remove(rule);
+    private static <K, V> PersistentHashMap<K, PersistentHashSet<V>> addToMapSet(
+            K key, V value, PersistentHashMap<K, PersistentHashSet<V>> map) {
 
-                // Did we remove the last entry in the set?
-                if (otherSet.isEmpty()) {
-                    if (addUnblocked) {
-                        unblockedRules.add(other);
-                    }
-                    reverse.remove(other);
-                }
-            }
+        PersistentHashSet<V> values = map.get(key);
+
+        if (values == null) {
+            values = PersistentHashSet.empty();
         }
+
+        return map.plus(key, values.plus(value));
     }
 
-    private <K, V> Map<K, Set<V>> deepCopyMapSet(Map<K, Set<V>> map) {
-        final Map<K, Set<V>> result = Maps.newHashMap();
+    private static <K, V> PersistentHashMap<K, PersistentHashSet<V>> removeFromMapSet(
+            K key, V value, PersistentHashMap<K, PersistentHashSet<V>> map) {
 
-        for (Map.Entry<K, Set<V>> entry : map.entrySet()) {
-            result.put(entry.getKey(), Sets.newHashSet(entry.getValue()));
+        final PersistentHashSet<V> values = map.get(key);
+
+        if (values == null) {
+            return map;
         }
 
-        return result;
+        // Remove the key along with the last entry in the set.
+        final PersistentHashSet<V> remaining = values.minus(value);
+        return remaining.isEmpty() ? map.minus(key) : map.plus(key, remaining);
+    }
+
+    /**
+     * The results of comparing a new rule with the existing rules that it may overlap.
+     */
+    private static final class RuleComparisons {
+        private final UrlRule[] existingRules;
+        private final RuleComparison[] results;
+
+        private RuleComparisons(UrlRule[] existingRules, RuleComparison[] results) {
+            this.existingRules = existingRules;
+            this.results = results;
+        }
     }
 }
@@ -15,10 +15,18 @@
  */
 package com.edmunds.etm.rules.api;
 
+import java.util.Set;
+
 /**
  * @author Ryan Holmes
  */
 public interface UrlTokenChangeListener {
 
-    public void onUrlTokensChanged(UrlTokenResolver resolver);
+    /**
+     * Called when the URL tokens have changed.
+     *
+     * @param resolver      the resolver for the new tokens
+     * @param changedTokens the symbols of the tokens that were added, changed or removed
+     */
+    public void onUrlTokensChanged(UrlTokenResolver resolver, Set<String> changedTokens);
 }
@@ -15,6 +15,8 @@
  */
 package com.edmunds.etm.rules.api;
 
+import java.util.Set;
+
 /**
  * Resolves tokens to their equivalent regular expression. <p/>
  *
@@ -31,6 +33,15 @@ public interface UrlTokenResolver {
      */
     String resolveToken(String token);
 
+    /**
+     * Indicates whether the specified value matches the regular expression of this token in its entirety.
+     *
+     * @param token a delimited token string (e.g. [MYTOKEN]).
+     * @param value the value to test.
+     * @return true if the value matches the token.
+     */
+    boolean matchesToken(String token, String value);
+
     /**
      * Indicates whether the specified token string is a URL token.
      *
@@ -38,4 +49,19 @@ public interface UrlTokenResolver {
      * @return true if the token is defined, false otherwise
      */
     boolean isTokenDefined(String token);
+
+    /**
+     * Returns the values of a fixed token whose values are all literals, such a token matches exactly these values.
+     *
+     * @param token a delimited token string (e.g. [MYTOKEN])
+     * @return unmodifiable set of values or null if the token is undefined or must be matched as a regex
+     */
+    Set<String> getLiteralValues(String token);
+
+    /**
+     * Returns the version of the token definitions, which changes whenever a token is added, changed or removed.
+     *
+     * @return the current version.
+     */
+    long getVersion();
 }
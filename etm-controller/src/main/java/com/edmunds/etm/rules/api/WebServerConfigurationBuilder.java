@@ -16,19 +16,23 @@
 package com.edmunds.etm.rules.api;
 
 import com.edmunds.etm.runtime.api.Application;
+import org.springframework.core.Ordered;
 
 import java.util.Collection;
 
 /**
  * Interface provides method for generation of web server specific rewrite configuration.
  * <p/>
+ * The outputs of a rebuild are deployed in {@link Ordered} order, so map files are deployed before the configurations
+ * that reference them.
+ * <p/>
  * <p/> Copyright (C) 2010 Edmunds.com
  * <p/>
  * <p/> Date: Mar 19, 2010
  *
  * @author Aliaksandr Savin
  */
-public interface WebServerConfigurationBuilder {
+public interface WebServerConfigurationBuilder extends Ordered {
 
     /**
      * Returns the name of the node in zookeeper where the generated configuration should be stored.
@@ -39,18 +43,21 @@ public interface WebServerConfigurationBuilder {
 
     /**
      * Builds web server configuration according to the specified set of rules.
+     * <p/>
+     * The builders of a rebuild share the same compiled rules and may be called concurrently.
      *
      * @param applications collection of applications.
-     * @param rules        set of rules.
+     * @param rules        the compiled rules in order.
+     * @return the configuration, the array is not shared with the active rule set data.
      */
-    byte[] build(Collection<Application> applications, Collection<UrlRule> rules);
+    byte[] build(Collection<Application> applications, CompiledRuleSet rules);
 
     /**
      * Gets the active rule set configuration data.
      *
-     * @return active rule set data
+     * @return read-only view of the active rule set data
      */
-    byte[] getActiveRuleSetData();
+    RuleSetData getActiveRuleSetData();
 
     /**
      * Get the digest of the active rule set configuration.
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.impl;
+
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.CompiledUrlRule;
+import com.edmunds.etm.rules.api.RuleTrafficStatistics;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlTokenResolver;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Counts the requests matched by each active rule by streaming Apache or HAProxy access logs from local disk. <p/>
+ * Both log formats quote the request line ({@code "GET /path?query HTTP/1.1"}), the path is taken from the first quoted
+ * field of each line and matched against the rules in evaluation order, the first matching rule gets the hit. Logs
+ * ending in {@code .gz} are decompressed on the fly. <p/> Each distinct path is only matched once per analysis, logs are
+ * dominated by a small number of hot paths.
+ *
+ * @author David Trott
+ */
+@Component
+public class AccessLogAnalyzer {
+
+    private static final Logger logger = Logger.getLogger(AccessLogAnalyzer.class);
+
+    private static final int MAX_CACHED_PATHS_DEFAULT = 100000;
+
+    /**
+     * The rule index of a path that did not match any rule.
+     */
+    private static final int UNMATCHED = -1;
+
+    private final UrlTokenResolver urlTokenResolver;
+    private String[] logFiles;
+    private int maxCachedPaths;
+
+    /**
+     * Constructor injection.
+     *
+     * @param urlTokenResolver the resolver used to compile the rules
+     */
+    @Autowired
+    public AccessLogAnalyzer(UrlTokenResolver urlTokenResolver) {
+        Validate.notNull(urlTokenResolver, "urlTokenResolver is null");
+        this.urlTokenResolver = urlTokenResolver;
+        this.logFiles = new String[0];
+        this.maxCachedPaths = MAX_CACHED_PATHS_DEFAULT;
+    }
+
+    /**
+     * Gets the paths of the access logs to analyze.
+     *
+     * @return the access log paths
+     */
+    public String[] getLogFiles() {
+        return logFiles.clone();
+    }
+
+    /**
+     * Sets the paths of the access logs to analyze, the logs are not read until {@link #analyze(Collection)} is
+     * called.
+     *
+     * @param logFiles the access log paths
+     */
+    public void setLogFiles(String[] logFiles) {
+        Validate.notNull(logFiles, "logFiles is null");
+        this.logFiles = logFiles.clone();
+    }
+
+    /**
+     * Indicates whether any access logs are configured.
+     *
+     * @return true if there are access logs to analyze
+     */
+    public boolean isConfigured() {
+        return logFiles.length > 0;
+    }
+
+    /**
+     * Sets the maximum number of distinct paths whose match is remembered during an analysis. <p/> The default value
+     * is {@code 100000}.
+     *
+     * @param maxCachedPaths the maximum number of cached paths
+     */
+    public void setMaxCachedPaths(int maxCachedPaths) {
+        Validate.isTrue(maxCachedPaths >= 0, "maxCachedPaths is negative");
+        this.maxCachedPaths = maxCachedPaths;
+    }
+
+    /**
+     * Counts the hits of each rule in the configured access logs. <p/> Logs that cannot be read are logged and skipped.
+     *
+     * @param orderedRules the active rules in evaluation order
+     * @return the traffic statistics
+     */
+    public RuleTrafficStatistics analyze(Collection<UrlRule> orderedRules) {
+        Validate.notNull(orderedRules, "orderedRules is null");
+
+        final Analysis analysis = new Analysis(CompiledRuleSet.compile(urlTokenResolver, orderedRules));
+
+        for (String logFile : logFiles) {
+            InputStream in = null;
+            try {
+                in = openLog(new File(logFile));
+                analysis.process(new BufferedReader(new InputStreamReader(in, "UTF8")));
+            } catch (IOException e) {
+                logger.error(String.format("Unable to read access log %s", logFile), e);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        return analysis.getStatistics();
+    }
+
+    /**
+     * Counts the hits of each rule in a single access log.
+     *
+     * @param orderedRules the active rules in evaluation order
+     * @param reader       the reader of the log
+     * @return the traffic statistics
+     * @throws IOException if the log cannot be read
+     */
+    public RuleTrafficStatistics analyze(Collection<UrlRule> orderedRules, BufferedReader reader) throws IOException {
+        Validate.notNull(orderedRules, "orderedRules is null");
+        Validate.notNull(reader, "reader is null");
+
+        final Analysis analysis = new Analysis(CompiledRuleSet.compile(urlTokenResolver, orderedRules));
+        analysis.process(reader);
+        return analysis.getStatistics();
+    }
+
+    /**
+     * Opens an access log, logs ending in {@code .gz} are decompressed.
+     *
+     * @param file the log file
+     * @return the stream of the log contents
+     * @throws IOException if the log cannot be opened
+     */
+    public static InputStream openLog(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        if (!file.getName().endsWith(".gz")) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream(in);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        }
+    }
+
+    /**
+     * Extracts the path from the quoted request line of a log entry.
+     *
+     * @param line the log line
+     * @return the request path without the query string, null if the line has no request line
+     */
+    public static String extractPath(String line) {
+        final int quote = line.indexOf('"');
+        if (quote < 0) {
+            return null;
+        }
+
+        // Skip the method.
+        final int start = line.indexOf(' ', quote + 1);
+        if (start < 0) {
+            return null;
+        }
+
+        int end = start + 1;
+        while (end < line.length()) {
+            final char c = line.charAt(end);
+            if (c == ' ' || c == '"' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+
+        String path = line.substring(start + 1, end);
+
+        // Proxy requests use the absolute form "http://host/path".
+        final int scheme = path.indexOf("://");
+        if (scheme >= 0) {
+            final int slash = path.indexOf('/', scheme + 3);
+            path = slash >= 0 ? path.substring(slash) : "/";
+        }
+
+        return path.startsWith("/") ? path : null;
+    }
+
+    /**
+     * The state of a single analysis.
+     */
+    private final class Analysis {
+        private final List<CompiledUrlRule> rules;
+        private final Pattern[] patterns;
+        private final long[] hits;
+        private final Map<String, Integer> matchesByPath;
+        private long requestCount;
+        private long unmatchedCount;
+
+        private Analysis(CompiledRuleSet compiledRules) {
+            this.rules = compiledRules.getRules();
+            this.patterns = new Pattern[rules.size()];
+            this.hits = new long[rules.size()];
+            this.matchesByPath = Maps.newHashMap();
+
+            for (int i = 0; i < patterns.length; i++) {
+                patterns[i] = Pattern.compile(rules.get(i).getRegEx());
+            }
+        }
+
+        private void process(BufferedReader reader) throws IOException {
+            String line = reader.readLine();
+            while (line != null) {
+                final String path = extractPath(line);
+                if (StringUtils.isNotEmpty(path)) {
+                    final int index = match(path);
+                    requestCount++;
+                    if (index == UNMATCHED) {
+                        unmatchedCount++;
+                    } else {
+                        hits[index]++;
+                    }
+                }
+                line = reader.readLine();
+            }
+        }
+
+        private int match(String path) {
+            final Integer cached = matchesByPath.get(path);
+            if (cached != null) {
+                return cached;
+            }
+
+            int index = UNMATCHED;
+            for (int i = 0; i < patterns.length; i++) {
+                if (patterns[i].matcher(path).matches()) {
+                    index = i;
+                    break;
+                }
+            }
+
+            if (matchesByPath.size() < maxCachedPaths) {
+                matchesByPath.put(path, index);
+            }
+            return index;
+        }
+
+        private RuleTrafficStatistics getStatistics() {
+            final Map<String, Long> hitsByRule = Maps.newHashMap();
+            for (int i = 0; i < hits.length; i++) {
+                if (hits[i] > 0) {
+                    hitsByRule.put(rules.get(i).getRule(), hits[i]);
+                }
+            }
+            return new RuleTrafficStatistics(hitsByRule, requestCount, unmatchedCount);
+        }
+    }
+}
@@ -16,8 +16,12 @@
 package com.edmunds.etm.rules.impl;
 
 import com.edmunds.etm.common.api.ControllerPaths;
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.RuleSetData;
 import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlTokenResolver;
 import com.edmunds.etm.rules.api.WebServerConfigurationBuilder;
+import com.edmunds.etm.rules.util.DaemonThreadFactory;
 import com.edmunds.etm.runtime.api.Application;
 import com.edmunds.zookeeper.connection.ZooKeeperConnection;
 import com.edmunds.zookeeper.util.ZooKeeperUtils;
@@ -27,56 +31,76 @@ import com.google.common.collect.Sets;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.Stat;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.OrderComparator;
 import org.springframework.stereotype.Component;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implements the high level logic to co-ordinate agent updates.
+ * <p/>
+ * The rules are compiled once per rebuild and the compiled rules are handed to every builder, the builders then run
+ * concurrently.
  *
  * @author David Trott
  */
 @Component
-public class AgentConfigurationManager {
+public class AgentConfigurationManager implements DisposableBean {
     private static final Logger logger = Logger.getLogger(AgentConfigurationManager.class);
 
-    private Map<String, WebServerConfigurationBuilder> webServerConfigurationBuilders;
+    private static final long EXECUTOR_SHUTDOWN_TIMEOUT = 10000;
+
+    private final ExecutorService buildExecutor;
+    private List<WebServerConfigurationBuilder> webServerConfigurationBuilders;
+    private Map<String, WebServerConfigurationBuilder> buildersByName;
     private ControllerPaths controllerPaths;
     private ZooKeeperConnection connection;
+    private UrlTokenResolver urlTokenResolver;
 
     public AgentConfigurationManager() {
+        this.buildExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("config-build-"));
     }
 
     public String getActiveRuleSetDigest() {
         return getActiveRuleSetDigest("apache");
     }
 
-    public byte[] getActiveRuleSetData(String name) {
-        return webServerConfigurationBuilders.get(name).getActiveRuleSetData();
+    public RuleSetData getActiveRuleSetData(String name) {
+        final WebServerConfigurationBuilder builder = buildersByName.get(name);
+        Validate.notNull(builder, "Unknown rule set: " + name);
+        return builder.getActiveRuleSetData();
     }
 
     public String getActiveRuleSetDigest(String name) {
-        return webServerConfigurationBuilders.get(name).getActiveRuleSetDigest();
+        return buildersByName.get(name).getActiveRuleSetDigest();
     }
 
     public List<String> getActiveRuleSetLines(String name) {
         BufferedReader reader = null;
         try {
-            final byte[] ruleSetData = getActiveRuleSetData(name);
-            reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(ruleSetData), "UTF8"));
+            final RuleSetData ruleSetData = getActiveRuleSetData(name);
+            reader = new BufferedReader(new InputStreamReader(ruleSetData.newInputStream(), "UTF8"));
             return getActiveRuleSetLines(reader);
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -101,7 +125,7 @@ public class AgentConfigurationManager {
     public Set<String> getActiveRuleSetDigests() {
         final Set<String> digests = Sets.newHashSet();
 
-        for (final WebServerConfigurationBuilder builder : webServerConfigurationBuilders.values()) {
+        for (final WebServerConfigurationBuilder builder : webServerConfigurationBuilders) {
             final String digest = builder.getActiveRuleSetDigest();
             if (StringUtils.isNotBlank(digest)) {
                 digests.add(digest);
@@ -112,15 +136,20 @@ public class AgentConfigurationManager {
     }
 
     /**
-     * Sets the collection of builders for web servers.
+     * Sets the collection of builders for web servers, they are kept in deploy order.
      *
      * @param builders typically there are two builds (apache and ha-proxy).
      */
     @Autowired
+    @SuppressWarnings("unchecked")
     public void mapWebServerConfigurationBuilders(List<WebServerConfigurationBuilder> builders) {
-        this.webServerConfigurationBuilders = Maps.newHashMap();
-        for (final WebServerConfigurationBuilder builder : builders) {
-            webServerConfigurationBuilders.put(builder.getZooKeeperNodeName(), builder);
+        final List<WebServerConfigurationBuilder> ordered = Lists.newArrayList(builders);
+        Collections.sort(ordered, new OrderComparator());
+
+        this.webServerConfigurationBuilders = ordered;
+        this.buildersByName = Maps.newHashMap();
+        for (final WebServerConfigurationBuilder builder : ordered) {
+            buildersByName.put(builder.getZooKeeperNodeName(), builder);
         }
     }
 
@@ -145,13 +174,53 @@ public class AgentConfigurationManager {
     }
 
     /**
-     * {@inheritDoc}
+     * Sets the url token resolver used to compile the rules.
+     *
+     * @param urlTokenResolver the url token resolver
+     */
+    @Autowired
+    public void setUrlTokenResolver(UrlTokenResolver urlTokenResolver) {
+        this.urlTokenResolver = urlTokenResolver;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        buildExecutor.shutdown();
+        buildExecutor.awaitTermination(EXECUTOR_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Builds the configuration for every web server and deploys it. <p/> The builders run concurrently, their outputs
+     * are deployed in builder order so map files are published before the configurations that reference them.
+     *
+     * @param applications the active applications.
+     * @param rules        the rules in order.
      */
-    public void build(Set<Application> applications, Collection<UrlRule> rules) {
-        for (final WebServerConfigurationBuilder builder : webServerConfigurationBuilders.values()) {
-            final String zooKeeperPath = controllerPaths.getWebConf() + "/" + builder.getZooKeeperNodeName();
+    public void build(final Set<Application> applications, Collection<UrlRule> rules) {
+        final CompiledRuleSet compiledRules = CompiledRuleSet.compile(urlTokenResolver, rules);
 
-            deployConfiguration(zooKeeperPath, builder.build(applications, rules));
+        final Map<WebServerConfigurationBuilder, Future<byte[]>> results = Maps.newLinkedHashMap();
+        for (final WebServerConfigurationBuilder builder : webServerConfigurationBuilders) {
+            results.put(builder, buildExecutor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return builder.build(applications, compiledRules);
+                }
+            }));
+        }
+
+        for (Map.Entry<WebServerConfigurationBuilder, Future<byte[]>> entry : results.entrySet()) {
+            final String nodeName = entry.getKey().getZooKeeperNodeName();
+            try {
+                final byte[] configData = entry.getValue().get();
+                deployConfiguration(controllerPaths.getWebConf() + "/" + nodeName, configData);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error(String.format("Interrupted while building %s configuration", nodeName), e);
+                return;
+            } catch (ExecutionException e) {
+                logger.error(String.format("Error building %s configuration", nodeName), e.getCause());
+            }
         }
     }
 
@@ -186,9 +255,36 @@ public class AgentConfigurationManager {
             // Retry recoverable errors
             logger.warn(String.format("Error %s while setting node %s, retrying", rc, path));
             deployConfiguration(path, data);
+        } else if (rc == KeeperException.Code.NONODE) {
+            // The node of a newly added builder
+            logger.warn(String.format("Node %s does not exist, creating it", path));
+            createConfigurationNode(path, data);
         } else {
             // Log other errors
             logger.error(String.format("Error %s while setting node %s", rc, path));
         }
     }
+
+    private void createConfigurationNode(String nodePath, final byte[] configData) {
+        final AsyncCallback.StringCallback cb = new AsyncCallback.StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                onConfigurationNodeCreated(KeeperException.Code.get(rc), path, configData);
+            }
+        };
+        connection.createPersistent(nodePath, configData, cb, null);
+    }
+
+    protected void onConfigurationNodeCreated(KeeperException.Code rc, String path, byte[] data) {
+        if (rc == KeeperException.Code.OK) {
+            return;
+        }
+
+        if (rc == KeeperException.Code.NODEEXISTS || ZooKeeperUtils.isRetryableError(rc)) {
+            logger.warn(String.format("Error %s while creating node %s, setting it again", rc, path));
+            deployConfiguration(path, data);
+        } else {
+            logger.error(String.format("Error %s while creating node %s", rc, path));
+        }
+    }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.impl;
+
+import com.edmunds.etm.management.api.ManagementVip;
+import com.edmunds.etm.management.api.ManagementVips;
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.management.impl.ClientMonitor;
+import com.edmunds.etm.management.impl.ClientMonitorCallback;
+import com.edmunds.etm.rules.api.InvalidUrlRule;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlRuleSegment;
+import com.edmunds.etm.rules.api.UrlRuleSegmentPool;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the result of parsing URL rules so that rebuilding the rule set does not parse and validate every rule again.
+ * <p/> Rules are cached by maven module and rule string. Each entry records the version of every token that the rule
+ * references, an entry is parsed again if any of those tokens has changed since. <p/> When registered with the {@link
+ * ClientMonitor} the rules of each client are parsed as soon as the client is seen, ahead of the rebuild that needs
+ * them. <p/> The segments of the parsed rules are interned by a {@link UrlRuleSegmentPool}, so comparisons between
+ * them can be memoized.
+ *
+ * @author David Trott
+ */
+@Component
+public class UrlRuleCache implements ClientMonitorCallback {
+
+    private static final Logger logger = Logger.getLogger(UrlRuleCache.class);
+
+    /**
+     * The vip address of rules that have been parsed before their vip is known.
+     */
+    private static final String UNKNOWN_VIP_ADDRESS = "";
+
+    private final UrlTokenDictionary tokenDictionary;
+
+    private final UrlRuleSegmentPool segmentPool;
+
+    private final ConcurrentMap<MavenModule, ConcurrentMap<String, ParsedUrlRule>> rulesByModule;
+
+    /**
+     * Constructor injection.
+     *
+     * @param tokenDictionary the token dictionary used to parse the rules
+     */
+    @Autowired
+    public UrlRuleCache(UrlTokenDictionary tokenDictionary) {
+        Validate.notNull(tokenDictionary, "Token dictionary is null");
+        this.tokenDictionary = tokenDictionary;
+        this.segmentPool = new UrlRuleSegmentPool(tokenDictionary);
+        this.rulesByModule = new ConcurrentHashMap<MavenModule, ConcurrentMap<String, ParsedUrlRule>>();
+    }
+
+    /**
+     * Registers with the client monitor so that client rules are parsed eagerly.
+     *
+     * @param clientMonitor the client monitor
+     */
+    @Autowired
+    public void setClientMonitor(ClientMonitor clientMonitor) {
+        clientMonitor.addCallback(this);
+    }
+
+    /**
+     * Returns the parsed form of a rule, parsing it only if it is not already cached.
+     *
+     * @param mavenModule the maven module that defines the rule
+     * @param rule        the rule string
+     * @return the parsed rule
+     */
+    public ParsedUrlRule parse(MavenModule mavenModule, String rule) {
+        Validate.notNull(mavenModule, "Maven module is null");
+        Validate.notNull(rule, "Rule is null");
+
+        ConcurrentMap<String, ParsedUrlRule> moduleRules = rulesByModule.get(mavenModule);
+        if (moduleRules == null) {
+            moduleRules = new ConcurrentHashMap<String, ParsedUrlRule>();
+            final ConcurrentMap<String, ParsedUrlRule> existing = rulesByModule.putIfAbsent(mavenModule, moduleRules);
+            if (existing != null) {
+                moduleRules = existing;
+            }
+        }
+
+        ParsedUrlRule parsedRule = moduleRules.get(rule);
+        if (parsedRule == null || !parsedRule.isCurrent(tokenDictionary)) {
+            parsedRule = new ParsedUrlRule(tokenDictionary, segmentPool, mavenModule, rule);
+            moduleRules.put(rule, parsedRule);
+        }
+        return parsedRule;
+    }
+
+    /**
+     * Discards the cached rules of all modules except those specified.
+     *
+     * @param mavenModules the modules to keep
+     */
+    public void retainModules(Set<MavenModule> mavenModules) {
+        rulesByModule.keySet().retainAll(mavenModules);
+    }
+
+    /**
+     * Returns the number of modules that have cached rules.
+     *
+     * @return number of modules
+     */
+    public int getModuleCount() {
+        return rulesByModule.size();
+    }
+
+    /**
+     * Returns the pool that interns the segments of the cached rules. <p/> The pool also counts how many segment
+     * comparisons were answered from its memo table.
+     *
+     * @return the segment pool
+     */
+    public UrlRuleSegmentPool getSegmentPool() {
+        return segmentPool;
+    }
+
+    /**
+     * Discards all cached rules.
+     */
+    public void clear() {
+        rulesByModule.clear();
+    }
+
+    /**
+     * Parses the rules of the current clients and discards the rules of modules that no longer have any clients.
+     *
+     * @param clientMonitor the client monitor
+     */
+    @Override
+    public void onClientVipsUpdated(ClientMonitor clientMonitor) {
+        final ManagementVips clientVips = clientMonitor.getClientVips();
+        if (clientVips == null) {
+            return;
+        }
+
+        final Set<MavenModule> mavenModules = Sets.newHashSet();
+        for (ManagementVip vip : clientVips.getVips()) {
+            final MavenModule mavenModule = vip.getMavenModule();
+            mavenModules.add(mavenModule);
+            if (vip.getRules() == null) {
+                continue;
+            }
+            for (String rule : vip.getRules()) {
+                parse(mavenModule, rule);
+            }
+        }
+        retainModules(mavenModules);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Parsed client rules for " + mavenModules.size() + " modules");
+        }
+    }
+
+    /**
+     * The result of parsing a rule, which is either a valid {@link UrlRule} or an {@link InvalidUrlRule}.
+     */
+    public static final class ParsedUrlRule {
+
+        private final InvalidUrlRule invalidRule;
+        private final String errorMessage;
+        private final String[] tokenSymbols;
+        private final long[] tokenVersions;
+        private volatile UrlRule urlRule;
+
+        private ParsedUrlRule(UrlTokenDictionary tokenDictionary, UrlRuleSegmentPool segmentPool,
+                              MavenModule mavenModule, String rule) {
+            // Record the token versions before parsing, if a token changes while we parse
+            // the entry is stale and will simply be parsed again on the next lookup.
+            final List<String> symbols = Lists.newArrayList();
+            for (String segment : rule.split("/", -1)) {
+                if (UrlRuleSegment.isTokenSymbol(segment)) {
+                    symbols.add(segment);
+                }
+            }
+            this.tokenSymbols = symbols.toArray(new String[symbols.size()]);
+            this.tokenVersions = new long[tokenSymbols.length];
+            for (int i = 0; i < tokenSymbols.length; i++) {
+                tokenVersions[i] = tokenDictionary.getTokenVersion(tokenSymbols[i]);
+            }
+
+            UrlRule parsed = null;
+            String message = null;
+            try {
+                parsed = new UrlRule(segmentPool, mavenModule, UNKNOWN_VIP_ADDRESS, rule);
+            } catch (RuntimeException e) {
+                message = e.getMessage();
+            }
+
+            this.urlRule = parsed;
+            this.invalidRule = parsed == null ? new InvalidUrlRule(mavenModule, rule) : null;
+            this.errorMessage = message;
+        }
+
+        private boolean isCurrent(UrlTokenDictionary tokenDictionary) {
+            for (int i = 0; i < tokenSymbols.length; i++) {
+                if (tokenDictionary.getTokenVersion(tokenSymbols[i]) != tokenVersions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Indicates whether the rule is valid.
+         *
+         * @return true if the rule was parsed successfully
+         */
+        public boolean isValid() {
+            return invalidRule == null;
+        }
+
+        /**
+         * Returns the rule as served by the specified vip.
+         *
+         * @param vipAddress the address of the vip "1.2.3.4:7000"
+         * @return the url rule
+         * @throws IllegalArgumentException if the rule is invalid
+         */
+        public UrlRule getUrlRule(String vipAddress) {
+            Validate.isTrue(isValid(), "Rule is invalid");
+
+            // Remember the last address so that the same object is returned by every rebuild.
+            final UrlRule result = urlRule.withVipAddress(vipAddress);
+            urlRule = result;
+            return result;
+        }
+
+        /**
+         * Returns the invalid rule.
+         *
+         * @return the invalid rule, or null if the rule is valid
+         */
+        public InvalidUrlRule getInvalidRule() {
+            return invalidRule;
+        }
+
+        /**
+         * Returns the reason the rule is invalid.
+         *
+         * @return the error message, or null if the rule is valid
+         */
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+    }
+}
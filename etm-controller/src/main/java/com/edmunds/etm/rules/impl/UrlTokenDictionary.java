@@ -16,19 +16,31 @@
 package com.edmunds.etm.rules.impl;
 
 import com.edmunds.etm.common.api.UrlToken;
+import com.edmunds.etm.common.api.UrlTokenType;
 import com.edmunds.etm.rules.api.UrlTokenResolver;
+import com.edmunds.etm.rules.util.RegexOptimizer;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.Validate;
 import org.springframework.stereotype.Component;
 
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 /**
  * A dictionary of {@link UrlToken} objects used to resolve (or "expand") token symbols in ETM URL rules. The tokens are
  * contained in a Map where the key is a token symbol (the token name surrounded by square brackets, [TOKEN_NAME]), and
- * the value is the token object.
+ * the value is the token object. <p/> Each token is compiled once, on first use, so that values can be matched against it
+ * without re-parsing its regular expression. The compiled forms are discarded whenever the dictionary changes. <p/>
+ * Every token symbol carries the version of the dictionary at which its definition last changed, this lets listeners
+ * work out which tokens were affected by an update.
  *
  * @author Julian Cardona
  * @author Ryan Holmes
@@ -39,7 +51,22 @@ public class UrlTokenDictionary implements UrlTokenResolver {
     /**
      * The map that holds tokens and their symbols.
      */
-    private Map<String, UrlToken> tokenDefinitions = new HashMap<String, UrlToken>();
+    private volatile Map<String, UrlToken> tokenDefinitions = new HashMap<String, UrlToken>();
+
+    /**
+     * The compiled tokens, keyed by token symbol. <p/> Only holds entries for defined tokens.
+     */
+    private final Map<String, CompiledUrlToken> compiledTokens = new ConcurrentHashMap<String, CompiledUrlToken>();
+
+    /**
+     * The version at which each token was last defined, keyed by token symbol.
+     */
+    private final Map<String, Long> tokenVersions = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Incremented every time the token definitions change.
+     */
+    private volatile long version;
 
     /**
      * Adds a UrlToken to the dictionary.
@@ -48,7 +75,11 @@ public class UrlTokenDictionary implements UrlTokenResolver {
      */
     public void add(UrlToken token) {
         Validate.notNull(token, "URL token is null");
-        tokenDefinitions.put('[' + token.getName() + ']', token);
+        final String tokenSymbol = '[' + token.getName() + ']';
+        tokenDefinitions.put(tokenSymbol, token);
+        compiledTokens.remove(tokenSymbol);
+        version++;
+        tokenVersions.put(tokenSymbol, version);
     }
 
     /**
@@ -77,6 +108,90 @@ public class UrlTokenDictionary implements UrlTokenResolver {
      */
     public void clear() {
         tokenDefinitions.clear();
+        compiledTokens.clear();
+        tokenVersions.clear();
+        version++;
+    }
+
+    /**
+     * Replaces the contents of the dictionary with the specified tokens. <p/> Tokens whose type and values are
+     * unchanged keep their existing definition, version and compiled form.
+     *
+     * @param tokens the new set of tokens
+     * @return the symbols of the tokens that were added, changed or removed
+     */
+    public Set<String> replaceAll(Collection<UrlToken> tokens) {
+        Validate.notNull(tokens, "URL token collection is null");
+
+        final Map<String, UrlToken> newDefinitions = new HashMap<String, UrlToken>();
+        final Set<String> changedSymbols = new TreeSet<String>();
+
+        for (UrlToken token : tokens) {
+            Validate.notNull(token, "URL token is null");
+            final String tokenSymbol = '[' + token.getName() + ']';
+            final UrlToken existing = tokenDefinitions.get(tokenSymbol);
+
+            if (existing != null && existing.getType() == token.getType() &&
+                    existing.getValues().equals(token.getValues())) {
+                newDefinitions.put(tokenSymbol, existing);
+            } else {
+                newDefinitions.put(tokenSymbol, token);
+                changedSymbols.add(tokenSymbol);
+            }
+        }
+
+        for (String tokenSymbol : tokenDefinitions.keySet()) {
+            if (!newDefinitions.containsKey(tokenSymbol)) {
+                changedSymbols.add(tokenSymbol);
+            }
+        }
+
+        if (!changedSymbols.isEmpty()) {
+            tokenDefinitions = newDefinitions;
+            version++;
+            for (String tokenSymbol : changedSymbols) {
+                compiledTokens.remove(tokenSymbol);
+                if (newDefinitions.containsKey(tokenSymbol)) {
+                    tokenVersions.put(tokenSymbol, version);
+                } else {
+                    tokenVersions.remove(tokenSymbol);
+                }
+            }
+        }
+
+        return changedSymbols;
+    }
+
+    /**
+     * Returns a snapshot of the version at which each token was last defined.
+     *
+     * @return map of token symbol to version
+     */
+    public Map<String, Long> getTokenVersions() {
+        return Collections.unmodifiableMap(new HashMap<String, Long>(tokenVersions));
+    }
+
+    /**
+     * Returns the version at which the specified token was last defined.
+     *
+     * @param tokenSymbol the token symbol (e.g. [MYTOKEN])
+     * @return the version of the token, or 0 if the token is not defined
+     */
+    public long getTokenVersion(String tokenSymbol) {
+        final Long tokenVersion = tokenVersions.get(tokenSymbol);
+        return tokenVersion != null ? tokenVersion : 0;
+    }
+
+    /**
+     * Returns the version of the token definitions. <p/> The version changes whenever a token is added, the dictionary
+     * is cleared or {@link #replaceAll} changes at least one token, so results derived from the tokens can be cached
+     * against it.
+     *
+     * @return the current version
+     */
+    @Override
+    public long getVersion() {
+        return version;
     }
 
     /**
@@ -87,11 +202,26 @@ public class UrlTokenDictionary implements UrlTokenResolver {
      * @return the regular expression for the specified token symbol, or null if the token is not defined
      */
     public String resolveToken(String tokenSymbol) {
-        UrlToken token = tokenDefinitions.get(tokenSymbol);
-        if (token == null) {
+        CompiledUrlToken compiledToken = getCompiledToken(tokenSymbol);
+        if (compiledToken == null) {
             return null;
         }
-        return token.toRegex();
+        return compiledToken.regex;
+    }
+
+    /**
+     * Indicates whether the specified value matches the token in its entirety.
+     *
+     * @param tokenSymbol the token symbol (e.g. [MYTOKEN])
+     * @param value       the value to test
+     * @return true if the value matches the token
+     * @throws IllegalArgumentException if the token is not defined
+     */
+    @Override
+    public boolean matchesToken(String tokenSymbol, String value) {
+        CompiledUrlToken compiledToken = getCompiledToken(tokenSymbol);
+        Validate.notNull(compiledToken, "Unmapped Token: " + tokenSymbol);
+        return compiledToken.matches(value);
     }
 
     /**
@@ -104,4 +234,84 @@ public class UrlTokenDictionary implements UrlTokenResolver {
     public boolean isTokenDefined(String tokenSymbol) {
         return tokenDefinitions.containsKey(tokenSymbol);
     }
+
+    /**
+     * Returns the values of a fixed token whose values are all literals, such a token matches exactly these values.
+     *
+     * @param tokenSymbol a token symbol (e.g. [MYTOKEN])
+     * @return unmodifiable set of values or null if the token is undefined or must be matched as a regex
+     */
+    @Override
+    public Set<String> getLiteralValues(String tokenSymbol) {
+        final CompiledUrlToken compiledToken = getCompiledToken(tokenSymbol);
+        if (compiledToken == null || compiledToken.fixedValues == null) {
+            return null;
+        }
+        return Collections.unmodifiableSet(compiledToken.fixedValues);
+    }
+
+    private CompiledUrlToken getCompiledToken(String tokenSymbol) {
+        UrlToken token = tokenDefinitions.get(tokenSymbol);
+        if (token == null) {
+            return null;
+        }
+
+        // Recompile if the token was replaced since it was compiled.
+        CompiledUrlToken compiledToken = compiledTokens.get(tokenSymbol);
+        if (compiledToken == null || compiledToken.token != token) {
+            compiledToken = new CompiledUrlToken(token);
+            compiledTokens.put(tokenSymbol, compiledToken);
+        }
+        return compiledToken;
+    }
+
+    /**
+     * The compiled form of a token. <p/> FIXED tokens whose values are plain literals are matched with a set lookup and
+     * resolve to a prefix and suffix factored expression (see {@link RegexOptimizer}), every other token is matched
+     * with its regular expression, compiled when it is first needed.
+     */
+    private static final class CompiledUrlToken {
+
+        /**
+         * Characters that have a special meaning in a regular expression.
+         */
+        private static final String REGEX_CHARACTERS = "\\[](){}.*+?^$|";
+
+        private final UrlToken token;
+        private final String regex;
+        private final Set<String> fixedValues;
+        private volatile Pattern pattern;
+
+        private CompiledUrlToken(UrlToken token) {
+            this.token = token;
+
+            final List<String> values = token.getValues();
+            if (token.getType() == UrlTokenType.FIXED && !values.isEmpty() && isLiteral(values)) {
+                this.fixedValues = new HashSet<String>(values);
+                this.regex = RegexOptimizer.alternation(values);
+            } else {
+                this.fixedValues = null;
+                this.regex = token.toRegex();
+            }
+        }
+
+        private boolean matches(String value) {
+            if (fixedValues != null) {
+                return fixedValues.contains(value);
+            }
+            if (pattern == null) {
+                pattern = Pattern.compile(regex);
+            }
+            return pattern.matcher(value).matches();
+        }
+
+        private static boolean isLiteral(Collection<String> values) {
+            for (String value : values) {
+                if (StringUtils.containsAny(value, REGEX_CHARACTERS)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -20,6 +20,8 @@ import com.edmunds.etm.common.api.UrlToken;
 import com.edmunds.etm.common.impl.ObjectSerializer;
 import com.edmunds.etm.common.impl.UrlTokenRepository;
 import com.edmunds.etm.common.thrift.UrlTokenDto;
+import com.edmunds.etm.regex.RegexCost;
+import com.edmunds.etm.regex.RegexCostAnalyzer;
 import com.edmunds.etm.rules.api.UrlTokenChangeListener;
 import com.edmunds.zookeeper.connection.ZooKeeperConnection;
 import com.edmunds.zookeeper.connection.ZooKeeperConnectionListener;
@@ -28,6 +30,7 @@ import com.edmunds.zookeeper.treewatcher.ZooKeeperTreeConsistentCallback;
 import com.edmunds.zookeeper.treewatcher.ZooKeeperTreeNode;
 import com.edmunds.zookeeper.treewatcher.ZooKeeperTreeWatcher;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -39,10 +42,17 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.PatternSyntaxException;
 
 /**
- * Repository for the values of fixed UrlToken objects.
+ * Repository for the values of fixed UrlToken objects. <p/> The regular expression of every new or changed token is
+ * analyzed by a {@link RegexCostAnalyzer}. A token is only rejected on criteria that do not depend on the load of the
+ * host: an invalid regular expression, or a backtracking hazard that the measurements confirm. The dictionary then
+ * keeps the previous definition of the token (if any). A token that is merely slow is logged as a warning, the hard
+ * budget is enforced by the url token tool when the token is created.
  *
  * @author Ryan Holmes
  */
@@ -57,7 +67,9 @@ public class UrlTokenMonitor implements ZooKeeperConnectionListener, ServletCont
     private final ObjectSerializer objectSerializer;
     private final UrlTokenDictionary tokenDictionary;
     private final UrlTokenRepository tokenRepository;
+    private final Map<String, RegexCost> costsByRegex;
 
+    private RegexCostAnalyzer costAnalyzer;
     private ServletContext servletContext;
     private Set<UrlTokenChangeListener> tokenChangeListeners;
     private Set<UrlTokenDto> previousTokenDtos;
@@ -82,6 +94,8 @@ public class UrlTokenMonitor implements ZooKeeperConnectionListener, ServletCont
         String nodePath = controllerPaths.getUrlTokens();
         this.tokenNodeWatcher = new ZooKeeperTreeWatcher(connection, 0, nodePath, cb);
 
+        this.costsByRegex = new ConcurrentHashMap<String, RegexCost>();
+        this.costAnalyzer = new RegexCostAnalyzer();
         this.tokenChangeListeners = Sets.newHashSet();
         this.previousTokenDtos = Sets.newHashSet();
         this.tokensInitialized = false;
@@ -92,6 +106,44 @@ public class UrlTokenMonitor implements ZooKeeperConnectionListener, ServletCont
         this.servletContext = servletContext;
     }
 
+    /**
+     * Sets the budget for the slowest match of a token's regular expression against adversarial inputs.
+     *
+     * @param budgetMicros the budget in microseconds
+     */
+    public void setRegexCostBudgetMicros(long budgetMicros) {
+        setCostAnalyzer(new RegexCostAnalyzer(budgetMicros));
+    }
+
+    void setCostAnalyzer(RegexCostAnalyzer costAnalyzer) {
+        this.costAnalyzer = costAnalyzer;
+        costsByRegex.clear();
+    }
+
+    /**
+     * Returns the cost of matching the regular expression of a token. <p/> Costs are cached by regular expression, so
+     * the accepted tokens are not analyzed again. A confirmed hazard is not cached, the token is analyzed again the
+     * next time the tokens change rather than being rejected for as long as it is defined.
+     *
+     * @param token the token
+     * @return the cost of the token, or null if its regular expression is invalid
+     */
+    public RegexCost getTokenCost(UrlToken token) {
+        final String regex = token.toRegex();
+        RegexCost cost = costsByRegex.get(regex);
+        if (cost == null) {
+            try {
+                cost = costAnalyzer.analyze(regex);
+            } catch (PatternSyntaxException e) {
+                return null;
+            }
+            if (!cost.isHazardConfirmed()) {
+                costsByRegex.put(regex, cost);
+            }
+        }
+        return cost;
+    }
+
     @Override
     public void onConnectionStateChanged(ZooKeeperConnectionState state) {
         if (state == ZooKeeperConnectionState.INITIALIZED) {
@@ -139,24 +191,69 @@ public class UrlTokenMonitor implements ZooKeeperConnectionListener, ServletCont
         }
         previousTokenDtos = dtos;
 
-        // update the token dictionary and notify listeners
         List<UrlToken> tokens = Lists.newArrayListWithCapacity(dtos.size());
         for (UrlTokenDto dto : dtos) {
-            UrlToken token = UrlToken.readDto(dto);
-            tokens.add(token);
+            tokens.add(UrlToken.readDto(dto));
         }
-        tokenDictionary.clear();
-        tokenDictionary.addAll(tokens);
-
-        processChangeEvent();
+        updateTokens(tokens);
         tokensInitialized = true;
     }
 
-    private void processChangeEvent() {
-        logger.info("URL tokens changed");
+    /**
+     * Replaces the tokens of the dictionary with the acceptable tokens and notifies the listeners.
+     *
+     * @param definedTokens the tokens defined in ZooKeeper
+     */
+    void updateTokens(Collection<UrlToken> definedTokens) {
+
+        // keep the previous definition of rejected tokens
+        Map<String, UrlToken> acceptedTokens = Maps.newHashMap();
+        for (UrlToken token : tokenDictionary.getAll()) {
+            acceptedTokens.put(token.getName(), token);
+        }
+
+        // update the token dictionary and notify listeners
+        List<UrlToken> tokens = Lists.newArrayListWithCapacity(definedTokens.size());
+        Set<String> regexes = Sets.newHashSetWithExpectedSize(definedTokens.size());
+        for (UrlToken token : definedTokens) {
+            if (isAcceptable(token)) {
+                tokens.add(token);
+            } else if (acceptedTokens.containsKey(token.getName())) {
+                tokens.add(acceptedTokens.get(token.getName()));
+                regexes.add(acceptedTokens.get(token.getName()).toRegex());
+            }
+            regexes.add(token.toRegex());
+        }
+        costsByRegex.keySet().retainAll(regexes);
+
+        Set<String> changedTokens = tokenDictionary.replaceAll(tokens);
+
+        processChangeEvent(changedTokens);
+    }
+
+    private boolean isAcceptable(UrlToken token) {
+        RegexCost cost = getTokenCost(token);
+        if (cost == null) {
+            logger.error(String.format("Rejected URL token %s, invalid regular expression: %s",
+                token.getName(), token.toRegex()));
+            return false;
+        }
+        if (cost.isHazardConfirmed()) {
+            logger.error(String.format("Rejected URL token %s, regular expression backtracks excessively: %s",
+                token.getName(), cost));
+            return false;
+        }
+        if (cost.isFlagged()) {
+            logger.warn(String.format("URL token %s may be too expensive to match: %s", token.getName(), cost));
+        }
+        return true;
+    }
+
+    private void processChangeEvent(Set<String> changedTokens) {
+        logger.info("URL tokens changed: " + changedTokens);
 
         for (UrlTokenChangeListener listener : tokenChangeListeners) {
-            listener.onUrlTokensChanged(tokenDictionary);
+            listener.onUrlTokensChanged(tokenDictionary, changedTokens);
         }
     }
 
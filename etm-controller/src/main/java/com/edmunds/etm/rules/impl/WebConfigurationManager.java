@@ -15,15 +15,21 @@
  */
 package com.edmunds.etm.rules.impl;
 
+import com.edmunds.etm.management.api.ManagementVip;
 import com.edmunds.etm.management.api.ManagementVips;
 import com.edmunds.etm.management.api.MavenModule;
 import com.edmunds.etm.management.util.VipDeltaCalculator;
 import com.edmunds.etm.rules.api.BlockedUrlRule;
 import com.edmunds.etm.rules.api.InvalidUrlRule;
+import com.edmunds.etm.rules.api.RuleTrafficStatistics;
 import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlRuleSegment;
+import com.edmunds.etm.rules.api.UrlRuleSegmentPool;
 import com.edmunds.etm.rules.api.UrlRuleSet;
 import com.edmunds.etm.rules.api.UrlTokenChangeListener;
 import com.edmunds.etm.rules.api.UrlTokenResolver;
+import com.edmunds.etm.rules.impl.UrlRuleCache.ParsedUrlRule;
+import com.edmunds.etm.rules.util.DaemonThreadFactory;
 import com.edmunds.etm.runtime.api.Application;
 import com.edmunds.etm.runtime.impl.ApplicationRepository;
 import com.edmunds.etm.system.api.FailoverState;
@@ -31,16 +37,22 @@ import com.edmunds.etm.system.impl.FailoverMonitor;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.Validate;
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages the generation and deployment of web server rewrite rules.
@@ -50,22 +62,32 @@ import java.util.Set;
  * @author David Trott
  */
 @Service
-public class WebConfigurationManager implements UrlTokenChangeListener {
+public class WebConfigurationManager implements UrlTokenChangeListener, DisposableBean {
 
     private static final Logger logger = Logger.getLogger(WebConfigurationManager.class);
 
+    private static final int PARALLEL_MERGE_THRESHOLD_DEFAULT = 64;
+    private static final long EXECUTOR_SHUTDOWN_TIMEOUT = 10000;
+
     private final ApplicationRepository applicationRepository;
     private final AgentConfigurationManager agentConfigurationManager;
     private final VipDeltaCalculator vipDeltaCalculator;
     private final FailoverMonitor failoverMonitor;
-    private UrlTokenResolver tokenResolver;
+    private final ExecutorService mergeExecutor;
+    private UrlRuleCache ruleCache;
+    private AccessLogAnalyzer accessLogAnalyzer;
 
     private List<String> previousApplicationActivationOrder;
+    private Map<String, Application> previousApplications;
+    private UrlRuleSet activeRuleSet;
+    private boolean consistencyCheckEnabled;
+    private int parallelMergeThreshold;
     private Set<UrlRule> activeRules;
     private Set<BlockedUrlRule> blockedRules;
     private Set<InvalidUrlRule> invalidRules;
     private boolean tokensInitialized;
     private ManagementVips previousVips;
+    private RuleTrafficStatistics trafficStatistics;
 
     /**
      * Constructor injection.
@@ -94,14 +116,70 @@ public class WebConfigurationManager implements UrlTokenChangeListener {
         this.blockedRules = Sets.newHashSet();
         this.invalidRules = Sets.newHashSet();
         this.tokensInitialized = false;
+        this.consistencyCheckEnabled = false;
+        this.parallelMergeThreshold = PARALLEL_MERGE_THRESHOLD_DEFAULT;
+        this.trafficStatistics = RuleTrafficStatistics.empty();
+        this.mergeExecutor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("rule-merge-"));
 
         // Register for notifications
         urlTokenMonitor.addListener(this);
     }
 
     @Autowired
-    public void setTokenResolver(UrlTokenResolver tokenResolver) {
-        this.tokenResolver = tokenResolver;
+    public void setRuleCache(UrlRuleCache ruleCache) {
+        this.ruleCache = ruleCache;
+    }
+
+    @Autowired
+    public void setAccessLogAnalyzer(AccessLogAnalyzer accessLogAnalyzer) {
+        this.accessLogAnalyzer = accessLogAnalyzer;
+    }
+
+    /**
+     * Indicates whether incremental updates are verified against a full rebuild of the rule set.
+     *
+     * @return true if the consistency check is enabled
+     */
+    public boolean isConsistencyCheckEnabled() {
+        return consistencyCheckEnabled;
+    }
+
+    /**
+     * Enables or disables verification of incremental updates against a full rebuild of the rule set. <p/> This
+     * doubles the cost of each update so it is intended for testing and troubleshooting.
+     *
+     * @param consistencyCheckEnabled true to enable the consistency check
+     */
+    public void setConsistencyCheckEnabled(boolean consistencyCheckEnabled) {
+        this.consistencyCheckEnabled = consistencyCheckEnabled;
+    }
+
+    /**
+     * Gets the minimum number of rules an application must have for its rules to be compared with the active rules in
+     * parallel. <p/> The default value is {@code 64}.
+     *
+     * @return parallel merge threshold
+     */
+    public int getParallelMergeThreshold() {
+        return parallelMergeThreshold;
+    }
+
+    /**
+     * Sets the minimum number of rules an application must have for its rules to be compared with the active rules in
+     * parallel. <p/> Use {@link Integer#MAX_VALUE} to always merge on the calling thread.
+     *
+     * @param parallelMergeThreshold parallel merge threshold
+     */
+    public void setParallelMergeThreshold(int parallelMergeThreshold) {
+        Validate.isTrue(parallelMergeThreshold > 0, "Parallel merge threshold must be positive");
+        this.parallelMergeThreshold = parallelMergeThreshold;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        mergeExecutor.shutdown();
+        mergeExecutor.awaitTermination(EXECUTOR_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -128,14 +206,17 @@ public class WebConfigurationManager implements UrlTokenChangeListener {
     }
 
     @Override
-    public void onUrlTokensChanged(UrlTokenResolver resolver) {
+    public void onUrlTokensChanged(UrlTokenResolver resolver, Set<String> changedTokens) {
 
         if (!tokensInitialized) {
             tokensInitialized = true;
         }
 
         if (getPreviousVips() != null && getFailoverState() == FailoverState.ACTIVE) {
-            recreateRules();
+            updateRulesForTokens(changedTokens);
+        } else {
+            // The active rule set no longer reflects the tokens, the next update must rebuild it.
+            invalidateActiveRuleSet();
         }
     }
 
@@ -163,6 +244,61 @@ public class WebConfigurationManager implements UrlTokenChangeListener {
         return invalidRules;
     }
 
+    /**
+     * Gets the traffic statistics used to break ties when ordering the rules.
+     *
+     * @return the traffic statistics, empty if the access logs have not been analyzed
+     */
+    public synchronized RuleTrafficStatistics getTrafficStatistics() {
+        return trafficStatistics;
+    }
+
+    /**
+     * Counts the hits of the active rules in the access logs and reorders the rules so that hot rules are evaluated
+     * first wherever the blocking constraints allow. <p/> The logs are read without holding the lock, so rule updates
+     * are not delayed by the analysis.
+     *
+     * @return a report of the expected regex evaluations per request before and after the reordering
+     */
+    public String refreshTrafficStatistics() {
+        if (!accessLogAnalyzer.isConfigured()) {
+            return "No access logs configured";
+        }
+
+        final RuleTrafficStatistics statistics = accessLogAnalyzer.analyze(getActiveRules());
+        return applyTrafficStatistics(statistics);
+    }
+
+    /**
+     * Orders the rules using the specified traffic statistics.
+     *
+     * @param statistics the number of requests matched by each rule
+     * @return a report of the expected regex evaluations per request before and after the reordering
+     */
+    public synchronized String applyTrafficStatistics(RuleTrafficStatistics statistics) {
+        Validate.notNull(statistics, "statistics is null");
+
+        this.trafficStatistics = statistics;
+        if (activeRuleSet == null || getFailoverState() != FailoverState.ACTIVE) {
+            return String.format("Analyzed %d requests, rules will be reordered by the next update",
+                    statistics.getRequestCount());
+        }
+
+        // The deployed order, which already reflects any earlier statistics.
+        final double before = statistics.getExpectedEvaluations(activeRules);
+        final Set<UrlRule> orderedRules = activeRuleSet.orderRules(statistics);
+        final double after = statistics.getExpectedEvaluations(orderedRules);
+
+        deployRuleSet(activeRuleSet, orderedRules, previousApplications, previousApplicationActivationOrder,
+                Sets.newHashSet(invalidRules));
+
+        final String report = String.format(
+                "Analyzed %d requests (%d unmatched), expected regex evaluations per request: %.2f -> %.2f",
+                statistics.getRequestCount(), statistics.getUnmatchedCount(), before, after);
+        logger.info(report);
+        return report;
+    }
+
     private synchronized ManagementVips getPreviousVips() {
         return previousVips;
     }
@@ -175,6 +311,34 @@ public class WebConfigurationManager implements UrlTokenChangeListener {
         return failoverMonitor.getFailoverState();
     }
 
+    private synchronized void invalidateActiveRuleSet() {
+        activeRuleSet = null;
+    }
+
+    /**
+     * Re-evaluates the applications with rules that reference the changed tokens.
+     *
+     * @param changedTokens the symbols of the tokens that were added, changed or removed
+     */
+    private synchronized void updateRulesForTokens(Set<String> changedTokens) {
+
+        logger.debug("Updating rules for tokens: " + changedTokens);
+
+        if (activeRuleSet == null) {
+            recreateRules();
+            return;
+        }
+
+        final Set<String> changedApplications = getApplicationsReferencingTokens(changedTokens);
+        if (changedApplications.isEmpty()) {
+            return;
+        }
+
+        if (!updateActiveRuleSet(getActiveApplicationsByName(), changedApplications)) {
+            buildActiveRuleSet();
+        }
+    }
+
     private synchronized void updateRules(ManagementVips deltaVips) {
 
         logger.debug("Updating rules");
@@ -187,19 +351,33 @@ public class WebConfigurationManager implements UrlTokenChangeListener {
             return;
         }
 
-        buildActiveRuleSet();
+        if (activeRuleSet == null || !updateActiveRuleSet(deltaVips)) {
+            buildActiveRuleSet();
+        }
     }
 
     private void buildActiveRuleSet() {
-        // Start with an empty rule set and no applications activated.
-        UrlRuleSet currentRuleSet = new UrlRuleSet(Collections.<UrlRule>emptyList());
+        final Map<String, Application> applicationsByName = getActiveApplicationsByName();
         final List<String> activatedApplications = Lists.newArrayList();
 
         // Also store any invalid rules
         final Set<InvalidUrlRule> ignoredRules = Sets.newHashSet();
 
+        final UrlRuleSet ruleSet = buildRuleSet(applicationsByName, activatedApplications, ignoredRules);
+
+        deployRuleSet(ruleSet, ruleSet.orderRules(trafficStatistics), applicationsByName, activatedApplications,
+                ignoredRules);
+    }
+
+    private UrlRuleSet buildRuleSet(
+            Map<String, Application> applicationsByName, List<String> activatedApplications,
+            Set<InvalidUrlRule> ignoredRules) {
+
+        // Start with an empty rule set and no applications activated.
+        UrlRuleSet currentRuleSet = new UrlRuleSet(Collections.<UrlRule>emptyList());
+
         // Get an ordered list of applications to activate.
-        List<Application> applications = getApplicationActivationOrder();
+        List<Application> applications = getApplicationActivationOrder(applicationsByName);
 
         // Add rules for active applications
         for (Application application : applications) {
@@ -216,23 +394,237 @@ public class WebConfigurationManager implements UrlTokenChangeListener {
             }
         }
 
+        return currentRuleSet;
+    }
+
+    /**
+     * Applies the applications that changed in the delta to the active rule set.
+     *
+     * @param deltaVips the vips that changed since the last update
+     * @return true if the update was deployed, false if a full rebuild is required
+     */
+    private boolean updateActiveRuleSet(ManagementVips deltaVips) {
+        if (previousApplicationActivationOrder == null) {
+            return false;
+        }
+
+        final Map<String, Application> applicationsByName = getActiveApplicationsByName();
+
+        return updateActiveRuleSet(applicationsByName, getChangedApplications(deltaVips, applicationsByName));
+    }
+
+    /**
+     * Re-merges the rules of the changed applications into the active rule set. <p/> The rules of unchanged
+     * applications are left in place, so the cost is proportional to the rules of the changed applications. The result
+     * is the same as a full rebuild (using the previous activation order) as long as every previously activated
+     * application can still be activated, if not the caller must fall back to a full rebuild.
+     *
+     * @param applicationsByName  the active applications
+     * @param changedApplications the names of the applications whose rules must be re-evaluated
+     * @return true if the update was deployed, false if a full rebuild is required
+     */
+    private boolean updateActiveRuleSet(
+            Map<String, Application> applicationsByName, Set<String> changedApplications) {
+        if (previousApplicationActivationOrder == null) {
+            return false;
+        }
+
+        final List<String> activatedApplications = Lists.newArrayList(previousApplicationActivationOrder);
+        final Set<String> previouslyActivated = Sets.newHashSet(previousApplicationActivationOrder);
+        final Set<InvalidUrlRule> ignoredRules = Sets.newHashSet(invalidRules);
+
+        // Work on a copy, the active rule set must still match the deployed rules if the update is abandoned.
+        UrlRuleSet currentRuleSet = new UrlRuleSet(activeRuleSet);
+        boolean rulesRemoved = false;
+
+        // Remove the rules of the previous versions of the changed applications.
+        for (String name : changedApplications) {
+            final Application previous = previousApplications.get(name);
+            if (previous == null) {
+                continue;
+            }
+            removeInvalidRules(previous.getMavenModule(), ignoredRules);
+
+            if (previouslyActivated.contains(name)) {
+                currentRuleSet.deleteRules(previous.getMavenModule());
+                rulesRemoved = true;
+
+                if (!applicationsByName.containsKey(name)) {
+                    activatedApplications.remove(name);
+                }
+            }
+        }
+
+        // Process the applications in the same order as a full rebuild would.
+        for (Application application : getApplicationActivationOrder(applicationsByName)) {
+            final String name = application.getName();
+            final boolean activated = previouslyActivated.contains(name);
+
+            // Unchanged applications keep their rules, rejected ones can only be activated if rules were removed.
+            if (!changedApplications.contains(name) && (activated || !rulesRemoved)) {
+                continue;
+            }
+
+            if (!application.hasVirtualServer()) {
+                logger.error(
+                        String.format("Active application has no virtual server: %s", application.getMavenModule()));
+                activatedApplications.remove(name);
+                continue;
+            }
+
+            final UrlRuleSet updatedRuleSet = addRulesForApplication(application, currentRuleSet, ignoredRules);
+
+            if (updatedRuleSet != null) {
+                currentRuleSet = updatedRuleSet;
+                if (!activated) {
+                    activatedApplications.add(name);
+                }
+            } else if (activated) {
+                // A full rebuild gives this application priority over the ones activated after it.
+                logger.info(String.format("Unable to reactivate %s incrementally, rebuilding all rules", name));
+                return false;
+            }
+        }
+
+        final Set<UrlRule> orderedRules = currentRuleSet.orderRules(trafficStatistics);
+
+        if (consistencyCheckEnabled && !isConsistentWithFullRebuild(applicationsByName, orderedRules)) {
+            return false;
+        }
+
+        deployRuleSet(currentRuleSet, orderedRules, applicationsByName, activatedApplications, ignoredRules);
+        return true;
+    }
+
+    private boolean isConsistentWithFullRebuild(Map<String, Application> applicationsByName, Set<UrlRule> rules) {
+        final UrlRuleSet fullRuleSet = buildRuleSet(
+                applicationsByName, Lists.<String>newArrayList(), Sets.<InvalidUrlRule>newHashSet());
+        final List<UrlRule> expected = Lists.newArrayList(fullRuleSet.orderRules(trafficStatistics));
+
+        if (!expected.equals(Lists.newArrayList(rules))) {
+            logger.error("Incremental rule set update is inconsistent with a full rebuild");
+            return false;
+        }
+        return true;
+    }
+
+    private void deployRuleSet(
+            UrlRuleSet ruleSet, Set<UrlRule> orderedRules, Map<String, Application> applicationsByName,
+            List<String> activatedApplications, Set<InvalidUrlRule> ignoredRules) {
+
         // Deploy active rules
-        activeRules = Collections.unmodifiableSet(currentRuleSet.orderRules());
-        blockedRules = Collections.unmodifiableSet(currentRuleSet.getBlockedRules());
+        activeRuleSet = ruleSet;
+        activeRules = Collections.unmodifiableSet(orderedRules);
+        blockedRules = Collections.unmodifiableSet(ruleSet.getBlockedRules());
         invalidRules = Collections.unmodifiableSet(ignoredRules);
         agentConfigurationManager.build(applicationRepository.getActiveApplications(), activeRules);
 
         // Store the previous rule activation order.
         this.previousApplicationActivationOrder = activatedApplications;
+        this.previousApplications = applicationsByName;
+
+        if (logger.isDebugEnabled()) {
+            final UrlRuleSegmentPool segmentPool = ruleCache.getSegmentPool();
+            logger.debug(String.format("Deployed %d rules, segment comparisons: %d hits, %d misses",
+                    activeRules.size(), segmentPool.getComparisonHits(), segmentPool.getComparisonMisses()));
+        }
     }
 
-    private List<Application> getApplicationActivationOrder() {
+    /**
+     * Gets the names of the applications in the delta whose active version has different rules from the version used
+     * in the previous rule set. <p/> Pool member changes do not affect the rules so they are not included.
+     */
+    private Set<String> getChangedApplications(
+            ManagementVips deltaVips, Map<String, Application> applicationsByName) {
+
+        final Set<String> changedApplications = Sets.newHashSet();
+
+        for (ManagementVip vip : deltaVips.getVips()) {
+            final String name = Application.applicationName(vip.getMavenModule());
+            if (isRuleChange(previousApplications.get(name), applicationsByName.get(name))) {
+                changedApplications.add(name);
+            }
+        }
+
+        return changedApplications;
+    }
+
+    /**
+     * Gets the names of the applications with a rule that references one of the tokens. <p/> The rules in the active
+     * rule set are found through its token index, invalid rules and rejected applications are checked directly.
+     */
+    private Set<String> getApplicationsReferencingTokens(Set<String> tokenSymbols) {
+        final Set<String> applicationNames = Sets.newHashSet();
+
+        for (String tokenSymbol : tokenSymbols) {
+            for (UrlRule rule : activeRuleSet.getRulesReferencingToken(tokenSymbol)) {
+                applicationNames.add(Application.applicationName(rule.getMavenModule()));
+            }
+        }
+
+        for (InvalidUrlRule rule : invalidRules) {
+            if (referencesToken(rule.getRule(), tokenSymbols)) {
+                applicationNames.add(Application.applicationName(rule.getMavenModule()));
+            }
+        }
+
+        final Set<String> activated = Sets.newHashSet(previousApplicationActivationOrder);
+        for (Application application : previousApplications.values()) {
+            if (activated.contains(application.getName())) {
+                continue;
+            }
+            for (String rule : application.getRules()) {
+                if (referencesToken(rule, tokenSymbols)) {
+                    applicationNames.add(application.getName());
+                    break;
+                }
+            }
+        }
+
+        return applicationNames;
+    }
+
+    private boolean referencesToken(String rule, Set<String> tokenSymbols) {
+        for (String segment : rule.split("/")) {
+            if (UrlRuleSegment.isTokenSymbol(segment) && tokenSymbols.contains(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isRuleChange(Application previous, Application current) {
+        if (previous == null || current == null) {
+            return previous != current;
+        }
+
+        return !previous.getMavenModule().equals(current.getMavenModule()) ||
+                !ObjectUtils.equals(previous.getVirtualServerAddress(), current.getVirtualServerAddress()) ||
+                !previous.getRules().equals(current.getRules());
+    }
+
+    private void removeInvalidRules(MavenModule mavenModule, Set<InvalidUrlRule> ignoredRules) {
+        final Iterator<InvalidUrlRule> it = ignoredRules.iterator();
+        while (it.hasNext()) {
+            if (it.next().getMavenModule().equals(mavenModule)) {
+                it.remove();
+            }
+        }
+    }
+
+    private Map<String, Application> getActiveApplicationsByName() {
         final Map<String, Application> applicationsByName = Maps.newHashMap();
 
         for (Application application : applicationRepository.getActiveApplications()) {
             applicationsByName.put(application.getName(), application);
         }
 
+        return applicationsByName;
+    }
+
+    private List<Application> getApplicationActivationOrder(Map<String, Application> activeApplications) {
+        final Map<String, Application> applicationsByName = Maps.newHashMap(activeApplications);
+
         List<Application> activationOrder = Lists.newArrayList();
 
         if (previousApplicationActivationOrder != null) {
@@ -266,16 +658,17 @@ public class WebConfigurationManager implements UrlTokenChangeListener {
 
         // Add new rules
         final List<UrlRule> urlRules = Lists.newArrayList();
+        final String vsAddress = app.getVirtualServerAddress().toString();
         for (String rule : vipRules) {
-            String vsAddress = app.getVirtualServerAddress().toString();
-            try {
-                UrlRule urlRule = new UrlRule(tokenResolver, mavenModule, vsAddress, rule);
+            final ParsedUrlRule parsedRule = ruleCache.parse(mavenModule, rule);
+            if (parsedRule.isValid()) {
+                UrlRule urlRule = parsedRule.getUrlRule(vsAddress);
                 if (!activeRuleSet.contains(urlRule)) {
                     urlRules.add(urlRule);
                 }
-            } catch (RuntimeException e) {
-                logger.warn("Ignoring rule: [" + rule + "] (" + mavenModule + ") " + e.getMessage());
-                ignoredRules.add(new InvalidUrlRule(mavenModule, rule));
+            } else {
+                logger.warn("Ignoring rule: [" + rule + "] (" + mavenModule + ") " + parsedRule.getErrorMessage());
+                ignoredRules.add(parsedRule.getInvalidRule());
             }
         }
 
@@ -284,19 +677,10 @@ public class WebConfigurationManager implements UrlTokenChangeListener {
             return null;
         }
 
-        final UrlRuleSet newRuleSet = activeRuleSet.mergeRules(urlRules);
-
-        // Check for conflicts
-        if (newRuleSet == null) {
-            return null;
+        // Returns null if the rules conflict or create a cyclic dependency, otherwise the rules can be activated.
+        if (urlRules.size() >= parallelMergeThreshold) {
+            return activeRuleSet.mergeRules(urlRules, mergeExecutor);
         }
-
-        // Check for cyclic dependencies
-        if (newRuleSet.orderRules() == null) {
-            return null;
-        }
-
-        // All good so activate
-        return newRuleSet;
+        return activeRuleSet.mergeRules(urlRules);
     }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.replay;
+
+import com.edmunds.etm.rules.api.RuleSetData;
+import com.edmunds.etm.rules.impl.AccessLogAnalyzer;
+import com.edmunds.etm.rules.impl.AgentConfigurationManager;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how expensive the active Apache or HAProxy configuration is for the web tier by replaying an access log
+ * against it. <p/> The configuration is taken from {@link AgentConfigurationManager#getActiveRuleSetData(String)}
+ * (together with its map files) and its rules are compiled in order with {@code java.util.regex}. Each request is then
+ * routed the way the web server would route it, the report gives the regex evaluations per request, the p50/p99 match
+ * time and the hottest rules. This allows builder modes and rule changes to be compared offline.
+ *
+ * @author David Trott
+ */
+@Component
+public class AccessLogReplayer {
+
+    private static final int HOTTEST_RULE_COUNT = 10;
+
+    private static final Comparator<Map.Entry<String, long[]>> MOST_HITS_FIRST =
+            new Comparator<Map.Entry<String, long[]>>() {
+                @Override
+                public int compare(Map.Entry<String, long[]> e1, Map.Entry<String, long[]> e2) {
+                    final long h1 = e1.getValue()[0];
+                    final long h2 = e2.getValue()[0];
+                    return h1 > h2 ? -1 : (h1 == h2 ? e1.getKey().compareTo(e2.getKey()) : 1);
+                }
+            };
+
+    private final AgentConfigurationManager agentConfigurationManager;
+
+    @Autowired
+    public AccessLogReplayer(AgentConfigurationManager agentConfigurationManager) {
+        this.agentConfigurationManager = agentConfigurationManager;
+    }
+
+    /**
+     * Replays an access log against the active configuration.
+     *
+     * @param ruleSetName the configuration to replay against ("apache" or "haproxy").
+     * @param logFile     the access log, logs ending in {@code .gz} are decompressed.
+     * @return the replay report.
+     * @throws IOException if the access log cannot be read.
+     */
+    public ReplayReport replay(String ruleSetName, String logFile) throws IOException {
+        Validate.notEmpty(logFile, "logFile is empty");
+
+        final ReplayProgram program = loadProgram(ruleSetName);
+
+        InputStream in = null;
+        try {
+            in = AccessLogAnalyzer.openLog(new File(logFile));
+            return replay(ruleSetName, program, new BufferedReader(new InputStreamReader(in, "UTF8")));
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private ReplayProgram loadProgram(String ruleSetName) throws IOException {
+        if ("apache".equals(ruleSetName)) {
+            return ApacheReplayProgram.parse(open("apache"), readMap("apache-map"));
+        } else if ("haproxy".equals(ruleSetName)) {
+            return HaProxyReplayProgram.parse(
+                    open("haproxy"), readMap("haproxy-exact-map"), readMap("haproxy-prefix-map"));
+        }
+        throw new IllegalArgumentException("Unsupported rule set: " + ruleSetName);
+    }
+
+    private BufferedReader open(String name) throws IOException {
+        final RuleSetData data = agentConfigurationManager.getActiveRuleSetData(name);
+        return new BufferedReader(new InputStreamReader(data.newInputStream(), "UTF8"));
+    }
+
+    /**
+     * Reads a map file of "key value" lines, preserving the order of the keys.
+     */
+    private Map<String, String> readMap(String name) throws IOException {
+        final Map<String, String> map = Maps.newLinkedHashMap();
+        final BufferedReader reader = open(name);
+
+        String line = reader.readLine();
+        while (line != null) {
+            final String[] tokens = StringUtils.split(line);
+            if (tokens.length >= 2 && !map.containsKey(tokens[0])) {
+                map.put(tokens[0], tokens[1]);
+            }
+            line = reader.readLine();
+        }
+
+        return map;
+    }
+
+    /**
+     * Replays an access log against a parsed configuration.
+     *
+     * @param ruleSetName the name of the configuration.
+     * @param program     the parsed configuration.
+     * @param log         the reader of the access log.
+     * @return the replay report.
+     * @throws IOException if the access log cannot be read.
+     */
+    static ReplayReport replay(String ruleSetName, ReplayProgram program, BufferedReader log) throws IOException {
+        final ReplayCounters counters = new ReplayCounters();
+        final Map<String, long[]> hitsByRule = Maps.newHashMap();
+        long[] matchNanos = new long[1024];
+        int requestCount = 0;
+        long unmatchedCount = 0;
+
+        String line = log.readLine();
+        while (line != null) {
+            final String path = AccessLogAnalyzer.extractPath(line);
+            if (StringUtils.isNotEmpty(path)) {
+                final long start = System.nanoTime();
+                final String rule = program.route(path, counters);
+                final long elapsed = System.nanoTime() - start;
+
+                if (requestCount == matchNanos.length) {
+                    matchNanos = Arrays.copyOf(matchNanos, requestCount * 2);
+                }
+                matchNanos[requestCount++] = elapsed;
+
+                if (rule == null) {
+                    unmatchedCount++;
+                } else {
+                    long[] hits = hitsByRule.get(rule);
+                    if (hits == null) {
+                        hits = new long[1];
+                        hitsByRule.put(rule, hits);
+                    }
+                    hits[0]++;
+                }
+            }
+            line = log.readLine();
+        }
+
+        Arrays.sort(matchNanos, 0, requestCount);
+
+        return new ReplayReport(ruleSetName, program.size(), requestCount, unmatchedCount, counters,
+                percentile(matchNanos, requestCount, 50), percentile(matchNanos, requestCount, 99),
+                getHottestRules(hitsByRule));
+    }
+
+    private static long percentile(long[] sorted, int count, int percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(count * percentile / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    private static List<Map.Entry<String, Long>> getHottestRules(Map<String, long[]> hitsByRule) {
+        final List<Map.Entry<String, long[]>> entries = Lists.newArrayList(hitsByRule.entrySet());
+        Collections.sort(entries, MOST_HITS_FIRST);
+
+        final List<Map.Entry<String, Long>> hottest = Lists.newArrayList();
+        for (Map.Entry<String, long[]> entry : entries.subList(0, Math.min(HOTTEST_RULE_COUNT, entries.size()))) {
+            hottest.add(Maps.immutableEntry(entry.getKey(), entry.getValue()[0]));
+        }
+        return hottest;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.replay;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays requests against a generated Apache configuration. <p/> Supports the subset of mod_rewrite that the {@link
+ * com.edmunds.etm.apache.configbuilder.ApacheConfigurationBuilder} writes: RewriteRules with their RewriteConds,
+ * {@code [S=n]} skips and RewriteMap lookups. As in mod_rewrite the pattern of a rule is evaluated first and its
+ * conditions only if the pattern matched.
+ *
+ * @author David Trott
+ */
+final class ApacheReplayProgram implements ReplayProgram {
+
+    private static final Pattern MAP_REFERENCE = Pattern.compile("\\$\\{[^:}]+:([^}]*)\\}");
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\$(\\d)");
+    private static final Pattern SKIP_FLAG = Pattern.compile("(?:^|[\\[,])S(?:kip)?=(\\d+)");
+    private static final String REQUEST_URI = "%{REQUEST_URI}";
+    private static final int MAX_LABEL_LENGTH = 120;
+
+    private final List<Rule> rules;
+    private final Map<String, String> rewriteMap;
+
+    private ApacheReplayProgram(List<Rule> rules, Map<String, String> rewriteMap) {
+        this.rules = rules;
+        this.rewriteMap = rewriteMap;
+    }
+
+    /**
+     * Parses an Apache configuration.
+     *
+     * @param config     the reader of the configuration.
+     * @param rewriteMap the contents of the RewriteMap (key -> vip address), used for every map that is referenced.
+     * @return the parsed configuration.
+     * @throws IOException if the configuration cannot be read.
+     */
+    static ApacheReplayProgram parse(BufferedReader config, Map<String, String> rewriteMap) throws IOException {
+        Validate.notNull(config, "config is null");
+        Validate.notNull(rewriteMap, "rewriteMap is null");
+
+        final List<Rule> rules = Lists.newArrayList();
+        List<Condition> conditions = Lists.newArrayList();
+
+        String line = config.readLine();
+        while (line != null) {
+            final String[] tokens = StringUtils.split(line.trim());
+            if (tokens.length >= 3 && "RewriteCond".equals(tokens[0])) {
+                conditions.add(new Condition(tokens[1], tokens[2]));
+            } else if (tokens.length >= 3 && "RewriteRule".equals(tokens[0])) {
+                final String flags = tokens.length > 3 ? tokens[3] : "";
+                rules.add(new Rule(tokens[1], tokens[2], flags, conditions));
+                conditions = Lists.newArrayList();
+            }
+            line = config.readLine();
+        }
+
+        return new ApacheReplayProgram(rules, rewriteMap);
+    }
+
+    @Override
+    public int size() {
+        return rules.size();
+    }
+
+    @Override
+    public String route(String path, ReplayCounters counters) {
+        int i = 0;
+        while (i < rules.size()) {
+            final Rule rule = rules.get(i++);
+
+            counters.regexEvaluations++;
+            final Matcher matcher = rule.pattern.matcher(path);
+            final boolean found = matcher.find();
+            if (found == rule.negated) {
+                continue;
+            }
+
+            String mapKey = null;
+            boolean passed = true;
+            for (Condition condition : rule.conditions) {
+                final String testString = expand(condition.testString, path, found ? matcher : null, counters);
+                if (condition.mapKey != null) {
+                    mapKey = expandBackReferences(condition.mapKey, found ? matcher : null);
+                }
+
+                counters.regexEvaluations++;
+                if (condition.pattern.matcher(testString).find() == condition.negated) {
+                    passed = false;
+                    break;
+                }
+            }
+
+            if (!passed) {
+                continue;
+            }
+            if (rule.skip > 0) {
+                i += rule.skip;
+                continue;
+            }
+            if (!"-".equals(rule.target)) {
+                return mapKey != null ? "RewriteMap " + mapKey : rule.label;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Expands the server variables, back references and map lookups of a test string.
+     */
+    private String expand(String value, String path, Matcher matcher, ReplayCounters counters) {
+        String result = StringUtils.replace(value, REQUEST_URI, path);
+
+        final Matcher mapMatcher = MAP_REFERENCE.matcher(result);
+        if (mapMatcher.find()) {
+            final StringBuffer sb = new StringBuffer();
+            do {
+                final String key = expandBackReferences(mapMatcher.group(1), matcher);
+                final String mapValue = rewriteMap.get(key);
+                counters.mapLookups++;
+                mapMatcher.appendReplacement(sb, Matcher.quoteReplacement(mapValue != null ? mapValue : ""));
+            } while (mapMatcher.find());
+            mapMatcher.appendTail(sb);
+            result = sb.toString();
+        }
+
+        return expandBackReferences(result, matcher);
+    }
+
+    private static String expandBackReferences(String value, Matcher matcher) {
+        if (value.indexOf('$') < 0) {
+            return value;
+        }
+
+        final Matcher refMatcher = BACK_REFERENCE.matcher(value);
+        final StringBuffer sb = new StringBuffer();
+        while (refMatcher.find()) {
+            final int group = Integer.parseInt(refMatcher.group(1));
+            String replacement = "";
+            if (matcher != null && group <= matcher.groupCount() && matcher.group(group) != null) {
+                replacement = matcher.group(group);
+            }
+            refMatcher.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        refMatcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * A RewriteRule.
+     */
+    private static final class Rule {
+        private final Pattern pattern;
+        private final boolean negated;
+        private final String target;
+        private final int skip;
+        private final List<Condition> conditions;
+        private final String label;
+
+        private Rule(String pattern, String target, String flags, List<Condition> conditions) {
+            this.negated = pattern.startsWith("!");
+            this.pattern = Pattern.compile(negated ? pattern.substring(1) : pattern);
+            this.target = target;
+            this.conditions = conditions;
+
+            final Matcher skipMatcher = SKIP_FLAG.matcher(flags);
+            this.skip = skipMatcher.find() ? Integer.parseInt(skipMatcher.group(1)) : 0;
+
+            this.label = StringUtils.abbreviate("RewriteRule " + pattern + " " + target, MAX_LABEL_LENGTH);
+        }
+    }
+
+    /**
+     * A RewriteCond.
+     */
+    private static final class Condition {
+        private final String testString;
+        private final Pattern pattern;
+        private final boolean negated;
+
+        /**
+         * The key of the map lookup in the test string, null if the test string does not use a map.
+         */
+        private final String mapKey;
+
+        private Condition(String testString, String pattern) {
+            this.testString = testString;
+            this.negated = pattern.startsWith("!");
+            this.pattern = Pattern.compile(negated ? pattern.substring(1) : pattern);
+
+            final Matcher mapMatcher = MAP_REFERENCE.matcher(testString);
+            this.mapKey = mapMatcher.find() ? mapMatcher.group(1) : null;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.replay;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Replays requests against a generated HAProxy configuration. <p/> Only the {@code use_backend} rules of the frontend
+ * and listen sections are evaluated, in order. Their conditions are a conjunction of named or anonymous ({@code {
+ * ... }}) ACLs on the path: {@code path}, {@code path_beg}, {@code path_reg} and lookups in the exact ({@code
+ * map_str}) and prefix ({@code map_beg}) map files. ACLs on anything other than the path (headers for example) can not
+ * be evaluated from an access log, they never match.
+ *
+ * @author David Trott
+ */
+final class HaProxyReplayProgram implements ReplayProgram {
+
+    private static final List<String> SECTIONS = Arrays.asList("global", "defaults", "frontend", "backend", "listen");
+    private static final int MAX_LABEL_LENGTH = 120;
+
+    private final List<UseBackend> rules;
+
+    private HaProxyReplayProgram(List<UseBackend> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Parses an HAProxy configuration.
+     *
+     * @param config    the reader of the configuration.
+     * @param exactMap  the contents of the exact path map file (path -> backend).
+     * @param prefixMap the contents of the prefix map file (prefix -> backend) in file order.
+     * @return the parsed configuration.
+     * @throws IOException if the configuration cannot be read.
+     */
+    static HaProxyReplayProgram parse(
+            BufferedReader config, Map<String, String> exactMap, Map<String, String> prefixMap) throws IOException {
+        Validate.notNull(config, "config is null");
+        Validate.notNull(exactMap, "exactMap is null");
+        Validate.notNull(prefixMap, "prefixMap is null");
+
+        final List<UseBackend> rules = Lists.newArrayList();
+        Map<String, List<Criterion>> acls = Maps.newHashMap();
+        boolean frontend = false;
+
+        String line = config.readLine();
+        while (line != null) {
+            final String[] tokens = StringUtils.split(line.trim());
+            if (tokens.length > 0 && SECTIONS.contains(tokens[0])) {
+                // ACL names are local to a section.
+                frontend = "frontend".equals(tokens[0]) || "listen".equals(tokens[0]);
+                acls = Maps.newHashMap();
+            } else if (frontend && tokens.length >= 3 && "acl".equals(tokens[0])) {
+                List<Criterion> criteria = acls.get(tokens[1]);
+                if (criteria == null) {
+                    criteria = Lists.newArrayList();
+                    acls.put(tokens[1], criteria);
+                }
+                criteria.add(parseCriterion(Arrays.asList(tokens).subList(2, tokens.length), exactMap, prefixMap));
+            } else if (frontend && tokens.length >= 4 && "use_backend".equals(tokens[0]) && "if".equals(tokens[2])) {
+                final List<String> condition = Arrays.asList(tokens).subList(3, tokens.length);
+                rules.add(new UseBackend(tokens[1], parseCondition(condition, acls, exactMap, prefixMap),
+                        StringUtils.join(condition, ' ')));
+            }
+            line = config.readLine();
+        }
+
+        return new HaProxyReplayProgram(rules);
+    }
+
+    @Override
+    public int size() {
+        return rules.size();
+    }
+
+    @Override
+    public String route(String path, ReplayCounters counters) {
+        for (UseBackend rule : rules) {
+            String mapKey = null;
+            boolean passed = true;
+            for (Term term : rule.terms) {
+                final String key = term.match(path, counters);
+                if ((key != null) == term.negated) {
+                    passed = false;
+                    break;
+                }
+                if (key != null && term.isMapLookup()) {
+                    mapKey = key;
+                }
+            }
+
+            if (passed) {
+                return mapKey != null ? "map " + mapKey : rule.label;
+            }
+        }
+
+        return null;
+    }
+
+    private static List<Term> parseCondition(
+            List<String> tokens, Map<String, List<Criterion>> acls,
+            Map<String, String> exactMap, Map<String, String> prefixMap) {
+
+        final List<Term> terms = Lists.newArrayList();
+        int i = 0;
+        while (i < tokens.size()) {
+            String token = tokens.get(i++);
+            final boolean negated = token.startsWith("!");
+            if (negated) {
+                token = token.substring(1);
+            }
+
+            if ("{".equals(token)) {
+                final int length = tokens.subList(i, tokens.size()).indexOf("}");
+                Validate.isTrue(length > 0, "Invalid anonymous ACL: " + tokens);
+                final Criterion criterion = parseCriterion(tokens.subList(i, i + length), exactMap, prefixMap);
+                terms.add(new Term(Lists.newArrayList(criterion), negated));
+                i += length + 1;
+            } else {
+                final List<Criterion> criteria = acls.get(token);
+                terms.add(new Term(criteria != null ? criteria : Lists.<Criterion>newArrayList(), negated));
+            }
+        }
+
+        return terms;
+    }
+
+    private static Criterion parseCriterion(
+            List<String> tokens, Map<String, String> exactMap, Map<String, String> prefixMap) {
+
+        final String fetch = tokens.get(0);
+        final List<String> values = tokens.subList(1, tokens.size());
+
+        if ("path".equals(fetch)) {
+            return new PathCriterion(values, false);
+        } else if ("path_beg".equals(fetch)) {
+            return new PathCriterion(values, true);
+        } else if ("path_reg".equals(fetch)) {
+            return new RegExCriterion(values);
+        } else if (fetch.startsWith("path,map_str(")) {
+            return new MapCriterion(exactMap, false);
+        } else if (fetch.startsWith("path,map_beg(")) {
+            return new MapCriterion(prefixMap, true);
+        }
+        return new UnsupportedCriterion();
+    }
+
+    /**
+     * A use_backend rule.
+     */
+    private static final class UseBackend {
+        private final List<Term> terms;
+        private final String label;
+
+        private UseBackend(String backend, List<Term> terms, String condition) {
+            this.terms = terms;
+            this.label = StringUtils.abbreviate("use_backend " + backend + " if " + condition, MAX_LABEL_LENGTH);
+        }
+    }
+
+    /**
+     * A possibly negated ACL in the condition of a rule, an ACL matches if any of its criteria match.
+     */
+    private static final class Term {
+        private final List<Criterion> criteria;
+        private final boolean negated;
+
+        private Term(List<Criterion> criteria, boolean negated) {
+            this.criteria = criteria;
+            this.negated = negated;
+        }
+
+        private String match(String path, ReplayCounters counters) {
+            for (Criterion criterion : criteria) {
+                final String key = criterion.match(path, counters);
+                if (key != null) {
+                    return key;
+                }
+            }
+            return null;
+        }
+
+        private boolean isMapLookup() {
+            return criteria.size() == 1 && criteria.get(0) instanceof MapCriterion;
+        }
+    }
+
+    /**
+     * A test of the request path.
+     */
+    private interface Criterion {
+
+        /**
+         * Tests the path.
+         *
+         * @param path     the request path.
+         * @param counters the counters of the work done.
+         * @return the value that matched, null if the path did not match.
+         */
+        String match(String path, ReplayCounters counters);
+    }
+
+    private static final class PathCriterion implements Criterion {
+        private final List<String> values;
+        private final boolean prefix;
+
+        private PathCriterion(List<String> values, boolean prefix) {
+            this.values = Lists.newArrayList(values);
+            this.prefix = prefix;
+        }
+
+        @Override
+        public String match(String path, ReplayCounters counters) {
+            for (String value : values) {
+                if (prefix ? path.startsWith(value) : path.equals(value)) {
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class RegExCriterion implements Criterion {
+        private final List<Pattern> patterns;
+
+        private RegExCriterion(List<String> values) {
+            this.patterns = Lists.newArrayList();
+            for (String value : values) {
+                patterns.add(Pattern.compile(value));
+            }
+        }
+
+        @Override
+        public String match(String path, ReplayCounters counters) {
+            for (Pattern pattern : patterns) {
+                counters.regexEvaluations++;
+                if (pattern.matcher(path).find()) {
+                    return pattern.pattern();
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class MapCriterion implements Criterion {
+        private final Map<String, String> map;
+        private final boolean prefix;
+
+        private MapCriterion(Map<String, String> map, boolean prefix) {
+            this.map = map;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public String match(String path, ReplayCounters counters) {
+            counters.mapLookups++;
+            if (!prefix) {
+                return map.containsKey(path) ? path : null;
+            }
+
+            // map_beg returns the first entry, in file order, that the path starts with.
+            for (String key : map.keySet()) {
+                if (path.startsWith(key)) {
+                    return key;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class UnsupportedCriterion implements Criterion {
+        @Override
+        public String match(String path, ReplayCounters counters) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.replay;
+
+/**
+ * Counts the work a web server does to route the replayed requests.
+ *
+ * @author David Trott
+ */
+final class ReplayCounters {
+
+    /**
+     * The number of regular expressions evaluated (rule patterns and conditions).
+     */
+    long regexEvaluations;
+
+    /**
+     * The number of map lookups (RewriteMap or HAProxy map files).
+     */
+    long mapLookups;
+}
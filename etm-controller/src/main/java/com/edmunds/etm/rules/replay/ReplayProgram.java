@@ -0,0 +1,40 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.replay;
+
+/**
+ * A generated web server configuration parsed into the rules that route a request, in evaluation order.
+ *
+ * @author David Trott
+ */
+interface ReplayProgram {
+
+    /**
+     * Routes a request the way the web server would.
+     *
+     * @param path     the request path.
+     * @param counters the counters of the work done by the web server.
+     * @return a description of the rule that routed the request, null if no rule matched.
+     */
+    String route(String path, ReplayCounters counters);
+
+    /**
+     * Returns the number of rules, including those that only skip or guard other rules.
+     *
+     * @return the number of rules.
+     */
+    int size();
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.replay;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of replaying an access log against a generated configuration.
+ *
+ * @author David Trott
+ */
+public class ReplayReport {
+
+    private final String ruleSetName;
+    private final int ruleCount;
+    private final long requestCount;
+    private final long unmatchedCount;
+    private final long regexEvaluations;
+    private final long mapLookups;
+    private final long p50MatchNanos;
+    private final long p99MatchNanos;
+    private final List<Map.Entry<String, Long>> hottestRules;
+
+    ReplayReport(String ruleSetName, int ruleCount, long requestCount, long unmatchedCount,
+                 ReplayCounters counters, long p50MatchNanos, long p99MatchNanos,
+                 List<Map.Entry<String, Long>> hottestRules) {
+        this.ruleSetName = ruleSetName;
+        this.ruleCount = ruleCount;
+        this.requestCount = requestCount;
+        this.unmatchedCount = unmatchedCount;
+        this.regexEvaluations = counters.regexEvaluations;
+        this.mapLookups = counters.mapLookups;
+        this.p50MatchNanos = p50MatchNanos;
+        this.p99MatchNanos = p99MatchNanos;
+        this.hottestRules = Collections.unmodifiableList(hottestRules);
+    }
+
+    public String getRuleSetName() {
+        return ruleSetName;
+    }
+
+    /**
+     * Returns the number of rules in the configuration.
+     *
+     * @return the number of rules.
+     */
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    public long getUnmatchedCount() {
+        return unmatchedCount;
+    }
+
+    public long getRegexEvaluations() {
+        return regexEvaluations;
+    }
+
+    public long getMapLookups() {
+        return mapLookups;
+    }
+
+    /**
+     * Returns the average number of regular expressions evaluated per request.
+     *
+     * @return the evaluations per request, zero if there were no requests.
+     */
+    public double getRegexEvaluationsPerRequest() {
+        return requestCount > 0 ? (double) regexEvaluations / requestCount : 0;
+    }
+
+    public long getP50MatchNanos() {
+        return p50MatchNanos;
+    }
+
+    public long getP99MatchNanos() {
+        return p99MatchNanos;
+    }
+
+    /**
+     * Returns the rules that routed the most requests, most hits first.
+     *
+     * @return the entries of (rule description -> hits).
+     */
+    public List<Map.Entry<String, Long>> getHottestRules() {
+        return hottestRules;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Replayed %d requests against %s (%d rules), %d unmatched%n",
+                requestCount, ruleSetName, ruleCount, unmatchedCount));
+        sb.append(String.format("Regex evaluations per request: %.2f, map lookups per request: %.2f%n",
+                getRegexEvaluationsPerRequest(), requestCount > 0 ? (double) mapLookups / requestCount : 0.0));
+        sb.append(String.format("Match time p50: %.1f us, p99: %.1f us%n",
+                p50MatchNanos / 1000.0, p99MatchNanos / 1000.0));
+        sb.append("Hottest rules:");
+        for (Map.Entry<String, Long> entry : hottestRules) {
+            sb.append(String.format("%n%10d  %s", entry.getValue(), entry.getKey()));
+        }
+        return sb.toString();
+    }
+}
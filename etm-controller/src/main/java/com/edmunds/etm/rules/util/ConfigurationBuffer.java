@@ -0,0 +1,296 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.util;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.Validate;
+
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that web server configurations are generated into. <p/> Characters are encoded as UTF-8
+ * straight into the buffer and the MD5 digest is updated in blocks as the buffer fills, so generating a configuration
+ * needs no intermediate String or byte array. The buffer is reused between builds, only the final configuration is
+ * copied out. <p/> Instances are not thread safe.
+ *
+ * @author David Trott
+ */
+public class ConfigurationBuffer {
+
+    /**
+     * The number of bytes that are collected before the digest is updated.
+     */
+    private static final int DIGEST_BLOCK_SIZE = 8192;
+
+    /**
+     * Written in place of unpaired surrogates (the same replacement that String.getBytes uses).
+     */
+    private static final byte REPLACEMENT = '?';
+
+    private final MessageDigest messageDigest;
+    private byte[] buffer;
+    private int count;
+    private int digested;
+    private char highSurrogate;
+    private String digest;
+
+    /**
+     * Creates an empty buffer.
+     *
+     * @param initialCapacity the initial capacity in bytes.
+     */
+    public ConfigurationBuffer(int initialCapacity) {
+        Validate.isTrue(initialCapacity > 0, "initialCapacity must be positive");
+        this.buffer = new byte[initialCapacity];
+        try {
+            this.messageDigest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Discards the contents of the buffer, the capacity is retained for the next configuration.
+     */
+    public void reset() {
+        count = 0;
+        digested = 0;
+        highSurrogate = 0;
+        digest = null;
+        messageDigest.reset();
+    }
+
+    /**
+     * Appends the UTF-8 encoding of the characters.
+     *
+     * @param chars the characters to append.
+     * @return this buffer.
+     */
+    public ConfigurationBuffer append(CharSequence chars) {
+        return append(chars, 0, chars.length());
+    }
+
+    /**
+     * Appends the UTF-8 encoding of a subsequence of the characters.
+     *
+     * @param chars the characters to append.
+     * @param start the index of the first character.
+     * @param end   the index after the last character.
+     * @return this buffer.
+     */
+    public ConfigurationBuffer append(CharSequence chars, int start, int end) {
+        checkWritable();
+        ensureCapacity(count + end - start);
+
+        for (int i = start; i < end; i++) {
+            final char c = chars.charAt(i);
+            if (c < 0x80 && highSurrogate == 0) {
+                if (count == buffer.length) {
+                    ensureCapacity(count + end - i);
+                }
+                buffer[count++] = (byte) c;
+            } else {
+                appendNonAscii(c);
+            }
+        }
+
+        updateDigest(DIGEST_BLOCK_SIZE);
+        return this;
+    }
+
+    /**
+     * Appends the decimal representation of the number.
+     *
+     * @param value the number to append.
+     * @return this buffer.
+     */
+    public ConfigurationBuffer append(int value) {
+        return append(Integer.toString(value));
+    }
+
+    /**
+     * Appends raw bytes.
+     *
+     * @param bytes  the bytes to append.
+     * @param offset the offset of the first byte.
+     * @param length the number of bytes.
+     * @return this buffer.
+     */
+    public ConfigurationBuffer write(byte[] bytes, int offset, int length) {
+        checkWritable();
+        ensureCapacity(count + length);
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+        updateDigest(DIGEST_BLOCK_SIZE);
+        return this;
+    }
+
+    /**
+     * Appends the four bytes of the number, high byte first (the byte order of {@link java.io.DataOutput#writeInt}).
+     *
+     * @param value the number to append.
+     * @return this buffer.
+     */
+    public ConfigurationBuffer writeInt(int value) {
+        checkWritable();
+        ensureCapacity(count + 4);
+        buffer[count++] = (byte) (value >>> 24);
+        buffer[count++] = (byte) (value >>> 16);
+        buffer[count++] = (byte) (value >>> 8);
+        buffer[count++] = (byte) value;
+        updateDigest(DIGEST_BLOCK_SIZE);
+        return this;
+    }
+
+    /**
+     * Returns a writer that appends to this buffer, for use with template engines.
+     *
+     * @return a writer that does not need to be flushed or closed.
+     */
+    public Writer asWriter() {
+        return new Writer() {
+            @Override
+            public void write(char[] chars, int offset, int length) {
+                ConfigurationBuffer.this.append(CharBuffer.wrap(chars), offset, offset + length);
+            }
+
+            @Override
+            public void write(String str, int offset, int length) {
+                ConfigurationBuffer.this.append(str, offset, offset + length);
+            }
+
+            @Override
+            public void write(int c) {
+                ConfigurationBuffer.this.append(String.valueOf((char) c));
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Returns the number of bytes written.
+     *
+     * @return the size of the configuration.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the capacity that is retained between builds.
+     *
+     * @return the capacity in bytes.
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Completes the configuration and returns the hex encoded MD5 digest of its contents. <p/> Nothing can be appended
+     * after this until the buffer is reset.
+     *
+     * @return the digest.
+     */
+    public String getDigest() {
+        if (digest == null) {
+            flushSurrogate();
+            updateDigest(1);
+            digest = new String(Hex.encodeHex(messageDigest.digest()));
+        }
+        return digest;
+    }
+
+    /**
+     * Completes the configuration and returns a copy of its contents.
+     *
+     * @return the configuration bytes.
+     */
+    public byte[] toByteArray() {
+        getDigest();
+        return Arrays.copyOf(buffer, count);
+    }
+
+    private void appendNonAscii(char c) {
+        ensureCapacity(count + 4);
+
+        if (highSurrogate != 0) {
+            final char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                final int codePoint = Character.toCodePoint(high, c);
+                buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                return;
+            }
+            buffer[count++] = REPLACEMENT;
+        }
+
+        if (c < 0x80) {
+            buffer[count++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[count++] = (byte) (0xC0 | (c >> 6));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            buffer[count++] = REPLACEMENT;
+        } else {
+            buffer[count++] = (byte) (0xE0 | (c >> 12));
+            buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void flushSurrogate() {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            ensureCapacity(count + 1);
+            buffer[count++] = REPLACEMENT;
+        }
+    }
+
+    private void updateDigest(int minimumBytes) {
+        if (count - digested >= minimumBytes) {
+            messageDigest.update(buffer, digested, count - digested);
+            digested = count;
+        }
+    }
+
+    private void checkWritable() {
+        if (digest != null) {
+            throw new IllegalStateException("The configuration is complete, reset the buffer first");
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+}
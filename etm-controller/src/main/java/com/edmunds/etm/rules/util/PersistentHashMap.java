@@ -0,0 +1,481 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable hash map that shares structure between versions (a hash array mapped trie). <p/> {@link #plus} and
+ * {@link #minus} return a new map and leave this one untouched, only the nodes on the path to the changed entry are
+ * copied so each update costs O(log32 n) time and memory. <p/> The standard {@link Map} mutators are not supported.
+ *
+ * @param <K> the type of keys.
+ * @param <V> the type of values.
+ * @author David Trott
+ */
+public final class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    /**
+     * The maximum depth of the trie, 7 levels of bitmap nodes plus a collision node.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    @SuppressWarnings("unchecked")
+    private static final PersistentHashMap EMPTY = new PersistentHashMap(null, 0);
+
+    /**
+     * The root node, null if the map is empty.
+     */
+    private final Node root;
+
+    private final int size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns the empty map.
+     *
+     * @param <K> the type of keys.
+     * @param <V> the type of values.
+     * @return the empty map.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return root != null && root.find(key, hash(key), 0) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (root == null) {
+            return null;
+        }
+        final Leaf leaf = root.find(key, hash(key), 0);
+        return leaf == null ? null : (V) leaf.value;
+    }
+
+    /**
+     * Returns a map that also contains the specified mapping.
+     *
+     * @param key   the key.
+     * @param value the value.
+     * @return the new map, or this map if the key is already mapped to the same value.
+     */
+    public PersistentHashMap<K, V> plus(K key, V value) {
+        final Leaf leaf = new Leaf(key, value, hash(key));
+
+        if (root == null) {
+            return new PersistentHashMap<K, V>(Node.singleton(leaf), 1);
+        }
+
+        final boolean[] added = new boolean[1];
+        final Node newRoot = root.plus(leaf, 0, added);
+
+        return newRoot == root ? this : new PersistentHashMap<K, V>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Returns a map without the specified key.
+     *
+     * @param key the key to remove.
+     * @return the new map, or this map if the key was not present.
+     */
+    public PersistentHashMap<K, V> minus(Object key) {
+        if (root == null) {
+            return this;
+        }
+
+        final Object newRoot = root.minus(key, hash(key), 0);
+
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot == null) {
+            return empty();
+        }
+        if (newRoot instanceof Leaf) {
+            return new PersistentHashMap<K, V>(Node.singleton((Leaf) newRoot), size - 1);
+        }
+        return new PersistentHashMap<K, V>((Node) newRoot, size - 1);
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator<K, V>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Spreads the higher bits of the hash code so they take part in the first levels of the trie.
+     */
+    private static int hash(Object key) {
+        final int h = key == null ? 0 : key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean keysEqual(Object key1, Object key2) {
+        return key1 == null ? key2 == null : key1.equals(key2);
+    }
+
+    /**
+     * A single mapping.
+     */
+    private static final class Leaf implements Map.Entry<Object, Object> {
+        private final Object key;
+        private final Object value;
+        private final int hash;
+
+        private Leaf(Object key, Object value, int hash) {
+            this.key = key;
+            this.value = value;
+            this.hash = hash;
+        }
+
+        @Override
+        public Object getKey() {
+            return key;
+        }
+
+        @Override
+        public Object getValue() {
+            return value;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            final Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+            return keysEqual(key, other.getKey()) && keysEqual(value, other.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * A node of the trie. <p/> A bitmap node holds up to 32 slots (each a leaf or a child node) indexed by 5 bits of
+     * the hash. A collision node holds leaves that share the same full hash.
+     */
+    private static final class Node {
+
+        /**
+         * The slot bitmap, or the shared hash of a collision node.
+         */
+        private final int bitmap;
+
+        private final Object[] slots;
+
+        private final boolean collision;
+
+        private Node(int bitmap, Object[] slots, boolean collision) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+            this.collision = collision;
+        }
+
+        private static Node bitmapNode(int bitmap, Object[] slots) {
+            return new Node(bitmap, slots, false);
+        }
+
+        private static Node singleton(Leaf leaf) {
+            return bitmapNode(bit(leaf.hash, 0), new Object[]{leaf});
+        }
+
+        private Leaf find(Object key, int hash, int shift) {
+            if (collision) {
+                final int i = findLeaf(key);
+                return i < 0 ? null : (Leaf) slots[i];
+            }
+
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+
+            final Object slot = slots[index(bit)];
+            if (slot instanceof Leaf) {
+                final Leaf leaf = (Leaf) slot;
+                return leaf.hash == hash && keysEqual(key, leaf.key) ? leaf : null;
+            }
+            return ((Node) slot).find(key, hash, shift + BITS);
+        }
+
+        private Node plus(Leaf leaf, int shift, boolean[] added) {
+            if (collision) {
+                if (leaf.hash != bitmap) {
+                    // Push the collision node down a level alongside the new leaf.
+                    added[0] = true;
+                    return merge(this, bitmap, leaf, shift);
+                }
+                final int i = findLeaf(leaf.key);
+                if (i >= 0) {
+                    return ((Leaf) slots[i]).value == leaf.value ? this : new Node(bitmap, replace(slots, i, leaf), true);
+                }
+                added[0] = true;
+                return new Node(bitmap, insert(slots, slots.length, leaf), true);
+            }
+
+            final int bit = bit(leaf.hash, shift);
+            final int i = index(bit);
+
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                return bitmapNode(bitmap | bit, insert(slots, i, leaf));
+            }
+
+            final Object slot = slots[i];
+            final Object newSlot;
+            if (slot instanceof Leaf) {
+                final Leaf existing = (Leaf) slot;
+                if (existing.hash == leaf.hash && keysEqual(existing.key, leaf.key)) {
+                    if (existing.value == leaf.value) {
+                        return this;
+                    }
+                    newSlot = leaf;
+                } else {
+                    added[0] = true;
+                    newSlot = merge(existing, existing.hash, leaf, shift + BITS);
+                }
+            } else {
+                newSlot = ((Node) slot).plus(leaf, shift + BITS, added);
+                if (newSlot == slot) {
+                    return this;
+                }
+            }
+            return bitmapNode(bitmap, replace(slots, i, newSlot));
+        }
+
+        /**
+         * Removes a key.
+         *
+         * @return this node if the key was not found, null if the node is now empty, a leaf if only one leaf remains,
+         *         otherwise the new node.
+         */
+        private Object minus(Object key, int hash, int shift) {
+            if (collision) {
+                final int i = findLeaf(key);
+                if (i < 0) {
+                    return this;
+                }
+                if (slots.length == 2) {
+                    return slots[1 - i];
+                }
+                return new Node(bitmap, remove(slots, i), true);
+            }
+
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+
+            final int i = index(bit);
+            final Object slot = slots[i];
+            final Object newSlot;
+            if (slot instanceof Leaf) {
+                final Leaf leaf = (Leaf) slot;
+                if (leaf.hash != hash || !keysEqual(key, leaf.key)) {
+                    return this;
+                }
+                newSlot = null;
+            } else {
+                newSlot = ((Node) slot).minus(key, hash, shift + BITS);
+                if (newSlot == slot) {
+                    return this;
+                }
+            }
+
+            if (newSlot != null) {
+                // Single leaf nodes are collapsed into their parent.
+                if (slots.length == 1 && newSlot instanceof Leaf) {
+                    return newSlot;
+                }
+                return bitmapNode(bitmap, replace(slots, i, newSlot));
+            }
+            if (slots.length == 1) {
+                return null;
+            }
+            if (slots.length == 2 && slots[1 - i] instanceof Leaf) {
+                return slots[1 - i];
+            }
+            return bitmapNode(bitmap & ~bit, remove(slots, i));
+        }
+
+        private int findLeaf(Object key) {
+            for (int i = 0; i < slots.length; i++) {
+                if (keysEqual(key, ((Leaf) slots[i]).key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        /**
+         * Creates the node that holds both the existing slot (a leaf or collision node) and the new leaf.
+         */
+        private static Node merge(Object existing, int existingHash, Leaf leaf, int shift) {
+            if (existingHash == leaf.hash) {
+                return new Node(existingHash, new Object[]{existing, leaf}, true);
+            }
+
+            final int existingBit = bit(existingHash, shift);
+            final int leafBit = bit(leaf.hash, shift);
+
+            if (existingBit == leafBit) {
+                return bitmapNode(existingBit, new Object[]{merge(existing, existingHash, leaf, shift + BITS)});
+            }
+            // Compare the bit positions, the top bit is negative as an int.
+            final boolean existingFirst = ((existingHash >>> shift) & MASK) < ((leaf.hash >>> shift) & MASK);
+            final Object[] slots = existingFirst ? new Object[]{existing, leaf} : new Object[]{leaf, existing};
+            return bitmapNode(existingBit | leafBit, slots);
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private static Object[] insert(Object[] slots, int i, Object slot) {
+            final Object[] result = new Object[slots.length + 1];
+            System.arraycopy(slots, 0, result, 0, i);
+            result[i] = slot;
+            System.arraycopy(slots, i, result, i + 1, slots.length - i);
+            return result;
+        }
+
+        private static Object[] replace(Object[] slots, int i, Object slot) {
+            final Object[] result = slots.clone();
+            result[i] = slot;
+            return result;
+        }
+
+        private static Object[] remove(Object[] slots, int i) {
+            final Object[] result = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, result, 0, i);
+            System.arraycopy(slots, i + 1, result, i, slots.length - i - 1);
+            return result;
+        }
+    }
+
+    /**
+     * Depth first iterator over the leaves of the trie.
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final Object[][] stack = new Object[MAX_DEPTH][];
+        private final int[] positions = new int[MAX_DEPTH];
+        private int depth;
+        private Leaf next;
+
+        private EntryIterator(Node root) {
+            if (root == null) {
+                depth = -1;
+            } else {
+                stack[0] = root.slots;
+                advance();
+            }
+        }
+
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                if (positions[depth] == stack[depth].length) {
+                    depth--;
+                    continue;
+                }
+                final Object slot = stack[depth][positions[depth]++];
+                if (slot instanceof Leaf) {
+                    next = (Leaf) slot;
+                    return;
+                }
+                depth++;
+                stack[depth] = ((Node) slot).slots;
+                positions[depth] = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<K, V> result = (Map.Entry<K, V>) (Map.Entry<?, ?>) next;
+            advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
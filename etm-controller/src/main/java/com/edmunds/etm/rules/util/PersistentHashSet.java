@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.util;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * An immutable hash set that shares structure between versions, backed by a {@link PersistentHashMap}. <p/> The
+ * standard {@link java.util.Set} mutators are not supported.
+ *
+ * @param <E> the type of elements.
+ * @author David Trott
+ */
+public final class PersistentHashSet<E> extends AbstractSet<E> {
+
+    @SuppressWarnings("unchecked")
+    private static final PersistentHashSet EMPTY = new PersistentHashSet(PersistentHashMap.empty());
+
+    private final PersistentHashMap<E, Boolean> map;
+
+    private PersistentHashSet(PersistentHashMap<E, Boolean> map) {
+        this.map = map;
+    }
+
+    /**
+     * Returns the empty set.
+     *
+     * @param <E> the type of elements.
+     * @return the empty set.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentHashSet<E> empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Creates a set containing the specified elements.
+     *
+     * @param elements the elements.
+     * @param <E>      the type of elements.
+     * @return the new set.
+     */
+    public static <E> PersistentHashSet<E> of(Collection<? extends E> elements) {
+        PersistentHashSet<E> result = empty();
+        for (E element : elements) {
+            result = result.plus(element);
+        }
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return map.containsKey(o);
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return map.keySet().iterator();
+    }
+
+    /**
+     * Returns a set that also contains the specified element.
+     *
+     * @param element the element to add.
+     * @return the new set, or this set if the element is already present.
+     */
+    public PersistentHashSet<E> plus(E element) {
+        final PersistentHashMap<E, Boolean> result = map.plus(element, Boolean.TRUE);
+        return result == map ? this : new PersistentHashSet<E>(result);
+    }
+
+    /**
+     * Returns a set that does not contain the specified element.
+     *
+     * @param element the element to remove.
+     * @return the new set, or this set if the element was not present.
+     */
+    public PersistentHashSet<E> minus(Object element) {
+        final PersistentHashMap<E, Boolean> result = map.minus(element);
+        if (result == map) {
+            return this;
+        }
+        return result.isEmpty() ? PersistentHashSet.<E>empty() : new PersistentHashSet<E>(result);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.util;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.lang.Validate;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Generates compact regular expressions for sets of literal strings. <p/> A flat alternation (a|b|c|...) makes the
+ * regex engine try every value in turn. The expression generated here factors out common prefixes (the branches of a
+ * trie) and common suffixes, so each alternation starts with distinct characters and at most one branch can get past
+ * its first character. Single character branches are merged into a character class and all groups are non-capturing.
+ * <p/> The generated expression matches exactly the same strings as the flat alternation.
+ *
+ * @author David Trott
+ */
+public final class RegexOptimizer {
+
+    /**
+     * Characters that must be escaped outside a character class.
+     */
+    private static final String REGEX_CHARACTERS = "\\[](){}.*+?^$|";
+
+    /**
+     * The expression is a single character, class or group.
+     */
+    private static final int ATOM = 0;
+
+    /**
+     * The expression can be concatenated with another expression but needs a group before it can be made optional.
+     */
+    private static final int SEQUENCE = 1;
+
+    /**
+     * The expression contains a top level alternation, it needs a group before it can be concatenated.
+     */
+    private static final int ALTERNATION = 2;
+
+    private RegexOptimizer() {
+    }
+
+    /**
+     * Returns a regular expression that matches exactly the specified strings. <p/> The result can be concatenated with
+     * other expressions without adding a group.
+     *
+     * @param values the literal strings to match.
+     * @return the regular expression.
+     */
+    public static String alternation(Collection<String> values) {
+        Validate.notNull(values, "values is null");
+        Validate.notEmpty(values, "values is empty");
+
+        final Expression expression = optimize(Lists.newArrayList(new TreeSet<String>(values)));
+        return expression.type == ALTERNATION ? group(expression) : expression.regex;
+    }
+
+    /**
+     * Optimizes a sorted list of distinct strings.
+     */
+    private static Expression optimize(List<String> strings) {
+        if (strings.size() == 1) {
+            return literal(strings.get(0));
+        }
+
+        // The empty string can only be the first element of the sorted list.
+        if (strings.get(0).length() == 0) {
+            final Expression rest = optimize(strings.subList(1, strings.size()));
+            return new Expression(optionalOperand(rest) + "?", SEQUENCE);
+        }
+
+        final String prefix = commonPrefix(strings);
+        if (prefix.length() > 0) {
+            final List<String> remainders = Lists.newArrayListWithCapacity(strings.size());
+            for (String s : strings) {
+                remainders.add(s.substring(prefix.length()));
+            }
+            return new Expression(quote(prefix) + concatenationOperand(optimize(remainders)), SEQUENCE);
+        }
+
+        final String suffix = commonSuffix(strings);
+        if (suffix.length() > 0) {
+            final SortedSet<String> remainders = new TreeSet<String>();
+            for (String s : strings) {
+                remainders.add(s.substring(0, s.length() - suffix.length()));
+            }
+            final Expression rest = optimize(Lists.newArrayList(remainders));
+            return new Expression(concatenationOperand(rest) + quote(suffix), SEQUENCE);
+        }
+
+        return partition(strings);
+    }
+
+    /**
+     * Splits strings that have no common prefix by their first character.
+     */
+    private static Expression partition(List<String> strings) {
+        final StringBuilder characters = new StringBuilder();
+        final List<String> branches = Lists.newArrayList();
+
+        int start = 0;
+        while (start < strings.size()) {
+            final char first = strings.get(start).charAt(0);
+            int end = start + 1;
+            while (end < strings.size() && strings.get(end).charAt(0) == first) {
+                end++;
+            }
+
+            if (end - start == 1 && strings.get(start).length() == 1) {
+                characters.append(first);
+            } else {
+                final Expression branch = optimize(strings.subList(start, end));
+                branches.add(branch.regex);
+            }
+            start = end;
+        }
+
+        if (branches.isEmpty()) {
+            return characterClass(characters);
+        }
+
+        final StringBuilder regex = new StringBuilder();
+        if (characters.length() > 0) {
+            regex.append(characterClass(characters).regex);
+        }
+        for (String branch : branches) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append(branch);
+        }
+        return new Expression(regex.toString(), ALTERNATION);
+    }
+
+    private static Expression literal(String s) {
+        return new Expression(quote(s), s.length() == 1 ? ATOM : SEQUENCE);
+    }
+
+    private static Expression characterClass(CharSequence characters) {
+        if (characters.length() == 1) {
+            return literal(characters.toString());
+        }
+
+        // A '-' is literal when it is the last character of the class.
+        final StringBuilder regex = new StringBuilder("[");
+        boolean dash = false;
+        for (int i = 0; i < characters.length(); i++) {
+            final char c = characters.charAt(i);
+            if (c == '-') {
+                dash = true;
+            } else {
+                if ("\\[]^".indexOf(c) != -1) {
+                    regex.append('\\');
+                }
+                regex.append(c);
+            }
+        }
+        if (dash) {
+            regex.append('-');
+        }
+        return new Expression(regex.append(']').toString(), ATOM);
+    }
+
+    private static String concatenationOperand(Expression expression) {
+        return expression.type == ALTERNATION ? group(expression) : expression.regex;
+    }
+
+    private static String optionalOperand(Expression expression) {
+        return expression.type == ATOM ? expression.regex : group(expression);
+    }
+
+    private static String group(Expression expression) {
+        return "(?:" + expression.regex + ")";
+    }
+
+    private static String commonPrefix(List<String> sorted) {
+        // In a sorted list the first and last strings have the shortest common prefix.
+        final String first = sorted.get(0);
+        final String last = sorted.get(sorted.size() - 1);
+        final int max = Math.min(first.length(), last.length());
+        int i = 0;
+        while (i < max && first.charAt(i) == last.charAt(i)) {
+            i++;
+        }
+        return first.substring(0, i);
+    }
+
+    private static String commonSuffix(List<String> strings) {
+        String suffix = strings.get(0);
+        for (int i = 1; i < strings.size() && suffix.length() > 0; i++) {
+            final String s = strings.get(i);
+            int length = 0;
+            final int max = Math.min(suffix.length(), s.length());
+            while (length < max &&
+                    suffix.charAt(suffix.length() - 1 - length) == s.charAt(s.length() - 1 - length)) {
+                length++;
+            }
+            suffix = suffix.substring(suffix.length() - length);
+        }
+        return suffix;
+    }
+
+    private static String quote(String s) {
+        final StringBuilder result = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (REGEX_CHARACTERS.indexOf(c) != -1) {
+                result.append('\\');
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+    /**
+     * A generated expression and how it can be combined with other expressions.
+     */
+    private static final class Expression {
+        private final String regex;
+        private final int type;
+
+        private Expression(String regex, int type) {
+            this.regex = regex;
+            this.type = type;
+        }
+    }
+}
@@ -15,8 +15,11 @@
  */
 package com.edmunds.etm.system.impl;
 
+import com.edmunds.etm.apache.configbuilder.ApacheConfigurationBuilder;
 import com.edmunds.etm.rules.impl.AgentConfigurationManager;
+import com.edmunds.etm.rules.impl.UrlRuleCache;
 import com.edmunds.etm.rules.impl.WebConfigurationManager;
+import com.edmunds.etm.rules.replay.AccessLogReplayer;
 import com.edmunds.etm.runtime.impl.ApplicationRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
@@ -24,6 +27,8 @@ import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+
 /**
  * Main ETM Controller MBean.
  *
@@ -37,19 +42,28 @@ public class ControllerMBean {
     private final ApplicationRepository applicationRepository;
     private final WebConfigurationManager webConfigurationManager;
     private final AgentConfigurationManager agentConfigurationManager;
+    private final UrlRuleCache urlRuleCache;
+    private final ApacheConfigurationBuilder apacheConfigurationBuilder;
     private final ProjectProperties projectProperties;
+    private final AccessLogReplayer accessLogReplayer;
 
     @Autowired
     public ControllerMBean(FailoverMonitor failoverMonitor,
                            ApplicationRepository applicationRepository,
                            WebConfigurationManager webConfigurationManager,
                            AgentConfigurationManager agentConfigurationManager,
-                           ProjectProperties projectProperties) {
+                           UrlRuleCache urlRuleCache,
+                           ApacheConfigurationBuilder apacheConfigurationBuilder,
+                           ProjectProperties projectProperties,
+                           AccessLogReplayer accessLogReplayer) {
         this.failoverMonitor = failoverMonitor;
         this.applicationRepository = applicationRepository;
         this.webConfigurationManager = webConfigurationManager;
         this.agentConfigurationManager = agentConfigurationManager;
+        this.urlRuleCache = urlRuleCache;
+        this.apacheConfigurationBuilder = apacheConfigurationBuilder;
         this.projectProperties = projectProperties;
+        this.accessLogReplayer = accessLogReplayer;
     }
 
     @ManagedAttribute(description = "Failover state")
@@ -82,16 +96,72 @@ public class ControllerMBean {
         return webConfigurationManager.getInvalidRules().size();
     }
 
+    @ManagedAttribute(description = "Number of interned URL rule segments")
+    public int getUrlRuleSegmentCount() {
+        return urlRuleCache.getSegmentPool().getSegmentCount();
+    }
+
+    @ManagedAttribute(description = "Segment comparisons answered from the memo table")
+    public long getSegmentComparisonHits() {
+        return urlRuleCache.getSegmentPool().getComparisonHits();
+    }
+
+    @ManagedAttribute(description = "Segment comparisons that had to be computed")
+    public long getSegmentComparisonMisses() {
+        return urlRuleCache.getSegmentPool().getComparisonMisses();
+    }
+
     @ManagedAttribute(description = "Digest of the active Apache rule set")
     public String getApacheRuleSetDigest() {
         return agentConfigurationManager.getActiveRuleSetDigest();
     }
 
+    @ManagedAttribute(description = "Coalesce consecutive Apache rules for the same vip")
+    public boolean isApacheRuleCoalescing() {
+        return apacheConfigurationBuilder.isCoalesceRules();
+    }
+
+    @ManagedAttribute(description = "Coalesce consecutive Apache rules for the same vip")
+    public void setApacheRuleCoalescing(boolean coalesceRules) {
+        apacheConfigurationBuilder.setCoalesceRules(coalesceRules);
+    }
+
+    @ManagedAttribute(description = "Number of generated Apache RewriteRules")
+    public int getApacheRewriteRuleCount() {
+        return apacheConfigurationBuilder.getCoalescedRules().size();
+    }
+
+    @ManagedAttribute(description = "Average Apache RewriteRules evaluated per matching request")
+    public double getApacheAverageRuleEvaluations() {
+        return apacheConfigurationBuilder.getCoalescedRules().getAverageEvaluations();
+    }
+
+    @ManagedAttribute(description = "Requests counted in the access logs for traffic-weighted rule ordering")
+    public long getTrafficRequestCount() {
+        return webConfigurationManager.getTrafficStatistics().getRequestCount();
+    }
+
+    @ManagedAttribute(description = "Expected regex evaluations per request of the active rules")
+    public double getExpectedRuleEvaluations() {
+        return webConfigurationManager.getTrafficStatistics()
+                .getExpectedEvaluations(webConfigurationManager.getActiveRules());
+    }
+
     @ManagedAttribute(description = "ETM Controller version")
     public String getVersion() {
         return projectProperties.getVersion();
     }
 
+    @ManagedOperation(description = "Counts rule hits in the access logs and reorders the rules by traffic")
+    public String refreshTrafficStatistics() {
+        return webConfigurationManager.refreshTrafficStatistics();
+    }
+
+    @ManagedOperation(description = "Replays an access log against the active apache or haproxy rule set")
+    public String replayAccessLog(String ruleSetName, String logFile) throws IOException {
+        return accessLogReplayer.replay(ruleSetName, logFile).toString();
+    }
+
     @ManagedOperation(description = "Suspends an active controller")
     public void suspend() {
         failoverMonitor.suspend();
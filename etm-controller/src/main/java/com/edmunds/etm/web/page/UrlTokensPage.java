@@ -17,13 +17,21 @@ package com.edmunds.etm.web.page;
 
 import com.edmunds.etm.common.api.UrlToken;
 import com.edmunds.etm.common.impl.UrlTokenRepository;
+import com.edmunds.etm.regex.RegexCost;
+import com.edmunds.etm.rules.api.SegmentType;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlRuleSegment;
 import com.edmunds.etm.rules.impl.UrlTokenDictionary;
 import com.edmunds.etm.rules.impl.UrlTokenMonitor;
+import com.edmunds.etm.rules.impl.WebConfigurationManager;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.apache.click.Context;
 import org.apache.click.control.Column;
 import org.apache.click.control.Decorator;
 import org.apache.click.control.Table;
 import org.apache.click.dataprovider.DataProvider;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -31,10 +39,14 @@ import org.springframework.stereotype.Component;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Displays active and default URL tokens.
+ * Displays active and default URL tokens, with the cost of matching each token and the cost that the tokens add to
+ * each active URL rule.
  *
  * @author Ryan Holmes
  */
@@ -43,14 +55,22 @@ public class UrlTokensPage extends BorderPage {
 
     private final UrlTokenDictionary tokenDictionary;
     private final UrlTokenRepository tokenRepository;
+    private final UrlTokenMonitor tokenMonitor;
+    private final WebConfigurationManager webConfigurationManager;
 
     @Autowired
-    public UrlTokensPage(UrlTokenDictionary tokenDictionary, UrlTokenRepository tokenRepository) {
+    public UrlTokensPage(UrlTokenDictionary tokenDictionary,
+                         UrlTokenRepository tokenRepository,
+                         UrlTokenMonitor tokenMonitor,
+                         WebConfigurationManager webConfigurationManager) {
         this.tokenDictionary = tokenDictionary;
         this.tokenRepository = tokenRepository;
+        this.tokenMonitor = tokenMonitor;
+        this.webConfigurationManager = webConfigurationManager;
 
         addControl(buildActiveTokensTable());
         addControl(buildDefaultTokensTable());
+        addControl(buildRuleCostsTable());
     }
 
     @Override
@@ -62,6 +82,63 @@ public class UrlTokensPage extends BorderPage {
         return tokenDictionary;
     }
 
+    protected UrlTokenMonitor getTokenMonitor() {
+        return tokenMonitor;
+    }
+
+    /**
+     * Returns the active rules that contain tokens, the most expensive first.
+     *
+     * @return list of rules
+     */
+    protected List<UrlRule> getTokenizedRules() {
+        final Map<UrlRule, Long> costs = Maps.newHashMap();
+        for (UrlRule rule : webConfigurationManager.getActiveRules()) {
+            final List<RegexCost> tokenCosts = getTokenCosts(rule);
+            if (!tokenCosts.isEmpty()) {
+                long nanos = 0;
+                for (RegexCost cost : tokenCosts) {
+                    nanos += cost.getWorstMatchNanos();
+                }
+                costs.put(rule, nanos);
+            }
+        }
+
+        final List<UrlRule> rules = Lists.newArrayList(costs.keySet());
+        Collections.sort(rules, new Comparator<UrlRule>() {
+            @Override
+            public int compare(UrlRule r1, UrlRule r2) {
+                return costs.get(r2).compareTo(costs.get(r1));
+            }
+        });
+        return rules;
+    }
+
+    /**
+     * Returns the costs of the tokens in a rule, in segment order.
+     *
+     * @param rule the rule
+     * @return list of costs, empty if the rule has no tokens
+     */
+    protected List<RegexCost> getTokenCosts(UrlRule rule) {
+        final Map<String, UrlToken> tokens = Maps.newHashMap();
+        for (UrlToken token : tokenDictionary.getAll()) {
+            tokens.put('[' + token.getName() + ']', token);
+        }
+
+        final List<RegexCost> costs = Lists.newArrayList();
+        for (UrlRuleSegment segment : rule.getSegments()) {
+            final UrlToken token = tokens.get(segment.getSegment());
+            if (segment.getSegmentType() == SegmentType.TOKEN && token != null) {
+                final RegexCost cost = tokenMonitor.getTokenCost(token);
+                if (cost != null) {
+                    costs.add(cost);
+                }
+            }
+        }
+        return costs;
+    }
+
     protected List<UrlToken> readDefaultTokens() {
         List<UrlToken> tokens;
         String contextPath = getContext().getServletContext().getRealPath("/");
@@ -125,6 +202,63 @@ public class UrlTokensPage extends BorderPage {
         });
         table.addColumn(valuesColumn);
 
+        Column costColumn = new Column("cost");
+        costColumn.setDecorator(new Decorator() {
+            @Override
+            public String render(Object object, Context context) {
+                RegexCost cost = getTokenMonitor().getTokenCost((UrlToken) object);
+                return cost != null ? renderCost(cost.getWorstMatchNanos(), cost) : "invalid regular expression";
+            }
+        });
+        table.addColumn(costColumn);
+
+        return table;
+    }
+
+    private Table buildRuleCostsTable() {
+        Table table = new Table("ruleCostsTable");
+        table.setClass(Table.CLASS_ITS);
+
+        Column ruleColumn = new Column("rule");
+        table.addColumn(ruleColumn);
+
+        Column mavenModuleColumn = new Column("mavenModule", "Application");
+        table.addColumn(mavenModuleColumn);
+
+        Column costColumn = new Column("cost");
+        costColumn.setDecorator(new Decorator() {
+            @Override
+            public String render(Object object, Context context) {
+                List<RegexCost> costs = getTokenCosts((UrlRule) object);
+                List<String> flagged = Lists.newArrayList();
+                long nanos = 0;
+                for (RegexCost cost : costs) {
+                    nanos += cost.getWorstMatchNanos();
+                    if (cost.isFlagged()) {
+                        flagged.add(cost.getRegex());
+                    }
+                }
+                return renderCost(nanos, null) + (flagged.isEmpty() ? "" :
+                    "<br />flagged: " + StringEscapeUtils.escapeHtml(StringUtils.join(flagged, ", ")));
+            }
+        });
+        table.addColumn(costColumn);
+
+        table.setDataProvider(new DataProvider<UrlRule>() {
+            @Override
+            public Iterable<UrlRule> getData() {
+                return getTokenizedRules();
+            }
+        });
+
         return table;
     }
+
+    private static String renderCost(long nanos, RegexCost cost) {
+        String text = String.format("%.1f us", nanos / 1000.0);
+        if (cost != null && cost.isFlagged()) {
+            text = "<b>" + StringEscapeUtils.escapeHtml(cost.toString()) + "</b>";
+        }
+        return text;
+    }
 }
@@ -80,6 +80,14 @@ frontend http_proxy
         acl acl_no_append_slash path_reg ^/(api/|era/j_spring_security_check|era/j_spring_security_logout|mobilerest|api-nocache/|server-status)
         use_backend rewrite_append_slash if acl_append_slash !acl_no_append_slash
         use_backend rewrite_remove_index if { path_reg /index.html$ }
+<#if exactMapFile??>
+        # ${exactMapFile} ${exactMapDigest}
+        use_backend %[path,map_str(${exactMapFile})] if { path,map_str(${exactMapFile}) -m found }
+</#if>
+<#if prefixMapFile??>
+        # ${prefixMapFile} ${prefixMapDigest}
+        use_backend %[path,map_beg(${prefixMapFile})] if { path,map_beg(${prefixMapFile}) -m found }
+</#if>
 <#list rules as rule>
         use_backend ${rule.artifactId} if { path_reg ${rule.regEx} }
 </#list>
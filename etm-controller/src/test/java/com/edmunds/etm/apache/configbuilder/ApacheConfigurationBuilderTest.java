@@ -3,6 +3,10 @@ package com.edmunds.etm.apache.configbuilder;
 import com.edmunds.etm.common.api.FixedUrlToken;
 import com.edmunds.etm.common.api.RegexUrlToken;
 import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.api.CoalescedRule;
+import com.edmunds.etm.rules.api.CoalescedRuleSet;
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.LiteralRuleTable;
 import com.edmunds.etm.rules.api.UrlRule;
 import com.edmunds.etm.rules.api.UrlTokenResolver;
 import com.edmunds.etm.rules.impl.UrlTokenDictionary;
@@ -10,12 +14,18 @@ import com.google.common.collect.Lists;
 import org.apache.commons.io.IOUtils;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.compile;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
 
 @Test
 public class ApacheConfigurationBuilderTest {
@@ -23,6 +33,201 @@ public class ApacheConfigurationBuilderTest {
     @Test
     public void testApacheConfigGeneration() throws Exception {
 
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
+
+        final ApacheConfigurationBuilder configBuilder = new ApacheConfigurationBuilder();
+
+        final List<String> lines = loadUrlLines();
+        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver, lines);
+        final byte[] result = configBuilder.build(null, CompiledRuleSet.compile(urlTokenResolver, urlRules));
+
+        // Load the expected value
+        final byte[] expectedConfig = loadApacheConfig();
+        assertNotNull(expectedConfig, "Unable to load sample Apache config");
+
+        assertNotNull(result);
+        assertEquals(result, expectedConfig);
+    }
+
+    @Test
+    public void testCoalescedConfigGeneration() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
+
+        final ApacheConfigurationBuilder configBuilder = new ApacheConfigurationBuilder();
+        configBuilder.setCoalesceRules(true);
+        configBuilder.setMaxCoalescedRegExLength(1000);
+
+        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver, loadUrlLines());
+        final byte[] result = configBuilder.build(null, CompiledRuleSet.compile(urlTokenResolver, urlRules));
+        assertNotNull(result);
+
+        final CoalescedRuleSet coalescedRules = configBuilder.getCoalescedRules();
+        assertEquals(coalescedRules.getRuleCount(), urlRules.size());
+        assertTrue(coalescedRules.size() < urlRules.size());
+        assertTrue(coalescedRules.getAverageEvaluations() < coalescedRules.getUncoalescedAverageEvaluations());
+
+        final List<String> lines = IOUtils.readLines(new ByteArrayInputStream(result), "UTF8");
+        assertEquals(lines.size(), coalescedRules.size() + 1);
+        for (CoalescedRule rule : coalescedRules) {
+            assertTrue(rule.getRules().size() == 1 || rule.getRegEx().length() <= 1000, rule.getRegEx());
+        }
+    }
+
+    @Test
+    public void testRewriteMapConfigGeneration() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
+
+        final ApacheConfigurationBuilder configBuilder = new ApacheConfigurationBuilder();
+        configBuilder.setRewriteMap(true);
+        configBuilder.setRewriteMapType("dbm");
+        configBuilder.setRewriteMapFile("/etc/httpd/etm-rules.map");
+        final ApacheRewriteMapBuilder mapBuilder = new ApacheRewriteMapBuilder(configBuilder);
+
+        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver, loadUrlLines());
+        final CompiledRuleSet compiledRules = CompiledRuleSet.compile(urlTokenResolver, urlRules);
+        final LiteralRuleTable table = compiledRules.getLiteralRuleTable();
+
+        final List<String> lines = IOUtils.readLines(
+                new ByteArrayInputStream(configBuilder.build(null, compiledRules)), "UTF8");
+        final List<String> mapLines = IOUtils.readLines(
+                new ByteArrayInputStream(mapBuilder.build(null, compiledRules)), "UTF8");
+
+        assertEquals(lines.get(1), "# etm-rules " + mapBuilder.getActiveRuleSetDigest());
+        assertEquals(lines.get(2), "RewriteMap etm-rules dbm:/etc/httpd/etm-rules.map");
+        assertEquals(lines.get(3), "RewriteCond ${etm-rules:$1} (.+)");
+        assertEquals(lines.get(4), "RewriteRule ^(/.*)$ http://%1$0 [P]");
+
+        // One lookup per prefix depth, then the remaining rules.
+        final int lookups = 1 + table.getPrefixDepths().size();
+        assertEquals(lines.size(), 3 + 2 * lookups + table.getRegExRules().size());
+        assertEquals(mapLines.size(), table.getLiteralRuleCount());
+        assertTrue(mapLines.contains("/advice/ 10.11.17.151:7000"), mapLines.toString());
+    }
+
+    /**
+     * Moving a literal rule to another vip only changes the map, the configuration must change with it so that the
+     * agents reload the map before the old vip is removed.
+     */
+    @Test
+    public void testRewriteMapChangeChangesConfigDigest() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
+        final ApacheConfigurationBuilder configBuilder = new ApacheConfigurationBuilder();
+        configBuilder.setRewriteMap(true);
+        final ApacheRewriteMapBuilder mapBuilder = new ApacheRewriteMapBuilder(configBuilder);
+
+        final CompiledRuleSet before = compile(urlTokenResolver,
+                "/advice/", "10.0.0.1:80", "/[make]/**", "10.0.0.2:80");
+        final CompiledRuleSet after = compile(urlTokenResolver,
+                "/advice/", "10.0.0.3:80", "/[make]/**", "10.0.0.2:80");
+
+        mapBuilder.build(null, before);
+        final List<String> lines = IOUtils.readLines(
+                new ByteArrayInputStream(configBuilder.build(null, before)), "UTF8");
+        final String mapDigest = mapBuilder.getActiveRuleSetDigest();
+        final String digest = configBuilder.getActiveRuleSetDigest();
+
+        mapBuilder.build(null, after);
+        final List<String> changedLines = IOUtils.readLines(
+                new ByteArrayInputStream(configBuilder.build(null, after)), "UTF8");
+
+        assertFalse(mapBuilder.getActiveRuleSetDigest().equals(mapDigest));
+        assertFalse(configBuilder.getActiveRuleSetDigest().equals(digest));
+
+        // Only the digest of the map differs.
+        assertEquals(changedLines.get(1), "# etm-rules " + mapBuilder.getActiveRuleSetDigest());
+        assertEquals(changedLines.subList(2, changedLines.size()), lines.subList(2, lines.size()));
+    }
+
+    @Test
+    public void testRewriteMapDisabled() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
+        final ApacheConfigurationBuilder configBuilder = new ApacheConfigurationBuilder();
+        final ApacheRewriteMapBuilder mapBuilder = new ApacheRewriteMapBuilder(configBuilder);
+
+        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver, loadUrlLines());
+        final byte[] result = mapBuilder.build(null, CompiledRuleSet.compile(urlTokenResolver, urlRules));
+
+        assertNotNull(result);
+        assertEquals(result.length, 0);
+    }
+
+    @Test
+    public void testRewriteMapSettingIsReadOncePerRebuild() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
+        final ApacheConfigurationBuilder configBuilder = new ApacheConfigurationBuilder();
+        configBuilder.setRewriteMap(true);
+        final ApacheRewriteMapBuilder mapBuilder = new ApacheRewriteMapBuilder(configBuilder);
+
+        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver, loadUrlLines());
+        final CompiledRuleSet compiledRules = CompiledRuleSet.compile(urlTokenResolver, urlRules);
+
+        // Disabling the map while the rebuild runs must not leave the configuration without its map.
+        final byte[] result = configBuilder.build(null, compiledRules);
+        configBuilder.setRewriteMap(false);
+        final byte[] mapResult = mapBuilder.build(null, compiledRules);
+
+        assertTrue(new String(result, "UTF8").contains("RewriteMap etm-rules"));
+        assertTrue(mapResult.length > 0);
+
+        // The next rebuild sees the change.
+        assertEquals(mapBuilder.build(null, CompiledRuleSet.compile(urlTokenResolver, urlRules)).length, 0);
+    }
+
+    @Test
+    public void testBuildResultIsNotSharedWithActiveRuleSet() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
+        final ApacheConfigurationBuilder configBuilder = new ApacheConfigurationBuilder();
+
+        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver, loadUrlLines());
+        final byte[] result = configBuilder.build(null, CompiledRuleSet.compile(urlTokenResolver, urlRules));
+        final byte[] expected = result.clone();
+
+        result[0] = (byte) ~result[0];
+
+        assertEquals(configBuilder.getActiveRuleSetData().toByteArray(), expected);
+    }
+
+    @Test
+    public void testSkipChainConfigGeneration() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
+
+        final ApacheConfigurationBuilder configBuilder = new ApacheConfigurationBuilder();
+        configBuilder.setSkipChains(true);
+        configBuilder.setMinSkipGroupSize(2);
+
+        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver, loadUrlLines());
+        final byte[] result = configBuilder.build(null, CompiledRuleSet.compile(urlTokenResolver, urlRules));
+        final List<String> lines = IOUtils.readLines(new ByteArrayInputStream(result), "UTF8");
+
+        // Every skip is followed by the rules it skips and every rule is still present.
+        final Pattern skip = Pattern.compile("^RewriteRule \\^ - \\[S=(\\d+)\\]$");
+        int skips = 0;
+        int rules = 0;
+        for (int i = 1; i < lines.size(); i++) {
+            final Matcher matcher = skip.matcher(lines.get(i));
+            if (matcher.matches()) {
+                assertTrue(lines.get(i - 1).startsWith("RewriteCond %{REQUEST_URI} !^/"), lines.get(i - 1));
+                final int count = Integer.parseInt(matcher.group(1));
+                for (int j = 1; j <= count; j++) {
+                    assertTrue(lines.get(i + j).endsWith("$0 [P]"), lines.get(i + j));
+                }
+                skips++;
+            } else if (lines.get(i).startsWith("RewriteRule ")) {
+                rules++;
+            }
+        }
+        assertTrue(skips > 0);
+        assertEquals(rules, urlRules.size());
+    }
+
+    private UrlTokenDictionary createUrlTokenDictionary() {
         final UrlTokenDictionary urlTokenResolver = new UrlTokenDictionary();
 
         urlTokenResolver.add(new RegexUrlToken("model", "[^/]*"));
@@ -36,20 +241,7 @@ public class ApacheConfigurationBuilderTest {
                 "nissan", "oldsmobile", "panoz", "plymouth", "pontiac", "porsche", "ram", "rolls-royce", "rollsroyce",
                 "saab", "saturn", "scion", "smart", "spyker", "srt", "subaru", "suzuki", "tesla", "toyota",
                 "volkswagen", "volvo"));
-
-        final ApacheConfigurationBuilder configBuilder = new ApacheConfigurationBuilder();
-        configBuilder.setUrlTokenResolver(urlTokenResolver);
-
-        final List<String> lines = loadUrlLines();
-        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver, lines);
-        final byte[] result = configBuilder.build(null, urlRules);
-
-        // Load the expected value
-        final byte[] expectedConfig = loadApacheConfig();
-        assertNotNull(expectedConfig, "Unable to load sample Apache config");
-
-        assertNotNull(result);
-        assertEquals(result, expectedConfig);
+        return urlTokenResolver;
     }
 
     private List<UrlRule> loadUrlRules(UrlTokenResolver urlTokenResolver, List<String> lines) {
@@ -7,7 +7,10 @@ import com.edmunds.etm.loadbalancer.api.VirtualServer;
 import com.edmunds.etm.management.api.HostAddress;
 import com.edmunds.etm.management.api.HttpMonitor;
 import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.LiteralRuleTable;
 import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlRuleSet;
 import com.edmunds.etm.rules.api.UrlTokenResolver;
 import com.edmunds.etm.rules.impl.UrlTokenDictionary;
 import com.edmunds.etm.runtime.api.Application;
@@ -16,6 +19,7 @@ import com.google.common.collect.Sets;
 import org.apache.commons.io.IOUtils;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -23,7 +27,9 @@ import java.util.List;
 import java.util.Set;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
 
 @Test
 public class HaProxyConfigurationBuilderTest {
@@ -31,29 +37,16 @@ public class HaProxyConfigurationBuilderTest {
     @Test
     public void testApacheConfigGeneration() throws Exception {
 
-        final UrlTokenDictionary urlTokenResolver = new UrlTokenDictionary();
-
-        urlTokenResolver.add(new RegexUrlToken("model", "[^/]*"));
-        urlTokenResolver.add(new RegexUrlToken("year", "(19|20)\\d{2}"));
-        urlTokenResolver.add(new FixedUrlToken("make",
-                "acura", "am-general", "amgeneral", "aston-martin", "astonmartin", "audi", "bentley", "bmw", "bugatti",
-                "buick", "cadillac", "chevrolet", "chrysler", "daewoo", "dodge", "dummy", "eagle", "ferrari", "fiat",
-                "fisker", "ford", "geo", "gmc", "honda", "hummer", "hyundai", "infiniti", "isuzu", "jaguar", "jeep",
-                "kia", "lamborghini", "land-rover", "landrover", "lexus", "lincoln", "lotus", "mahindra", "maserati",
-                "maybach", "mazda", "mclaren", "mercedes-benz", "mercedesbenz", "mercury", "mini", "mitsubishi",
-                "nissan", "oldsmobile", "panoz", "plymouth", "pontiac", "porsche", "ram", "rolls-royce", "rollsroyce",
-                "saab", "saturn", "scion", "smart", "spyker", "srt", "subaru", "suzuki", "tesla", "toyota",
-                "volkswagen", "volvo", "alfa-romeo"));
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
 
         final HaProxyConfigurationBuilder configBuilder = new HaProxyConfigurationBuilder();
-        configBuilder.setUrlTokenResolver(urlTokenResolver);
 
         final List<String> lines = loadUrlLines();
         final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver, lines);
         final Set<MavenModule> mavenModules = getMavenModules(urlRules);
         final List<Application> applications = buildApplications(mavenModules);
 
-        final byte[] result = configBuilder.build(applications, urlRules);
+        final byte[] result = configBuilder.build(applications, CompiledRuleSet.compile(urlTokenResolver, urlRules));
 
         // Load the expected value
         final byte[] expectedConfig = loadHaProxyConfig();
@@ -63,6 +56,179 @@ public class HaProxyConfigurationBuilderTest {
         assertEquals(result, expectedConfig);
     }
 
+    @Test
+    public void testMapFileConfigGeneration() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
+
+        final HaProxyConfigurationBuilder configBuilder = new HaProxyConfigurationBuilder();
+        configBuilder.setMapFiles(true);
+        final HaProxyExactMapBuilder exactMapBuilder = new HaProxyExactMapBuilder(configBuilder);
+        final HaProxyPrefixMapBuilder prefixMapBuilder = new HaProxyPrefixMapBuilder(configBuilder);
+
+        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver, loadUrlLines());
+        final List<Application> applications = buildApplications(getMavenModules(urlRules));
+        final CompiledRuleSet compiledRules =
+                CompiledRuleSet.compile(urlTokenResolver, new UrlRuleSet(urlRules).orderRules());
+        final LiteralRuleTable table = compiledRules.getLiteralRuleTable();
+
+        final List<String> lines = readLines(configBuilder.build(applications, compiledRules));
+        final List<String> exactLines = readLines(exactMapBuilder.build(applications, compiledRules));
+        final List<String> prefixLines = readLines(prefixMapBuilder.build(applications, compiledRules));
+
+        assertTrue(lines.contains("        use_backend %[path,map_str(/etc/haproxy/etm-exact.map)] " +
+                "if { path,map_str(/etc/haproxy/etm-exact.map) -m found }"));
+        assertTrue(lines.contains("        use_backend %[path,map_beg(/etc/haproxy/etm-prefix.map)] " +
+                "if { path,map_beg(/etc/haproxy/etm-prefix.map) -m found }"));
+
+        int pathRegRules = 0;
+        for (String line : lines) {
+            if (line.contains("if { path_reg ^/")) {
+                pathRegRules++;
+            }
+        }
+        assertEquals(pathRegRules, table.getRegExRules().size());
+        assertEquals(exactLines.size(), table.getExactPaths().size());
+        assertEquals(prefixLines.size(), table.getPrefixes().size());
+        assertTrue(prefixLines.size() > 0);
+
+        // The longest prefix must be the first match.
+        int depth = Integer.MAX_VALUE;
+        for (String line : prefixLines) {
+            final String[] split = line.split(" ");
+            assertTrue(LiteralRuleTable.getDepth(split[0]) <= depth, line);
+            assertEquals(split[1], table.getPrefixes().get(split[0]).getArtifactId());
+            depth = LiteralRuleTable.getDepth(split[0]);
+        }
+    }
+
+    @Test
+    public void testMapFilesSettingIsReadOncePerRebuild() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
+        final HaProxyConfigurationBuilder configBuilder = new HaProxyConfigurationBuilder();
+        configBuilder.setMapFiles(true);
+        final HaProxyExactMapBuilder exactMapBuilder = new HaProxyExactMapBuilder(configBuilder);
+        final HaProxyPrefixMapBuilder prefixMapBuilder = new HaProxyPrefixMapBuilder(configBuilder);
+
+        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver, loadUrlLines());
+        final List<Application> applications = buildApplications(getMavenModules(urlRules));
+        final CompiledRuleSet compiledRules =
+                CompiledRuleSet.compile(urlTokenResolver, new UrlRuleSet(urlRules).orderRules());
+
+        // Disabling the map files while the rebuild runs must not leave the configuration without its maps.
+        final List<String> lines = readLines(configBuilder.build(applications, compiledRules));
+        configBuilder.setMapFiles(false);
+
+        assertTrue(lines.contains("        use_backend %[path,map_str(/etc/haproxy/etm-exact.map)] " +
+                "if { path,map_str(/etc/haproxy/etm-exact.map) -m found }"));
+        assertTrue(exactMapBuilder.build(applications, compiledRules).length > 0);
+        assertTrue(prefixMapBuilder.build(applications, compiledRules).length > 0);
+
+        // The next rebuild sees the change.
+        final CompiledRuleSet nextRules =
+                CompiledRuleSet.compile(urlTokenResolver, new UrlRuleSet(urlRules).orderRules());
+        assertEquals(exactMapBuilder.build(applications, nextRules).length, 0);
+
+        // The maps are deployed before the configuration that references them.
+        assertTrue(exactMapBuilder.getOrder() < configBuilder.getOrder());
+        assertTrue(prefixMapBuilder.getOrder() < configBuilder.getOrder());
+    }
+
+    /**
+     * Moving literal rules to another backend only changes the maps, HA Proxy reads the maps when it reloads so the
+     * configuration must change with them.
+     */
+    @Test
+    public void testMapChangeChangesConfigDigest() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
+        final HaProxyConfigurationBuilder configBuilder = new HaProxyConfigurationBuilder();
+        configBuilder.setMapFiles(true);
+        final HaProxyExactMapBuilder exactMapBuilder = new HaProxyExactMapBuilder(configBuilder);
+        final HaProxyPrefixMapBuilder prefixMapBuilder = new HaProxyPrefixMapBuilder(configBuilder);
+
+        final MavenModule advice = new MavenModule("com.edmunds", "advice-web", "1.0");
+        final MavenModule tips = new MavenModule("com.edmunds", "tips-web", "1.0");
+        final MavenModule landing = new MavenModule("com.edmunds", "landing-web", "1.0");
+        final List<Application> applications = buildApplications(Sets.newTreeSet(Lists.newArrayList(
+                advice, tips, landing)));
+
+        final CompiledRuleSet before = CompiledRuleSet.compile(urlTokenResolver, Lists.newArrayList(
+                new UrlRule(urlTokenResolver, advice, "10.0.0.1:80", "/advice/"),
+                new UrlRule(urlTokenResolver, tips, "10.0.0.2:80", "/tips/**"),
+                new UrlRule(urlTokenResolver, landing, "10.0.0.3:80", "/[make]/**")));
+        final CompiledRuleSet after = CompiledRuleSet.compile(urlTokenResolver, Lists.newArrayList(
+                new UrlRule(urlTokenResolver, landing, "10.0.0.3:80", "/advice/"),
+                new UrlRule(urlTokenResolver, landing, "10.0.0.3:80", "/tips/**"),
+                new UrlRule(urlTokenResolver, landing, "10.0.0.3:80", "/[make]/**")));
+
+        exactMapBuilder.build(applications, before);
+        prefixMapBuilder.build(applications, before);
+        final List<String> lines = readLines(configBuilder.build(applications, before));
+        final String exactMapDigest = exactMapBuilder.getActiveRuleSetDigest();
+        final String prefixMapDigest = prefixMapBuilder.getActiveRuleSetDigest();
+        final String digest = configBuilder.getActiveRuleSetDigest();
+
+        exactMapBuilder.build(applications, after);
+        prefixMapBuilder.build(applications, after);
+        final List<String> changedLines = readLines(configBuilder.build(applications, after));
+
+        assertFalse(exactMapBuilder.getActiveRuleSetDigest().equals(exactMapDigest));
+        assertFalse(prefixMapBuilder.getActiveRuleSetDigest().equals(prefixMapDigest));
+        assertFalse(configBuilder.getActiveRuleSetDigest().equals(digest));
+
+        // Only the digests of the maps differ.
+        assertTrue(changedLines.contains("        # /etc/haproxy/etm-exact.map " +
+                exactMapBuilder.getActiveRuleSetDigest()));
+        assertTrue(changedLines.contains("        # /etc/haproxy/etm-prefix.map " +
+                prefixMapBuilder.getActiveRuleSetDigest()));
+        lines.removeAll(Lists.newArrayList(
+                "        # /etc/haproxy/etm-exact.map " + exactMapDigest,
+                "        # /etc/haproxy/etm-prefix.map " + prefixMapDigest));
+        changedLines.removeAll(Lists.newArrayList(
+                "        # /etc/haproxy/etm-exact.map " + exactMapBuilder.getActiveRuleSetDigest(),
+                "        # /etc/haproxy/etm-prefix.map " + prefixMapBuilder.getActiveRuleSetDigest()));
+        assertEquals(changedLines, lines);
+    }
+
+    @Test
+    public void testMapFilesDisabled() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = createUrlTokenDictionary();
+
+        final HaProxyConfigurationBuilder configBuilder = new HaProxyConfigurationBuilder();
+        final HaProxyExactMapBuilder exactMapBuilder = new HaProxyExactMapBuilder(configBuilder);
+
+        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver, loadUrlLines());
+        final byte[] result = exactMapBuilder.build(null, CompiledRuleSet.compile(urlTokenResolver, urlRules));
+
+        assertNotNull(result);
+        assertEquals(result.length, 0);
+    }
+
+    private UrlTokenDictionary createUrlTokenDictionary() {
+        final UrlTokenDictionary urlTokenResolver = new UrlTokenDictionary();
+
+        urlTokenResolver.add(new RegexUrlToken("model", "[^/]*"));
+        urlTokenResolver.add(new RegexUrlToken("year", "(19|20)\\d{2}"));
+        urlTokenResolver.add(new FixedUrlToken("make",
+                "acura", "am-general", "amgeneral", "aston-martin", "astonmartin", "audi", "bentley", "bmw", "bugatti",
+                "buick", "cadillac", "chevrolet", "chrysler", "daewoo", "dodge", "dummy", "eagle", "ferrari", "fiat",
+                "fisker", "ford", "geo", "gmc", "honda", "hummer", "hyundai", "infiniti", "isuzu", "jaguar", "jeep",
+                "kia", "lamborghini", "land-rover", "landrover", "lexus", "lincoln", "lotus", "mahindra", "maserati",
+                "maybach", "mazda", "mclaren", "mercedes-benz", "mercedesbenz", "mercury", "mini", "mitsubishi",
+                "nissan", "oldsmobile", "panoz", "plymouth", "pontiac", "porsche", "ram", "rolls-royce", "rollsroyce",
+                "saab", "saturn", "scion", "smart", "spyker", "srt", "subaru", "suzuki", "tesla", "toyota",
+                "volkswagen", "volvo", "alfa-romeo"));
+        return urlTokenResolver;
+    }
+
+    private List<String> readLines(byte[] data) throws IOException {
+        assertNotNull(data);
+        return IOUtils.readLines(new ByteArrayInputStream(data), "UTF8");
+    }
+
     private List<Application> buildApplications(Set<MavenModule> mavenModules) {
         final HttpMonitor httpMonitor = new HttpMonitor("/support-internal/index.jsp", "Admin Home");
         final HostAddress vipHost = new HostAddress("localhost", 8000);
@@ -0,0 +1,188 @@
+package com.edmunds.etm.nginx.configbuilder;
+
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.CompiledUrlRule;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlRuleSet;
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.compile;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.firstMatch;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.loadUrlRules;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.newSampleTokenDictionary;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.sampleUrls;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class NginxConfigurationBuilderTest {
+
+    private static final Pattern LOCATION =
+            Pattern.compile("^location (=|\\^~|~) (\"?)(.*)\\2 \\{ proxy_pass http://([^;]+); \\}$");
+
+    private static final String REDIRECT = "301";
+
+    @Test
+    public void testNginxConfigGeneration() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = newSampleTokenDictionary();
+
+        final NginxConfigurationBuilder configBuilder = new NginxConfigurationBuilder();
+
+        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver);
+        final byte[] result = configBuilder.build(null, CompiledRuleSet.compile(urlTokenResolver, urlRules));
+
+        // Load the expected value
+        final byte[] expectedConfig = loadNginxConfig();
+        assertNotNull(expectedConfig, "Unable to load sample nginx config");
+
+        assertNotNull(result);
+        assertEquals(result, expectedConfig);
+    }
+
+    /**
+     * Evaluates the generated locations with the nginx algorithm and compares the result with the first matching
+     * rule.
+     */
+    @Test
+    public void testLocationPrecedence() throws Exception {
+
+        final UrlTokenDictionary urlTokenResolver = newSampleTokenDictionary();
+
+        final NginxConfigurationBuilder configBuilder = new NginxConfigurationBuilder();
+
+        final List<UrlRule> urlRules = loadUrlRules(urlTokenResolver);
+        final CompiledRuleSet compiledRules =
+                CompiledRuleSet.compile(urlTokenResolver, new UrlRuleSet(urlRules).orderRules());
+        final Locations locations = new Locations(configBuilder.build(null, compiledRules));
+        assertTrue(locations.exact.size() + locations.prefixes.size() > 0);
+
+        assertFirstMatch(locations, compiledRules);
+    }
+
+    /**
+     * Literal prefixes that no earlier rule overlaps become "location ^~". The path of /advice/ without the slash is
+     * routed by a later rule, the path of /tips/cars/ by no rule at all.
+     */
+    @Test
+    public void testPrefixLocations() throws Exception {
+
+        final CompiledRuleSet compiledRules = compile(newSampleTokenDictionary(),
+                "/advice/**", "10.0.0.1:80",
+                "/tips/cars/**", "10.0.0.2:80",
+                "/news/**", "10.0.0.3:80",
+                "/advice/[model].html", "10.0.0.5:80",
+                "/[model]", "10.0.0.6:80",
+                "/tips/cars/index.html", "10.0.0.7:80");
+
+        final Locations locations = new Locations(new NginxConfigurationBuilder().build(null, compiledRules));
+
+        assertEquals(locations.prefixes.keySet(), Sets.newHashSet("/advice/", "/news/"));
+        assertEquals(locations.exact.get("/advice"), "10.0.0.6:80");
+        assertEquals(locations.exact.get("/news"), "10.0.0.6:80");
+        assertFalse(locations.exact.containsKey("/tips/cars"));
+
+        assertFirstMatch(locations, compiledRules);
+    }
+
+    @Test
+    public void testQuote() {
+        assertEquals(NginxConfigurationBuilder.quote("/advice/"), "/advice/");
+        assertEquals(NginxConfigurationBuilder.quote("^/app/.*\\.html$"), "^/app/.*\\.html$");
+        assertEquals(NginxConfigurationBuilder.quote("^/(19|20)\\d{2}/$"), "\"^/(19|20)\\d{2}/$\"");
+        assertEquals(NginxConfigurationBuilder.quote("/a b/"), "\"/a b/\"");
+        assertEquals(NginxConfigurationBuilder.quote("/a;b/"), "\"/a;b/\"");
+        assertEquals(NginxConfigurationBuilder.quote("/a\"b/"), "\"/a\\\"b/\"");
+        assertEquals(NginxConfigurationBuilder.quote("^/a\\\\b$"), "^/a\\\\\\b$");
+    }
+
+    private void assertFirstMatch(Locations locations, CompiledRuleSet compiledRules) {
+        for (CompiledUrlRule rule : compiledRules) {
+            for (String url : sampleUrls(rule.getRule())) {
+                assertEquals(locations.locate(url), firstMatch(compiledRules, url), url);
+            }
+        }
+    }
+
+    private byte[] loadNginxConfig() throws IOException {
+        InputStream stream = null;
+        try {
+            stream = getClass().getResourceAsStream("/nginx.conf");
+
+            return IOUtils.toByteArray(stream);
+        } finally {
+            if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * The locations of a generated configuration.
+     */
+    private static class Locations {
+        private final Map<String, String> exact = Maps.newHashMap();
+        private final Map<String, String> prefixes = Maps.newHashMap();
+        private final Map<Pattern, String> regExs = Maps.newLinkedHashMap();
+
+        public Locations(byte[] configuration) throws IOException {
+            for (String line : IOUtils.readLines(new ByteArrayInputStream(configuration), "UTF8")) {
+                final Matcher matcher = LOCATION.matcher(line);
+                assertTrue(matcher.matches(), line);
+                if ("=".equals(matcher.group(1))) {
+                    exact.put(matcher.group(3), matcher.group(4));
+                } else if ("^~".equals(matcher.group(1))) {
+                    prefixes.put(matcher.group(3), matcher.group(4));
+                } else {
+                    regExs.put(Pattern.compile(matcher.group(3).replace("\\\"", "\"")), matcher.group(4));
+                }
+            }
+        }
+
+        /**
+         * Returns the vip of the location nginx selects for the url, or {@link #REDIRECT} if nginx redirects the url
+         * to a prefix location.
+         */
+        public String locate(String url) {
+            if (exact.containsKey(url)) {
+                return exact.get(url);
+            }
+
+            // A proxied prefix location redirects its path without the trailing slash.
+            if (prefixes.containsKey(url + "/")) {
+                return REDIRECT;
+            }
+
+            String longestPrefix = null;
+            for (String prefix : prefixes.keySet()) {
+                if (url.startsWith(prefix) && (longestPrefix == null || prefix.length() > longestPrefix.length())) {
+                    longestPrefix = prefix;
+                }
+            }
+            if (longestPrefix != null) {
+                return prefixes.get(longestPrefix);
+            }
+
+            for (Map.Entry<Pattern, String> entry : regExs.entrySet()) {
+                if (entry.getKey().matcher(url).find()) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+    }
+}
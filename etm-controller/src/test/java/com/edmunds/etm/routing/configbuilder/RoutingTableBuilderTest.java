@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.routing.configbuilder;
+
+import com.edmunds.etm.common.api.FixedUrlToken;
+import com.edmunds.etm.routing.api.RoutingTable;
+import com.edmunds.etm.routing.api.RoutingTableFormat;
+import com.edmunds.etm.rules.api.CompiledRuleSet;
+import com.edmunds.etm.rules.api.DefaultUrlTokenDictionary;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.UrlRuleSet;
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.compile;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.firstMatchIndex;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.loadUrlRules;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.sampleUrls;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+/**
+ * Tests the RoutingTableBuilder together with the reference RoutingTable reader.
+ *
+ * @author David Trott
+ */
+@Test
+public class RoutingTableBuilderTest {
+
+    private UrlTokenDictionary dictionary;
+    private RoutingTableBuilder builder;
+
+    @BeforeClass
+    public void setup() {
+        dictionary = DefaultUrlTokenDictionary.newInstance();
+        builder = new RoutingTableBuilder();
+    }
+
+    @Test
+    public void matchesFirstRule() {
+        final CompiledRuleSet rules = compile(dictionary,
+                "/advice/", "alpha",
+                "/[make]/index.html", "beta",
+                "/ford/index.html", "alpha",
+                "/[make]/[model]/*.html", "gamma",
+                "/[year]/review-*.html", "beta",
+                "/**/car-incentives.html", "gamma",
+                "/app/**", "beta",
+                "/**", "alpha");
+        final RoutingTable table = new RoutingTable(builder.build(null, rules));
+
+        assertEquals(table.getRuleCount(), 8);
+        assertEquals(table.getRule(1), "/[make]/index.html");
+        assertEquals(table.getArtifactId(1), "test-app");
+
+        assertEquals(table.findRule("/advice/"), 0);
+        assertEquals(table.findRule("/ford/index.html"), 1);
+        assertEquals(table.findRule("/ford/focus/specs.html"), 3);
+        assertEquals(table.findRule("/2012/review-focus.html"), 4);
+        assertEquals(table.findRule("/2012/review.html"), 7);
+        assertEquals(table.findRule("/app/car-incentives.html"), 5);
+        assertEquals(table.findRule("/a/b/car-incentives.html"), 5);
+        assertEquals(table.findRule("/car-incentives.html"), 7);
+        assertEquals(table.findRule("/app/"), 6);
+        assertEquals(table.findRule("/app"), 7);
+        assertEquals(table.route("/"), "alpha");
+        assertEquals(table.findRule("advice"), RoutingTableFormat.NO_RULE);
+    }
+
+    @Test
+    public void usesTokensOfCompiledRules() {
+        final UrlTokenDictionary changingDictionary = DefaultUrlTokenDictionary.newInstance();
+        final CompiledRuleSet rules = compile(changingDictionary, "/[make]/index.html", "alpha", "/**", "beta");
+
+        // A token that changes after the rules were compiled must not change the table built from them.
+        changingDictionary.add(new FixedUrlToken("make", "tesla"));
+        final RoutingTable table = new RoutingTable(builder.build(null, rules));
+
+        assertEquals(table.findRule("/ford/index.html"), 0);
+        assertEquals(table.findRule("/tesla/index.html"), 1);
+    }
+
+    @Test
+    public void emptyTable() {
+        final RoutingTable table = new RoutingTable(builder.build(null, CompiledRuleSet.empty()));
+
+        assertEquals(table.getRuleCount(), 0);
+        assertEquals(table.findRule("/"), RoutingTableFormat.NO_RULE);
+        assertNull(table.route("/advice/"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsUnknownVersion() {
+        final byte[] data = builder.build(null, compile(dictionary, "/**", "alpha")).clone();
+        data[7] = 99;
+        new RoutingTable(data);
+    }
+
+    @Test
+    public void mapsFile() throws IOException {
+        final File file = File.createTempFile("routing-table", ".bin");
+        try {
+            FileUtils.writeByteArrayToFile(
+                    file, builder.build(null, compile(dictionary, "/advice/", "alpha", "/**", "beta")));
+            final RoutingTable table = RoutingTable.map(file);
+
+            assertEquals(table.route("/advice/"), "alpha");
+            assertEquals(table.route("/other/"), "beta");
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void sampleRulesMatchRuleEngine() throws IOException {
+        final List<UrlRule> urlRules = loadUrlRules(dictionary);
+
+        final List<String> urls = Lists.newArrayList();
+        for (UrlRule rule : urlRules) {
+            urls.addAll(sampleUrls(rule.getRule()));
+        }
+
+        final CompiledRuleSet fileOrder = CompiledRuleSet.compile(dictionary, urlRules);
+        final CompiledRuleSet ruleOrder = CompiledRuleSet.compile(dictionary, new UrlRuleSet(urlRules).orderRules());
+
+        for (CompiledRuleSet rules : Arrays.asList(fileOrder, ruleOrder)) {
+            final RoutingTable table = new RoutingTable(builder.build(null, rules));
+            for (String url : urls) {
+                assertEquals(table.findRule(url), firstMatchIndex(rules, url), url);
+            }
+        }
+    }
+}
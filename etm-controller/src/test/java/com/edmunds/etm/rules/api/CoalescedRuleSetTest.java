@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.google.common.collect.Lists;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the CoalescedRuleSet.
+ *
+ * @author David Trott
+ */
+@Test
+public class CoalescedRuleSetTest {
+
+    private static final List<String> URLS = Arrays.asList(
+            "/", "/index.html", "/app/", "/app/delta/index.html", "/app/delta/other.html", "/app/abc",
+            "/ford/focus/index.html", "/ford/focus/review.html", "/ford/focus/", "/used/ford/", "/new/honda/x.html",
+            "/other/page.html", "/app/x/y/b/", "/a/b/c/d");
+
+    private UrlTokenDictionary dictionary;
+    private MavenModule alpha;
+    private MavenModule beta;
+
+    @BeforeClass
+    public void setup() {
+        dictionary = DefaultUrlTokenDictionary.newInstance();
+        alpha = new MavenModule("com.edmunds", "alpha", "1.0");
+        beta = new MavenModule("com.edmunds", "beta", "1.0");
+    }
+
+    @Test
+    public void mergesRunsForTheSameVip() {
+        final CompiledRuleSet rules = compile(
+                alpha, "/app/delta/index.html",
+                alpha, "/app/a*",
+                beta, "/[make]/[model]/index.html",
+                alpha, "/app/**",
+                alpha, "/[make]/**",
+                alpha, "/**");
+        final CoalescedRuleSet coalesced = CoalescedRuleSet.coalesce(rules, 4000);
+
+        assertEquals(coalesced.getRuleCount(), 6);
+        assertEquals(coalesced.size(), 3);
+        assertEquals(coalesced.getRules().get(0).getRules().size(), 2);
+        assertEquals(coalesced.getRules().get(1).getRules().size(), 1);
+        assertEquals(coalesced.getRules().get(2).getRules().size(), 3);
+        assertEquals(coalesced.getRules().get(0).getArtifactId(), "alpha");
+        assertEquals(coalesced.getRules().get(1).getArtifactId(), "beta");
+
+        // A rule on its own keeps its expression.
+        assertEquals(coalesced.getRules().get(1).getRegEx(), rules.getRules().get(2).getRegEx());
+        assertTrue(coalesced.getRules().get(0).getRegEx().startsWith("^(?:"));
+        assertTrue(coalesced.getRules().get(0).getRegEx().endsWith(")$"));
+
+        assertEquals(coalesced.getUncoalescedAverageEvaluations(), 3.5);
+        assertEquals(coalesced.getAverageEvaluations(), (2 * 1 + 1 * 2 + 3 * 3) / 6.0);
+    }
+
+    @Test
+    public void maxLengthSplitsRuns() {
+        final CompiledRuleSet rules = compile(
+                alpha, "/a/index.html",
+                alpha, "/b/index.html",
+                alpha, "/c/index.html",
+                alpha, "/d/index.html");
+
+        final int mergedLength = CoalescedRuleSet.coalesce(rules, 4000).getRules().get(0).getRegEx().length();
+        assertEquals(CoalescedRuleSet.coalesce(rules, mergedLength).size(), 1);
+        assertEquals(CoalescedRuleSet.coalesce(rules, mergedLength - 1).size(), 2);
+
+        for (CoalescedRule rule : CoalescedRuleSet.coalesce(rules, 40)) {
+            assertTrue(rule.getRules().size() == 1 || rule.getRegEx().length() <= 40, rule.getRegEx());
+        }
+    }
+
+    @Test
+    public void uncoalescedIsOneToOne() {
+        final CompiledRuleSet rules = compile(alpha, "/app/**", alpha, "/**");
+        final CoalescedRuleSet uncoalesced = CoalescedRuleSet.uncoalesced(rules);
+
+        assertEquals(uncoalesced.size(), 2);
+        for (int i = 0; i < rules.size(); i++) {
+            assertEquals(uncoalesced.getRules().get(i).getRegEx(), rules.getRules().get(i).getRegEx());
+        }
+        assertEquals(uncoalesced.getAverageEvaluations(), uncoalesced.getUncoalescedAverageEvaluations());
+    }
+
+    @Test
+    public void routingIsUnchanged() {
+        final CompiledRuleSet rules = compile(
+                alpha, "/app/delta/index.html",
+                beta, "/app/delta/*.html",
+                beta, "/app/a*",
+                beta, "/[make]/[model]/index.html",
+                alpha, "/[make]/[model]/*.html",
+                alpha, "/[make]/[model]/",
+                beta, "/[make]/**",
+                beta, "/app/**/b/",
+                alpha, "/app/**",
+                alpha, "/*.html",
+                beta, "/**");
+
+        final String[] limits = {"4000", "60", "1"};
+        for (String limit : limits) {
+            final CoalescedRuleSet coalesced = CoalescedRuleSet.coalesce(rules, Integer.parseInt(limit));
+            for (String url : URLS) {
+                assertEquals(firstMatch(coalesced, url), firstMatch(CoalescedRuleSet.uncoalesced(rules), url), url);
+            }
+        }
+    }
+
+    @Test
+    public void emptyRules() {
+        final CoalescedRuleSet coalesced = CoalescedRuleSet.coalesce(CompiledRuleSet.empty(), 4000);
+        assertEquals(coalesced.size(), 0);
+        assertEquals(coalesced.getAverageEvaluations(), 0.0);
+        assertEquals(coalesced.getUncoalescedAverageEvaluations(), 0.0);
+    }
+
+    private String firstMatch(CoalescedRuleSet rules, String url) {
+        for (CoalescedRule rule : rules) {
+            if (Pattern.compile(rule.getRegEx()).matcher(url).matches()) {
+                return rule.getArtifactId();
+            }
+        }
+        return null;
+    }
+
+    private CompiledRuleSet compile(Object... modulesAndRules) {
+        final List<UrlRule> rules = Lists.newArrayList();
+        for (int i = 0; i < modulesAndRules.length; i += 2) {
+            final MavenModule module = (MavenModule) modulesAndRules[i];
+            final String vip = module == alpha ? "alpha:80" : "beta:80";
+            rules.add(new UrlRule(dictionary, module, vip, (String) modulesAndRules[i + 1]));
+        }
+        return CompiledRuleSet.compile(dictionary, rules);
+    }
+}
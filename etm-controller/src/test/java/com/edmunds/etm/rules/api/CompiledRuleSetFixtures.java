@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.edmunds.etm.common.api.FixedUrlToken;
+import com.edmunds.etm.common.api.RegexUrlToken;
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Rule sets and URLs shared by the tests that compare a generated configuration with the first matching rule.
+ *
+ * @author David Trott
+ */
+public final class CompiledRuleSetFixtures {
+
+    /**
+     * The module of the rules built by {@link #compile(UrlTokenDictionary, String...)}.
+     */
+    public static final MavenModule MAVEN_MODULE = new MavenModule("com.edmunds", "test-app", "1.0");
+
+    private CompiledRuleSetFixtures() {
+    }
+
+    /**
+     * Compiles the rules in the given order.
+     *
+     * @param dictionary   the tokens used by the rules.
+     * @param rulesAndVips pairs of rule and vip address.
+     * @return the compiled rules.
+     */
+    public static CompiledRuleSet compile(UrlTokenDictionary dictionary, String... rulesAndVips) {
+        final List<UrlRule> rules = Lists.newArrayList();
+        for (int i = 0; i < rulesAndVips.length; i += 2) {
+            rules.add(new UrlRule(dictionary, MAVEN_MODULE, rulesAndVips[i + 1], rulesAndVips[i]));
+        }
+        return CompiledRuleSet.compile(dictionary, rules);
+    }
+
+    /**
+     * Returns the index of the first rule that matches the url.
+     *
+     * @return the index or -1 if no rule matches.
+     */
+    public static int firstMatchIndex(CompiledRuleSet rules, String url) {
+        final List<CompiledUrlRule> ruleList = rules.getRules();
+        for (int i = 0; i < ruleList.size(); i++) {
+            if (Pattern.compile(ruleList.get(i).getRegEx()).matcher(url).matches()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the vip address of the first rule that matches the url.
+     *
+     * @return the vip address or null if no rule matches.
+     */
+    public static String firstMatch(CompiledRuleSet rules, String url) {
+        final int index = firstMatchIndex(rules, url);
+        return index < 0 ? null : rules.getRules().get(index).getVipAddress();
+    }
+
+    /**
+     * Paths that match the rule, plus near misses.
+     */
+    public static Set<String> sampleUrls(String rule) {
+        final Set<String> urls = Sets.newLinkedHashSet();
+        final String concrete = rule.replace("[make]", "ford").replace("[model]", "focus").replace("[year]", "2012");
+        final String[][] wildcards = {{"a/b", "x"}, {"", ""}, {"x", "y.html"}};
+
+        for (String[] wildcard : wildcards) {
+            final String url = concrete.replace("**", wildcard[0]).replace("*", wildcard[1]);
+            urls.add(url);
+            urls.add(url + "x");
+            for (int i = url.indexOf('/', 1); i > 0; i = url.indexOf('/', i + 1)) {
+                urls.add(url.substring(0, i));
+                urls.add(url.substring(0, i + 1));
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Creates the tokens used by the sample rules (url-rules.txt), the generated configurations in the test resources
+     * depend on the values of [make].
+     *
+     * @return a new dictionary.
+     */
+    public static UrlTokenDictionary newSampleTokenDictionary() {
+        final UrlTokenDictionary dictionary = new UrlTokenDictionary();
+
+        dictionary.add(new RegexUrlToken("model", "[^/]*"));
+        dictionary.add(new RegexUrlToken("year", "(19|20)\\d{2}"));
+        dictionary.add(new FixedUrlToken("make",
+                "acura", "am-general", "amgeneral", "aston-martin", "astonmartin", "audi", "bentley", "bmw", "bugatti",
+                "buick", "cadillac", "chevrolet", "chrysler", "daewoo", "dodge", "dummy", "eagle", "ferrari", "fiat",
+                "fisker", "ford", "geo", "gmc", "honda", "hummer", "hyundai", "infiniti", "isuzu", "jaguar", "jeep",
+                "kia", "lamborghini", "land-rover", "landrover", "lexus", "lincoln", "lotus", "mahindra", "maserati",
+                "maybach", "mazda", "mclaren", "mercedes-benz", "mercedesbenz", "mercury", "mini", "mitsubishi",
+                "nissan", "oldsmobile", "panoz", "plymouth", "pontiac", "porsche", "ram", "rolls-royce", "rollsroyce",
+                "saab", "saturn", "scion", "smart", "spyker", "srt", "subaru", "suzuki", "tesla", "toyota",
+                "volkswagen", "volvo"));
+        return dictionary;
+    }
+
+    /**
+     * Loads the sample rules in file order, all rules belong to {@link #MAVEN_MODULE}.
+     *
+     * @param dictionary the tokens used by the rules.
+     * @return the rules of url-rules.txt.
+     */
+    public static List<UrlRule> loadUrlRules(UrlTokenDictionary dictionary) throws IOException {
+        final List<UrlRule> urlRules = Lists.newArrayList();
+        for (String line : loadUrlLines()) {
+            final String[] split = line.split("\t");
+            urlRules.add(new UrlRule(dictionary, MAVEN_MODULE, split[2], split[0]));
+        }
+        return urlRules;
+    }
+
+    /**
+     * Loads the sample rules, each line holds the rule, the artifact and the vip address separated by tabs.
+     *
+     * @return the lines of url-rules.txt.
+     */
+    public static List<String> loadUrlLines() throws IOException {
+        InputStream stream = null;
+        try {
+            stream = CompiledRuleSetFixtures.class.getResourceAsStream("/url-rules.txt");
+
+            return IOUtils.readLines(stream, "UTF8");
+        } finally {
+            if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+}
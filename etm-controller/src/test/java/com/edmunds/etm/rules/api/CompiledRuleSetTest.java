@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.google.common.collect.Lists;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests the CompiledRuleSet.
+ *
+ * @author David Trott
+ */
+@Test
+public class CompiledRuleSetTest {
+
+    private UrlTokenDictionary dictionary;
+    private MavenModule mavenModule;
+
+    @BeforeClass
+    public void setup() {
+        dictionary = DefaultUrlTokenDictionary.newInstance();
+        mavenModule = new MavenModule("com.edmunds", "test-app", "1.0");
+    }
+
+    @Test
+    public void regExMatchesRule() {
+        final List<UrlRule> rules = buildRules(
+                "/", "/**", "/app/**", "/app/delta/index.html", "/[make]/[model]/*.html", "/app/a*", "/app/**/b/");
+        final CompiledRuleSet compiledRules = CompiledRuleSet.compile(dictionary, rules);
+
+        assertEquals(compiledRules.size(), rules.size());
+        for (int i = 0; i < rules.size(); i++) {
+            final CompiledUrlRule compiledRule = compiledRules.getRules().get(i);
+            assertEquals(compiledRule.getUrlRule(), rules.get(i));
+            assertEquals(compiledRule.getRegEx(), rules.get(i).toRegEx(dictionary));
+            assertEquals(compiledRule.getArtifactId(), "test-app");
+            assertEquals(compiledRule.getVipAddress(), "localhost:80");
+        }
+    }
+
+    @Test
+    public void classification() {
+        assertCompiled("/", RuleMatchType.EXACT, "/");
+        assertCompiled("/app/delta/index.html", RuleMatchType.EXACT, "/app/delta/");
+        assertCompiled("/app/delta/", RuleMatchType.EXACT, "/app/delta/");
+        assertCompiled("/**", RuleMatchType.PREFIX, "/");
+        assertCompiled("/app/delta/**", RuleMatchType.PREFIX, "/app/delta/");
+        assertCompiled("/app/a*", RuleMatchType.REGEX, "/app/");
+        assertCompiled("/app/[make]/index.html", RuleMatchType.REGEX, "/app/");
+        assertCompiled("/app/**/index.html", RuleMatchType.REGEX, "/app/");
+        assertCompiled("/[make]/**", RuleMatchType.REGEX, "/");
+    }
+
+    private void assertCompiled(String rule, RuleMatchType matchType, String literalPrefix) {
+        final CompiledUrlRule compiledRule = CompiledRuleSet.compile(dictionary, buildRules(rule)).getRules().get(0);
+        assertEquals(compiledRule.getMatchType(), matchType, rule);
+        assertEquals(compiledRule.getLiteralPrefix(), literalPrefix, rule);
+    }
+
+    private List<UrlRule> buildRules(String... rules) {
+        final List<UrlRule> rulesList = Lists.newArrayList();
+        for (String rule : rules) {
+            rulesList.add(new UrlRule(dictionary, mavenModule, "localhost:80", rule));
+        }
+        return rulesList;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.compile;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.firstMatch;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.loadUrlRules;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.sampleUrls;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the LiteralRuleTable.
+ *
+ * @author David Trott
+ */
+@Test
+public class LiteralRuleTableTest {
+
+    private UrlTokenDictionary dictionary;
+
+    @BeforeClass
+    public void setup() {
+        dictionary = DefaultUrlTokenDictionary.newInstance();
+    }
+
+    @Test
+    public void movesLiteralRules() {
+        final CompiledRuleSet rules = compile(dictionary,
+                "/advice/", "alpha",
+                "/api/bulk/**", "alpha",
+                "/api/bulk/v2/**", "beta",
+                "/api/bulk/index.html", "beta",
+                "/app/[make]/**", "beta",
+                "/app/ford/", "alpha",
+                "/app/other/**", "alpha",
+                "/[make]/**", "beta",
+                "/kissel/", "alpha",
+                "/**", "alpha");
+        final LiteralRuleTable table = rules.getLiteralRuleTable();
+
+        assertEquals(table.getExactPaths().keySet(), Sets.newHashSet("/advice/"));
+        assertEquals(table.getPrefixes().keySet(), Sets.newHashSet("/api/bulk/", "/app/other/"));
+        assertEquals(table.getPrefixDepths(), Arrays.asList(2));
+        assertEquals(table.getLiteralRuleCount(), 3);
+
+        // The paths without the trailing slash are only matched by the catch all.
+        assertEquals(table.getDirectoryRules().keySet(), Sets.newHashSet("/api/bulk/", "/app/other/"));
+        assertEquals(table.getDirectoryRules().get("/api/bulk/").getRule(), "/**");
+        assertEquals(table.getDirectoryRules().get("/app/other/").getRule(), "/**");
+
+        // Shadowed or overlapped rules keep their position.
+        final List<String> regExRules = Lists.newArrayList();
+        for (CompiledUrlRule rule : table.getRegExRules()) {
+            regExRules.add(rule.getRule());
+        }
+        assertEquals(regExRules, Arrays.asList(
+                "/api/bulk/v2/**", "/api/bulk/index.html", "/app/[make]/**", "/app/ford/", "/[make]/**", "/kissel/",
+                "/**"));
+
+        assertRoutingUnchanged(rules, Arrays.asList(
+                "/", "/advice/", "/advice", "/api/bulk/", "/api/bulk/v2/x", "/api/bulk/index.html", "/app/ford/",
+                "/app/ford/x", "/app/other/", "/app/other/x/y", "/kissel/", "/ford/", "/other"));
+    }
+
+    @Test
+    public void regularExpressionBelowPrefix() {
+        final CompiledRuleSet rules = compile(dictionary,
+                "/shop/cars/[make]/index.html", "alpha",
+                "/shop/**", "beta",
+                "/shopping/[make]/**", "alpha",
+                "/shop/cars/**", "beta",
+                "/shopping/cars/**", "beta");
+        final LiteralRuleTable table = rules.getLiteralRuleTable();
+
+        // Both /shop/ prefixes contain the earlier expression, [make] never matches the cars segment.
+        assertEquals(table.getPrefixes().keySet(), Sets.newHashSet("/shopping/cars/"));
+        assertEquals(table.getRegExRules().size(), 4);
+
+        assertRoutingUnchanged(rules, Arrays.asList(
+                "/shop/cars/ford/index.html", "/shop/cars/ford/", "/shop/x", "/shopping/ford/x", "/shopping/cars/x"));
+    }
+
+    @Test
+    public void depthsAreDeepestFirst() {
+        final LiteralRuleTable table = compile(dictionary,
+                "/a/b/c/**", "alpha", "/x/**", "beta", "/a/b/**", "alpha", "/**", "beta").getLiteralRuleTable();
+
+        assertEquals(table.getPrefixDepths(), Arrays.asList(3, 2, 1, 0));
+        assertEquals(table.getRegExRules().size(), 0);
+        assertEquals(LiteralRuleTable.getDepth("/"), 0);
+        assertEquals(LiteralRuleTable.getDepth("/app/"), 1);
+    }
+
+    @Test
+    public void sampleRulesRoutingUnchanged() throws IOException {
+        final List<UrlRule> urlRules = loadUrlRules(dictionary);
+
+        final List<String> urls = Lists.newArrayList();
+        for (UrlRule rule : urlRules) {
+            urls.addAll(sampleUrls(rule.getRule()));
+        }
+
+        // The order of the file and the order used by the controller.
+        final CompiledRuleSet fileOrder = CompiledRuleSet.compile(dictionary, urlRules);
+        final CompiledRuleSet ruleOrder = CompiledRuleSet.compile(dictionary, new UrlRuleSet(urlRules).orderRules());
+
+        assertRoutingUnchanged(fileOrder, urls);
+        assertRoutingUnchanged(ruleOrder, urls);
+        assertTrue(ruleOrder.getLiteralRuleTable().getLiteralRuleCount() > 0);
+        assertTrue(ruleOrder.getLiteralRuleTable().getPrefixes().size() > 0);
+    }
+
+    private void assertRoutingUnchanged(CompiledRuleSet rules, List<String> urls) {
+        final LiteralRuleTable table = rules.getLiteralRuleTable();
+        for (String url : urls) {
+            assertEquals(lookup(table, url), firstMatch(rules, url), url);
+        }
+    }
+
+    /**
+     * Evaluates the table in the same way as the generated Apache configuration.
+     */
+    private String lookup(LiteralRuleTable table, String url) {
+        final CompiledUrlRule exactRule = table.getExactPaths().get(url);
+        if (exactRule != null) {
+            return exactRule.getVipAddress();
+        }
+        for (int depth : table.getPrefixDepths()) {
+            final Matcher matcher = Pattern.compile("^(/(?:[^/]+/){" + depth + "}).*$").matcher(url);
+            if (matcher.matches() && table.getPrefixes().containsKey(matcher.group(1))) {
+                return table.getPrefixes().get(matcher.group(1)).getVipAddress();
+            }
+        }
+        return firstMatch(table.getRegExRules(), url);
+    }
+}
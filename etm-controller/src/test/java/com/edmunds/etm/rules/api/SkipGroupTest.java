@@ -0,0 +1,155 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.google.common.collect.Lists;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.compile;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.firstMatch;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.loadUrlRules;
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.sampleUrls;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the SkipGroup and the grouping of rules by first segment.
+ *
+ * @author David Trott
+ */
+@Test
+public class SkipGroupTest {
+
+    private UrlTokenDictionary dictionary;
+
+    @BeforeClass
+    public void setup() {
+        dictionary = DefaultUrlTokenDictionary.newInstance();
+    }
+
+    @Test
+    public void groupByFirstSegment() {
+        final CompiledRuleSet rules = compile(dictionary,
+                "/api/a.html", "alpha",
+                "/app/a.html", "beta",
+                "/api/b.html", "beta",
+                "/app/**", "alpha",
+                "/[make]/**", "beta",
+                "/api/c.html", "alpha",
+                "/*.html", "alpha",
+                "/app/b.html", "beta");
+
+        assertEquals(ruleNames(rules.groupByFirstSegment()), Arrays.asList(
+                "/api/a.html", "/api/b.html", "/app/a.html", "/app/**", "/[make]/**", "/api/c.html", "/*.html",
+                "/app/b.html"));
+    }
+
+    @Test
+    public void firstSegmentRegEx() {
+        final List<CompiledUrlRule> rules = compile(dictionary,
+                "/api/a.html", "alpha", "/[make]/**", "alpha", "/a*/b.html", "alpha", "/index.html", "alpha")
+                .getRules();
+
+        assertEquals(rules.get(0).getFirstSegmentRegEx(), "api");
+        assertTrue(rules.get(0).isFirstSegmentLiteral());
+        assertTrue(Pattern.matches(rules.get(1).getFirstSegmentRegEx(), "ford"));
+        assertFalse(rules.get(1).isFirstSegmentLiteral());
+        assertNull(rules.get(2).getFirstSegmentRegEx());
+        assertNull(rules.get(3).getFirstSegmentRegEx());
+    }
+
+    @Test
+    public void guardsRunsOfRules() {
+        final CompiledRuleSet rules = compile(dictionary,
+                "/api/a.html", "alpha",
+                "/api/b.html", "beta",
+                "/api/c/**", "alpha",
+                "/app/a.html", "beta",
+                "/app/b.html", "alpha",
+                "/**", "beta");
+        final List<SkipGroup> groups = SkipGroup.group(CoalescedRuleSet.uncoalesced(rules), 3);
+
+        assertEquals(groups.size(), 2);
+        assertEquals(groups.get(0).getGuardRegEx(), "^/api/");
+        assertEquals(groups.get(0).getRules().size(), 3);
+        assertFalse(groups.get(1).isGuarded());
+        assertEquals(groups.get(1).getRules().size(), 3);
+
+        assertEquals(SkipGroup.group(CoalescedRuleSet.uncoalesced(rules), 2).size(), 3);
+    }
+
+    @Test
+    public void sampleRulesRoutingUnchanged() throws IOException {
+        final List<UrlRule> urlRules = loadUrlRules(dictionary);
+
+        final List<String> urls = Lists.newArrayList();
+        for (UrlRule rule : urlRules) {
+            urls.addAll(sampleUrls(rule.getRule()));
+        }
+
+        final CompiledRuleSet fileOrder = CompiledRuleSet.compile(dictionary, urlRules);
+        final CompiledRuleSet ruleOrder = CompiledRuleSet.compile(dictionary, new UrlRuleSet(urlRules).orderRules());
+
+        for (CompiledRuleSet rules : Arrays.asList(fileOrder, ruleOrder)) {
+            for (int minGroupSize = 1; minGroupSize <= 4; minGroupSize++) {
+                final CompiledRuleSet grouped = rules.groupByFirstSegment();
+                final List<SkipGroup> uncoalesced = SkipGroup.group(
+                        CoalescedRuleSet.uncoalesced(grouped), minGroupSize);
+                final List<SkipGroup> coalesced = SkipGroup.group(
+                        CoalescedRuleSet.coalesce(grouped, 4000), minGroupSize);
+
+                for (String url : urls) {
+                    assertEquals(evaluate(uncoalesced, url), firstMatch(rules, url), url);
+                    assertEquals(evaluate(coalesced, url), firstMatch(rules, url), url);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates the groups in the same way as the generated Apache configuration.
+     */
+    private String evaluate(List<SkipGroup> groups, String url) {
+        for (SkipGroup group : groups) {
+            if (group.isGuarded() && !Pattern.compile(group.getGuardRegEx()).matcher(url).find()) {
+                continue;
+            }
+            for (CoalescedRule rule : group.getRules()) {
+                if (Pattern.compile(rule.getRegEx()).matcher(url).matches()) {
+                    return rule.getVipAddress();
+                }
+            }
+        }
+        return null;
+    }
+
+    private List<String> ruleNames(CompiledRuleSet rules) {
+        final List<String> names = Lists.newArrayList();
+        for (CompiledUrlRule rule : rules) {
+            names.add(rule.getRule());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import static com.edmunds.etm.rules.api.CompiledRuleSetFixtures.loadUrlLines;
+import static com.edmunds.etm.rules.api.RuleComparison.DISTINCT;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the UrlRuleIndex.
+ *
+ * @author David Trott
+ */
+@Test
+public class UrlRuleIndexTest {
+
+    private UrlTokenDictionary dictionary;
+    private List<UrlRule> rules;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        this.dictionary = DefaultUrlTokenDictionary.newInstance();
+        this.rules = Lists.newArrayList();
+
+        final MavenModule testApp = new MavenModule("com.edmunds", "test-app", "1.0");
+        for (String line : loadUrlLines()) {
+            rules.add(new UrlRule(dictionary, testApp, "localhost:80", line.split("\t")[0]));
+        }
+
+        final MavenModule otherApp = new MavenModule("com.edmunds", "other-app", "1.0");
+        final String[] extraRules = {
+                "/", "/*", "/**", "/**/*.html", "/**/index.html", "/ford/**", "/ford/*/index.html", "/a*/**",
+                "/[make]/*.html", "/[year]/**/x*.jsp", "/a/**/c/d/a/b/", "/a/b/", "/a/b/c*", "/a/b/*.html",
+                "/auburn/index.html", "/12345/index.html", "/[zipcode]/index.html", "/car-reviews/*",
+                "/car-reviews/index.html", "/**/car-incentives.html", "/incentives/**"};
+        for (String rule : extraRules) {
+            rules.add(new UrlRule(dictionary, otherApp, "localhost:80", rule));
+        }
+    }
+
+    @Test
+    public void candidatesIncludeAllNonDistinctRules() {
+        final UrlRuleIndex index = new UrlRuleIndex(rules);
+
+        for (UrlRule rule : rules) {
+            assertCandidates(index, rule, rules);
+        }
+    }
+
+    @Test
+    public void candidatesExcludeDistinctLiterals() {
+        final UrlRuleIndex index = new UrlRuleIndex(rules);
+        final UrlRule newRule = new UrlRule(
+                dictionary, new MavenModule("com.edmunds", "new-app", "1.0"), "localhost:80", "/a/b/c.html");
+
+        final Collection<UrlRule> candidates = index.getCandidates(newRule);
+        assertTrue(candidates.size() < rules.size(), "Index did not narrow the candidates");
+        assertCandidates(index, newRule, rules);
+    }
+
+    @Test
+    public void removeRules() {
+        final UrlRuleIndex index = new UrlRuleIndex(rules);
+        final List<UrlRule> remaining = Lists.newArrayList(rules);
+        final UrlRuleIndex copy = new UrlRuleIndex(index);
+
+        for (int i = 0; i < rules.size(); i += 2) {
+            index.remove(rules.get(i));
+            remaining.remove(rules.get(i));
+        }
+
+        for (UrlRule rule : rules) {
+            final Set<UrlRule> candidates = Sets.newHashSet(index.getCandidates(rule));
+            for (int i = 0; i < rules.size(); i += 2) {
+                assertFalse(candidates.contains(rules.get(i)), "Removed rule returned: " + rules.get(i));
+            }
+            assertCandidates(index, rule, remaining);
+
+            // The copy must not be affected by the removal.
+            assertCandidates(copy, rule, rules);
+        }
+    }
+
+    private void assertCandidates(UrlRuleIndex index, UrlRule rule, Collection<UrlRule> indexedRules) {
+        final Set<UrlRule> candidates = Sets.newHashSet(index.getCandidates(rule));
+
+        for (UrlRule other : indexedRules) {
+            if (rule.compareTo(other) != DISTINCT) {
+                assertTrue(candidates.contains(other), "Missing candidate: " + rule + " -> " + other);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.edmunds.etm.common.api.FixedUrlToken;
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the UrlRuleSegmentPool.
+ *
+ * @author David Trott
+ */
+@Test
+public class UrlRuleSegmentPoolTest {
+
+    private static final String[] SEGMENTS = {
+            "", "*", "**", "a", "ford", "audi", "car-reviews", "[make]", "[model]", "[year]", "a*", "*b", "x*y"};
+
+    private static final String[] LAST_SEGMENTS = {
+            "", "*", "**", "index.html", "*.html", "a.jsp", "*.jsp", "x*.html", "b*", "[make]", "ford.html"};
+
+    private UrlTokenDictionary dictionary;
+    private UrlRuleSegmentPool pool;
+
+    @BeforeMethod
+    public void setup() {
+        dictionary = DefaultUrlTokenDictionary.newInstance();
+        pool = new UrlRuleSegmentPool(dictionary);
+    }
+
+    @Test
+    public void internSharesSegments() {
+        assertSame(pool.intern("[make]", false), pool.intern("[make]", false));
+        assertNotSame(pool.intern("[make]", false), pool.intern("[make]", true));
+        assertEquals(pool.getSegmentCount(), 2);
+
+        final MavenModule mavenModule = new MavenModule("com.edmunds", "app", "1.0");
+        final UrlRule rule1 = new UrlRule(pool, mavenModule, "localhost:80", "/[make]/index.html");
+        final UrlRule rule2 = new UrlRule(pool, mavenModule, "localhost:80", "/[make]/*.html");
+        assertSame(rule1.getSegments().get(0), rule2.getSegments().get(0));
+    }
+
+    @Test
+    public void memoizedComparisonsMatch() {
+        compareAll(SEGMENTS, false);
+        compareAll(LAST_SEGMENTS, true);
+        final long misses = pool.getComparisonMisses();
+        assertTrue(misses > 0);
+
+        compareAll(SEGMENTS, false);
+        compareAll(LAST_SEGMENTS, true);
+        assertEquals(pool.getComparisonMisses(), misses);
+        assertTrue(pool.getComparisonHits() >= misses);
+    }
+
+    @Test
+    public void tokenChangeDiscardsComparisons() {
+        final UrlRuleSegment token = pool.intern("[make]", false);
+        final UrlRuleSegment complete = pool.intern("saab", false);
+        assertEquals(token.compareTo(complete), RuleComparison.DISTINCT);
+
+        dictionary.add(new FixedUrlToken("make", "saab"));
+
+        assertNotSame(pool.intern("[make]", false), token);
+        assertEquals(token.compareTo(complete), RuleComparison.LOW_PRIORITY);
+    }
+
+    private void compareAll(String[] segments, boolean lastSegment) {
+        for (String text : segments) {
+            for (String otherText : segments) {
+                final UrlRuleSegment segment = pool.intern(text, lastSegment);
+                final UrlRuleSegment other = pool.intern(otherText, lastSegment);
+                final RuleComparison expected = new UrlRuleSegment(dictionary, text, lastSegment)
+                        .compareTo(new UrlRuleSegment(dictionary, otherText, lastSegment));
+
+                assertEquals(segment.compareTo(other), expected, text + " vs " + otherText);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.api;
+
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.impl.UrlTokenDictionary;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Compares the UrlRuleSet with the original mutable implementation over random sequences of merges and deletes, and
+ * the parallel merge with the sequential merge.
+ *
+ * @author David Trott
+ */
+@Test
+public class UrlRuleSetComparisonTest {
+
+    private static final String[] MIDDLE_SEGMENTS = {
+            "a", "b", "car-reviews", "ford", "auburn", "12345", "*", "**", "[make]", "[model]", "[year]", "a*", "*b",
+            "x*y", "[zipcode]"};
+
+    private static final String[] LAST_SEGMENTS = {
+            "index.html", "*.html", "*", "**", "a.jsp", "*.jsp", "x*.html", "", "b*", "[model]", "ford.html",
+            "c.html"};
+
+    private UrlTokenDictionary dictionary;
+    private ExecutorService executor;
+
+    @BeforeClass
+    public void setup() {
+        this.dictionary = DefaultUrlTokenDictionary.newInstance();
+        this.executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void randomMergesAndDeletes() {
+        final Random random = new Random(7);
+        int accepted = 0;
+
+        for (int round = 0; round < 200; round++) {
+            UrlRuleSet ruleSet = new UrlRuleSet(Collections.<UrlRule>emptyList());
+            MutableUrlRuleSet reference = new MutableUrlRuleSet(Collections.<UrlRule>emptyList());
+
+            final int steps = 1 + random.nextInt(25);
+            for (int step = 0; step < steps; step++) {
+                final MavenModule mavenModule = new MavenModule("com.edmunds", "app" + random.nextInt(8), "1.0");
+
+                if (random.nextInt(6) == 0) {
+                    ruleSet.deleteRules(mavenModule);
+                    reference.deleteRules(mavenModule);
+                    assertSameRules(ruleSet, reference);
+                    continue;
+                }
+
+                final List<UrlRule> rules = randomRules(random, mavenModule, ruleSet);
+                if (rules.isEmpty()) {
+                    continue;
+                }
+
+                final UrlRuleSet merged = ruleSet.mergeRules(rules);
+                MutableUrlRuleSet mergedReference = reference.mergeRules(rules);
+                if (mergedReference != null && mergedReference.orderRules() == null) {
+                    mergedReference = null;
+                }
+
+                assertEquals(merged == null, mergedReference == null, "Merge result differs for " + rules);
+                if (merged != null) {
+                    ruleSet = merged;
+                    reference = mergedReference;
+                    assertSameRules(ruleSet, reference);
+                    accepted++;
+                }
+            }
+        }
+
+        assertTrue(accepted > 0, "No merges were accepted");
+    }
+
+    @Test
+    public void parallelMergeMatchesSequential() {
+        final Random random = new Random(11);
+        int accepted = 0;
+
+        for (int round = 0; round < 100; round++) {
+            UrlRuleSet ruleSet = new UrlRuleSet(Collections.<UrlRule>emptyList());
+
+            final int steps = 1 + random.nextInt(25);
+            for (int step = 0; step < steps; step++) {
+                final MavenModule mavenModule = new MavenModule("com.edmunds", "app" + random.nextInt(8), "1.0");
+
+                if (random.nextInt(6) == 0) {
+                    ruleSet.deleteRules(mavenModule);
+                    continue;
+                }
+
+                final List<UrlRule> rules = randomRules(random, mavenModule, ruleSet);
+                if (rules.isEmpty()) {
+                    continue;
+                }
+
+                final UrlRuleSet sequential = ruleSet.mergeRules(rules);
+                final UrlRuleSet parallel = ruleSet.mergeRules(rules, executor);
+
+                assertEquals(parallel == null, sequential == null, "Merge result differs for " + rules);
+                if (sequential != null) {
+                    assertEquals(Lists.newArrayList(parallel.orderRules()), Lists.newArrayList(sequential.orderRules()));
+                    assertEquals(blockedRules(parallel.getBlockedRules()), blockedRules(sequential.getBlockedRules()));
+                    ruleSet = parallel;
+                    accepted++;
+                }
+            }
+        }
+
+        assertTrue(accepted > 0, "No merges were accepted");
+    }
+
+    private List<UrlRule> randomRules(Random random, MavenModule mavenModule, UrlRuleSet ruleSet) {
+        final List<UrlRule> rules = Lists.newArrayList();
+        final Set<String> seen = Sets.newHashSet();
+
+        final int count = 1 + random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+            final StringBuilder sb = new StringBuilder();
+            final int length = random.nextInt(4);
+            for (int j = 0; j < length; j++) {
+                sb.append('/').append(MIDDLE_SEGMENTS[random.nextInt(MIDDLE_SEGMENTS.length)]);
+            }
+            sb.append('/').append(LAST_SEGMENTS[random.nextInt(LAST_SEGMENTS.length)]);
+
+            try {
+                final UrlRule rule = new UrlRule(dictionary, mavenModule, "localhost:80", sb.toString());
+                if (seen.add(rule.getRule()) && !ruleSet.contains(rule)) {
+                    rules.add(rule);
+                }
+            } catch (IllegalArgumentException e) {
+                // Invalid combination of segments, skip it.
+            }
+        }
+
+        return rules;
+    }
+
+    private void assertSameRules(UrlRuleSet ruleSet, MutableUrlRuleSet reference) {
+        final Set<UrlRule> ordered = ruleSet.orderRules();
+        assertNotNull(ordered);
+        assertEquals(Lists.newArrayList(ordered), Lists.newArrayList(reference.orderRules()));
+        assertEquals(blockedRules(ruleSet.getBlockedRules()), blockedRules(reference.getBlockedRules()));
+    }
+
+    private Map<String, Set<UrlRule>> blockedRules(Set<BlockedUrlRule> blockedRules) {
+        final Map<String, Set<UrlRule>> result = Maps.newHashMap();
+        for (BlockedUrlRule blockedRule : blockedRules) {
+            result.put(blockedRule.getMavenModule() + "=" + blockedRule.getRule(), blockedRule.getBlockingRules());
+        }
+        return result;
+    }
+}
@@ -19,8 +19,11 @@ import com.edmunds.etm.common.api.FixedUrlToken;
 import com.edmunds.etm.management.api.MavenModule;
 import com.edmunds.etm.rules.impl.UrlTokenDictionary;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
@@ -34,6 +37,7 @@ import static org.testng.Assert.*;
 public class UrlRuleSetTest {
     private MavenModule testApp1;
     private MavenModule testApp2;
+    private MavenModule testApp3;
     private UrlRuleSet urlRuleSet;
 
     private UrlTokenResolver tokenResolver;
@@ -42,6 +46,7 @@ public class UrlRuleSetTest {
     public void setup() {
         this.testApp1 = new MavenModule("com.edmunds", "test-app1", "1.0");
         this.testApp2 = new MavenModule("com.edmunds", "test-app2", "1.0");
+        this.testApp3 = new MavenModule("com.edmunds", "test-app3", "1.0");
         UrlTokenDictionary dictionary = new UrlTokenDictionary();
         dictionary.add(new FixedUrlToken("make", "ford", "volvo"));
         dictionary.add(new FixedUrlToken("model", "ford", "volvo"));
@@ -189,6 +194,152 @@ public class UrlRuleSetTest {
             "/app/**");
     }
 
+    /**
+     * Rules that are deleted and merged again after an ordering must be output as the new objects.
+     */
+    @Test
+    public void orderRulesAfterMoveTest() {
+        UrlRuleSet newRuleSet = mergeRules("/app/a*");
+        newRuleSet.orderRules();
+
+        newRuleSet.deleteRules(testApp2);
+        List<UrlRule> movedRules = Lists.newArrayList(
+            new UrlRule(tokenResolver, testApp2, "localhost:81", "/app/a*"));
+        UrlRuleSet movedRuleSet = newRuleSet.mergeRules(movedRules);
+
+        assertRuleorder(movedRuleSet,
+            "/",
+            "/[make]/**",
+            "/app/a*",
+            "/app/**",
+            "/app/delta/index.html");
+
+        for (UrlRule rule : movedRuleSet.orderRules()) {
+            if (rule.getMavenModule().equals(testApp2)) {
+                assertEquals(rule.getVipAddress(), "localhost:81");
+            }
+        }
+    }
+
+    @Test
+    public void rulesReferencingTokenTest() {
+        UrlRuleSet newRuleSet = mergeRules(
+            "/app/a*",
+            "/app/[state]/index.html"
+        );
+
+        assertEquals(newRuleSet.getRulesReferencingToken("[make]"), Sets.newHashSet(buildRules(testApp1, "/[make]/**")));
+        assertEquals(newRuleSet.getRulesReferencingToken("[state]"),
+            Sets.newHashSet(buildRules(testApp2, "/app/[state]/index.html")));
+        assertTrue(newRuleSet.getRulesReferencingToken("[model]").isEmpty());
+
+        newRuleSet.deleteRules(testApp2);
+        assertTrue(newRuleSet.getRulesReferencingToken("[state]").isEmpty());
+    }
+
+    /**
+     * Unconstrained rules are output by descending hit count, ties are still broken alphabetically.
+     */
+    @Test
+    public void orderRulesByTrafficTest() {
+        RuleTrafficStatistics statistics = buildStatistics(
+            "/app/**", 100L,
+            "/[make]/**", 50L,
+            "/app/delta/index.html", 50L);
+
+        Set<UrlRule> orderedRules = new UrlRuleSet(urlRuleSet).orderRules(statistics);
+        assertRuleorder(orderedRules,
+            "/app/**",
+            "/[make]/**",
+            "/app/delta/index.html",
+            "/");
+    }
+
+    /**
+     * A hot rule cannot move above the rules that block it.
+     */
+    @Test
+    public void orderRulesByTrafficBlockedTest() {
+        UrlRuleSet newRuleSet = mergeRules("/app/delta/*");
+        RuleTrafficStatistics statistics = buildStatistics(
+            "/app/**", 100L,
+            "/app/delta/*", 40L,
+            "/[make]/**", 10L);
+
+        assertRuleorder(newRuleSet.orderRules(statistics),
+            "/[make]/**",
+            "/",
+            "/app/delta/index.html",
+            "/app/delta/*",
+            "/app/**");
+    }
+
+    @Test
+    public void expectedEvaluationsTest() {
+        RuleTrafficStatistics statistics = buildStatistics(
+            "/app/**", 6L,
+            "/", 2L);
+        statistics = new RuleTrafficStatistics(statistics.getHitsByRule(), 10, 2);
+
+        // Alphabetical: "/" (1), "/[make]/**", "/app/**" (3), "/app/delta/index.html", unmatched evaluate all 4.
+        assertEquals(statistics.getExpectedEvaluations(new UrlRuleSet(urlRuleSet).orderRules()), 2.8, 0.0001);
+
+        // By traffic: "/app/**" (1), "/" (2).
+        Set<UrlRule> trafficOrder = new UrlRuleSet(urlRuleSet).orderRules(statistics);
+        assertEquals(statistics.getExpectedEvaluations(trafficOrder), 1.8, 0.0001);
+
+        assertEquals(RuleTrafficStatistics.empty().getExpectedEvaluations(urlRuleSet.orderRules()), 0.0);
+    }
+
+    /**
+     * A new rule that blocks a rule positioned before it moves ahead of it, together with the rules it blocks.
+     */
+    @Test
+    public void mergeRuleTestReposition() {
+        UrlRuleSet ruleSet = new UrlRuleSet(buildRules(testApp1, "/app/**", "/other/index.html"));
+        ruleSet = ruleSet.mergeRules(buildRules(testApp2, "/app/x/*"));
+        ruleSet = ruleSet.mergeRules(buildRules(testApp3, "/app/x/index.html"));
+
+        assertRuleorder(ruleSet,
+            "/app/x/index.html",
+            "/app/x/*",
+            "/app/**",
+            "/other/index.html");
+        assertBlockingOrder(ruleSet);
+    }
+
+    /**
+     * Rules whose dependencies form a cycle cannot be merged, and the rule set they were merged into is unchanged.
+     */
+    @Test
+    public void mergeRuleTestCycle() {
+        UrlRuleSet ruleSet = new UrlRuleSet(Lists.<UrlRule>newArrayList(
+            new CyclicRule(testApp1, "/cycle/a*", 0)));
+        ruleSet = ruleSet.mergeRules(Lists.<UrlRule>newArrayList(
+            new CyclicRule(testApp2, "/cycle/ab*", 1)));
+        assertRuleorder(ruleSet, "/cycle/a*", "/cycle/ab*");
+
+        final Set<BlockedUrlRule> blockedRules = ruleSet.getBlockedRules();
+
+        // a* blocks ab*, ab* blocks abc* and abc* blocks a*.
+        assertNull(ruleSet.mergeRules(Lists.<UrlRule>newArrayList(
+            new CyclicRule(testApp3, "/cycle/abc*", 2))));
+
+        assertRuleorder(ruleSet, "/cycle/a*", "/cycle/ab*");
+        assertEquals(ruleSet.getBlockedRules(), blockedRules);
+        assertBlockingOrder(ruleSet);
+    }
+
+    private RuleTrafficStatistics buildStatistics(Object... ruleHits) {
+        Map<String, Long> hitsByRule = Maps.newHashMap();
+        long requestCount = 0;
+        for (int i = 0; i < ruleHits.length; i += 2) {
+            hitsByRule.put((String) ruleHits[i], (Long) ruleHits[i + 1]);
+            requestCount += (Long) ruleHits[i + 1];
+        }
+        return new RuleTrafficStatistics(hitsByRule, requestCount, 0);
+    }
+
     private List<UrlRule> buildRules(MavenModule mavenModule, String... rules) {
         List<UrlRule> rulesList = Lists.newArrayList();
 
@@ -205,8 +356,25 @@ public class UrlRuleSetTest {
 
     private void assertRuleorder(UrlRuleSet newRuleSet, String... rules) {
         assertNotNull(newRuleSet);
-        Set<UrlRule> orderedRules = newRuleSet.orderRules();
+        assertRuleorder(newRuleSet.orderRules(), rules);
+    }
+
+    private void assertBlockingOrder(UrlRuleSet ruleSet) {
+        final List<String> orderedRules = Lists.newArrayList();
+        for (UrlRule rule : ruleSet.orderRules()) {
+            orderedRules.add(rule.getRule());
+        }
+
+        for (BlockedUrlRule blockedRule : ruleSet.getBlockedRules()) {
+            for (UrlRule blockingRule : blockedRule.getBlockingRules()) {
+                assertTrue(orderedRules.indexOf(blockingRule.getRule()) < orderedRules.indexOf(blockedRule.getRule()),
+                    blockingRule.getRule() + " must be before " + blockedRule.getRule());
+            }
+        }
+    }
 
+    private void assertRuleorder(Set<UrlRule> orderedRules, String... rules) {
+        assertNotNull(orderedRules);
         assertEquals(orderedRules.size(), rules.length);
         Iterator<UrlRule> iterator = orderedRules.iterator();
 
@@ -215,4 +383,33 @@ public class UrlRuleSetTest {
             assertEquals(iterator.next().getRule(), rule, "Index: " + index++);
         }
     }
+
+    /**
+     * A rule that takes its priority relative to the other cyclic rules from its rank, rank n blocks rank n + 1 and the
+     * last rank blocks the first, which the comparison of parsed rules does not produce.
+     */
+    private class CyclicRule extends UrlRule {
+        private static final int RANKS = 3;
+
+        private final int rank;
+
+        public CyclicRule(MavenModule mavenModule, String rule, int rank) {
+            super(tokenResolver, mavenModule, "localhost:80", rule);
+            this.rank = rank;
+        }
+
+        @Override
+        public RuleComparison compareTo(UrlRule other) {
+            if (other instanceof CyclicRule) {
+                final int otherRank = ((CyclicRule) other).rank;
+                if ((rank + 1) % RANKS == otherRank) {
+                    return RuleComparison.HIGH_PRIORITY;
+                }
+                if ((otherRank + 1) % RANKS == rank) {
+                    return RuleComparison.LOW_PRIORITY;
+                }
+            }
+            return super.compareTo(other);
+        }
+    }
 }
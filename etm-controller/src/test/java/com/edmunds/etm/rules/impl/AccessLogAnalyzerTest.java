@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.impl;
+
+import com.edmunds.etm.common.api.FixedUrlToken;
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.api.RuleTrafficStatistics;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.google.common.collect.Lists;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+/**
+ * Tests the AccessLogAnalyzer.
+ *
+ * @author David Trott
+ */
+@Test
+public class AccessLogAnalyzerTest {
+
+    private static final String APACHE_LOG =
+            "10.0.0.1 - - [16/Oct/2011:10:00:00 -0700] \"GET /ford/index.html HTTP/1.1\" 200 1024\n" +
+            "10.0.0.2 - - [16/Oct/2011:10:00:01 -0700] \"GET /ford/index.html?zip=90404 HTTP/1.1\" 200 1024\n" +
+            "10.0.0.3 - - [16/Oct/2011:10:00:02 -0700] \"GET /app/delta/index.html HTTP/1.1\" 200 512\n" +
+            "10.0.0.4 - - [16/Oct/2011:10:00:03 -0700] \"GET /unknown.html HTTP/1.1\" 404 0\n" +
+            "malformed line\n";
+
+    private static final String HAPROXY_LOG =
+            "Oct 16 10:00:00 lb haproxy[123]: 10.0.0.1:5000 [16/Oct/2011:10:00:00.000] http web/app1 " +
+            "0/0/0/1/1 200 1024 - - ---- 1/1/1/1/0 0/0 \"GET /volvo/index.html HTTP/1.1\"\n" +
+            "Oct 16 10:00:01 lb haproxy[123]: 10.0.0.2:5001 [16/Oct/2011:10:00:01.000] http web/app1 " +
+            "0/0/0/1/1 200 1024 - - ---- 1/1/1/1/0 0/0 \"GET http://www.edmunds.com/app/a.html HTTP/1.1\"\n";
+
+    private final MavenModule mavenModule = new MavenModule("com.edmunds", "app", "1.0");
+
+    private UrlTokenDictionary dictionary;
+    private AccessLogAnalyzer analyzer;
+    private List<UrlRule> rules;
+
+    @BeforeMethod
+    public void setup() {
+        dictionary = new UrlTokenDictionary();
+        dictionary.add(new FixedUrlToken("make", "ford", "volvo"));
+        analyzer = new AccessLogAnalyzer(dictionary);
+        rules = Lists.newArrayList(
+                new UrlRule(dictionary, mavenModule, "1.2.3.4:80", "/app/delta/index.html"),
+                new UrlRule(dictionary, mavenModule, "1.2.3.4:80", "/[make]/**"),
+                new UrlRule(dictionary, mavenModule, "1.2.3.4:80", "/app/**"));
+    }
+
+    @Test
+    public void apacheLogIsCounted() throws IOException {
+        final RuleTrafficStatistics statistics = analyzer.analyze(rules, reader(APACHE_LOG));
+
+        assertEquals(statistics.getRequestCount(), 4);
+        assertEquals(statistics.getUnmatchedCount(), 1);
+        assertEquals(statistics.getHits(rules.get(0)), 1);
+        assertEquals(statistics.getHits(rules.get(1)), 2);
+        assertEquals(statistics.getHits(rules.get(2)), 0);
+
+        // First match wins, "/app/**" also matches the delta page.
+        assertEquals(statistics.getExpectedEvaluations(rules), (1 * 1 + 2 * 2 + 1 * 3) / 4.0, 0.0001);
+    }
+
+    @Test
+    public void haProxyLogIsCounted() throws IOException {
+        final RuleTrafficStatistics statistics = analyzer.analyze(rules, reader(HAPROXY_LOG));
+
+        assertEquals(statistics.getRequestCount(), 2);
+        assertEquals(statistics.getUnmatchedCount(), 0);
+        assertEquals(statistics.getHits(rules.get(1)), 1);
+        assertEquals(statistics.getHits(rules.get(2)), 1);
+    }
+
+    @Test
+    public void missingLogIsSkipped() {
+        analyzer.setLogFiles(new String[]{"/does/not/exist/access_log"});
+
+        final RuleTrafficStatistics statistics = analyzer.analyze(rules);
+        assertEquals(statistics.getRequestCount(), 0);
+        assertEquals(statistics.getExpectedEvaluations(rules), 0.0);
+    }
+
+    @Test
+    public void extractPath() {
+        assertEquals(AccessLogAnalyzer.extractPath("\"GET /a/b.html?x=1 HTTP/1.1\""), "/a/b.html");
+        assertEquals(AccessLogAnalyzer.extractPath("\"GET https://host HTTP/1.1\""), "/");
+        assertEquals(AccessLogAnalyzer.extractPath("\"GET /\""), "/");
+        assertNull(AccessLogAnalyzer.extractPath("\"<BADREQ>\""));
+        assertNull(AccessLogAnalyzer.extractPath("no request"));
+    }
+
+    private static BufferedReader reader(String log) {
+        return new BufferedReader(new StringReader(log));
+    }
+}
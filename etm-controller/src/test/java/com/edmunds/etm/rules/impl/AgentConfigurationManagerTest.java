@@ -0,0 +1,83 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.impl;
+
+import com.edmunds.etm.apache.configbuilder.ApacheConfigurationBuilder;
+import com.edmunds.etm.apache.configbuilder.ApacheRewriteMapBuilder;
+import com.edmunds.etm.common.api.ControllerPaths;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.api.WebServerConfigurationBuilder;
+import com.edmunds.etm.runtime.api.Application;
+import com.edmunds.zookeeper.connection.ZooKeeperConnection;
+import com.google.common.collect.Lists;
+import org.apache.zookeeper.AsyncCallback;
+import org.easymock.EasyMock;
+import org.easymock.IMocksControl;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isNull;
+
+/**
+ * Tests the AgentConfigurationManager.
+ *
+ * @author David Trott
+ */
+@Test
+public class AgentConfigurationManagerTest {
+
+    @Test
+    public void mapsAreDeployedFirst() throws Exception {
+        final ApacheConfigurationBuilder configBuilder = new ApacheConfigurationBuilder();
+        configBuilder.setRewriteMap(true);
+        final ApacheRewriteMapBuilder mapBuilder = new ApacheRewriteMapBuilder(configBuilder);
+
+        // The map builder is registered last but must be deployed first.
+        final List<WebServerConfigurationBuilder> builders = Lists.newArrayList();
+        builders.add(configBuilder);
+        builders.add(mapBuilder);
+
+        final IMocksControl control = EasyMock.createStrictControl();
+        final ControllerPaths controllerPaths = control.createMock("controllerPaths", ControllerPaths.class);
+        final ZooKeeperConnection connection = control.createMock("connection", ZooKeeperConnection.class);
+
+        expect(controllerPaths.getWebConf()).andStubReturn("/etm/webconf");
+        connection.setData(eq("/etm/webconf/apache-map"), (byte[]) anyObject(), eq(-1),
+                (AsyncCallback.StatCallback) anyObject(), isNull());
+        connection.setData(eq("/etm/webconf/apache"), (byte[]) anyObject(), eq(-1),
+                (AsyncCallback.StatCallback) anyObject(), isNull());
+
+        control.replay();
+
+        final AgentConfigurationManager manager = new AgentConfigurationManager();
+        manager.mapWebServerConfigurationBuilders(builders);
+        manager.setControllerPaths(controllerPaths);
+        manager.setConnection(connection);
+        manager.setUrlTokenResolver(new UrlTokenDictionary());
+        try {
+            manager.build(Collections.<Application>emptySet(), Collections.<UrlRule>emptyList());
+        } finally {
+            manager.destroy();
+        }
+
+        control.verify();
+    }
+}
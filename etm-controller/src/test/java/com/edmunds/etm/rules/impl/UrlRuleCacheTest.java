@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.impl;
+
+import com.edmunds.etm.common.api.FixedUrlToken;
+import com.edmunds.etm.common.api.RegexUrlToken;
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.rules.api.InvalidUrlRule;
+import com.edmunds.etm.rules.api.SegmentType;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.rules.impl.UrlRuleCache.ParsedUrlRule;
+import com.google.common.collect.Sets;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the UrlRuleCache.
+ *
+ * @author David Trott
+ */
+@Test
+public class UrlRuleCacheTest {
+
+    private final MavenModule mavenModule = new MavenModule("com.edmunds", "app", "1.0");
+
+    private UrlTokenDictionary dictionary;
+    private UrlRuleCache ruleCache;
+
+    @BeforeMethod
+    public void setup() {
+        dictionary = new UrlTokenDictionary();
+        dictionary.add(new FixedUrlToken("make", "ford", "volvo"));
+        dictionary.add(new RegexUrlToken("year", "(19|20)\\d{2}"));
+        ruleCache = new UrlRuleCache(dictionary);
+    }
+
+    @Test
+    public void validRuleIsReused() {
+        final ParsedUrlRule parsedRule = ruleCache.parse(mavenModule, "/[make]/index.html");
+        assertTrue(parsedRule.isValid());
+        assertSame(ruleCache.parse(mavenModule, "/[make]/index.html"), parsedRule);
+
+        final UrlRule urlRule = parsedRule.getUrlRule("1.2.3.4:80");
+        assertEquals(urlRule.getVipAddress(), "1.2.3.4:80");
+        assertEquals(urlRule.getRule(), "/[make]/index.html");
+        assertSame(parsedRule.getUrlRule("1.2.3.4:80"), urlRule);
+
+        final UrlRule moved = parsedRule.getUrlRule("1.2.3.5:80");
+        assertEquals(moved.getVipAddress(), "1.2.3.5:80");
+        assertEquals(moved, urlRule);
+        assertSame(moved.getSegments(), urlRule.getSegments());
+    }
+
+    @Test
+    public void invalidRuleIsReused() {
+        final ParsedUrlRule parsedRule = ruleCache.parse(mavenModule, "/a*b*/index.html");
+        assertFalse(parsedRule.isValid());
+        assertNotNull(parsedRule.getErrorMessage());
+        assertEquals(parsedRule.getInvalidRule(), new InvalidUrlRule(mavenModule, "/a*b*/index.html"));
+        assertSame(ruleCache.parse(mavenModule, "/a*b*/index.html"), parsedRule);
+    }
+
+    @Test
+    public void changedTokenIsParsedAgain() {
+        final ParsedUrlRule makeRule = ruleCache.parse(mavenModule, "/[make]/index.html");
+        final ParsedUrlRule yearRule = ruleCache.parse(mavenModule, "/[year]/index.html");
+        final ParsedUrlRule plainRule = ruleCache.parse(mavenModule, "/cars/index.html");
+
+        dictionary.add(new FixedUrlToken("make", "audi"));
+
+        assertNotSame(ruleCache.parse(mavenModule, "/[make]/index.html"), makeRule);
+        assertSame(ruleCache.parse(mavenModule, "/[year]/index.html"), yearRule);
+        assertSame(ruleCache.parse(mavenModule, "/cars/index.html"), plainRule);
+    }
+
+    @Test
+    public void newTokenIsParsedAgain() {
+        final UrlRule literalRule = ruleCache.parse(mavenModule, "/[zipcode]/index.html").getUrlRule("1.2.3.4:80");
+        assertEquals(literalRule.getSegments().get(0).getSegmentType(), SegmentType.COMPLETE);
+
+        dictionary.add(new RegexUrlToken("zipcode", "\\d{5}"));
+
+        final UrlRule tokenRule = ruleCache.parse(mavenModule, "/[zipcode]/index.html").getUrlRule("1.2.3.4:80");
+        assertEquals(tokenRule.getSegments().get(0).getSegmentType(), SegmentType.TOKEN);
+    }
+
+    @Test
+    public void retainModules() {
+        final MavenModule otherModule = new MavenModule("com.edmunds", "other", "1.0");
+        final ParsedUrlRule parsedRule = ruleCache.parse(mavenModule, "/cars/index.html");
+        ruleCache.parse(otherModule, "/cars/index.html");
+        assertEquals(ruleCache.getModuleCount(), 2);
+
+        ruleCache.retainModules(Sets.newHashSet(mavenModule));
+
+        assertEquals(ruleCache.getModuleCount(), 1);
+        assertSame(ruleCache.parse(mavenModule, "/cars/index.html"), parsedRule);
+    }
+}
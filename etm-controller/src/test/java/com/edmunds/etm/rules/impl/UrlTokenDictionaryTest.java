@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.impl;
+
+import com.edmunds.etm.common.api.FixedUrlToken;
+import com.edmunds.etm.common.api.RegexUrlToken;
+import com.edmunds.etm.common.api.UrlToken;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests the UrlTokenDictionary.
+ *
+ * @author Ryan Holmes
+ */
+@Test
+public class UrlTokenDictionaryTest {
+
+    private UrlTokenDictionary dictionary;
+
+    @BeforeMethod
+    public void setup() {
+        dictionary = new UrlTokenDictionary();
+        dictionary.add(new FixedUrlToken("make", "ford", "volvo"));
+        dictionary.add(new FixedUrlToken("trim", "2.0t", "se"));
+        dictionary.add(new RegexUrlToken("year", "(19|20)\\d{2}"));
+    }
+
+    @Test
+    public void matchesFixedToken() {
+        assertTrue(dictionary.matchesToken("[make]", "ford"));
+        assertTrue(dictionary.matchesToken("[make]", "volvo"));
+        assertFalse(dictionary.matchesToken("[make]", "fordx"));
+        assertFalse(dictionary.matchesToken("[make]", "ford|volvo"));
+    }
+
+    /**
+     * Values containing regular expression characters fall back to the regular expression.
+     */
+    @Test
+    public void matchesFixedTokenWithRegexCharacters() {
+        final String value = "2x0t";
+        assertEquals(dictionary.matchesToken("[trim]", value), value.matches(dictionary.resolveToken("[trim]")));
+        assertTrue(dictionary.matchesToken("[trim]", "2.0t"));
+    }
+
+    @Test
+    public void matchesRegexToken() {
+        assertTrue(dictionary.matchesToken("[year]", "2011"));
+        assertFalse(dictionary.matchesToken("[year]", "211"));
+        assertFalse(dictionary.matchesToken("[year]", "2011a"));
+    }
+
+    @Test
+    public void replacedTokenIsRecompiled() {
+        assertTrue(dictionary.matchesToken("[make]", "ford"));
+        final long version = dictionary.getVersion();
+
+        dictionary.add(new FixedUrlToken("make", "audi"));
+
+        assertTrue(dictionary.getVersion() != version);
+        assertFalse(dictionary.matchesToken("[make]", "ford"));
+        assertTrue(dictionary.matchesToken("[make]", "audi"));
+    }
+
+    @Test
+    public void replaceAllReportsChangedTokens() {
+        final Map<String, Long> versions = dictionary.getTokenVersions();
+
+        final Set<String> changed = dictionary.replaceAll(Lists.<UrlToken>newArrayList(
+                new FixedUrlToken("make", "ford", "volvo"),
+                new FixedUrlToken("trim", "se"),
+                new RegexUrlToken("zipcode", "\\d{5}")));
+
+        assertEquals(changed, Sets.newHashSet("[trim]", "[year]", "[zipcode]"));
+        assertEquals(dictionary.getTokenVersions().get("[make]"), versions.get("[make]"));
+        assertFalse(dictionary.getTokenVersions().get("[trim]").equals(versions.get("[trim]")));
+        assertFalse(dictionary.isTokenDefined("[year]"));
+        assertFalse(dictionary.matchesToken("[trim]", "2.0t"));
+        assertTrue(dictionary.matchesToken("[zipcode]", "90401"));
+
+        assertTrue(dictionary.replaceAll(dictionary.getAll()).isEmpty());
+    }
+
+    @Test
+    public void clearRemovesTokens() {
+        final long version = dictionary.getVersion();
+
+        dictionary.clear();
+
+        assertTrue(dictionary.getVersion() != version);
+        assertNull(dictionary.resolveToken("[make]"));
+        try {
+            dictionary.matchesToken("[make]", "ford");
+            fail("Expected IllegalArgumentException to be thrown");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "Unmapped Token: [make]");
+        }
+    }
+}
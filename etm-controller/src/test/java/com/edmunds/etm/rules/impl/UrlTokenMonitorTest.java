@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.impl;
+
+import com.edmunds.etm.common.api.ControllerPaths;
+import com.edmunds.etm.common.api.FixedUrlToken;
+import com.edmunds.etm.common.api.RegexUrlToken;
+import com.edmunds.etm.common.api.UrlToken;
+import com.edmunds.etm.common.impl.ObjectSerializer;
+import com.edmunds.etm.common.impl.UrlTokenRepository;
+import com.edmunds.etm.regex.RegexCost;
+import com.edmunds.etm.regex.RegexCostAnalyzer;
+import com.edmunds.etm.rules.api.UrlTokenChangeListener;
+import com.edmunds.etm.rules.api.UrlTokenResolver;
+import com.edmunds.zookeeper.connection.ZooKeeperConnection;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.easymock.EasyMock;
+import org.easymock.IMocksControl;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.easymock.EasyMock.expect;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the acceptance of new and changed tokens by the UrlTokenMonitor.
+ *
+ * @author David Trott
+ */
+@Test
+public class UrlTokenMonitorTest {
+
+    /**
+     * Backtracks excessively, the analyzer measures it far over the default budget.
+     */
+    private static final String BACKTRACKING_REGEX = "x((a+)+)+y";
+
+    private UrlTokenDictionary tokenDictionary;
+    private CountingCostAnalyzer costAnalyzer;
+    private Set<String> changedTokens;
+    private UrlTokenMonitor monitor;
+
+    @BeforeMethod
+    public void setup() {
+        tokenDictionary = new UrlTokenDictionary();
+        costAnalyzer = new CountingCostAnalyzer(RegexCostAnalyzer.DEFAULT_BUDGET_MICROS);
+        changedTokens = Sets.newHashSet();
+
+        final IMocksControl control = EasyMock.createNiceControl();
+        final ZooKeeperConnection connection = control.createMock("connection", ZooKeeperConnection.class);
+        final ControllerPaths controllerPaths = control.createMock("controllerPaths", ControllerPaths.class);
+        final ObjectSerializer objectSerializer = control.createMock("objectSerializer", ObjectSerializer.class);
+        final UrlTokenRepository tokenRepository = control.createMock("tokenRepository", UrlTokenRepository.class);
+
+        expect(controllerPaths.getUrlTokens()).andStubReturn("/etm/urlTokens");
+        control.replay();
+
+        monitor = new UrlTokenMonitor(connection, controllerPaths, objectSerializer, tokenDictionary, tokenRepository);
+        monitor.setCostAnalyzer(costAnalyzer);
+        monitor.addListener(new UrlTokenChangeListener() {
+            @Override
+            public void onUrlTokensChanged(UrlTokenResolver resolver, Set<String> changed) {
+                changedTokens.addAll(changed);
+            }
+        });
+    }
+
+    @Test
+    public void invalidTokenKeepsPreviousDefinition() {
+        update(new FixedUrlToken("make", "ford", "volvo"), new RegexUrlToken("year", "(19|20)\\d{2}"));
+        assertEquals(changedTokens, Sets.newHashSet("[make]", "[year]"));
+
+        changedTokens.clear();
+        update(new FixedUrlToken("make", "ford", "volvo"), new RegexUrlToken("year", "(19|20"));
+
+        assertTrue(changedTokens.isEmpty());
+        assertEquals(tokenDictionary.resolveToken("[year]"), "(19|20)\\d{2}");
+    }
+
+    @Test
+    public void newInvalidTokenIsDropped() {
+        update(new FixedUrlToken("make", "ford", "volvo"), new RegexUrlToken("year", "(19|20"));
+
+        assertTrue(tokenDictionary.isTokenDefined("[make]"));
+        assertFalse(tokenDictionary.isTokenDefined("[year]"));
+        assertEquals(changedTokens, Sets.newHashSet("[make]"));
+    }
+
+    @Test
+    public void backtrackingTokenIsRejectedAndAnalyzedAgain() {
+        update(new RegexUrlToken("model", "[a-z]+"));
+
+        update(new RegexUrlToken("model", BACKTRACKING_REGEX));
+        assertEquals(tokenDictionary.resolveToken("[model]"), "[a-z]+");
+
+        // The rejection is not cached, the token is measured again when the tokens change.
+        update(new RegexUrlToken("model", BACKTRACKING_REGEX), new FixedUrlToken("make", "ford"));
+        assertEquals(tokenDictionary.resolveToken("[model]"), "[a-z]+");
+        assertEquals(costAnalyzer.getAnalyzeCount(BACKTRACKING_REGEX), 2);
+    }
+
+    @Test
+    public void slowTokenIsAccepted() {
+
+        // The token may well be over a one microsecond budget, but without a hazard it is only logged.
+        costAnalyzer = new CountingCostAnalyzer(1);
+        monitor.setCostAnalyzer(costAnalyzer);
+
+        final String regex = "[a-z]+(-[a-z]+)*";
+        update(new RegexUrlToken("model", regex));
+        update(new RegexUrlToken("model", regex), new FixedUrlToken("make", "ford"));
+
+        assertEquals(tokenDictionary.resolveToken("[model]"), regex);
+        assertEquals(costAnalyzer.getAnalyzeCount(regex), 1);
+    }
+
+    private void update(UrlToken... tokens) {
+        monitor.updateTokens(Lists.newArrayList(tokens));
+    }
+
+    /**
+     * Counts the analyses of each regular expression.
+     */
+    private static class CountingCostAnalyzer extends RegexCostAnalyzer {
+
+        private final Map<String, Integer> analyzeCounts = Maps.newHashMap();
+
+        public CountingCostAnalyzer(long budgetMicros) {
+            super(budgetMicros);
+        }
+
+        @Override
+        public RegexCost analyze(String regex) {
+            final Integer count = analyzeCounts.get(regex);
+            analyzeCounts.put(regex, count == null ? 1 : count + 1);
+            return super.analyze(regex);
+        }
+
+        public int getAnalyzeCount(String regex) {
+            final Integer count = analyzeCounts.get(regex);
+            return count == null ? 0 : count;
+        }
+    }
+}
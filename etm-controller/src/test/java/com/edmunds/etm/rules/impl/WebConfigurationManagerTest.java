@@ -0,0 +1,304 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.impl;
+
+import com.edmunds.etm.loadbalancer.api.VirtualServer;
+import com.edmunds.etm.management.api.HostAddress;
+import com.edmunds.etm.management.api.ManagementLoadBalancerState;
+import com.edmunds.etm.management.api.ManagementPoolMember;
+import com.edmunds.etm.management.api.ManagementVip;
+import com.edmunds.etm.management.api.ManagementVipType;
+import com.edmunds.etm.management.api.ManagementVips;
+import com.edmunds.etm.management.api.MavenModule;
+import com.edmunds.etm.management.util.VipDeltaCalculator;
+import com.edmunds.etm.rules.api.DefaultUrlTokenDictionary;
+import com.edmunds.etm.rules.api.RuleTrafficStatistics;
+import com.edmunds.etm.rules.api.UrlRule;
+import com.edmunds.etm.runtime.api.Application;
+import com.edmunds.etm.runtime.impl.ApplicationRepository;
+import com.edmunds.etm.system.api.FailoverState;
+import com.edmunds.etm.system.impl.FailoverMonitor;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.easymock.IMocksControl;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.expect;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests the incremental rule set updates of the WebConfigurationManager. <p/> The rule cache counts the rules parsed
+ * for each application, an incremental update only parses the rules of the applications that changed while a full
+ * rebuild parses the rules of every application.
+ *
+ * @author David Trott
+ */
+@Test
+public class WebConfigurationManagerTest {
+
+    private UrlTokenDictionary tokenDictionary;
+    private CountingRuleCache ruleCache;
+    private Map<String, Application> activeApplications;
+    private ManagementVips deltaVips;
+    private WebConfigurationManager manager;
+
+    @BeforeMethod
+    public void setup() {
+        tokenDictionary = DefaultUrlTokenDictionary.newInstance();
+        ruleCache = new CountingRuleCache(tokenDictionary);
+        activeApplications = Maps.newHashMap();
+
+        final IMocksControl control = EasyMock.createNiceControl();
+
+        final ApplicationRepository applicationRepository =
+                control.createMock("applicationRepository", ApplicationRepository.class);
+        final AgentConfigurationManager agentConfigurationManager =
+                control.createMock("agentConfigurationManager", AgentConfigurationManager.class);
+        final VipDeltaCalculator vipDeltaCalculator =
+                control.createMock("vipDeltaCalculator", VipDeltaCalculator.class);
+        final FailoverMonitor failoverMonitor = control.createMock("failoverMonitor", FailoverMonitor.class);
+        final UrlTokenMonitor urlTokenMonitor = control.createMock("urlTokenMonitor", UrlTokenMonitor.class);
+
+        expect(applicationRepository.getActiveApplications()).andStubAnswer(new IAnswer<Set<Application>>() {
+            @Override
+            public Set<Application> answer() throws Throwable {
+                return Sets.newHashSet(activeApplications.values());
+            }
+        });
+        expect(vipDeltaCalculator.deltaWebTier((ManagementVips) anyObject(), (ManagementVips) anyObject()))
+                .andStubAnswer(new IAnswer<ManagementVips>() {
+                    @Override
+                    public ManagementVips answer() throws Throwable {
+                        return deltaVips;
+                    }
+                });
+        expect(failoverMonitor.getFailoverState()).andStubReturn(FailoverState.ACTIVE);
+
+        control.replay();
+
+        manager = new WebConfigurationManager(
+                applicationRepository, agentConfigurationManager, vipDeltaCalculator, failoverMonitor,
+                urlTokenMonitor);
+        manager.setRuleCache(ruleCache);
+        manager.onUrlTokensChanged(tokenDictionary, Collections.<String>emptySet());
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        manager.destroy();
+    }
+
+    @Test
+    public void poolOnlyChange() {
+        update(application("a", "1.0", "1.1.1.1", "/a/index.html"),
+                application("b", "1.0", "1.1.1.2", "/b/[make]/index.html"));
+        assertRules("a=/a/index.html", "b=/b/[make]/index.html");
+
+        // Same rules and vip, only the pool members differ.
+        ruleCache.reset();
+        update(application("a", "1.0", "1.1.1.1", "/a/index.html"));
+
+        assertRules("a=/a/index.html", "b=/b/[make]/index.html");
+        assertEquals(ruleCache.getParseCount("a"), 0);
+        assertEquals(ruleCache.getParseCount("b"), 0);
+    }
+
+    @Test
+    public void changedRules() {
+        update(application("a", "1.0", "1.1.1.1", "/a/index.html"),
+                application("b", "1.0", "1.1.1.2", "/b/[make]/index.html"));
+
+        ruleCache.reset();
+        update(application("a", "2.0", "1.1.1.1", "/a/[year]/index.html", "/a/other.html"));
+
+        assertRules("a=/a/[year]/index.html", "a=/a/other.html", "b=/b/[make]/index.html");
+        assertEquals(ruleCache.getParseCount("a"), 2);
+        assertEquals(ruleCache.getParseCount("b"), 0);
+    }
+
+    @Test
+    public void removedApplication() {
+        final Application a = application("a", "1.0", "1.1.1.1", "/a/index.html");
+        update(a, application("b", "1.0", "1.1.1.2", "/b/[make]/index.html"));
+
+        ruleCache.reset();
+        remove(a);
+
+        assertRules("b=/b/[make]/index.html");
+        assertEquals(ruleCache.getParseCount("b"), 0);
+    }
+
+    @Test
+    public void rejectedApplicationIsRetried() {
+        final Application a = application("a", "1.0", "1.1.1.1", "/shared/index.html");
+        update(a);
+
+        // The rule of c is identical to a rule of a, which was activated first.
+        update(application("c", "1.0", "1.1.1.3", "/shared/index.html"));
+        assertRules("a=/shared/index.html");
+
+        // Removing a frees the rule, so c can now be activated.
+        ruleCache.reset();
+        remove(a);
+
+        assertRules("c=/shared/index.html");
+        assertEquals(ruleCache.getParseCount("c"), 1);
+    }
+
+    @Test
+    public void fallbackToFullRebuild() {
+        update(application("a", "1.0", "1.1.1.1", "/a/index.html"));
+        update(application("b", "1.0", "1.1.1.2", "/b/index.html"));
+
+        // The new version of a conflicts with b, a full rebuild gives a priority as it was activated first.
+        ruleCache.reset();
+        update(application("a", "2.0", "1.1.1.1", "/b/index.html"));
+
+        assertRules("a=/b/index.html");
+        assertEquals(ruleCache.getParseCount("b"), 1);
+    }
+
+    @Test
+    public void abandonedUpdateKeepsActiveRuleSet() {
+        update(application("a", "1.0", "1.1.1.1", "/a/index.html"),
+                application("b", "1.0", "1.1.1.2", "/b/index.html"));
+
+        ruleCache.setFailingRule("/a/broken.html");
+        try {
+            update(application("a", "2.0", "1.1.1.1", "/a/broken.html"));
+            fail("Expected the update to fail");
+        } catch (IllegalStateException expected) {
+            // The deployed rules are unchanged.
+        }
+        assertRules("a=/a/index.html", "b=/b/index.html");
+
+        // The next update starts from the deployed rules.
+        update(application("b", "2.0", "1.1.1.2", "/b/other.html"));
+        assertRules("a=/a/index.html", "b=/b/other.html");
+    }
+
+    @Test
+    public void trafficReportStartsFromDeployedOrder() {
+        update(application("a", "1.0", "1.1.1.1", "/a/index.html"),
+                application("b", "1.0", "1.1.1.2", "/b/index.html"));
+
+        final Map<String, Long> hitsByRule = Maps.newHashMap();
+        hitsByRule.put("/a/index.html", 10L);
+        hitsByRule.put("/b/index.html", 90L);
+        final RuleTrafficStatistics statistics = new RuleTrafficStatistics(hitsByRule, 100, 0);
+
+        assertTrue(manager.applyTrafficStatistics(statistics).endsWith("1.90 -> 1.10"));
+
+        // The rules are already deployed in traffic order, so there is nothing left to gain.
+        assertTrue(manager.applyTrafficStatistics(statistics).endsWith("1.10 -> 1.10"));
+    }
+
+    private Application application(String artifactId, String version, String ipAddress, String... rules) {
+        final MavenModule mavenModule = new MavenModule("com.edmunds", artifactId, version);
+        final HostAddress hostAddress = new HostAddress(ipAddress, 80);
+        return new Application(
+                mavenModule, Arrays.asList(rules), null, new VirtualServer(artifactId, hostAddress));
+    }
+
+    private void update(Application... applications) {
+        for (Application application : applications) {
+            activeApplications.put(application.getName(), application);
+        }
+        deploy(applications);
+    }
+
+    private void remove(Application... applications) {
+        for (Application application : applications) {
+            activeApplications.remove(application.getName());
+        }
+        deploy(applications);
+    }
+
+    private void deploy(Application... changedApplications) {
+        final List<ManagementVip> vips = Lists.newArrayList();
+        for (Application application : changedApplications) {
+            vips.add(new ManagementVip(
+                    ManagementLoadBalancerState.ACTIVE, application.getMavenModule(),
+                    application.getVirtualServerAddress(), Collections.<ManagementPoolMember>emptySet(), "/",
+                    application.getRules(), null));
+        }
+        deltaVips = new ManagementVips(ManagementVipType.COMPLETE, vips);
+
+        manager.updateConfiguration(new ManagementVips(ManagementVipType.COMPLETE, vips));
+    }
+
+    private void assertRules(String... expected) {
+        final Set<String> actual = Sets.newHashSet();
+        for (UrlRule rule : manager.getActiveRules()) {
+            actual.add(rule.getMavenModule().getArtifactId() + "=" + rule.getRule());
+            final Application application = activeApplications.get(
+                    Application.applicationName(rule.getMavenModule()));
+            assertEquals(rule.getVipAddress(), application.getVirtualServerAddress().toString());
+        }
+        assertEquals(actual, Sets.newHashSet(expected));
+    }
+
+    /**
+     * Counts the rules parsed for each artifact and fails on a chosen rule.
+     */
+    private static class CountingRuleCache extends UrlRuleCache {
+
+        private final Map<String, Integer> parseCounts = Maps.newHashMap();
+        private String failingRule;
+
+        public CountingRuleCache(UrlTokenDictionary tokenDictionary) {
+            super(tokenDictionary);
+        }
+
+        @Override
+        public ParsedUrlRule parse(MavenModule mavenModule, String rule) {
+            if (rule.equals(failingRule)) {
+                throw new IllegalStateException("Unable to parse " + rule);
+            }
+
+            final Integer count = parseCounts.get(mavenModule.getArtifactId());
+            parseCounts.put(mavenModule.getArtifactId(), count == null ? 1 : count + 1);
+            return super.parse(mavenModule, rule);
+        }
+
+        public int getParseCount(String artifactId) {
+            final Integer count = parseCounts.get(artifactId);
+            return count == null ? 0 : count;
+        }
+
+        public void setFailingRule(String failingRule) {
+            this.failingRule = failingRule;
+        }
+
+        public void reset() {
+            parseCounts.clear();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.replay;
+
+import com.google.common.collect.Maps;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the replay of access logs against generated configurations.
+ *
+ * @author David Trott
+ */
+@Test
+public class AccessLogReplayerTest {
+
+    private static final String APACHE_CONF =
+            "RewriteEngine on\n" +
+            "RewriteMap etm-rules txt:conf/etm-rules.map\n" +
+            "RewriteCond ${etm-rules:$1} (.+)\n" +
+            "RewriteRule ^(/.*)$ http://%1$0 [P]\n" +
+            "RewriteCond ${etm-rules:$1**} (.+)\n" +
+            "RewriteRule ^(/[^/]+/).*$ http://%1$0 [P]\n" +
+            "RewriteCond %{REQUEST_URI} !^/(?:ford|volvo)/\n" +
+            "RewriteRule ^ - [S=2]\n" +
+            "RewriteRule ^/(?:ford|volvo)/[^/]*\\.html$ http://10.0.0.2:80$0 [P]\n" +
+            "RewriteRule ^/(?:ford|volvo)/.*$ http://10.0.0.3:80$0 [P]\n" +
+            "RewriteRule ^/.*\\.jsp$ http://10.0.0.4:80$0 [P]\n";
+
+    private static final String HAPROXY_CONF =
+            "backend web\n" +
+            "        acl acl_ignored path_reg .*\n" +
+            "frontend http_proxy\n" +
+            "        acl acl_valid_hostname hdr(host) www.edmunds.com\n" +
+            "        use_backend static_local if { path /robots.txt }\n" +
+            "        acl acl_append_slash    path_reg /[^/\\.]+$\n" +
+            "        acl acl_no_append_slash path_reg ^/api/\n" +
+            "        use_backend rewrite_append_slash if acl_append_slash !acl_no_append_slash\n" +
+            "        use_backend %[path,map_str(/etc/exact.map)] if { path,map_str(/etc/exact.map) -m found }\n" +
+            "        use_backend %[path,map_beg(/etc/prefix.map)] if { path,map_beg(/etc/prefix.map) -m found }\n" +
+            "        use_backend make-web if { path_reg ^/(?:ford|volvo)/.*$ }\n" +
+            "        use_backend host-web if acl_valid_hostname\n";
+
+    private static final String LOG =
+            "1.1.1.1 - - [16/Oct/2011:10:00:00 -0700] \"GET /about.html HTTP/1.1\" 200 1\n" +
+            "1.1.1.1 - - [16/Oct/2011:10:00:00 -0700] \"GET /app/a.html HTTP/1.1\" 200 1\n" +
+            "1.1.1.1 - - [16/Oct/2011:10:00:00 -0700] \"GET /ford/index.html HTTP/1.1\" 200 1\n" +
+            "1.1.1.1 - - [16/Oct/2011:10:00:00 -0700] \"GET /ford/ HTTP/1.1\" 200 1\n" +
+            "1.1.1.1 - - [16/Oct/2011:10:00:00 -0700] \"GET /x/y.jsp HTTP/1.1\" 200 1\n" +
+            "1.1.1.1 - - [16/Oct/2011:10:00:00 -0700] \"GET /x/y.gif HTTP/1.1\" 200 1\n";
+
+    @Test
+    public void apacheReplay() throws IOException {
+        final Map<String, String> rewriteMap = Maps.newLinkedHashMap();
+        rewriteMap.put("/about.html", "10.0.0.1:80");
+        rewriteMap.put("/app/**", "10.0.0.1:80");
+        final ReplayProgram program = ApacheReplayProgram.parse(reader(APACHE_CONF), rewriteMap);
+        assertEquals(program.size(), 6);
+
+        final ReplayCounters counters = new ReplayCounters();
+        assertEquals(program.route("/about.html", counters), "RewriteMap /about.html");
+        assertEquals(counters.regexEvaluations, 2);
+        assertEquals(counters.mapLookups, 1);
+
+        assertEquals(program.route("/app/a.html", new ReplayCounters()), "RewriteMap /app/**");
+        assertTrue(program.route("/ford/index.html", new ReplayCounters()).contains("10.0.0.2:80"));
+
+        // The guard skips the make rules.
+        final ReplayCounters skipped = new ReplayCounters();
+        assertTrue(program.route("/x/y.jsp", skipped).contains("10.0.0.4:80"));
+        assertEquals(skipped.regexEvaluations, 2 + 2 + 2 + 1);
+        assertNull(program.route("/x/y.gif", new ReplayCounters()));
+
+        final ReplayReport report = AccessLogReplayer.replay("apache", program, reader(LOG));
+        assertEquals(report.getRequestCount(), 6);
+        assertEquals(report.getUnmatchedCount(), 1);
+        assertEquals(report.getRuleCount(), 6);
+        assertTrue(report.getRegexEvaluationsPerRequest() > 0);
+        assertTrue(report.getP99MatchNanos() >= report.getP50MatchNanos());
+        assertEquals(report.getHottestRules().size(), 5);
+    }
+
+    @Test
+    public void haProxyReplay() throws IOException {
+        final Map<String, String> exactMap = Collections.singletonMap("/about.html", "about-web");
+        final Map<String, String> prefixMap = Maps.newLinkedHashMap();
+        prefixMap.put("/app/deep/", "deep-web");
+        prefixMap.put("/app/", "app-web");
+        final ReplayProgram program = HaProxyReplayProgram.parse(reader(HAPROXY_CONF), exactMap, prefixMap);
+        assertEquals(program.size(), 6);
+
+        final ReplayCounters counters = new ReplayCounters();
+        assertEquals(program.route("/about.html", counters), "map /about.html");
+        assertEquals(counters.regexEvaluations, 1);
+        assertEquals(counters.mapLookups, 1);
+
+        assertEquals(program.route("/app/deep/a.html", new ReplayCounters()), "map /app/deep/");
+        assertEquals(program.route("/app/a.html", new ReplayCounters()), "map /app/");
+        assertEquals(program.route("/ford", new ReplayCounters()),
+                "use_backend rewrite_append_slash if acl_append_slash !acl_no_append_slash");
+        assertEquals(program.route("/ford/index.html", new ReplayCounters()),
+                "use_backend make-web if { path_reg ^/(?:ford|volvo)/.*$ }");
+
+        // Header ACLs can not be evaluated from the log.
+        assertNull(program.route("/x/y.gif", new ReplayCounters()));
+
+        final ReplayReport report = AccessLogReplayer.replay("haproxy", program, reader(LOG));
+        assertEquals(report.getRequestCount(), 6);
+        assertEquals(report.getUnmatchedCount(), 2);
+        assertEquals(report.getHottestRules().get(0).getKey(),
+                "use_backend make-web if { path_reg ^/(?:ford|volvo)/.*$ }");
+        assertEquals(report.getHottestRules().get(0).getValue(), Long.valueOf(2));
+    }
+
+    private static BufferedReader reader(String text) {
+        return new BufferedReader(new StringReader(text));
+    }
+}
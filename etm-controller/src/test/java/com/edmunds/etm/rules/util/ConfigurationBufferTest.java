@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.util;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.testng.annotations.Test;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the ConfigurationBuffer.
+ *
+ * @author David Trott
+ */
+@Test
+public class ConfigurationBufferTest {
+
+    @Test
+    public void encodesUtf8() throws Exception {
+        final String text = "RewriteRule ^/caf\u00e9/\u20ac/\ud83d\ude97/index\\.html$ http://localhost:80$0 [P]\n";
+        final ConfigurationBuffer buffer = new ConfigurationBuffer(4);
+        buffer.append(text);
+
+        assertEquals(buffer.toByteArray(), text.getBytes("UTF-8"));
+        assertEquals(buffer.getDigest(), DigestUtils.md5Hex(text.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void surrogatesSplitAcrossWrites() throws Exception {
+        final String text = "a\ud83d\ude97b\ud83dc\ude97";
+        final ConfigurationBuffer buffer = new ConfigurationBuffer(16);
+        final Writer writer = buffer.asWriter();
+        for (int i = 0; i < text.length(); i++) {
+            writer.write(text, i, 1);
+        }
+
+        assertEquals(buffer.toByteArray(), text.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void digestOfLargeConfiguration() throws Exception {
+        final StringBuilder expected = new StringBuilder();
+        final ConfigurationBuffer buffer = new ConfigurationBuffer(16);
+        for (int i = 0; i < 5000; i++) {
+            final String line = "RewriteRule ^/app" + i + "/.*$ http://10.0.0." + (i % 255) + ":80$0 [P]\n";
+            expected.append(line);
+            buffer.append(line);
+        }
+
+        final byte[] expectedBytes = expected.toString().getBytes("UTF-8");
+        assertEquals(buffer.size(), expectedBytes.length);
+        assertEquals(buffer.getDigest(), DigestUtils.md5Hex(expectedBytes));
+        assertEquals(buffer.toByteArray(), expectedBytes);
+    }
+
+    @Test
+    public void writesIntsHighByteFirst() throws Exception {
+        final ConfigurationBuffer buffer = new ConfigurationBuffer(2);
+        buffer.writeInt(0x01020304).writeInt(-1).append("x");
+
+        final ByteBuffer expected = ByteBuffer.allocate(9);
+        expected.putInt(0x01020304).putInt(-1).put((byte) 'x');
+        assertEquals(buffer.toByteArray(), expected.array());
+    }
+
+    @Test
+    public void resetReusesCapacity() throws Exception {
+        final ConfigurationBuffer buffer = new ConfigurationBuffer(16);
+        buffer.append("a much longer first configuration");
+        buffer.getDigest();
+        final int capacity = buffer.capacity();
+
+        buffer.reset();
+        buffer.append("second");
+
+        assertEquals(buffer.capacity(), capacity);
+        assertEquals(buffer.toByteArray(), "second".getBytes("UTF-8"));
+        assertEquals(buffer.getDigest(), DigestUtils.md5Hex("second".getBytes("UTF-8")));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void appendAfterCompletion() {
+        final ConfigurationBuffer buffer = new ConfigurationBuffer(16);
+        buffer.append("done");
+        assertTrue(buffer.getDigest().length() > 0);
+        buffer.append("more");
+    }
+}
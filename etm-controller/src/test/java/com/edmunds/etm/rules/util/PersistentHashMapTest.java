@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.util;
+
+import com.google.common.collect.Maps;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the PersistentHashMap and PersistentHashSet.
+ *
+ * @author David Trott
+ */
+@Test
+public class PersistentHashMapTest {
+
+    @Test
+    public void plusAndMinus() {
+        final PersistentHashMap<String, Integer> empty = PersistentHashMap.empty();
+        final PersistentHashMap<String, Integer> one = empty.plus("a", 1);
+        final PersistentHashMap<String, Integer> two = one.plus("b", 2);
+
+        assertTrue(empty.isEmpty());
+        assertEquals(one.size(), 1);
+        assertEquals(two.size(), 2);
+        assertEquals(two.get("a"), Integer.valueOf(1));
+        assertEquals(two.get("b"), Integer.valueOf(2));
+        assertNull(one.get("b"));
+
+        final PersistentHashMap<String, Integer> removed = two.minus("a");
+        assertEquals(removed.size(), 1);
+        assertFalse(removed.containsKey("a"));
+        assertTrue(two.containsKey("a"));
+        assertTrue(removed.minus("b").isEmpty());
+    }
+
+    @Test
+    public void unchangedMapIsReturned() {
+        final PersistentHashMap<String, Integer> map = PersistentHashMap.<String, Integer>empty().plus("a", 1);
+
+        assertSame(map.plus("a", map.get("a")), map);
+        assertSame(map.minus("b"), map);
+    }
+
+    /**
+     * Uses keys spread over the whole hash range, and keys with a poor hash code that are forced into the same
+     * branches and collision nodes.
+     */
+    @Test
+    public void randomOperationsMatchHashMap() {
+        final Random random = new Random(42);
+        final int[] hashes = new int[300];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextInt();
+        }
+
+        for (int round = 0; round < 20; round++) {
+            final Map<Object, Integer> expected = Maps.newHashMap();
+            PersistentHashMap<Object, Integer> actual = PersistentHashMap.empty();
+
+            for (int i = 0; i < 2000; i++) {
+                final int n = random.nextInt(hashes.length);
+                final Object key = round % 2 == 0 ? Integer.valueOf(hashes[n]) : new BadHash(n);
+
+                if (random.nextInt(3) == 0) {
+                    expected.remove(key);
+                    actual = actual.minus(key);
+                } else {
+                    expected.put(key, i);
+                    actual = actual.plus(key, i);
+                }
+                assertEquals(actual.size(), expected.size());
+            }
+
+            assertEquals(actual, expected);
+            assertEquals(expected, actual);
+            for (Object key : expected.keySet()) {
+                assertEquals(actual.get(key), expected.get(key));
+            }
+        }
+    }
+
+    @Test
+    public void persistentHashSet() {
+        final PersistentHashSet<String> empty = PersistentHashSet.empty();
+        final PersistentHashSet<String> set = empty.plus("a").plus("b");
+
+        assertTrue(empty.isEmpty());
+        assertEquals(set.size(), 2);
+        assertTrue(set.contains("a"));
+        assertSame(set.plus("a"), set);
+        assertFalse(set.minus("a").contains("a"));
+        assertTrue(set.contains("a"));
+        assertSame(set.minus("a").minus("b"), empty);
+    }
+
+    /**
+     * A key whose hash code only has a few distinct values.
+     */
+    private static final class BadHash {
+        private final int value;
+
+        private BadHash(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BadHash && ((BadHash) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value % 7;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.rules.util;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the RegexOptimizer.
+ *
+ * @author David Trott
+ */
+@Test
+public class RegexOptimizerTest {
+
+    static final List<String> MAKES = Arrays.asList(
+            "acura", "am-general", "amgeneral", "aston-martin", "astonmartin", "audi", "bentley", "bmw", "bugatti",
+            "buick", "cadillac", "chevrolet", "chrysler", "daewoo", "dodge", "dummy", "eagle", "ferrari", "fiat",
+            "fisker", "ford", "geo", "gmc", "honda", "hummer", "hyundai", "infiniti", "isuzu", "jaguar", "jeep",
+            "kia", "lamborghini", "land-rover", "landrover", "lexus", "lincoln", "lotus", "mahindra", "maserati",
+            "maybach", "mazda", "mclaren", "mercedes-benz", "mercedesbenz", "mercury", "mini", "mitsubishi",
+            "nissan", "oldsmobile", "panoz", "plymouth", "pontiac", "porsche", "ram", "rolls-royce", "rollsroyce",
+            "saab", "saturn", "scion", "smart", "spyker", "srt", "subaru", "suzuki", "tesla", "toyota",
+            "volkswagen", "volvo");
+
+    private static final Pattern CAPTURING_GROUP = Pattern.compile("(?<!\\\\)\\((?!\\?:)");
+
+    @Test
+    public void factorsPrefixesAndSuffixes() {
+        assertEquals(RegexOptimizer.alternation(Arrays.asList("ford")), "ford");
+        assertEquals(RegexOptimizer.alternation(Arrays.asList("a", "b", "-")), "[ab-]");
+        assertEquals(RegexOptimizer.alternation(Arrays.asList("land-rover", "landrover")), "land-?rover");
+        assertEquals(RegexOptimizer.alternation(Arrays.asList("saab", "saturn")), "sa(?:ab|turn)");
+        assertEquals(RegexOptimizer.alternation(Arrays.asList("new", "used")), "(?:new|used)");
+        assertEquals(RegexOptimizer.alternation(Arrays.asList("mini", "")), "(?:mini)?");
+    }
+
+    @Test
+    public void makesMatchTheSameLanguage() {
+        assertEquivalent(MAKES, candidates(MAKES));
+    }
+
+    @Test
+    public void quotesSpecialCharacters() {
+        final List<String> values = Arrays.asList("a.b", "a+b", "a", "$", "^", "]", "\\");
+        assertEquivalent(values, candidates(values));
+    }
+
+    /**
+     * Every string over a small alphabet is checked against random sets of values.
+     */
+    @Test
+    public void exhaustiveSmallAlphabet() {
+        final Random random = new Random(11);
+        final List<String> strings = allStrings("ab-", 4);
+
+        for (int i = 0; i < 300; i++) {
+            final Set<String> values = Sets.newHashSet();
+            final int count = 1 + random.nextInt(8);
+            for (int j = 0; j < count; j++) {
+                values.add(strings.get(random.nextInt(strings.size())));
+            }
+            assertEquivalent(values, strings);
+        }
+    }
+
+    private void assertEquivalent(Iterable<String> values, Iterable<String> candidates) {
+        final Set<String> valueSet = Sets.newHashSet(values);
+        final String regex = RegexOptimizer.alternation(valueSet);
+        final Pattern pattern = Pattern.compile(regex);
+
+        // The expression must also behave when it is concatenated with other expressions.
+        final Pattern segment = Pattern.compile("^/" + regex + "/x$");
+
+        for (String candidate : candidates) {
+            final boolean expected = valueSet.contains(candidate);
+            assertEquals(pattern.matcher(candidate).matches(), expected, regex + " vs '" + candidate + "'");
+            assertEquals(segment.matcher("/" + candidate + "/x").matches(), expected, regex + " vs '" + candidate + "'");
+        }
+        for (String value : valueSet) {
+            assertTrue(pattern.matcher(value).matches(), regex + " vs '" + value + "'");
+        }
+        assertFalse(CAPTURING_GROUP.matcher(regex).find(), "capturing group in " + regex);
+    }
+
+    /**
+     * The values plus near misses: prefixes, extensions and single character edits.
+     */
+    private List<String> candidates(List<String> values) {
+        final Set<String> candidates = Sets.newTreeSet();
+        candidates.add("");
+        for (String value : values) {
+            candidates.add(value);
+            candidates.add(value + "x");
+            candidates.add("x" + value);
+            for (int i = 0; i < value.length(); i++) {
+                candidates.add(value.substring(0, i));
+                candidates.add(value.substring(i));
+                candidates.add(value.substring(0, i) + value.substring(i + 1));
+                candidates.add(value.substring(0, i) + '-' + value.substring(i));
+            }
+        }
+        for (String value : values) {
+            for (String other : values) {
+                candidates.add(value + other);
+            }
+        }
+        return Lists.newArrayList(candidates);
+    }
+
+    private List<String> allStrings(String alphabet, int maxLength) {
+        final List<String> strings = Lists.newArrayList("");
+        int start = 0;
+        for (int length = 1; length <= maxLength; length++) {
+            final int end = strings.size();
+            for (int i = start; i < end; i++) {
+                for (int j = 0; j < alphabet.length(); j++) {
+                    strings.add(strings.get(i) + alphabet.charAt(j));
+                }
+            }
+            start = end;
+        }
+        return strings;
+    }
+}
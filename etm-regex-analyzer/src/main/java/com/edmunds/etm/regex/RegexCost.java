@@ -0,0 +1,122 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.regex;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of analyzing the cost of a regular expression, see {@link RegexCostAnalyzer}.
+ *
+ * @author David Trott
+ */
+public final class RegexCost {
+
+    private final String regex;
+    private final List<String> hazards;
+    private final long worstMatchNanos;
+    private final String worstInput;
+    private final long budgetNanos;
+
+    RegexCost(String regex, List<String> hazards, long worstMatchNanos, String worstInput, long budgetNanos) {
+        this.regex = regex;
+        this.hazards = Collections.unmodifiableList(hazards);
+        this.worstMatchNanos = worstMatchNanos;
+        this.worstInput = worstInput;
+        this.budgetNanos = budgetNanos;
+    }
+
+    public String getRegex() {
+        return regex;
+    }
+
+    /**
+     * Returns the constructs that can cause excessive backtracking (nested quantifiers and ambiguous alternations).
+     *
+     * @return the descriptions of the hazards, empty if none were found.
+     */
+    public List<String> getHazards() {
+        return hazards;
+    }
+
+    /**
+     * Returns the slowest match time measured against the adversarial inputs.
+     *
+     * @return the match time in nanoseconds.
+     */
+    public long getWorstMatchNanos() {
+        return worstMatchNanos;
+    }
+
+    /**
+     * Returns the adversarial input that took the longest to match.
+     *
+     * @return the input, null if no input was matched.
+     */
+    public String getWorstInput() {
+        return worstInput;
+    }
+
+    public long getBudgetNanos() {
+        return budgetNanos;
+    }
+
+    /**
+     * Indicates whether the slowest match exceeded the budget. The result depends on the host the analysis ran on.
+     *
+     * @return true if the expression is over budget.
+     */
+    public boolean isOverBudget() {
+        return worstMatchNanos > budgetNanos;
+    }
+
+    /**
+     * Indicates whether the expression contains a hazard and the measurements confirm it, the slowest match exceeded
+     * the budget. Unlike {@link #isOverBudget()} on its own this cannot be caused by a slow host alone, since the
+     * hazard is found by scanning the expression.
+     *
+     * @return true if the expression backtracks excessively.
+     */
+    public boolean isHazardConfirmed() {
+        return !hazards.isEmpty() && isOverBudget();
+    }
+
+    /**
+     * Indicates whether the expression is over budget or contains a hazard.
+     *
+     * @return true if the expression should be reviewed.
+     */
+    public boolean isFlagged() {
+        return isOverBudget() || !hazards.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%.1f us", worstMatchNanos / 1000.0));
+        if (isOverBudget()) {
+            sb.append(String.format(" (over the %.1f us budget on \"%s\")",
+                    budgetNanos / 1000.0, StringEscapeUtils.escapeJava(worstInput)));
+        }
+        if (!hazards.isEmpty()) {
+            sb.append(", ").append(StringUtils.join(hazards, ", "));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.regex;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Estimates how expensive a regular expression is to match, so that a badly written URL token cannot introduce
+ * catastrophic backtracking into every rule that uses it. <p/> The analysis has two parts: <ul> <li>A scan of the
+ * expression for the constructs that cause excessive backtracking: nested quantifiers whose iterations can split the
+ * same text in several ways ({@code (a+)+}, {@code ([a-z]+-?)+}) and repeated alternations whose branches can start
+ * with the same character ({@code (?:\w|a)*}). Atomic groups and possessive quantifiers are not reported.</li>
+ * <li>A micro-benchmark that matches the expression against adversarial inputs: runs of the characters the expression
+ * accepts, of increasing length, followed by a character that makes the match fail.</li> </ul> The benchmark uses the
+ * {@code java.util.regex} engine, which avoids some of the backtracking of the PCRE based engines used by the web
+ * servers. An expression that is fast here but contains a hazard is therefore flagged rather than accepted silently.
+ *
+ * @author David Trott
+ */
+public class RegexCostAnalyzer {
+
+    /**
+     * The default budget for the slowest match of an adversarial input.
+     */
+    public static final long DEFAULT_BUDGET_MICROS = 1000;
+
+    private static final int[] INPUT_LENGTHS = {8, 16, 24, 32};
+    private static final String[] SUFFIXES = {"!", "/", "\n"};
+    private static final int WARM_UP_RUNS = 1;
+    private static final int REPETITIONS = 3;
+    private static final int MAX_PUMP_CHARACTERS = 8;
+
+    /**
+     * A match is abandoned once it has taken this many times the budget.
+     */
+    private static final int ABORT_FACTOR = 20;
+
+    /**
+     * The characters used to test what an atom matches, the earlier characters are preferred in the inputs.
+     */
+    private static final String PROBE_CHARACTERS = buildProbeCharacters();
+
+    private final long budgetNanos;
+
+    public RegexCostAnalyzer() {
+        this(DEFAULT_BUDGET_MICROS);
+    }
+
+    /**
+     * Creates an analyzer with the specified budget.
+     *
+     * @param budgetMicros the budget for the slowest match of an adversarial input, in microseconds.
+     */
+    public RegexCostAnalyzer(long budgetMicros) {
+        Validate.isTrue(budgetMicros > 0, "budgetMicros must be positive");
+        this.budgetNanos = budgetMicros * 1000;
+    }
+
+    public long getBudgetMicros() {
+        return budgetNanos / 1000;
+    }
+
+    /**
+     * Analyzes the cost of a regular expression.
+     *
+     * @param regex the regular expression.
+     * @return the cost of the expression.
+     * @throws java.util.regex.PatternSyntaxException if the expression is invalid.
+     */
+    public RegexCost analyze(String regex) {
+        Validate.notNull(regex, "regex is null");
+
+        final Pattern pattern = Pattern.compile(regex);
+        final Scanner scanner = new Scanner(regex);
+        scanner.scan();
+
+        final String pumpCharacters = getPumpCharacters(scanner.atoms);
+        long worstNanos = 0;
+        String worstInput = null;
+
+        // Stop at the first length that is over budget, longer inputs could take much longer still.
+        for (int i = 0; i < INPUT_LENGTHS.length && worstNanos <= budgetNanos; i++) {
+            for (String input : buildInputs(pumpCharacters, INPUT_LENGTHS[i])) {
+                final long nanos = time(pattern, input);
+                if (nanos > worstNanos || worstInput == null) {
+                    worstNanos = nanos;
+                    worstInput = input;
+                }
+            }
+        }
+
+        return new RegexCost(regex, scanner.hazards, worstNanos, worstInput, budgetNanos);
+    }
+
+    /**
+     * Builds the adversarial inputs of the specified length. <p/> Each pump character (and the sequence of all of
+     * them) is repeated after the characters that precede it in the expression, then followed by each suffix.
+     *
+     * @param pumpCharacters the characters accepted by the atoms of the expression, in order.
+     * @param length         the number of repeated characters.
+     * @return the inputs.
+     */
+    static List<String> buildInputs(String pumpCharacters, int length) {
+        final List<String[]> pumps = Lists.newArrayList();
+        for (int i = 0; i < pumpCharacters.length(); i++) {
+            pumps.add(new String[]{pumpCharacters.substring(0, i), pumpCharacters.substring(i, i + 1)});
+        }
+        if (pumpCharacters.length() > 1) {
+            pumps.add(new String[]{"", pumpCharacters});
+        }
+
+        final List<String> inputs = Lists.newArrayList();
+        for (String[] pump : pumps) {
+            final String repeated = StringUtils.repeat(pump[1], length / pump[1].length() + 1).substring(0, length);
+            for (String suffix : SUFFIXES) {
+                inputs.add(pump[0] + repeated + suffix);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Returns the fastest of several matches of the input, measured after a warm-up match. A single slow match may just
+     * be the JIT or a garbage collection, so an input is only over budget if every measured match is. The measurement
+     * stops at the first match within the budget.
+     */
+    private long time(Pattern pattern, String input) {
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            match(pattern, input);
+        }
+
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < REPETITIONS && fastest > budgetNanos; i++) {
+            fastest = Math.min(fastest, match(pattern, input));
+        }
+        return fastest;
+    }
+
+    /**
+     * Matches the input once, a match that takes too long is abandoned.
+     *
+     * @return the time taken in nanoseconds.
+     */
+    private long match(Pattern pattern, String input) {
+        final long start = System.nanoTime();
+        try {
+            pattern.matcher(new DeadlineCharSequence(input, start + budgetNanos * ABORT_FACTOR)).matches();
+        } catch (MatchAbortedException e) {
+            // The match took at least the abort time.
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static String getPumpCharacters(List<String> atoms) {
+        final StringBuilder sb = new StringBuilder();
+        for (String atom : atoms) {
+            final String matched = getMatchedCharacters(atom);
+            if (matched.length() > 0 && sb.indexOf(matched.substring(0, 1)) < 0) {
+                sb.append(matched.charAt(0));
+                if (sb.length() == MAX_PUMP_CHARACTERS) {
+                    break;
+                }
+            }
+        }
+        return sb.length() > 0 ? sb.toString() : "a";
+    }
+
+    /**
+     * Returns the probe characters that an atom (a literal, escape, character class or '.') matches.
+     */
+    private static String getMatchedCharacters(String atom) {
+        final Pattern pattern;
+        try {
+            pattern = Pattern.compile(atom);
+        } catch (PatternSyntaxException e) {
+            // Back references and other sequences that are only valid within the whole expression.
+            return "";
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < PROBE_CHARACTERS.length(); i++) {
+            final char c = PROBE_CHARACTERS.charAt(i);
+            if (pattern.matcher(String.valueOf(c)).matches()) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String buildProbeCharacters() {
+        final StringBuilder sb = new StringBuilder();
+        for (char c = 'a'; c <= 'z'; c++) {
+            sb.append(c);
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            sb.append(c);
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            sb.append(c);
+        }
+        for (char c = ' '; c <= '~'; c++) {
+            if (!Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.append("\t\n").toString();
+    }
+
+    /**
+     * Returns the index after the escape sequence that starts at the specified index.
+     */
+    private static int escapeEnd(String regex, int index) {
+        final int next = index + 1;
+        if (next >= regex.length()) {
+            return regex.length();
+        }
+
+        final char c = regex.charAt(next);
+        if (c == 'Q') {
+            final int end = regex.indexOf("\\E", next);
+            return end < 0 ? regex.length() : end + 2;
+        } else if ((c == 'p' || c == 'P' || c == 'x') && regex.startsWith("{", next + 1)) {
+            return regex.indexOf('}', next) + 1;
+        } else if (c == 'x') {
+            return Math.min(regex.length(), next + 3);
+        } else if (c == 'u') {
+            return Math.min(regex.length(), next + 5);
+        } else if (c == 'c') {
+            return Math.min(regex.length(), next + 2);
+        }
+        return next + 1;
+    }
+
+    /**
+     * Returns the index after the character class that starts at the specified index.
+     */
+    private static int classEnd(String regex, int index) {
+        int i = index + 1;
+        if (regex.startsWith("^", i)) {
+            i++;
+        }
+        if (regex.startsWith("]", i)) {
+            i++;
+        }
+
+        int depth = 1;
+        while (i < regex.length() && depth > 0) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                i = escapeEnd(regex, i);
+                continue;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                depth--;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Scans an expression for nested quantifiers and ambiguous alternations, and collects its single character atoms.
+     */
+    private static final class Scanner {
+        private final String regex;
+        private final List<String> hazards = Lists.newArrayList();
+        private final List<String> atoms = Lists.newArrayList();
+        private final Map<String, String> matchedCharacters = Maps.newHashMap();
+
+        private Scanner(String regex) {
+            this.regex = regex;
+        }
+
+        private void scan() {
+            final LinkedList<Group> groups = Lists.newLinkedList();
+            groups.push(new Group(0, false));
+
+            // The atom that a following quantifier applies to.
+            String lastAtom = null;
+            Group lastGroup = null;
+            boolean lastWasFirst = false;
+
+            int i = 0;
+            while (i < regex.length()) {
+                final char c = regex.charAt(i);
+                final Group group = groups.peek();
+
+                if (c == '(') {
+                    final int contentStart = groupContentStart(i);
+                    groups.push(new Group(i, regex.startsWith("(?>", i)));
+                    lastAtom = null;
+                    lastGroup = null;
+                    i = contentStart;
+                } else if (c == ')' && groups.size() > 1) {
+                    final Group closed = groups.pop();
+                    final Group parent = groups.peek();
+                    lastWasFirst = parent.addFirstAtoms(closed.getFirstAtoms());
+                    if (!closed.atomic) {
+                        parent.unboundedAtoms.addAll(closed.unboundedAtoms);
+                    }
+                    lastAtom = null;
+                    lastGroup = closed;
+                    i++;
+                } else if (c == '|') {
+                    group.startBranch();
+                    lastAtom = null;
+                    lastGroup = null;
+                    lastWasFirst = false;
+                    i++;
+                } else if (c == '*' || c == '+' || c == '?' || c == '{') {
+                    final Quantifier quantifier = new Quantifier(i);
+                    if (lastAtom != null && quantifier.repeats() && !quantifier.possessive) {
+                        group.unboundedAtoms.add(lastAtom);
+                    } else if (lastGroup != null && quantifier.repeats() && !quantifier.possessive) {
+                        checkRepeatedGroup(lastGroup, quantifier.end);
+                        group.unboundedAtoms.addAll(lastGroup.getFirstAtoms());
+                    }
+                    if (lastWasFirst && quantifier.optional) {
+                        group.expectingFirst = true;
+                    }
+                    lastAtom = null;
+                    lastGroup = null;
+                    i = quantifier.end;
+                } else if (c == '^' || c == '$') {
+                    lastAtom = null;
+                    lastGroup = null;
+                    lastWasFirst = false;
+                    i++;
+                } else {
+                    final int end = c == '\\' ? escapeEnd(regex, i) : (c == '[' ? classEnd(regex, i) : i + 1);
+                    lastAtom = toAtom(regex.substring(i, end));
+                    lastGroup = null;
+                    lastWasFirst = lastAtom != null && group.addFirstAtoms(Sets.newHashSet(lastAtom));
+                    if (lastAtom != null) {
+                        atoms.add(lastAtom);
+                    }
+                    i = end;
+                }
+            }
+        }
+
+        /**
+         * Returns the single character atom for the text of an atom, null for escapes that do not match a character.
+         */
+        private String toAtom(String text) {
+            if (text.startsWith("\\Q")) {
+                final String quoted = StringUtils.removeEnd(text.substring(2), "\\E");
+                return quoted.length() > 0 ? Pattern.quote(quoted.substring(0, 1)) : null;
+            } else if (text.matches("\\\\[bBAGzZ]")) {
+                return null;
+            }
+            return text;
+        }
+
+        /**
+         * Returns the index of the content of the group that starts at the specified index, after any "?:" style
+         * prefix.
+         */
+        private int groupContentStart(int index) {
+            int i = index + 1;
+            if (!regex.startsWith("?", i)) {
+                return i;
+            }
+            i++;
+            if (regex.startsWith("<=", i) || regex.startsWith("<!", i)) {
+                return i + 2;
+            } else if (regex.startsWith("<", i)) {
+                return regex.indexOf('>', i) + 1;
+            } else if (i < regex.length() && ":=!>".indexOf(regex.charAt(i)) >= 0) {
+                return i + 1;
+            }
+
+            // Flags, either "(?i)" or "(?i:...)".
+            while (i < regex.length() && (Character.isLetter(regex.charAt(i)) || regex.charAt(i) == '-')) {
+                i++;
+            }
+            return regex.startsWith(":", i) ? i + 1 : i;
+        }
+
+        /**
+         * Checks a group that is repeated by a quantifier. The iterations of the group can split the same text in
+         * several ways if an atom repeated inside the group can match the first character of the group, or if two of its
+         * alternatives can start with the same character.
+         */
+        private void checkRepeatedGroup(Group group, int quantifierEnd) {
+            if (group.atomic) {
+                return;
+            }
+
+            final String text = regex.substring(group.start, quantifierEnd);
+            if (overlaps(group.unboundedAtoms, group.getFirstAtoms())) {
+                hazards.add("nested quantifier " + text);
+                return;
+            }
+
+            final List<Set<String>> branches = group.firstAtoms;
+            for (int i = 0; i < branches.size(); i++) {
+                for (int j = i + 1; j < branches.size(); j++) {
+                    if (overlaps(branches.get(i), branches.get(j))) {
+                        hazards.add("ambiguous alternation " + text);
+                        return;
+                    }
+                }
+            }
+        }
+
+        private boolean overlaps(Set<String> atoms1, Set<String> atoms2) {
+            for (String atom1 : atoms1) {
+                final String matched = getMatched(atom1);
+                for (String atom2 : atoms2) {
+                    if (StringUtils.containsAny(getMatched(atom2), matched.toCharArray())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private String getMatched(String atom) {
+            String matched = matchedCharacters.get(atom);
+            if (matched == null) {
+                matched = getMatchedCharacters(atom);
+                matchedCharacters.put(atom, matched);
+            }
+            return matched;
+        }
+
+        /**
+         * A quantifier: *, +, ?, {n}, {n,} or {n,m}, optionally followed by a lazy (?) or possessive (+) modifier.
+         */
+        private final class Quantifier {
+            private final boolean optional;
+            private final boolean unbounded;
+            private final int max;
+            private final boolean possessive;
+            private final int end;
+
+            private Quantifier(int index) {
+                final char c = regex.charAt(index);
+                int i = index + 1;
+                if (c == '{') {
+                    final int close = regex.indexOf('}', index);
+                    final String[] bounds = regex.substring(index + 1, close).split(",", -1);
+                    final String upper = bounds.length > 1 ? bounds[1].trim() : bounds[0].trim();
+                    this.optional = Integer.parseInt(bounds[0].trim()) == 0;
+                    this.unbounded = upper.length() == 0;
+                    this.max = unbounded ? Integer.MAX_VALUE : Integer.parseInt(upper);
+                    i = close + 1;
+                } else {
+                    this.optional = c != '+';
+                    this.unbounded = c != '?';
+                    this.max = unbounded ? Integer.MAX_VALUE : 1;
+                }
+                this.possessive = regex.startsWith("+", i);
+                this.end = regex.startsWith("+", i) || regex.startsWith("?", i) ? i + 1 : i;
+            }
+
+            /**
+             * Indicates whether the quantifier can match its atom more than once.
+             */
+            private boolean repeats() {
+                return unbounded || max > 1;
+            }
+        }
+    }
+
+    /**
+     * A group, or the whole expression.
+     */
+    private static final class Group {
+        private final int start;
+        private final boolean atomic;
+
+        /**
+         * The atoms that can match the first character of each alternative.
+         */
+        private final List<Set<String>> firstAtoms = Lists.newArrayList();
+
+        /**
+         * The atoms that are repeated by a quantifier anywhere inside the group.
+         */
+        private final Set<String> unboundedAtoms = Sets.newHashSet();
+
+        private boolean expectingFirst = true;
+
+        private Group(int start, boolean atomic) {
+            this.start = start;
+            this.atomic = atomic;
+            firstAtoms.add(Sets.<String>newHashSet());
+        }
+
+        private void startBranch() {
+            firstAtoms.add(Sets.<String>newHashSet());
+            expectingFirst = true;
+        }
+
+        /**
+         * Adds the atoms of the next element if it can be the first of the current alternative.
+         *
+         * @return true if the atoms were added.
+         */
+        private boolean addFirstAtoms(Set<String> atoms) {
+            if (!expectingFirst) {
+                return false;
+            }
+            firstAtoms.get(firstAtoms.size() - 1).addAll(atoms);
+            expectingFirst = false;
+            return true;
+        }
+
+        private Set<String> getFirstAtoms() {
+            final Set<String> atoms = Sets.newHashSet();
+            for (Set<String> branch : firstAtoms) {
+                atoms.addAll(branch);
+            }
+            return atoms;
+        }
+    }
+
+    /**
+     * A character sequence that abandons the match once its deadline has passed.
+     */
+    private static final class DeadlineCharSequence implements CharSequence {
+        private final String text;
+        private final long deadline;
+        private int reads;
+
+        private DeadlineCharSequence(String text, long deadline) {
+            this.text = text;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if ((++reads & 0x3ff) == 0 && System.nanoTime() > deadline) {
+                throw new MatchAbortedException();
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static final class MatchAbortedException extends RuntimeException {
+    }
+}
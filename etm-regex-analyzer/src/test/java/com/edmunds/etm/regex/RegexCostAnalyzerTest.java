@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.regex;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for {@link RegexCostAnalyzer}.
+ *
+ * @author David Trott
+ */
+@Test
+public class RegexCostAnalyzerTest {
+
+    private final RegexCostAnalyzer analyzer = new RegexCostAnalyzer();
+
+    @Test
+    public void safeExpressionsTest() {
+        assertSafe("[a-z0-9-]+");
+        assertSafe("(?:ford|volvo|vw)");
+        assertSafe("[a-z]+(?:-[a-z]+)*");
+        assertSafe("(/[^/]+)+");
+        assertSafe("\\d{4}");
+        assertSafe("(?>a+)+");
+        assertSafe("(a++)+");
+    }
+
+    @Test
+    public void nestedQuantifierTest() {
+        assertHazard("(a+)+", "nested quantifier (a+)+");
+        assertHazard("([a-z]+-?)+", "nested quantifier ([a-z]+-?)+");
+        assertHazard("(\\w+\\s?)*$", "nested quantifier (\\w+\\s?)*");
+        assertHazard("(.*a){12}", "nested quantifier (.*a){12}");
+    }
+
+    @Test
+    public void ambiguousAlternationTest() {
+        assertHazard("(?:\\w|a)*", "ambiguous alternation (?:\\w|a)*");
+        assertHazard("(?:ab|a[0-9])+", "ambiguous alternation (?:ab|a[0-9])+");
+        assertSafe("(?:ab|[0-9])+");
+    }
+
+    @Test
+    public void overBudgetTest() {
+        final RegexCost cost = analyzer.analyze("x((a+)+)+y");
+        assertTrue(cost.isOverBudget(), cost.toString());
+        assertTrue(cost.isFlagged());
+        assertTrue(cost.isHazardConfirmed());
+        assertTrue(cost.getWorstInput().startsWith("xaaaaaaaa"), cost.getWorstInput());
+        assertTrue(cost.toString().contains("over the 1000.0 us budget"), cost.toString());
+    }
+
+    @Test
+    public void buildInputsTest() {
+        final List<String> inputs = RegexCostAnalyzer.buildInputs("xa", 4);
+        assertEquals(inputs.size(), 9);
+        assertEquals(inputs.get(0), "xxxx!");
+        assertEquals(inputs.get(3), "xaaaa!");
+        assertEquals(inputs.get(8), "xaxa\n");
+    }
+
+    @Test(expectedExceptions = PatternSyntaxException.class)
+    public void invalidExpressionTest() {
+        analyzer.analyze("(a+");
+    }
+
+    private void assertSafe(String regex) {
+        final RegexCost cost = analyzer.analyze(regex);
+        assertTrue(cost.getHazards().isEmpty(), regex + ": " + cost.getHazards());
+        assertFalse(cost.isFlagged(), regex + ": " + cost);
+    }
+
+    private void assertHazard(String regex, String hazard) {
+        final RegexCost cost = analyzer.analyze(regex);
+        assertTrue(cost.getHazards().contains(hazard), regex + ": " + cost.getHazards());
+        assertTrue(cost.isFlagged());
+    }
+}
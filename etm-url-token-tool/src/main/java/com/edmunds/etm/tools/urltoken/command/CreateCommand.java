@@ -21,6 +21,7 @@ import com.edmunds.etm.common.impl.TokenExistsException;
 import com.edmunds.etm.common.impl.UrlTokenRepository;
 import com.edmunds.etm.tools.urltoken.util.OptionUtils;
 import com.edmunds.etm.tools.urltoken.util.OutputWriter;
+import com.edmunds.etm.tools.urltoken.util.TokenCostChecker;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
@@ -41,19 +42,25 @@ public class CreateCommand implements Command {
 
     private final UrlTokenRepository urlTokenRepository;
     private final OutputWriter outputWriter;
+    private final TokenCostChecker tokenCostChecker;
     private final OptionParser parser;
     private final OptionSpec<String> tokenTypeOption;
     private final OptionSpec<File> valuesFileOption;
+    private final OptionSpec forceOption;
 
     @Autowired
-    public CreateCommand(UrlTokenRepository urlTokenRepository, OutputWriter outputWriter) {
+    public CreateCommand(UrlTokenRepository urlTokenRepository,
+                         OutputWriter outputWriter,
+                         TokenCostChecker tokenCostChecker) {
         this.urlTokenRepository = urlTokenRepository;
         this.outputWriter = outputWriter;
+        this.tokenCostChecker = tokenCostChecker;
         this.parser = new OptionParser();
         this.tokenTypeOption = parser.accepts("t", "token type, 'fixed' (default) or 'regex'")
             .withRequiredArg().ofType(String.class);
         this.valuesFileOption = parser.accepts("f", "values file path (one value per line)")
             .withRequiredArg().ofType(File.class);
+        this.forceOption = parser.accepts("force", "skip the regular expression cost check");
     }
 
     @Override
@@ -108,6 +115,10 @@ public class CreateCommand implements Command {
         }
 
         UrlToken token = UrlToken.newUrlToken(tokenType, tokenName, values);
+        if(!options.has(forceOption) && !tokenCostChecker.isAcceptable(token)) {
+            return;
+        }
+
         try {
             urlTokenRepository.createToken(token);
         } catch(TokenExistsException e) {
@@ -20,6 +20,7 @@ import com.edmunds.etm.common.impl.TokenNotFoundException;
 import com.edmunds.etm.common.impl.UrlTokenRepository;
 import com.edmunds.etm.tools.urltoken.util.OptionUtils;
 import com.edmunds.etm.tools.urltoken.util.OutputWriter;
+import com.edmunds.etm.tools.urltoken.util.TokenCostChecker;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
@@ -40,18 +41,24 @@ public class UpdateCommand implements Command {
 
     private final UrlTokenRepository urlTokenRepository;
     private final OutputWriter outputWriter;
+    private final TokenCostChecker tokenCostChecker;
     private final OptionParser parser;
     private final OptionSpec<File> valuesFileOption;
     private final OptionSpec replaceOption;
+    private final OptionSpec forceOption;
 
     @Autowired
-    public UpdateCommand(UrlTokenRepository urlTokenRepository, OutputWriter outputWriter) {
+    public UpdateCommand(UrlTokenRepository urlTokenRepository,
+                         OutputWriter outputWriter,
+                         TokenCostChecker tokenCostChecker) {
         this.urlTokenRepository = urlTokenRepository;
         this.outputWriter = outputWriter;
+        this.tokenCostChecker = tokenCostChecker;
         this.parser = new OptionParser();
         this.valuesFileOption = parser.accepts("f", "values file path (one value per line)")
             .withRequiredArg().ofType(File.class);
         this.replaceOption = parser.accepts("r", "replace values instead of appending");
+        this.forceOption = parser.accepts("force", "skip the regular expression cost check");
     }
 
     @Override
@@ -117,6 +124,10 @@ public class UpdateCommand implements Command {
             }
         }
 
+        if(!options.has(forceOption) && !tokenCostChecker.isAcceptable(token)) {
+            return;
+        }
+
         try {
             urlTokenRepository.updateToken(token);
         } catch(TokenNotFoundException e) {
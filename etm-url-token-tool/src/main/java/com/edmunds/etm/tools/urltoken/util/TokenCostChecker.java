@@ -0,0 +1,72 @@
+/*
+ * Copyright 2011 Edmunds.com, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.edmunds.etm.tools.urltoken.util;
+
+import com.edmunds.etm.common.api.UrlToken;
+import com.edmunds.etm.regex.RegexCost;
+import com.edmunds.etm.regex.RegexCostAnalyzer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Checks the cost of matching a token's regular expression before the token is written, so that a token that would
+ * cause catastrophic backtracking never reaches the controller.
+ *
+ * @author David Trott
+ */
+@Component
+public class TokenCostChecker {
+
+    private final OutputWriter outputWriter;
+    private RegexCostAnalyzer costAnalyzer;
+
+    @Autowired
+    public TokenCostChecker(OutputWriter outputWriter) {
+        this.outputWriter = outputWriter;
+        this.costAnalyzer = new RegexCostAnalyzer();
+    }
+
+    public void setBudgetMicros(long budgetMicros) {
+        this.costAnalyzer = new RegexCostAnalyzer(budgetMicros);
+    }
+
+    /**
+     * Analyzes a token and prints the reason if it is rejected or flagged.
+     *
+     * @param token the token to check
+     * @return true if the token is valid and within budget
+     */
+    public boolean isAcceptable(UrlToken token) {
+        RegexCost cost;
+        try {
+            cost = costAnalyzer.analyze(token.toRegex());
+        } catch(PatternSyntaxException e) {
+            outputWriter.println(String.format("Invalid regular expression: %s", e.getMessage()));
+            return false;
+        }
+
+        if(cost.isOverBudget()) {
+            outputWriter.println(String.format("Token rejected, regular expression is too expensive: %s", cost));
+            return false;
+        }
+        if(cost.isFlagged()) {
+            outputWriter.println(String.format("Warning, regular expression may backtrack excessively: %s", cost));
+        }
+        return true;
+    }
+}